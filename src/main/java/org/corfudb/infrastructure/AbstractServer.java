@@ -7,6 +7,8 @@ import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
 import org.corfudb.util.CorfuMsgHandler;
 
+import java.util.List;
+
 /**
  * Created by mwei on 12/4/15.
  */
@@ -44,6 +46,32 @@ public abstract class AbstractServer {
         }
     }
 
+    /**
+     * Check whether messages of a type are handled in batches. The messages of such a type which are
+     * read from a channel in one burst are handed to {@link #handleMessages} together once the burst
+     * has been read, instead of one by one as they are read.
+     *
+     * @param type The type of message.
+     * @return True, if the messages of the type are handled in batches.
+     */
+    public boolean isBatched(CorfuMsg.CorfuMsgType type) {
+        return false;
+    }
+
+    /**
+     * Handle a batch of incoming Netty messages, of a type which is handled in batches.
+     * By default, each message is handled on its own.
+     *
+     * @param msgs The incoming messages, in the order they were read.
+     * @param ctx  The channel handler context.
+     * @param r    The router that took in the messages.
+     */
+    public void handleMessages(List<CorfuMsg> msgs, ChannelHandlerContext ctx, IServerRouter r) {
+        for (CorfuMsg msg : msgs) {
+            handleMessage(msg, ctx, r);
+        }
+    }
+
     /**
      * Reset the server.
      */
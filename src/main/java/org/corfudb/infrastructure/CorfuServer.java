@@ -60,25 +60,72 @@ public class CorfuServer {
             "Corfu Server, the server for the Corfu Infrastructure.\n"
                     + "\n"
                     + "Usage:\n"
-                    + "\tcorfu_server (-l <path>|-m) [-fs] [-a <address>] [-t <token>] [-c <size>] [-k seconds] [-d <level>] [-p <seconds>] <port>\n"
+                    + "\tcorfu_server (-l <path>|-m) [-fs] [-a <address>] [-t <token>] [-c <size>] [-k seconds] [-d <level>] [-p <seconds>]\n"
+                    + "\t\t[--sync-batch-size=<count>] [--sync-batch-wait=<micros>] [--max-mapped-segments=<count>]\n"
+                    + "\t\t[--writer-threads=<count>] [--writer-queue-size=<count>] [--read-threads=<count>]\n"
+                    + "\t\t[--scrub-interval=<seconds>] [--scrub-rate=<bytes>] [--off-heap-cache] [--gc-slice=<millis>]\n"
+                    + "\t\t[--compact-rate=<bytes>] [--cold-path=<path>] [--cold-after=<segments>]\n"
+                    + "\t\t[--block-cache=<bytes>] [--compress] [--compress-block-size=<bytes>]\n"
+                    + "\t\t[--data-dirs=<dirs>] [--placement=<policy>] <port>\n"
                     + "\n"
                     + "Options:\n"
                     + " -l <path>, --log-path=<path>            Set the path to the storage file for the log unit.\n"
                     + " -s, --single                            Deploy a single-node configuration.\n"
                     + "                                         The server will be bootstrapped with a simple one-unit layout.\n"
                     + " -f, --sync                              Flush all writes to disk before acknowledging.\n"
+                    + " --writer-threads=<count>                The number of threads writing the log to each data\n"
+                    + "                                         directory [default: 2].\n"
+                    + " --writer-queue-size=<count>             The number of writes each writer thread may have queued\n"
+                    + "                                         before further writes block [default: 10000].\n"
+                    + " --read-threads=<count>                  The number of threads loading the reads which miss the\n"
+                    + "                                         cache from the log [default: 4].\n"
+                    + " --sync-batch-size=<count>               The maximum number of writes flushed to disk together\n"
+                    + "                                         in sync mode [default: 64].\n"
+                    + " --sync-batch-wait=<micros>              The maximum time, in microseconds, to wait for more writes\n"
+                    + "                                         to join a batch in sync mode [default: 0].\n"
+                    + " --max-mapped-segments=<count>           The maximum number of log segment files which are memory\n"
+                    + "                                         mapped at once [default: 64].\n"
+                    + " --scrub-interval=<seconds>              The interval, in seconds, between passes of the scrubber which\n"
+                    + "                                         verifies the checksums of sealed log segments, or 0 to\n"
+                    + "                                         disable it [default: 3600].\n"
+                    + " --scrub-rate=<bytes>                    The maximum rate, in bytes per second, at which the scrubber\n"
+                    + "                                         reads the log [default: 4000000].\n"
+                    + " --gc-slice=<millis>                     The maximum time, in milliseconds, the garbage collector runs\n"
+                    + "                                         before pausing to let other work proceed [default: 50].\n"
                     + " -a <address>, --address=<address>       IP address to advertise to external clients [default: localhost].\n"
                     + " -m, --memory                            Run the unit in-memory (non-persistent).\n"
                     + "                                         Data will be lost when the server exits!\n"
                     + " -c <size>, --max-cache=<size>           The size of the in-memory cache to serve requests from -\n"
                     + "                                         If there is no log, then this is the max size of the log unit\n"
                     + "                                         evicted entries will be auto-trimmed. [default: 1000000000].\n"
+                    + " --off-heap-cache                        Keep the cache of the log unit in direct memory, off the heap.\n"
+                    + "                                         The cache then never allocates more than --max-cache bytes.\n"
                     + " -t <token>, --initial-token=<token>     The first token the sequencer will issue, or -1 to recover\n"
                     + "                                         from the log. [default: -1].\n"
-                    + " -k <seconds>, --checkpoint=<seconds>    The rate the sequencer should checkpoint its state to disk,\n"
-                    + "                                         in seconds [default: 60].\n"
-                    + " -p <seconds>, --compact=<seconds>       The rate the log unit should compact entries (find the,\n"
-                    + "                                         contiguous tail) in seconds [default: 60].\n"
+                    + " -k <seconds>, --checkpoint=<seconds>    The rate the sequencer should checkpoint its state, including\n"
+                    + "                                         the tail of each stream, to disk, in seconds [default: 60].\n"
+                    + " -p <seconds>, --compact=<seconds>       The interval, in seconds, between passes of the compactor which\n"
+                    + "                                         rewrites log segments whose entries are mostly trimmed, or 0\n"
+                    + "                                         to disable it [default: 60].\n"
+                    + " --compact-rate=<bytes>                  The maximum rate, in bytes per second, at which the compactor\n"
+                    + "                                         copies entries [default: 4000000].\n"
+                    + " --cold-path=<path>                      Move sealed log segments to this directory, compressed, once\n"
+                    + "                                         they are --cold-after segments behind the tail of the log.\n"
+                    + " --cold-after=<segments>                 The number of segments behind the tail of the log at which a\n"
+                    + "                                         segment is moved to --cold-path [default: 16].\n"
+                    + " --block-cache=<bytes>                   The size of the cache of decompressed blocks read from\n"
+                    + "                                         --cold-path or compressed log segments [default: 67108864].\n"
+                    + " --compress                              Compress new log segments, by packing their entries into\n"
+                    + "                                         blocks once they are sealed. Existing segments keep their\n"
+                    + "                                         format.\n"
+                    + " --compress-block-size=<bytes>           The size of the entries compressed together in a block,\n"
+                    + "                                         before compression [default: 32768].\n"
+                    + " --data-dirs=<dirs>                      A comma separated list of directories, for example one per\n"
+                    + "                                         disk, to place log segments on instead of --log-path. Each\n"
+                    + "                                         directory has its own writer threads.\n"
+                    + " --placement=<policy>                    How new log segments are placed on --data-dirs: round-robin,\n"
+                    + "                                         or free-space, on the directory with the most free space\n"
+                    + "                                         [default: round-robin].\n"
                     + " -d <level>, --log-level=<level>         Set the logging level, valid levels are: \n"
                     + "                                         ERROR,WARN,INFO,DEBUG,TRACE [default: INFO].\n"
                     + " -h, --help  Show this screen\n"
@@ -3,12 +3,28 @@ package org.corfudb.infrastructure;
 import io.netty.channel.ChannelHandlerContext;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
 
+import java.util.List;
+
 /**
  * Created by mwei on 12/13/15.
  */
 public interface IServerRouter {
     void sendResponse(ChannelHandlerContext ctx, CorfuMsg inMsg, CorfuMsg outMsg);
 
+    /**
+     * Send the responses to a batch of messages, which a router may flush together.
+     *
+     * @param ctx     Channel handler context to use.
+     * @param inMsgs  Incoming messages to respond to.
+     * @param outMsgs The outgoing message for each incoming message, in the same order.
+     */
+    default void sendResponses(ChannelHandlerContext ctx, List<? extends CorfuMsg> inMsgs,
+                               List<? extends CorfuMsg> outMsgs) {
+        for (int i = 0; i < inMsgs.size(); i++) {
+            sendResponse(ctx, inMsgs.get(i), outMsgs.get(i));
+        }
+    }
+
     /**
      * Get the current epoch.
      */
@@ -1,12 +1,9 @@
 package org.corfudb.infrastructure;
 
-import com.github.benmanes.caffeine.cache.CacheWriter;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
-import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Range;
+import com.google.common.base.Throwables;
 import com.google.common.collect.RangeSet;
+import com.google.common.util.concurrent.RateLimiter;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.channel.ChannelHandlerContext;
 import lombok.Data;
@@ -14,34 +11,51 @@ import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.corfudb.infrastructure.log.AbstractLocalLog;
+import org.corfudb.infrastructure.log.HeapDataCache;
+import org.corfudb.infrastructure.log.IDataCache;
 import org.corfudb.infrastructure.log.InMemoryLog;
 import org.corfudb.infrastructure.log.LogUnitEntry;
+import org.corfudb.infrastructure.log.LogWriteStats;
+import org.corfudb.infrastructure.log.OffHeapDataCache;
 import org.corfudb.infrastructure.log.RollingLog;
+import org.corfudb.infrastructure.log.StreamAddressIndex;
+import org.corfudb.infrastructure.log.TrimMap;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
 import org.corfudb.protocols.wireprotocol.CorfuRangeMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitFillHoleMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitFlushWatermarkMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitGCIntervalMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitPrefixTrimMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitReadRangeCreditMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitReadRangeResponseMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitReadRequestMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg.ReadResultType;
 import org.corfudb.protocols.wireprotocol.LogUnitTrimMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitStreamAddressesMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitStreamAddressesRequestMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitWriteMsg;
+import org.corfudb.runtime.exceptions.DataCorruptionException;
+import org.corfudb.runtime.exceptions.OutOfSpaceException;
 import org.corfudb.util.Utils;
 import org.corfudb.util.retry.IRetry;
 import org.corfudb.util.retry.IntervalAndSentinelRetry;
 
 import java.io.File;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by mwei on 12/10/15.
@@ -49,27 +63,94 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * A Log Unit Server, which is responsible for providing the persistent storage for the Corfu Distributed Shared Log.
  * <p>
  * All reads and writes go through a cache. If the sync flag (--sync) is set, the cache is configured in write-through
- * mode, otherwise the cache is configured in write-back mode. For persistence, every 10,000 log entries are written
- * to individual files (logs), which are represented as FileHandles. Each FileHandle contains a pointer to the tail
- * of the file, a memory-mapped file channel, and a set of addresses known to be in the file. To write an entry, the
- * pointer to the tail is first extended to the length of the entry, and the entry is added to the set of known
- * addresses. A header is written, which consists of the ASCII characters LE, followed by a set of flags,
- * the log unit address, the size of the entry, then the metadata size, metadata and finally the entry itself.
- * When the entry is complete, a written flag is set in the flags field.
+ * mode, otherwise the cache is configured in write-back mode. The cache keeps entries on the heap, or, if the
+ * --off-heap-cache flag is set, in slabs of direct memory which never exceed --max-cache bytes.
+ * <p>
+ * Reads which miss the cache are loaded by a pool of read threads (--read-threads) and answered once loaded, so the
+ * network threads never block on disk, and concurrent misses on the same address share a single load. Range reads
+ * are streamed back in address order, in chunks of bounded size, which are only sent as the client grants credits
+ * for them. A read which fails on the server is answered with ERROR_SERVER_EXCEPTION.
+ * <p>
+ * For persistence, every 10,000 log entries are written to individual files (logs), which are represented as
+ * FileHandles. Each FileHandle contains a pointer to the tail of the file, a memory-mapped file channel, and a set of
+ * addresses known to be in the file. To write an entry, the pointer to the tail is first extended to the length of
+ * the entry, and the entry is added to the set of known addresses. A header is written, which consists of the ASCII
+ * characters LE, followed by a set of flags, the log unit address, the size of the entry, then the metadata size,
+ * metadata and finally the entry itself. When the entry is complete, a written flag is set in the flags field.
+ * <p>
+ * In sync mode, writes are queued to a group commit stage, which appends them in batches and forces each batch to
+ * disk before the writes are acknowledged. Otherwise, writes are acknowledged once queued, and the highest address
+ * below which every write is durable can be queried with a FLUSH_WATERMARK_REQUEST. With --data-dirs, log files are
+ * spread over several directories, such as one per disk, either round-robin or on the directory with the most free
+ * space (--placement), and each directory has its own writer threads, which batch and force its writes
+ * independently.
+ * <p>
+ * Each log file has an accompanying index file, which maps every address in the file to the offset of its entry, so
+ * reads do not need to scan the file. Once the log moves on to a later file, the index file is sealed with a footer
+ * holding the tail of the file and a bitmap of its addresses, so on restart only unsealed files need to be scanned.
+ * <p>
+ * Every entry ends with a CRC32C checksum, which is verified when it is read. A scrubber periodically verifies the
+ * sealed log files at a limited IO rate (--scrub-rate), and quarantines any corrupt entries it finds.
+ * <p>
+ * The log unit keeps an index of the addresses of each stream, as runs of consecutive addresses, which is appended
+ * to a stream index file in the log directory and served whole by READ_STREAM_ADDRESSES, so a client learns every
+ * address of a stream in one round trip. The streams of a write are indexed before it is queued, and
+ * the index file is forced with every commit of the log, so the index holds every write which was acknowledged.
+ * <p>
+ * The trim prefixes of streams and the trim watermark, below which every address is trimmed (PREFIX_TRIM), are
+ * appended to a trim map file in the log directory, so trims survive restarts. Reads of trimmed entries are answered
+ * with ERROR_TRIMMED, and reads below the watermark are answered without touching the log. When a stream is trimmed,
+ * the garbage collector frees the entries newly covered by its trim prefix in bounded time slices (--gc-slice).
+ * <p>
+ * A sealed log file whose every entry has been trimmed is deleted, and one at least half of whose entries have been
+ * trimmed is compacted into a new file at a limited IO rate (--compact-rate). If a cold tier is configured
+ * (--cold-path), sealed log files which are far enough behind the tail of the log (--cold-after) are compressed block
+ * by block and moved there by the same pass, and entries read from them are served from a cache of decompressed
+ * blocks (--block-cache). With --compress, new log files are marked as compressed in their header, and once such a
+ * file is sealed, the same pass packs its entries into blocks of about --compress-block-size bytes, which are
+ * compressed together, however the entries were batched when they were written.
+ * <p>
+ * In memory mode (--memory), entries are held on the heap in chunks of consecutive addresses, and once they exceed
+ * --max-cache bytes, the oldest are trimmed and the watermark is raised past them.
  */
 @Slf4j
 public class LogUnitServer extends AbstractServer {
 
+    /**
+     * The maximum number of addresses in a chunk of a range read.
+     */
+    static final int RANGE_CHUNK_SIZE = 256;
+
+    /**
+     * The size of the payloads beyond which a chunk of a range read is cut short.
+     */
+    static final long RANGE_CHUNK_BYTES = 1 << 20;
+
+    /**
+     * The number of chunks of a range read which may be sent before the client grants more credits.
+     */
+    static final int RANGE_READ_CREDITS = 4;
+
+    /**
+     * The time after which a range read whose client stopped granting credits is dropped.
+     */
+    static final long RANGE_READ_EXPIRY_NANOS = TimeUnit.MINUTES.toNanos(5);
+
     /**
      * A scheduler, which is used to schedule periodic tasks like garbage collection.
      */
     private final ScheduledExecutorService scheduler =
             Executors.newScheduledThreadPool(
-                    1,
+                    2,
                     new ThreadFactoryBuilder()
                             .setDaemon(true)
                             .setNameFormat("LogUnit-Maintenance-%d")
                             .build());
+    /**
+     * The threads which load the reads which miss the cache, so the network threads never block
+     * on the local log (--read-threads).
+     */
+    private final ExecutorService readExecutor;
     /**
      * The options map.
      */
@@ -79,46 +160,142 @@ public class LogUnitServer extends AbstractServer {
      */
     Thread gcThread;
     /**
-     * The contiguous head of the log (that is, the lowest address which has NOT been trimmed yet).
+     * The trim prefixes of streams, and the trim watermark, which are persisted in the log directory.
      */
-    @Getter
-    long contiguousHead;
-
-    ConcurrentHashMap<UUID, Long> trimMap;
+    TrimMap trimMap;
+    /**
+     * The path of the trim map file, or null in in-memory mode.
+     */
+    final String trimMapPath;
+    /**
+     * The trim watermark the local log and the cache have been trimmed to. Only accessed by the collector.
+     */
+    long collectedWatermark = -1L;
+    /**
+     * The addresses of each stream which have not been trimmed yet, which are persisted in the log directory.
+     */
+    StreamAddressIndex streamIndex;
+    /**
+     * The path of the stream address index file, or null in in-memory mode.
+     */
+    final String streamIndexPath;
+    /**
+     * Streams whose trim prefix has advanced since the garbage collector last processed them.
+     */
+    Set<UUID> pendingTrims;
+    /**
+     * The range reads which are being streamed back, by client and request.
+     */
+    final Map<RangeReadKey, RangeReadStream> rangeReads = new ConcurrentHashMap<>();
+    /**
+     * The maximum time, in milliseconds, the garbage collector runs before pausing.
+     */
+    long gcSlice;
     IntervalAndSentinelRetry gcRetry;
     AtomicBoolean running = new AtomicBoolean(true);
     /**
      * This cache services requests for data at various addresses. In a memory implementation,
      * it is not backed by anything, but in a disk implementation it is backed by persistent storage.
      */
-    LoadingCache<Long, LogUnitEntry> dataCache;
+    IDataCache dataCache;
     long maxCacheSize;
 
+    /**
+     * Whether the data cache keeps its entries off the heap (--off-heap-cache).
+     */
+    boolean offHeapCache;
+
     private final AbstractLocalLog localLog;
 
+    /**
+     * The IO budget of the scrubber, in bytes per second.
+     */
+    private final RateLimiter scrubBudget;
+
+    /**
+     * The IO budget of the compactor, in bytes per second.
+     */
+    private final RateLimiter compactionBudget;
+
+    /**
+     * The total number of bytes of disk space reclaimed by compaction.
+     */
+    @Getter
+    private final AtomicLong compactedBytes = new AtomicLong();
+
     public LogUnitServer(ServerContext serverContext) {
         this.opts = serverContext.getServerConfig();
 
         maxCacheSize = Utils.parseLong(opts.get("--max-cache"));
+        gcSlice = Utils.getOption(opts, "--gc-slice", Long.class, 50L);
+        offHeapCache = Utils.getOption(opts, "--off-heap-cache", Boolean.class, false);
+        readExecutor = Executors.newFixedThreadPool(Utils.getOption(opts, "--read-threads", Integer.class, 4),
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("LogUnit-Read-%d")
+                        .build());
         String logdir = opts.get("--log-path") + File.separator + "log";
         if ((Boolean) opts.get("--memory")) {
             log.warn("Log unit opened in-memory mode (Maximum size={}). " +
                     "This should be run for testing purposes only. " +
                     "If you exceed the maximum size of the unit, old entries will be AUTOMATICALLY trimmed. " +
                     "The unit WILL LOSE ALL DATA if it exits.", Utils.convertToByteStringRepresentation(maxCacheSize));
-            localLog = new InMemoryLog(0, Long.MAX_VALUE);
+            // The log trims its oldest entries once it exceeds the maximum size, and the trim map
+            // follows, so reads of those entries are answered as trimmed.
+            localLog = new InMemoryLog(0, Long.MAX_VALUE, maxCacheSize, prefix -> trimMap.trimPrefix(prefix));
+            trimMapPath = null;
+            streamIndexPath = null;
+            if (offHeapCache) {
+                // In memory, the log itself holds the entries on the heap, so an off-heap cache would only
+                // duplicate them.
+                log.warn("The off-heap cache is not used in in-memory mode.");
+                offHeapCache = false;
+            }
             reset();
         } else {
-            localLog = new RollingLog(0, Long.MAX_VALUE, logdir, (Boolean) opts.get("--sync"));
+            localLog = new RollingLog(0, Long.MAX_VALUE, logdir, opts);
+            trimMapPath = opts.get("--log-path") + File.separator + "trim_map";
+            streamIndexPath = opts.get("--log-path") + File.separator + "stream_index";
         }
 
         reset();
 
-/*       compactTail seems to be broken, disabling it for now
-         scheduler.scheduleAtFixedRate(this::compactTail,
-                Utils.getOption(opts, "--compact", Long.class, 60L),
-                Utils.getOption(opts, "--compact", Long.class, 60L),
-                TimeUnit.SECONDS);*/
+        // The streams of a write are indexed before the write is queued, and the index is made
+        // durable with every commit of the log, so an acknowledged write is never missing from it.
+        localLog.setWriteListener(new AbstractLocalLog.WriteListener() {
+            @Override
+            public void accepted(long address, LogUnitEntry entry) {
+                try {
+                    streamIndex.add(address, entry.getStreams());
+                } catch (RuntimeException re) {
+                    throw new StreamIndexException(re);
+                }
+            }
+
+            @Override
+            public void committed() {
+                try {
+                    streamIndex.sync();
+                } catch (RuntimeException re) {
+                    throw new StreamIndexException(re);
+                }
+            }
+        });
+
+        scrubBudget = RateLimiter.create(Utils.getOption(opts, "--scrub-rate", Long.class, 4_000_000L));
+        long scrubInterval = Utils.getOption(opts, "--scrub-interval", Long.class, 3600L);
+        if (scrubInterval > 0) {
+            scheduler.scheduleWithFixedDelay(this::scrub, scrubInterval, scrubInterval, TimeUnit.SECONDS);
+        }
+
+        compactionBudget = RateLimiter.create(Utils.getOption(opts, "--compact-rate", Long.class, 4_000_000L));
+        long compactInterval = Utils.getOption(opts, "--compact", Long.class, 60L);
+        if (compactInterval > 0) {
+            scheduler.scheduleWithFixedDelay(this::compact, compactInterval, compactInterval, TimeUnit.SECONDS);
+        }
+
+        scheduler.scheduleWithFixedDelay(this::expireRangeReads, 1, 1, TimeUnit.MINUTES);
+        scheduler.scheduleWithFixedDelay(this::flushStreamIndex, 1, 1, TimeUnit.SECONDS);
 
         gcThread = new Thread(this::runGC);
         gcThread.start();
@@ -143,6 +320,16 @@ public class LogUnitServer extends AbstractServer {
                 log.trace("Handling read request for address ranges {}", rangeReadMsg.getRanges());
                 read(rangeReadMsg, ctx, r);
                 break;
+            case READ_RANGE_CREDIT:
+                grantRangeCredits((LogUnitReadRangeCreditMsg) msg);
+                break;
+            case READ_STREAM_ADDRESSES: {
+                LogUnitStreamAddressesRequestMsg m = (LogUnitStreamAddressesRequestMsg) msg;
+                long prefix = trimMap.getPrefix(m.getStreamID());
+                r.sendResponse(ctx, m, new LogUnitStreamAddressesMsg(prefix,
+                        streamIndex.getAddresses(m.getStreamID(), prefix)));
+            }
+            break;
             case GC_INTERVAL: {
                 LogUnitGCIntervalMsg m = (LogUnitGCIntervalMsg) msg;
                 log.info("Garbage collection interval set to {}", m.getInterval());
@@ -157,128 +344,337 @@ public class LogUnitServer extends AbstractServer {
             case FILL_HOLE: {
                 LogUnitFillHoleMsg m = (LogUnitFillHoleMsg) msg;
                 log.debug("Hole fill requested at {}", m.getAddress());
-                dataCache.get(m.getAddress(), (address) -> new LogUnitEntry(address));
-                r.sendResponse(ctx, m, new CorfuMsg(CorfuMsg.CorfuMsgType.ACK));
+                if (m.getAddress() <= trimMap.getWatermark()) {
+                    r.sendResponse(ctx, m, new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_TRIMMED));
+                    break;
+                }
+                CompletableFuture<Void> filled;
+                try {
+                    filled = dataCache.fillHole(m.getAddress());
+                } catch (Exception ex) {
+                    r.sendResponse(ctx, m, new CorfuMsg(writeFailureOf(ex)));
+                    break;
+                }
+                filled.whenComplete((v, ex) -> r.sendResponse(ctx, m, new CorfuMsg(ex == null
+                        ? CorfuMsg.CorfuMsgType.ACK : writeFailureOf(ex))));
+            }
+            break;
+            case FLUSH_WATERMARK_REQUEST: {
+                LogWriteStats stats = localLog.getWriteStats();
+                r.sendResponse(ctx, msg, new LogUnitFlushWatermarkMsg(stats.getDurableWatermark(),
+                        stats.getPendingWrites(), stats.getMeanWriteLatency()));
             }
             break;
             case TRIM: {
                 LogUnitTrimMsg m = (LogUnitTrimMsg) msg;
-                trimMap.compute(m.getStreamID(), (key, prev) ->
-                        prev == null ? m.getPrefix() : Math.max(prev, m.getPrefix()));
+                if (trimMap.trim(m.getStreamID(), m.getPrefix())) {
+                    pendingTrims.add(m.getStreamID());
+                }
                 log.debug("Trim requested at prefix={}", m.getPrefix());
             }
             break;
+            case PREFIX_TRIM: {
+                LogUnitPrefixTrimMsg m = (LogUnitPrefixTrimMsg) msg;
+                trimMap.trimPrefix(m.getPrefix());
+                log.debug("Prefix trim requested at prefix={}", m.getPrefix());
+            }
+            break;
         }
     }
 
     @Override
     public void reset() {
-        contiguousHead = 0L;
-
         if (dataCache != null) {
             /** Free all references */
-            dataCache.asMap().values().parallelStream()
-                    .map(m -> m.buffer.release());
+            dataCache.invalidateAll();
         }
 
-        dataCache = Caffeine.newBuilder()
-                .<Long, LogUnitEntry>weigher((k, v) -> v.buffer == null ? 1 : v.buffer.readableBytes())
-                .maximumWeight(maxCacheSize)
-                .removalListener(this::handleEviction)
-                .writer(new CacheWriter<Long, LogUnitEntry>() {
-                    @Override
-                    public void write(Long address, LogUnitEntry entry) {
-                        if (dataCache.getIfPresent(address) != null) {// || seenAddresses.contains(address)) {
-                            throw new RuntimeException("overwrite");
-                        }
-                        if (!entry.isPersisted) { //don't persist an entry twice.
-                            localLog.write(address, entry);
-                        }
-                    }
+        dataCache = offHeapCache ? new OffHeapDataCache(maxCacheSize, localLog, readExecutor)
+                : new HeapDataCache(maxCacheSize, localLog, readExecutor);
 
-                    @Override
-                    public void delete(Long aLong, LogUnitEntry logUnitEntry, RemovalCause removalCause) {
-                        // never need to delete
-                    }
-                }).build(this::handleRetrieval);
+        // In memory, the trim map is reset along with the log. Otherwise, it is loaded from disk once,
+        // since the log on disk outlives a reset.
+        if (trimMap == null || trimMapPath == null) {
+            trimMap = new TrimMap(trimMapPath);
+        }
+        collectedWatermark = -1L;
+        rangeReads.clear();
+        // Likewise for the stream address index. Trims are not persisted in the index, so every
+        // trimmed stream is collected again.
+        if (streamIndex == null || streamIndexPath == null) {
+            streamIndex = new StreamAddressIndex(streamIndexPath);
+        }
+        pendingTrims = ConcurrentHashMap.newKeySet();
+        pendingTrims.addAll(trimMap.getStreamPrefixes().keySet());
+    }
 
-        // Trim map is set to empty on start
-        // TODO: persist trim map - this is optional since trim is just a hint.
-        trimMap = new ConcurrentHashMap<>();
+    /**
+     * Service an incoming read request. A read which misses the cache is loaded on the read
+     * executor, and answered once it completes.
+     */
+    public void read(LogUnitReadRequestMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
+        log.trace("Read[{}]", msg.getAddress());
+        if (msg.getAddress() <= trimMap.getWatermark()) {
+            r.sendResponse(ctx, msg, new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_TRIMMED));
+            return;
+        }
+        dataCache.getAsync(msg.getAddress()).whenComplete((e, ex) -> {
+            if (ex != null) {
+                handleReadFailure(msg, ctx, r, ex);
+                return;
+            }
+            try {
+                if (e == null) {
+                    r.sendResponse(ctx, msg, new LogUnitReadResponseMsg(ReadResultType.EMPTY));
+                } else if (trimMap.isTrimmed(msg.getAddress(), e.getStreams())) {
+                    r.sendResponse(ctx, msg, new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_TRIMMED));
+                } else if (e.isHole) {
+                    r.sendResponse(ctx, msg, new LogUnitReadResponseMsg(ReadResultType.FILLED_HOLE));
+                } else {
+                    r.sendResponse(ctx, msg, new LogUnitReadResponseMsg(e));
+                }
+            } finally {
+                // The response holds its own reference to the payload.
+                if (e != null) {
+                    e.release();
+                }
+            }
+        });
     }
 
     /**
-     * Retrieve the LogUnitEntry from disk, given an address.
-     *
-     * @param address The address to retrieve the entry from.
-     * @return The log unit entry to retrieve into the cache.
-     * This function should not care about trimmed addresses, as that is handled in
-     * the read() and write(). Any address that cannot be retrieved should be returned as
-     * unwritten (null).
-     */
-    public synchronized LogUnitEntry handleRetrieval(Long address) {
-        LogUnitEntry entry = localLog.read(address);
-        log.trace("Retrieved[{} : {}]", address, entry);
-        return entry;
+     * Service an incoming ranged read request. The entries are streamed back in address order,
+     * in chunks of at most RANGE_CHUNK_SIZE addresses and about RANGE_CHUNK_BYTES bytes. The
+     * client starts with RANGE_READ_CREDITS credits, and grants a credit for every chunk it
+     * consumes, so a slow reader holds back the stream instead of piling up chunks. Chunks are
+     * numbered, so the client can tell when it has received all of them.
+     */
+    public void read(CorfuRangeMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
+        log.trace("ReadRange[{}]", msg.getRanges());
+        RangeReadStream stream = new RangeReadStream(msg, ctx, r, RANGE_READ_CREDITS);
+        rangeReads.put(new RangeReadKey(msg.getClientID(), msg.getRequestID()), stream);
+        sendRangeChunks(stream);
     }
 
-    public synchronized void handleEviction(Long address, LogUnitEntry entry, RemovalCause cause) {
-        log.trace("Eviction[{}]: {}", address, cause);
-        if (entry.buffer != null) {
-            // Free the internal buffer once the data has been evicted (in the case the server is not sync).
-            entry.buffer.release();
+    /**
+     * Grant credits to a range read, and resume it.
+     */
+    private void grantRangeCredits(LogUnitReadRangeCreditMsg msg) {
+        RangeReadStream stream = rangeReads.get(new RangeReadKey(msg.getClientID(), msg.getRangeRequestID()));
+        if (stream == null) {
+            log.debug("Credits granted to range read {}, which is complete", msg.getRangeRequestID());
+            return;
         }
+        stream.grant(msg.getCredits());
+        sendRangeChunks(stream);
     }
 
     /**
-     * Service an incoming read request.
+     * Send the next chunk of a range read, if the client has credits for it. Once the chunk is
+     * sent, the following chunk is sent in turn, until the read completes or runs out of credits.
      */
-    public void read(LogUnitReadRequestMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
-        log.trace("Read[{}]", msg.getAddress());
-        LogUnitEntry e = dataCache.get(msg.getAddress());
-        if (e == null) {
-            r.sendResponse(ctx, msg, new LogUnitReadResponseMsg(ReadResultType.EMPTY));
-        } else if (e.isHole) {
-            r.sendResponse(ctx, msg, new LogUnitReadResponseMsg(ReadResultType.FILLED_HOLE));
+    private void sendRangeChunks(RangeReadStream stream) {
+        List<Long> addresses = stream.startChunk(RANGE_CHUNK_SIZE);
+        if (addresses == null) {
+            return;
+        }
+        CorfuRangeMsg msg = stream.getRequest();
+        // Addresses below the watermark are answered without being loaded.
+        long watermark = trimMap.getWatermark();
+        Set<Long> load = new HashSet<>();
+        for (long address : addresses) {
+            if (address > watermark) {
+                load.add(address);
+            }
+        }
+        dataCache.getAllAsync(load).whenComplete((e, ex) -> {
+            if (ex != null) {
+                rangeReads.remove(new RangeReadKey(msg.getClientID(), msg.getRequestID()));
+                handleReadFailure(msg, stream.getCtx(), stream.getRouter(), ex);
+                return;
+            }
+            Map<Long, LogUnitReadResponseMsg> chunk = new LinkedHashMap<>();
+            long resume = -1L;
+            long bytes = 0L;
+            try {
+                for (long address : addresses) {
+                    if (address <= watermark) {
+                        chunk.put(address, new LogUnitReadResponseMsg(ReadResultType.TRIMMED));
+                        continue;
+                    }
+                    LogUnitEntry entry = e.get(address);
+                    if (entry == null) {
+                        continue;
+                    }
+                    if (entry.getBuffer() != null) {
+                        bytes += entry.getBuffer().readableBytes();
+                        if (bytes > RANGE_CHUNK_BYTES && !chunk.isEmpty()) {
+                            // The rest of the addresses are loaded again for the next chunk.
+                            resume = address;
+                            break;
+                        }
+                    }
+                    chunk.put(address, trimMap.isTrimmed(address, entry.getStreams())
+                            ? new LogUnitReadResponseMsg(ReadResultType.TRIMMED)
+                            : new LogUnitReadResponseMsg(entry));
+                }
+            } finally {
+                // The responses hold their own references to the payloads.
+                e.values().forEach(LogUnitEntry::release);
+            }
+            boolean more = stream.completeChunk(resume);
+            if (!more) {
+                rangeReads.remove(new RangeReadKey(msg.getClientID(), msg.getRequestID()));
+            }
+            stream.getRouter().sendResponse(stream.getCtx(), msg,
+                    new LogUnitReadRangeResponseMsg(chunk, stream.numberChunk(), !more));
+            stream.finishChunk();
+            if (more) {
+                sendRangeChunks(stream);
+            }
+        });
+    }
+
+    /**
+     * Drop the range reads which the client has not granted credits to for a while, since the
+     * client must have gone away. In case it has not, the read is failed, so it does not wait for
+     * chunks which will never be sent.
+     */
+    private void expireRangeReads() {
+        long now = System.nanoTime();
+        rangeReads.values().removeIf(stream -> {
+            if (!stream.expire(now, RANGE_READ_EXPIRY_NANOS)) {
+                return false;
+            }
+            log.warn("Range read {} expired", stream.getRequest().getRequestID());
+            stream.getRouter().sendResponse(stream.getCtx(), stream.getRequest(),
+                    new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_SERVER_EXCEPTION));
+            return true;
+        });
+    }
+
+    /**
+     * Answer a read whose retrieval failed. Corrupt entries are reported as such to the client,
+     * and any other failure is logged and reported as an exception on the server.
+     */
+    private void handleReadFailure(CorfuMsg msg, ChannelHandlerContext ctx, IServerRouter r, Throwable ex) {
+        if (isCausedBy(ex, DataCorruptionException.class)) {
+            r.sendResponse(ctx, msg, new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_DATA_CORRUPTION));
         } else {
-            r.sendResponse(ctx, msg, new LogUnitReadResponseMsg(e));
+            log.error("Read {} failed", msg, ex);
+            r.sendResponse(ctx, msg, new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_SERVER_EXCEPTION));
         }
     }
 
     /**
-     * Service an incoming ranged read request.
+     * Check whether a failure was caused by an exception of a type, such as an entry failing its
+     * checksum on retrieval.
+     *
+     * @param e    The exception thrown.
+     * @param type The type of the cause.
+     * @return True, if an exception of the type is in the causal chain.
      */
-    public void read(CorfuRangeMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
-        log.trace("ReadRange[{}]", msg.getRanges());
-        Set<Long> total = new HashSet<>();
-        for (Range<Long> range : msg.getRanges().asRanges()) {
-            total.addAll(Utils.discretizeRange(range));
+    private boolean isCausedBy(Throwable e, Class<? extends Throwable> type) {
+        return Throwables.getCausalChain(e).stream()
+                .anyMatch(type::isInstance);
+    }
+
+    /**
+     * Verify the sealed segments of the local log, at the IO rate allowed by the scrub budget.
+     * Corrupt entries are quarantined by the log, so reads of them fail with ERROR_DATA_CORRUPTION.
+     */
+    public void scrub() {
+        try {
+            log.debug("Scrubber starting...");
+            Set<Long> corrupt = localLog.scrub(scrubBudget);
+            if (corrupt.isEmpty()) {
+                log.debug("Scrub pass complete, no corrupt entries found.");
+            } else {
+                log.error("Scrub pass complete, quarantined {} corrupt entries: {}", corrupt.size(), corrupt);
+            }
+        } catch (Exception e) {
+            // An exception would cancel future passes, so just log it.
+            log.error("Scrub pass failed", e);
         }
+    }
 
-        Map<Long, LogUnitEntry> e = dataCache.getAll(total);
-        Map<Long, LogUnitReadResponseMsg> o = new ConcurrentHashMap<>();
-        e.entrySet().parallelStream()
-                .forEach(rv -> o.put(rv.getKey(), new LogUnitReadResponseMsg(rv.getValue())));
-        r.sendResponse(ctx, msg, new LogUnitReadRangeResponseMsg(o));
+    /**
+     * Compact the local log, rewriting the segments which are mostly trimmed, and then move old
+     * segments to the cold tier, at the IO rate allowed by the compaction budget.
+     */
+    public void compact() {
+        try {
+            long reclaimed = localLog.compact(compactionBudget);
+            if (reclaimed > 0) {
+                log.info("Compaction pass complete, reclaimed {} ({} in total).",
+                        Utils.convertToByteStringRepresentation(reclaimed),
+                        Utils.convertToByteStringRepresentation(compactedBytes.addAndGet(reclaimed)));
+            }
+            long tiered = localLog.tierSegments(compactionBudget);
+            if (tiered > 0) {
+                log.info("Moved {} of log segments to the cold tier.", Utils.convertToByteStringRepresentation(tiered));
+            }
+        } catch (Exception e) {
+            // An exception would cancel future passes, so just log it.
+            log.error("Compaction pass failed", e);
+        }
     }
 
     /**
-     * Service an incoming write request.
+     * Service an incoming write request. The write is answered once the local log acknowledges it,
+     * which in sync mode is once it is durable, so the network thread never waits on the disk.
      */
     public void write(LogUnitWriteMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
         long address = msg.getAddress();
         log.trace("Write[{}]", address);
-        // The payload in the message is a view of a larger buffer allocated
-        // by netty, thus direct memory can leak. Copy the view and release the
-        // underlying buffer
-        LogUnitEntry e = new LogUnitEntry(address, msg.getData().copy(), msg.getMetadataMap(), false);
-        msg.getData().release();
+        if (trimMap.isTrimmed(address, msg.getStreams())) {
+            r.sendResponse(ctx, msg, new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_TRIMMED));
+            msg.getData().release();
+            return;
+        }
+        // The payload in the message is a view of the frame decoded by netty, which holds
+        // only this message, so the entry takes over the message's reference to the frame
+        // instead of copying the payload out of it.
+        LogUnitEntry e = new LogUnitEntry(address, msg.getData(), msg.getMetadataMap(), false);
+        CompletableFuture<Void> written;
         try {
-            dataCache.put(e.getAddress(), e);
-            r.sendResponse(ctx, msg, new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_OK));
+            written = dataCache.put(address, e);
         } catch (Exception ex) {
-            r.sendResponse(ctx, msg, new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_OVERWRITE));
+            // The put failed, so the cache did not take over the buffer.
+            r.sendResponse(ctx, msg, new CorfuMsg(writeFailureOf(ex)));
             e.getBuffer().release();
+            return;
+        }
+        written.whenComplete((v, ex) -> r.sendResponse(ctx, msg, new CorfuMsg(ex == null
+                ? CorfuMsg.CorfuMsgType.ERROR_OK : writeFailureOf(ex))));
+    }
+
+    /**
+     * Get the error a write or a hole fill which failed is answered with.
+     *
+     * @param ex The exception the write failed with.
+     * @return ERROR_OOS if the log is out of space, ERROR_SERVER_EXCEPTION if the stream address
+     * index failed, and ERROR_OVERWRITE otherwise.
+     */
+    private CorfuMsg.CorfuMsgType writeFailureOf(Throwable ex) {
+        if (isCausedBy(ex, OutOfSpaceException.class)) {
+            return CorfuMsg.CorfuMsgType.ERROR_OOS;
+        } else if (isCausedBy(ex, StreamIndexException.class)) {
+            return CorfuMsg.CorfuMsgType.ERROR_SERVER_EXCEPTION;
+        }
+        return CorfuMsg.CorfuMsgType.ERROR_OVERWRITE;
+    }
+
+    /**
+     * Compact the stream address index if it has grown too large. Its records are already made
+     * durable with every commit of the log, so this only persists those of writes still queued.
+     */
+    private void flushStreamIndex() {
+        try {
+            streamIndex.flush();
+        } catch (Exception e) {
+            // An exception would cancel future flushes, so just log it.
+            log.error("Failed to flush the stream address index", e);
         }
     }
 
@@ -293,55 +689,65 @@ public class LogUnitServer extends AbstractServer {
         retry.runForever();
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Collect the entries newly covered by the trim prefixes of streams. Only the addresses
+     * of each trimmed stream between its previous and its current trim prefix are visited, and
+     * the collector pauses for a slice whenever it has run for a slice (--gc-slice), so that a
+     * large trim does not monopolize the log unit.
+     *
+     * @return True, to keep collecting.
+     */
     public boolean handleGC() {
-        log.info("Garbage collector starting...");
-        long freedEntries = 0;
-
-        /* Pick a non-compacted region or just scan the cache */
-        Map<Long, LogUnitEntry> map = dataCache.asMap();
-        SortedSet<Long> addresses = new TreeSet<>(map.keySet());
-        for (long address : addresses) {
-            LogUnitEntry buffer = dataCache.getIfPresent(address);
-            if (buffer != null) {
-                Set<UUID> streams = buffer.getStreams();
-                // this is a normal entry
-                if (streams.size() > 0) {
-                    boolean trimmable = true;
-                    for (java.util.UUID stream : streams) {
-                        Long trimMark = trimMap.getOrDefault(stream, null);
-                        // if the stream has not been trimmed, or has not been trimmed to this point
-                        if (trimMark == null || address > trimMark) {
-                            trimmable = false;
-                            break;
-                        }
-                        // it is not trimmable.
-                    }
-                    if (trimmable) {
-                        log.trace("Trimming entry at {}", address);
-                        trimEntry(address, streams, buffer);
-                        freedEntries++;
-                    }
-                } else {
-                    //this is an entry which belongs in all streams
+        log.debug("Garbage collector starting...");
+        AtomicLong freedEntries = new AtomicLong();
+        long sliceNanos = TimeUnit.MILLISECONDS.toNanos(gcSlice);
+        long watermark = trimMap.getWatermark();
+        if (watermark > collectedWatermark) {
+            // Everything below the watermark is trimmed, whether or not it was indexed.
+            localLog.trimPrefix(watermark);
+            streamIndex.trimPrefix(watermark);
+            // Only the addresses trimmed since the last collection can still be cached.
+            dataCache.invalidateRange(Math.max(collectedWatermark + 1, localLog.getRange().start), watermark);
+            collectedWatermark = watermark;
+        }
+        while (!pendingTrims.isEmpty() && running.get()) {
+            long deadline = System.nanoTime() + sliceNanos;
+            for (UUID stream : pendingTrims) {
+                // Removing the stream first means that a trim which arrives while the stream is being
+                // processed adds it back, rather than being lost.
+                pendingTrims.remove(stream);
+                boolean done = streamIndex.trim(stream, trimMap.getPrefix(stream), deadline,
+                        address -> {
+                            trimEntry(address);
+                            freedEntries.incrementAndGet();
+                        });
+                if (!done) {
+                    pendingTrims.add(stream);
+                    break;
+                }
+            }
+            if (!pendingTrims.isEmpty()) {
+                try {
+                    Thread.sleep(gcSlice);
+                } catch (InterruptedException ie) {
+                    // A forced collection, so just continue.
                 }
             }
         }
-
-        log.info("Garbage collection pass complete. Freed {} entries", freedEntries);
+        log.debug("Garbage collection pass complete. Freed {} entries", freedEntries.get());
         return true;
     }
 
-    public void trimEntry(long address, Set<java.util.UUID> streams, LogUnitEntry entry) {
-        // Add this entry to the trimmed range map.
-        //trimRange.add(Range.closed(address, address));
-        // Invalidate this entry from the cache. This will cause the CacheLoader to free the entry from the disk
-        // assuming the entry is back by disk
+    /**
+     * Free a trimmed entry, from the cache and from the local log.
+     *
+     * @param address The address of the entry.
+     */
+    public void trimEntry(long address) {
+        log.trace("Trimming entry at {}", address);
+        // Invalidating the entry releases its buffer.
         dataCache.invalidate(address);
-        //and free any references the buffer might have
-        if (entry.getBuffer() != null) {
-            entry.getBuffer().release();
-        }
+        localLog.trim(address);
     }
 
     /**
@@ -350,10 +756,42 @@ public class LogUnitServer extends AbstractServer {
     @Override
     public void shutdown() {
         scheduler.shutdownNow();
+        readExecutor.shutdownNow();
+        localLog.close();
+        trimMap.close();
+        streamIndex.close();
+    }
+
+    /**
+     * Get the contiguous head of the log.
+     *
+     * @return The lowest address which has NOT been trimmed yet.
+     */
+    public long getContiguousHead() {
+        return trimMap.getWatermark() + 1;
     }
 
     @VisibleForTesting
-    LoadingCache<Long, LogUnitEntry> getDataCache() {
+    IDataCache getDataCache() {
         return dataCache;
     }
+
+    /**
+     * Thrown when the stream address index fails to record the streams of a write, or to persist
+     * them, so that the write is answered with ERROR_SERVER_EXCEPTION rather than as an overwrite.
+     */
+    static class StreamIndexException extends RuntimeException {
+        StreamIndexException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Identifies a range read: request ids are only unique per client.
+     */
+    @Data
+    static class RangeReadKey {
+        final UUID clientID;
+        final long requestID;
+    }
 }
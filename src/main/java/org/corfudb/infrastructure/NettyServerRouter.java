@@ -3,13 +3,17 @@ package org.corfudb.infrastructure;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
 import org.corfudb.protocols.wireprotocol.CorfuSetEpochMsg;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -17,6 +21,13 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * The netty server router routes incoming messages to registered roles using
  * the
+ * <p>
+ * Messages of a type which a server handles in batches are held back as they are read, and
+ * handed to the server together once the channel has read all it can, so the messages of a
+ * read burst are handled, and their responses flushed, at once. A message which is not batched
+ * is only handled after the messages held back before it, so messages which change the state of
+ * the server, such as a new epoch, never overtake the messages read before them.
+ * <p>
  * Created by mwei on 12/1/15.
  */
 @Slf4j
@@ -27,6 +38,12 @@ public class NettyServerRouter extends ChannelInboundHandlerAdapter
     public static final String PREFIX_EPOCH = "SERVER_EPOCH";
     public static final String KEY_EPOCH = "CURRENT";
 
+    /**
+     * The messages of each server held back until the read burst of a channel completes.
+     */
+    static final AttributeKey<Map<AbstractServer, List<CorfuMsg>>> PENDING_BATCHES =
+            AttributeKey.valueOf("PENDING_BATCHES");
+
     /**
      * This map stores the mapping from message type to netty server handler.
      */
@@ -77,6 +94,26 @@ public class NettyServerRouter extends ChannelInboundHandlerAdapter
         log.trace("Sent response: {}", outMsg);
     }
 
+    /**
+     * Send the responses to a batch of messages through this router, flushing them together.
+     *
+     * @param ctx     Channel handler context to use.
+     * @param inMsgs  Incoming messages to respond to.
+     * @param outMsgs The outgoing message for each incoming message, in the same order.
+     */
+    @Override
+    public void sendResponses(ChannelHandlerContext ctx, List<? extends CorfuMsg> inMsgs,
+                              List<? extends CorfuMsg> outMsgs) {
+        for (int i = 0; i < inMsgs.size(); i++) {
+            CorfuMsg outMsg = outMsgs.get(i);
+            outMsg.copyBaseFields(inMsgs.get(i));
+            outMsg.setEpoch(getServerEpoch());
+            ctx.write(outMsg);
+            log.trace("Sent response: {}", outMsg);
+        }
+        ctx.flush();
+    }
+
     /**
      * Validate the epoch of a CorfuMsg, and send a WRONG_EPOCH response if
      * the server is in the wrong epoch. Ignored if the message type is reset (which
@@ -116,9 +153,16 @@ public class NettyServerRouter extends ChannelInboundHandlerAdapter
                 log.warn("Received unregistered message {}, dropping", m);
             } else {
                 if (validateEpoch(m, ctx)) {
-                    // Route the message to the handler.
-                    log.trace("Message routed to {}: {}", handler.getClass().getSimpleName(), msg);
-                    handler.handleMessage(m, ctx, this);
+                    if (handler.isBatched(m.getMsgType())) {
+                        // Hold the message back until the read burst completes.
+                        pendingBatches(ctx).computeIfAbsent(handler, k -> new ArrayList<>()).add(m);
+                    } else {
+                        // The messages held back were read before this one, so they are handled first.
+                        handlePendingBatches(ctx);
+                        // Route the message to the handler.
+                        log.trace("Message routed to {}: {}", handler.getClass().getSimpleName(), msg);
+                        handler.handleMessage(m, ctx, this);
+                    }
                 }
             }
         } catch (Exception e) {
@@ -126,6 +170,49 @@ public class NettyServerRouter extends ChannelInboundHandlerAdapter
         }
     }
 
+    /**
+     * Handle the messages held back during the read burst which just completed on the channel.
+     *
+     * @param ctx Channel handler context
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        handlePendingBatches(ctx);
+        ctx.fireChannelReadComplete();
+    }
+
+    /**
+     * Hand the messages held back on a channel to their servers, in batches.
+     *
+     * @param ctx Channel handler context
+     */
+    private void handlePendingBatches(ChannelHandlerContext ctx) {
+        Map<AbstractServer, List<CorfuMsg>> batches = ctx.attr(PENDING_BATCHES).get();
+        if (batches != null && !batches.isEmpty()) {
+            ctx.attr(PENDING_BATCHES).set(null);
+            batches.forEach((handler, msgs) -> {
+                try {
+                    log.trace("Batch of {} messages routed to {}", msgs.size(), handler.getClass().getSimpleName());
+                    handler.handleMessages(msgs, ctx, this);
+                } catch (Exception e) {
+                    log.error("Exception during batched read!", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the messages held back on a channel, which are only ever touched by the thread of its handler.
+     */
+    private Map<AbstractServer, List<CorfuMsg>> pendingBatches(ChannelHandlerContext ctx) {
+        Map<AbstractServer, List<CorfuMsg>> batches = ctx.attr(PENDING_BATCHES).get();
+        if (batches == null) {
+            batches = new IdentityHashMap<>();
+            ctx.attr(PENDING_BATCHES).set(batches);
+        }
+        return batches;
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         log.error("Error in handling inbound message, {}", cause);
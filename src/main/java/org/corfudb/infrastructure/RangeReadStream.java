@@ -0,0 +1,158 @@
+package org.corfudb.infrastructure;
+
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import io.netty.channel.ChannelHandlerContext;
+import lombok.Getter;
+import org.corfudb.protocols.wireprotocol.CorfuRangeMsg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The state of a range read which is being streamed back to a client in chunks.
+ * <p>
+ * The addresses of the read are walked in order, without ever being expanded into a set, and
+ * a chunk may only be sent while the client has granted credits for it. Only one chunk of a
+ * stream is loaded at a time, so the chunks are sent in address order.
+ */
+class RangeReadStream {
+
+    @Getter
+    private final CorfuRangeMsg request;
+
+    @Getter
+    private final ChannelHandlerContext ctx;
+
+    @Getter
+    private final IServerRouter router;
+
+    /**
+     * The next address to send.
+     */
+    private long next;
+
+    /**
+     * The number of chunks the client is willing to receive.
+     */
+    private int credits;
+
+    /**
+     * Whether a chunk is being loaded.
+     */
+    private boolean loading;
+
+    /**
+     * The number of chunks sent.
+     */
+    private int sent;
+
+    /**
+     * The time, in nanoseconds, at which the client last granted credits or a chunk was sent.
+     */
+    @Getter
+    private volatile long lastActive = System.nanoTime();
+
+    RangeReadStream(CorfuRangeMsg request, ChannelHandlerContext ctx, IServerRouter router, int credits) {
+        this.request = request;
+        this.ctx = ctx;
+        this.router = router;
+        this.credits = credits;
+        this.next = Long.MIN_VALUE;
+    }
+
+    /**
+     * Grant the stream more credits.
+     *
+     * @param granted The number of further chunks the client is willing to receive.
+     */
+    synchronized void grant(int granted) {
+        credits += granted;
+        lastActive = System.nanoTime();
+    }
+
+    /**
+     * Start loading the next chunk, if the client has credits for it and no chunk is being loaded.
+     *
+     * @param maxAddresses The maximum number of addresses in a chunk.
+     * @return The addresses of the chunk, in order, or null if no chunk may be loaded now.
+     */
+    synchronized List<Long> startChunk(int maxAddresses) {
+        if (loading || credits == 0) {
+            return null;
+        }
+        List<Long> addresses = new ArrayList<>();
+        for (Range<Long> range : request.getRanges().subRangeSet(Range.atLeast(next)).asRanges()) {
+            for (long address : ContiguousSet.create(range, DiscreteDomain.longs())) {
+                if (addresses.size() == maxAddresses) {
+                    break;
+                }
+                addresses.add(address);
+            }
+            if (addresses.size() == maxAddresses) {
+                break;
+            }
+        }
+        loading = true;
+        credits--;
+        next = addresses.isEmpty() ? Long.MAX_VALUE : addresses.get(addresses.size() - 1) + 1;
+        return addresses;
+    }
+
+    /**
+     * Complete the chunk being loaded, before it is sent.
+     *
+     * @param resume The first address which was loaded but will not be sent, or -1 if the whole chunk is sent.
+     * @return True, if there are more addresses to send.
+     */
+    synchronized boolean completeChunk(long resume) {
+        if (resume >= 0) {
+            next = resume;
+        }
+        return hasMore();
+    }
+
+    /**
+     * Number the chunk being loaded.
+     *
+     * @return The number of the chunk, starting from 0.
+     */
+    synchronized int numberChunk() {
+        return sent++;
+    }
+
+    /**
+     * Allow the next chunk to be loaded, once the chunk which was loaded is sent, so that chunks
+     * are sent in order.
+     */
+    synchronized void finishChunk() {
+        loading = false;
+        lastActive = System.nanoTime();
+    }
+
+    /**
+     * Expire the stream if no chunk is being loaded, and it has been idle for too long. An expired
+     * stream never loads another chunk.
+     *
+     * @param now    The current time, in nanoseconds.
+     * @param expiry The time, in nanoseconds, a stream may be idle for.
+     * @return True, if the stream expired.
+     */
+    synchronized boolean expire(long now, long expiry) {
+        if (loading || now - lastActive <= expiry) {
+            return false;
+        }
+        next = Long.MAX_VALUE;
+        credits = 0;
+        return true;
+    }
+
+    /**
+     * Check whether there are more addresses to send. Must be called holding the lock on the stream.
+     */
+    private boolean hasMore() {
+        return next != Long.MAX_VALUE && !request.getRanges().subRangeSet(Range.atLeast(next)).isEmpty();
+    }
+}
@@ -1,6 +1,5 @@
 package org.corfudb.infrastructure;
 
-import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.channel.ChannelHandlerContext;
 import lombok.Getter;
@@ -16,11 +15,13 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -33,6 +34,18 @@ import java.util.concurrent.atomic.AtomicLong;
  * <p>
  * TOKEN_REQ - Request the next token.
  * <p>
+ * Token requests are served concurrently by the threads which receive them. Tokens are taken from
+ * the global index atomically, and the tail of each stream is claimed by the request issuing tokens
+ * for it, so the backpointers handed out are those of a serial order of the requests.
+ * <p>
+ * Token requests are handled in batches: the requests a channel reads in one burst are issued
+ * contiguous ranges of tokens in one pass, and their responses are flushed together. Queries in a
+ * batch are answered before the tokens of the batch are issued.
+ * <p>
+ * Unless the server is in memory, the tail of each stream is checkpointed along with the global
+ * index, by appending the tails which changed to a file, and restored when the sequencer recovers,
+ * so the backpointers it hands out after a restart still lead to the earlier entries of a stream.
+ * <p>
  * Created by mwei on 12/8/15.
  */
 @Slf4j
@@ -56,14 +69,18 @@ public class SequencerServer extends AbstractServer {
      */
     FileChannel fc;
     /**
-     * A simple map of the most recently issued token for any given stream.
+     * Issues tokens, and tracks the most recently issued token for any given stream.
+     */
+    TokenIssuer issuer;
+    /**
+     * The checkpoint of the tail of each stream, or null if the server is in memory.
      */
-    ConcurrentHashMap<UUID, Long> lastIssuedMap;
+    StreamTailCheckpoint tailCheckpoint;
 
     public SequencerServer(ServerContext serverContext) {
         Map<String, Object> opts = serverContext.getServerConfig();
-        lastIssuedMap = new ConcurrentHashMap<>();
         globalIndex = new AtomicLong();
+        issuer = new TokenIssuer(globalIndex);
 
         try {
             if (!(Boolean) opts.get("--memory")) {
@@ -96,6 +113,14 @@ public class SequencerServer extends AbstractServer {
             } else {
                 globalIndex.set(newIndex);
             }
+            if (!(Boolean) opts.get("--memory")) {
+                tailCheckpoint = new StreamTailCheckpoint(opts.get("--log-path") + File.separator
+                        + "sequencer_tails", issuer, newIndex == -1);
+                // The tails are checkpointed before the global index, so they may be ahead of it.
+                if (tailCheckpoint.getMaxTail() >= globalIndex.get()) {
+                    globalIndex.set(tailCheckpoint.getMaxTail() + 1);
+                }
+            }
             log.info("Sequencer initial token set to {}", globalIndex.get());
         } catch (Exception ex) {
             log.warn("Exception parsing initial token, default to 0.", ex);
@@ -103,9 +128,17 @@ public class SequencerServer extends AbstractServer {
     }
 
     /**
-     * Checkpoints the state of the sequencer.
+     * Checkpoints the state of the sequencer: the tails of the streams which changed since the
+     * last checkpoint, and then the global index.
      */
     public void checkpointState() {
+        if (tailCheckpoint != null) {
+            try {
+                tailCheckpoint.checkpoint();
+            } catch (IOException ie) {
+                log.warn("Sequencer stream tail checkpoint failed due to exception", ie);
+            }
+        }
         ByteBuffer b = ByteBuffer.allocate(8);
         long checkpointAddress = globalIndex.get();
         b.putLong(globalIndex.get());
@@ -120,43 +153,15 @@ public class SequencerServer extends AbstractServer {
     }
 
     @Override
-    public synchronized void handleMessage(CorfuMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
+    public void handleMessage(CorfuMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
         switch (msg.getMsgType()) {
             case TOKEN_REQ: {
+                // Requests are handled on the thread which received them, without a lock: see TokenIssuer.
                 TokenRequestMsg req = (TokenRequestMsg) msg;
                 if (req.getNumTokens() == 0) {
-                    long max = 0L;
-                    boolean hit = false;
-                    for (UUID id : req.getStreamIDs()) {
-                        Long lastIssued = lastIssuedMap.get(id);
-                        if (lastIssued != null) {
-                            hit = true;
-                        }
-                        max = Math.max(max, lastIssued == null ? Long.MIN_VALUE : lastIssued);
-                    }
-                    if (!hit) {
-                        max = -1L; //no token ever issued
-                    }
-                    if (req.getStreamIDs().size() == 0) {
-                        max = globalIndex.get() - 1;
-                    }
-                    r.sendResponse(ctx, msg,
-                            new TokenResponseMsg(max, Collections.emptyMap()));
+                    r.sendResponse(ctx, msg, query(req));
                 } else {
-                    long thisIssue = globalIndex.getAndAdd(req.getNumTokens());
-                    ImmutableMap.Builder<UUID, Long> mb = ImmutableMap.builder();
-                    for (UUID id : req.getStreamIDs()) {
-                        lastIssuedMap.compute(id, (k, v) -> {
-                            if (v == null) {
-                                mb.put(k, -1L);
-                                return thisIssue + req.getNumTokens() - 1;
-                            }
-                            mb.put(k, v);
-                            return Math.max(thisIssue + req.getNumTokens() - 1, v);
-                        });
-                    }
-                    r.sendResponse(ctx, msg,
-                            new TokenResponseMsg(thisIssue, mb.build()));
+                    r.sendResponse(ctx, msg, issuer.issue(req.getStreamIDs(), req.getNumTokens()));
                 }
             }
             break;
@@ -166,6 +171,41 @@ public class SequencerServer extends AbstractServer {
         }
     }
 
+    @Override
+    public boolean isBatched(CorfuMsg.CorfuMsgType type) {
+        return type == CorfuMsg.CorfuMsgType.TOKEN_REQ;
+    }
+
+    @Override
+    public void handleMessages(List<CorfuMsg> msgs, ChannelHandlerContext ctx, IServerRouter r) {
+        TokenResponseMsg[] responses = new TokenResponseMsg[msgs.size()];
+        List<TokenRequestMsg> requests = new ArrayList<>(msgs.size());
+        for (int i = 0; i < msgs.size(); i++) {
+            TokenRequestMsg req = (TokenRequestMsg) msgs.get(i);
+            if (req.getNumTokens() == 0) {
+                responses[i] = query(req);
+            } else {
+                requests.add(req);
+            }
+        }
+        Iterator<TokenResponseMsg> issued = issuer.issueBatch(requests).iterator();
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i] == null) {
+                responses[i] = issued.next();
+            }
+        }
+        r.sendResponses(ctx, msgs, Arrays.asList(responses));
+    }
+
+    /**
+     * Answer a request for the tail of the log, or of a set of streams.
+     */
+    private TokenResponseMsg query(TokenRequestMsg req) {
+        long max = req.getStreamIDs().size() == 0 ? globalIndex.get() - 1
+                : issuer.query(req.getStreamIDs());
+        return new TokenResponseMsg(max, Collections.emptyMap());
+    }
+
     @Override
     public void reset() {
         globalIndex.set(0L);
@@ -179,6 +219,9 @@ public class SequencerServer extends AbstractServer {
         try {
             scheduler.shutdownNow();
             checkpointState();
+            if (tailCheckpoint != null) {
+                tailCheckpoint.close();
+            }
             fc.close();
         } catch (IOException ie) {
             log.warn("Error checkpointing server during shutdown!", ie);
@@ -0,0 +1,244 @@
+package org.corfudb.infrastructure;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.util.CRC32C;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.UUID;
+
+/**
+ * A durable checkpoint of the tail of each stream the sequencer issued tokens for.
+ * <p>
+ * Each checkpoint appends the tails which changed since the one before it to a file, as
+ * fixed-size records: stream ID(16), tail(8) and a CRC32C checksum(4) of the preceding bytes,
+ * and forces them to disk. Checkpoints are taken by the checkpoint thread of the sequencer, so
+ * tokens are issued while they are written. On open, the records are replayed in order, the last
+ * record of a stream holding its tail, and a torn record at the end of the file is discarded.
+ * Once the file holds many more records than there are streams, a snapshot of every tail is
+ * written to a new file which then atomically replaces it.
+ */
+@Slf4j
+class StreamTailCheckpoint {
+
+    /**
+     * The size of each record in the file.
+     */
+    static final int RECORD_SIZE = 16 + 8 + 4;
+
+    /**
+     * The number of records written to the file at a time.
+     */
+    static final int BUFFERED_RECORDS = 1024;
+
+    /**
+     * The number of records the file may hold before a snapshot is considered.
+     */
+    static final int MIN_SNAPSHOT_RECORDS = 64 * 1024;
+
+    private final Path path;
+
+    private final TokenIssuer issuer;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * BUFFERED_RECORDS);
+
+    /**
+     * The channel records are appended to. Guarded by this.
+     */
+    private FileChannel channel;
+
+    /**
+     * The number of records in the file. Guarded by this.
+     */
+    private long records;
+
+    /**
+     * The highest tail restored from the file, or -1 if none was.
+     */
+    @Getter
+    private long maxTail = -1L;
+
+    /**
+     * Whether a checkpoint failed, so the tails it recorded as checkpointed may not be in the
+     * file, and the next checkpoint has to append every tail. Guarded by this.
+     */
+    private boolean resync;
+
+    /**
+     * Open the checkpoint of the tails of a token issuer.
+     *
+     * @param path    The path of the file.
+     * @param issuer  The token issuer whose tails are checkpointed.
+     * @param recover Whether to restore the tails in the file to the issuer, or to discard them.
+     */
+    StreamTailCheckpoint(String path, TokenIssuer issuer, boolean recover) {
+        this.path = FileSystems.getDefault().getPath(path);
+        this.issuer = issuer;
+        try {
+            Files.deleteIfExists(snapshotPath());
+            channel = FileChannel.open(this.path, EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE));
+            if (recover) {
+                replay();
+                log.info("Restored the tails of {} streams", issuer.streamCount());
+            } else {
+                channel.truncate(0L);
+            }
+        } catch (IOException ie) {
+            log.error("Failed to open stream tail checkpoint at {}", path, ie);
+            throw new RuntimeException(ie);
+        }
+    }
+
+    /**
+     * Append the tails which changed since the last checkpoint to the file and force them to
+     * disk, replacing the file with a snapshot if it has grown too large.
+     */
+    synchronized void checkpoint()
+            throws IOException {
+        if (channel == null) {
+            return;
+        }
+        long[] changed = issuer.checkpointTails(resync);
+        resync = true;
+        buffer.clear();
+        long position = channel.size();
+        for (int i = 0; i < changed.length; i += 3) {
+            position += putRecord(channel, position, changed[i], changed[i + 1], changed[i + 2]);
+        }
+        writeBuffer(channel, position);
+        channel.force(false);
+        records += changed.length / 3;
+        long streams = issuer.streamCount();
+        if (records > MIN_SNAPSHOT_RECORDS && records > 2L * streams) {
+            snapshot();
+        }
+        resync = false;
+        log.debug("Checkpointed the tails of {} streams", changed.length / 3);
+    }
+
+    /**
+     * Close the file of the checkpoint.
+     */
+    synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ie) {
+                log.warn("Error closing stream tail checkpoint", ie);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Replace the file with a snapshot of every tail. The caller must hold the lock of the checkpoint.
+     */
+    private void snapshot()
+            throws IOException {
+        Path snapshotPath = snapshotPath();
+        long[] tails = issuer.checkpointTails(true);
+        buffer.clear();
+        try (FileChannel fc = FileChannel.open(snapshotPath, EnumSet.of(StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            long position = 0L;
+            for (int i = 0; i < tails.length; i += 3) {
+                position += putRecord(fc, position, tails[i], tails[i + 1], tails[i + 2]);
+            }
+            writeBuffer(fc, position);
+            fc.force(true);
+        }
+        Files.move(snapshotPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel.close();
+        channel = FileChannel.open(path, EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE));
+        log.debug("Replaced {} stream tail records with a snapshot of {}", records, tails.length / 3);
+        records = tails.length / 3;
+    }
+
+    /**
+     * Replay the records of the file, truncating it after the last valid record.
+     */
+    private void replay()
+            throws IOException {
+        long size = channel.size();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        long pos = 0L;
+        while (pos + RECORD_SIZE <= size) {
+            record.clear();
+            while (record.hasRemaining()) {
+                if (channel.read(record, pos + record.position()) < 0) {
+                    break;
+                }
+            }
+            record.flip();
+            if (record.getInt(RECORD_SIZE - 4) != checksumOf(record)) {
+                break;
+            }
+            UUID stream = new UUID(record.getLong(), record.getLong());
+            long tail = record.getLong();
+            issuer.restoreTail(stream, tail);
+            maxTail = Math.max(maxTail, tail);
+            pos += RECORD_SIZE;
+            records++;
+        }
+        if (pos != size) {
+            log.warn("Discarding {} bytes of torn records at the end of the stream tail checkpoint", size - pos);
+            channel.truncate(pos);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Put a record in the buffer, writing the buffer out first if it is full.
+     *
+     * @return The number of bytes written out.
+     */
+    private int putRecord(FileChannel fc, long position, long msb, long lsb, long tail)
+            throws IOException {
+        int written = buffer.hasRemaining() ? 0 : writeBuffer(fc, position);
+        ByteBuffer record = buffer.slice();
+        record.putLong(msb);
+        record.putLong(lsb);
+        record.putLong(tail);
+        record.putInt(checksumOf(record));
+        buffer.position(buffer.position() + RECORD_SIZE);
+        return written;
+    }
+
+    /**
+     * Write out the buffer.
+     *
+     * @return The number of bytes written.
+     */
+    private int writeBuffer(FileChannel fc, long position)
+            throws IOException {
+        buffer.flip();
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += fc.write(buffer, position + written);
+        }
+        buffer.clear();
+        return written;
+    }
+
+    private Path snapshotPath() {
+        return FileSystems.getDefault().getPath(path + ".snapshot");
+    }
+
+    private static int checksumOf(ByteBuffer record) {
+        ByteBuffer covered = record.duplicate();
+        covered.position(0);
+        covered.limit(RECORD_SIZE - 4);
+        CRC32C crc = new CRC32C();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+}
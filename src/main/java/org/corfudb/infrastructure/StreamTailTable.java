@@ -0,0 +1,349 @@
+package org.corfudb.infrastructure;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A table of the tail of each stream, keyed by the two longs of the stream id, which holds the
+ * tails as primitives in flat arrays instead of boxing them in a map.
+ * <p>
+ * The table is split into segments by the hash of the stream id, and each segment is an
+ * open-addressing table with linear probing: the two longs of the id of each stream are held in
+ * consecutive elements of an array of keys, and its tail at the same index of an array of tails,
+ * which is updated atomically. Only the insertion of a stream, which may grow the arrays of its
+ * segment, takes the lock of the segment. Lookups and updates take no lock: a segment grows by
+ * moving the tail out of each slot with a compare-and-set, which leaves a mark behind, and
+ * lookups and updates which find the mark retry on the arrays the segment grew into, so no
+ * update is lost to a copy of the arrays.
+ * <p>
+ * Each slot also holds the tail the stream had when it was last checkpointed, so a checkpoint
+ * only visits the tails which changed since the one before it.
+ */
+class StreamTailTable {
+
+    /**
+     * The tail of a stream which is not in the table.
+     */
+    static final long NO_TAIL = -1L;
+
+    /**
+     * Marks a free slot of the tails. Tails and the values they are set to are never this low.
+     */
+    private static final long FREE = Long.MIN_VALUE;
+
+    /**
+     * Marks a slot whose tail was moved to the arrays its segment grew into.
+     */
+    private static final long MOVED = Long.MIN_VALUE + 1;
+
+    /**
+     * Returned by a lookup which found no slot for a stream.
+     */
+    private static final int ABSENT = -1;
+
+    /**
+     * Returned by a lookup which ran into a moved slot, and has to be retried.
+     */
+    private static final int RETRY = -2;
+
+    private static final int SEGMENTS = 64;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The arrays of a segment, which are replaced together when the segment grows.
+     */
+    private static final class Slots {
+        final long[] keys;
+        final AtomicLongArray tails;
+
+        /**
+         * The tail of each stream when it was last checkpointed, guarded by the lock of the segment.
+         */
+        final long[] checkpointed;
+
+        Slots(int capacity) {
+            keys = new long[capacity * 2];
+            tails = new AtomicLongArray(capacity);
+            checkpointed = new long[capacity];
+            for (int i = 0; i < capacity; i++) {
+                tails.lazySet(i, FREE);
+            }
+        }
+    }
+
+    private static final class Segment {
+        volatile Slots slots = new Slots(INITIAL_CAPACITY);
+
+        /**
+         * The number of streams in the segment, guarded by the lock of the segment.
+         */
+        int size;
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    StreamTailTable() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Get the value held for a stream.
+     *
+     * @param msb The most significant bits of the stream id.
+     * @param lsb The least significant bits of the stream id.
+     * @return The value, or -1 if the stream is not in the table.
+     */
+    long get(long msb, long lsb) {
+        int hash = hash(msb, lsb);
+        Segment segment = segments[hash & (SEGMENTS - 1)];
+        while (true) {
+            Slots slots = segment.slots;
+            int i = find(slots, hash, msb, lsb);
+            if (i == ABSENT) {
+                return NO_TAIL;
+            }
+            if (i != RETRY) {
+                long value = slots.tails.get(i);
+                if (value != MOVED) {
+                    return value;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Atomically set the value held for a stream, if it is the expected value. A stream which is
+     * not in the table is added to it, holding -1.
+     *
+     * @param msb    The most significant bits of the stream id.
+     * @param lsb    The least significant bits of the stream id.
+     * @param expect The expected value.
+     * @param update The new value.
+     * @return True, if the value was set.
+     */
+    boolean compareAndSet(long msb, long lsb, long expect, long update) {
+        int hash = hash(msb, lsb);
+        Segment segment = segments[hash & (SEGMENTS - 1)];
+        while (true) {
+            Slots slots = segment.slots;
+            int i = find(slots, hash, msb, lsb);
+            if (i == ABSENT) {
+                if (expect != NO_TAIL) {
+                    return false;
+                }
+                insert(segment, hash, msb, lsb);
+                continue;
+            }
+            if (i != RETRY) {
+                if (slots.tails.compareAndSet(i, expect, update)) {
+                    return true;
+                }
+                if (slots.tails.get(i) != MOVED) {
+                    return false;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Set the value held for a stream, adding the stream to the table if it is not in it.
+     *
+     * @param msb   The most significant bits of the stream id.
+     * @param lsb   The least significant bits of the stream id.
+     * @param value The new value.
+     */
+    void set(long msb, long lsb, long value) {
+        int hash = hash(msb, lsb);
+        Segment segment = segments[hash & (SEGMENTS - 1)];
+        while (true) {
+            Slots slots = segment.slots;
+            int i = find(slots, hash, msb, lsb);
+            if (i == ABSENT) {
+                insert(segment, hash, msb, lsb);
+                continue;
+            }
+            if (i != RETRY) {
+                long current = slots.tails.get(i);
+                if (current != MOVED && slots.tails.compareAndSet(i, current, value)) {
+                    return;
+                }
+                if (current != MOVED) {
+                    continue;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Get the number of streams in the table.
+     *
+     * @return The number of streams.
+     */
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the tails which changed since they were last checkpointed, and record them as
+     * checkpointed. Holds the lock of one segment at a time, so only the insertion of streams
+     * into it waits.
+     *
+     * @param tailOf Decodes the tail of a stream from the value held for it.
+     * @param all    Whether to get every tail, whether or not it changed.
+     * @return The most and least significant bits of the id of each stream, followed by its tail.
+     */
+    long[] checkpoint(LongUnaryOperator tailOf, boolean all) {
+        long[] changed = new long[INITIAL_CAPACITY * 3];
+        int length = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                Slots slots = segment.slots;
+                for (int i = 0; i < slots.checkpointed.length; i++) {
+                    long value = slots.tails.get(i);
+                    if (value == FREE) {
+                        continue;
+                    }
+                    long tail = tailOf.applyAsLong(value);
+                    if (all || tail != slots.checkpointed[i]) {
+                        if (length == changed.length) {
+                            changed = Arrays.copyOf(changed, length * 2);
+                        }
+                        changed[length++] = slots.keys[i * 2];
+                        changed[length++] = slots.keys[i * 2 + 1];
+                        changed[length++] = tail;
+                        slots.checkpointed[i] = tail;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(changed, length);
+    }
+
+    /**
+     * Restore the tail of a stream from a checkpoint, as a tail which is already checkpointed.
+     *
+     * @param msb  The most significant bits of the stream id.
+     * @param lsb  The least significant bits of the stream id.
+     * @param tail The tail.
+     */
+    void restore(long msb, long lsb, long tail) {
+        int hash = hash(msb, lsb);
+        Segment segment = segments[hash & (SEGMENTS - 1)];
+        synchronized (segment) {
+            insert(segment, hash, msb, lsb);
+            Slots slots = segment.slots;
+            int i = find(slots, hash, msb, lsb);
+            slots.tails.set(i, tail);
+            slots.checkpointed[i] = tail;
+        }
+    }
+
+    /**
+     * Add a stream to a segment, holding -1, unless it was added concurrently, growing the
+     * segment if it is half full.
+     */
+    private static void insert(Segment segment, int hash, long msb, long lsb) {
+        synchronized (segment) {
+            Slots slots = segment.slots;
+            if (find(slots, hash, msb, lsb) >= 0) {
+                return;
+            }
+            if ((segment.size + 1) * 2 > slots.tails.length()) {
+                slots = grow(slots);
+                segment.slots = slots;
+            }
+            int i = put(slots, hash, msb, lsb, NO_TAIL);
+            slots.checkpointed[i] = NO_TAIL;
+            segment.size++;
+        }
+    }
+
+    /**
+     * Move the tails of a segment into arrays of twice the size, marking each slot as it is moved.
+     * Must be called holding the lock of the segment.
+     *
+     * @return The new arrays, which are yet to be published.
+     */
+    private static Slots grow(Slots slots) {
+        Slots grown = new Slots(slots.tails.length() * 2);
+        for (int i = 0; i < slots.tails.length(); i++) {
+            long tail;
+            do {
+                tail = slots.tails.get(i);
+            } while (!slots.tails.compareAndSet(i, tail, MOVED));
+            if (tail != FREE) {
+                long keyMsb = slots.keys[i * 2];
+                long keyLsb = slots.keys[i * 2 + 1];
+                int j = put(grown, hash(keyMsb, keyLsb), keyMsb, keyLsb, tail);
+                grown.checkpointed[j] = slots.checkpointed[i];
+            }
+        }
+        return grown;
+    }
+
+    /**
+     * Put a stream in a free slot. The keys are written before the tail which publishes them.
+     * Must be called holding the lock of the segment.
+     *
+     * @return The index of the slot.
+     */
+    private static int put(Slots slots, int hash, long msb, long lsb, long tail) {
+        int mask = slots.tails.length() - 1;
+        int i = (hash >>> 6) & mask;
+        while (slots.tails.get(i) != FREE) {
+            i = (i + 1) & mask;
+        }
+        slots.keys[i * 2] = msb;
+        slots.keys[i * 2 + 1] = lsb;
+        slots.tails.set(i, tail);
+        return i;
+    }
+
+    /**
+     * Find the slot of a stream.
+     *
+     * @return The index of the slot, -1 if the stream is not in the slots, or -2 if a moved slot
+     * was found before the stream was, so the lookup has to be retried.
+     */
+    private static int find(Slots slots, int hash, long msb, long lsb) {
+        int mask = slots.tails.length() - 1;
+        int i = (hash >>> 6) & mask;
+        while (true) {
+            long tail = slots.tails.get(i);
+            if (tail == FREE) {
+                return ABSENT;
+            }
+            if (slots.keys[i * 2] == msb && slots.keys[i * 2 + 1] == lsb) {
+                return i;
+            }
+            if (tail == MOVED) {
+                return RETRY;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Mix the bits of a stream id. The low bits pick the segment and the rest the slot.
+     */
+    private static int hash(long msb, long lsb) {
+        long h = msb ^ Long.rotateLeft(lsb, 32);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,238 @@
+package org.corfudb.infrastructure;
+
+import org.corfudb.protocols.wireprotocol.TokenRequestMsg;
+import org.corfudb.protocols.wireprotocol.TokenResponseMsg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Issues tokens, and the backpointers of the streams they are issued for, without a global lock.
+ * <p>
+ * Tokens for no stream are issued by a single increment of the global index. The tail of each
+ * stream is kept in a slot of its own in a {@link StreamTailTable}, which a request claims by a
+ * compare-and-set before it takes its tokens from the global index, and releases by storing the
+ * new tail. So requests for different streams never contend, and the requests for a stream take their tokens in the order
+ * they claim its slot, which makes the tail each of them reads its backpointer. A request for
+ * several streams claims their slots in a fixed order, so two such requests cannot deadlock.
+ * <p>
+ * While a slot is claimed, it holds an encoding of the tail it was claimed at, which is negative,
+ * so queries for the tail of the stream read the tail from before the request in progress.
+ * <p>
+ * A batch of requests is issued as if it were one request for the streams of all of them: the
+ * slots of the streams are claimed once, the tokens of the whole batch are taken by a single
+ * increment of the global index, and the requests are handed contiguous ranges of them in order.
+ * <p>
+ * The backpointers of a response are kept as the two longs of each stream id and its previous
+ * tail, from which the response is encoded, so no map is built on the server.
+ */
+class TokenIssuer {
+
+    /**
+     * The number of failed attempts to claim a slot between yields of the processor.
+     */
+    static final int SPINS_BEFORE_YIELD = 64;
+
+    /**
+     * The tail of a stream no token was ever issued for.
+     */
+    static final long NO_TAIL = StreamTailTable.NO_TAIL;
+
+    private final AtomicLong globalIndex;
+
+    /**
+     * The tail slot of each stream a token was issued for.
+     */
+    private final StreamTailTable tails = new StreamTailTable();
+
+    /**
+     * Create a token issuer.
+     *
+     * @param globalIndex The next token to issue, which is shared with the checkpoint of the sequencer.
+     */
+    TokenIssuer(AtomicLong globalIndex) {
+        this.globalIndex = globalIndex;
+    }
+
+    /**
+     * Issue tokens for a set of streams.
+     *
+     * @param streams   The streams the tokens are issued for.
+     * @param numTokens The number of tokens to issue.
+     * @return A response with the first token issued, and the previous tail of each stream.
+     */
+    TokenResponseMsg issue(Set<UUID> streams, long numTokens) {
+        if (streams.isEmpty()) {
+            return new TokenResponseMsg(globalIndex.getAndAdd(numTokens), Collections.emptyMap());
+        }
+        UUID[] ids = distinct(streams.toArray(new UUID[streams.size()]));
+        long[] backpointers = new long[ids.length * 3];
+        for (int i = 0; i < ids.length; i++) {
+            backpointers[i * 3] = ids[i].getMostSignificantBits();
+            backpointers[i * 3 + 1] = ids[i].getLeastSignificantBits();
+            backpointers[i * 3 + 2] = claim(backpointers[i * 3], backpointers[i * 3 + 1]);
+        }
+        long token = globalIndex.getAndAdd(numTokens);
+        long tail = token + numTokens - 1;
+        for (int i = 0; i < ids.length; i++) {
+            // The global index only goes backwards on a reset.
+            tails.set(backpointers[i * 3], backpointers[i * 3 + 1], Math.max(tail, backpointers[i * 3 + 2]));
+        }
+        return new TokenResponseMsg(token, backpointers);
+    }
+
+    /**
+     * Issue tokens for a batch of requests, in one pass over the global index and the stream tails.
+     * <p>
+     * The requests take consecutive ranges of tokens in the order they are given, and the backpointer
+     * of a stream in each request is the last token of the previous request in the batch for the
+     * stream, so the responses are those the requests would have got if they were issued one by one.
+     *
+     * @param requests The requests, each for at least one token.
+     * @return The response to each request, in the same order.
+     */
+    List<TokenResponseMsg> issueBatch(List<TokenRequestMsg> requests) {
+        List<TokenResponseMsg> responses = new ArrayList<>(requests.size());
+        if (requests.size() == 1) {
+            responses.add(issue(requests.get(0).getStreamIDs(), requests.get(0).getNumTokens()));
+            return responses;
+        }
+        int numIds = 0;
+        long numTokens = 0;
+        for (TokenRequestMsg req : requests) {
+            numIds += req.getStreamIDs().size();
+            numTokens += req.getNumTokens();
+        }
+        UUID[] ids = new UUID[numIds];
+        numIds = 0;
+        for (TokenRequestMsg req : requests) {
+            for (UUID id : req.getStreamIDs()) {
+                ids[numIds++] = id;
+            }
+        }
+        ids = distinct(ids);
+        long[] previous = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            previous[i] = claim(ids[i].getMostSignificantBits(), ids[i].getLeastSignificantBits());
+        }
+        long[] last = previous.clone();
+        long token = globalIndex.getAndAdd(numTokens);
+        for (TokenRequestMsg req : requests) {
+            long tail = token + req.getNumTokens() - 1;
+            long[] backpointers = new long[req.getStreamIDs().size() * 3];
+            int j = 0;
+            for (UUID id : req.getStreamIDs()) {
+                int i = Arrays.binarySearch(ids, id);
+                backpointers[j++] = id.getMostSignificantBits();
+                backpointers[j++] = id.getLeastSignificantBits();
+                backpointers[j++] = last[i];
+                last[i] = tail;
+            }
+            responses.add(new TokenResponseMsg(token, backpointers));
+            token += req.getNumTokens();
+        }
+        for (int i = 0; i < ids.length; i++) {
+            tails.set(ids[i].getMostSignificantBits(), ids[i].getLeastSignificantBits(),
+                    Math.max(last[i], previous[i]));
+        }
+        return responses;
+    }
+
+    /**
+     * Get the highest tail of a set of streams.
+     *
+     * @param streams The streams.
+     * @return The highest token issued for any of the streams, or -1 if none was ever issued.
+     */
+    long query(Set<UUID> streams) {
+        long max = NO_TAIL;
+        for (UUID id : streams) {
+            max = Math.max(max, tailOf(tails.get(id.getMostSignificantBits(), id.getLeastSignificantBits())));
+        }
+        return max;
+    }
+
+    /**
+     * Get the tails which changed since they were last checkpointed, and record them as checkpointed.
+     * A stream whose slot is claimed gives the tail it was claimed at.
+     *
+     * @param all Whether to get every tail, whether or not it changed.
+     * @return The most and least significant bits of the id of each stream, followed by its tail.
+     */
+    long[] checkpointTails(boolean all) {
+        return tails.checkpoint(TokenIssuer::tailOf, all);
+    }
+
+    /**
+     * Restore the tail of a stream from a checkpoint.
+     *
+     * @param stream The stream.
+     * @param tail   The tail of the stream.
+     */
+    void restoreTail(UUID stream, long tail) {
+        tails.restore(stream.getMostSignificantBits(), stream.getLeastSignificantBits(), tail);
+    }
+
+    /**
+     * Get the number of streams a token was ever issued for.
+     *
+     * @return The number of streams.
+     */
+    int streamCount() {
+        return tails.size();
+    }
+
+    /**
+     * Sort stream ids, which is the order their slots are claimed in, and drop the duplicates.
+     */
+    private static UUID[] distinct(UUID[] ids) {
+        if (ids.length < 2) {
+            return ids;
+        }
+        Arrays.sort(ids);
+        int length = 1;
+        for (int i = 1; i < ids.length; i++) {
+            if (!ids[i].equals(ids[length - 1])) {
+                ids[length++] = ids[i];
+            }
+        }
+        return length == ids.length ? ids : Arrays.copyOf(ids, length);
+    }
+
+    /**
+     * Claim the tail slot of a stream, waiting for any request which holds it.
+     *
+     * @return The tail the slot held.
+     */
+    private long claim(long msb, long lsb) {
+        int spins = 0;
+        while (true) {
+            long value = tails.get(msb, lsb);
+            if (value >= NO_TAIL && tails.compareAndSet(msb, lsb, value, claimed(value))) {
+                return value;
+            }
+            if (++spins % SPINS_BEFORE_YIELD == 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Encode a tail into the value of a claimed slot, which is always below -1.
+     */
+    private static long claimed(long tail) {
+        return -3L - tail;
+    }
+
+    /**
+     * Decode the tail held by a slot, whether or not it is claimed.
+     */
+    private static long tailOf(long value) {
+        return value >= NO_TAIL ? value : -3L - value;
+    }
+}
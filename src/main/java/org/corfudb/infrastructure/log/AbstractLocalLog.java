@@ -1,9 +1,11 @@
 package org.corfudb.infrastructure.log;
 
 
-import com.google.common.collect.RangeSet;
+import com.google.common.util.concurrent.RateLimiter;
 
-import java.util.UUID;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A LocalLog is the basic building unit of the distributed log. It provides an address space to write to.
@@ -16,12 +18,52 @@ import java.util.UUID;
  */
 
 public abstract class AbstractLocalLog {
+
+    /**
+     * A listener which is told of the writes a log accepts, and of the writes it makes durable, so
+     * that state derived from the writes can be made durable along with them.
+     */
+    public interface WriteListener {
+
+        /**
+         * Called once a write has claimed its address, before it is queued to be written. If this
+         * throws, the claim is given up and the write fails.
+         *
+         * @param address The address of the write.
+         * @param entry   The entry being written.
+         */
+        void accepted(long address, LogUnitEntry entry);
+
+        /**
+         * Called once writes which were accepted have been made durable, before any of them is
+         * acknowledged. If this throws, those writes fail.
+         */
+        void committed();
+    }
+
+    private static final WriteListener NO_LISTENER = new WriteListener() {
+        @Override
+        public void accepted(long address, LogUnitEntry entry) {
+            // no-op
+        }
+
+        @Override
+        public void committed() {
+            // no-op
+        }
+    };
+
     private final LogRange range;
 
     protected final String logPathDir;
 
     protected final boolean sync;
 
+    /**
+     * The listener told of the writes this log accepts and commits.
+     */
+    protected volatile WriteListener writeListener = NO_LISTENER;
+
     public AbstractLocalLog(long start, long end, String dir, boolean sync) {
         range = new LogRange(start, end);
         logPathDir = dir;
@@ -43,9 +85,27 @@ public abstract class AbstractLocalLog {
         }
     }
 
-    public void write(long address, LogUnitEntry entry) {
+    /**
+     * Write an entry to an address. The address is claimed before this returns, so a write which
+     * throws was not accepted, and a later write of the address is an overwrite.
+     *
+     * @param address The address to write.
+     * @param entry   The entry to write.
+     * @return A future which completes once the write may be acknowledged: once it is durable if the
+     * log is sync, or right away otherwise. If it completes exceptionally, the write was not made.
+     */
+    public CompletableFuture<Void> write(long address, LogUnitEntry entry) {
         checkRange(address);
-        backendWrite(address, entry);
+        return backendWrite(address, entry);
+    }
+
+    /**
+     * Set the listener told of the writes this log accepts and commits.
+     *
+     * @param writeListener The listener, or null for none.
+     */
+    public void setWriteListener(WriteListener writeListener) {
+        this.writeListener = writeListener == null ? NO_LISTENER : writeListener;
     }
 
     public LogUnitEntry read(long address) {
@@ -53,21 +113,79 @@ public abstract class AbstractLocalLog {
         return backendRead(address);
     }
 
-    public void streamWrite(UUID streamID, RangeSet<Long> entry) {
-        backendStreamWrite(streamID, entry);
+    /**
+     * Get the state of the write path of this log. By default, a log does not persist
+     * writes, so nothing is ever durable.
+     *
+     * @return A snapshot of the write path state.
+     */
+    public LogWriteStats getWriteStats() {
+        return new LogWriteStats(-1L, 0L, 0L);
     }
 
-    public RangeSet<Long> streamRead(UUID streamID) {
-        return backendStreamRead(streamID);
+    /**
+     * Verify the integrity of the data held by this log, quarantining any corrupt entries.
+     * By default, a log holds nothing which can be verified.
+     *
+     * @param ioBudget A rate limiter which is charged for every byte read.
+     * @return The addresses which were found to be corrupt.
+     */
+    public Set<Long> scrub(RateLimiter ioBudget) {
+        return Collections.emptySet();
     }
 
-    protected abstract void backendWrite(long address, LogUnitEntry entry);
+    /**
+     * Compact the data held by this log, reclaiming the space taken by trimmed entries.
+     * By default, a log holds nothing which can be compacted.
+     *
+     * @param ioBudget A rate limiter which is charged for every byte copied.
+     * @return The number of bytes reclaimed.
+     */
+    public long compact(RateLimiter ioBudget) {
+        return 0L;
+    }
 
-    protected abstract LogUnitEntry backendRead(long address);
+    /**
+     * Move old data held by this log to a slower, cheaper tier of storage.
+     * By default, a log has a single tier.
+     *
+     * @param ioBudget A rate limiter which is charged for every byte moved.
+     * @return The number of bytes moved off the fast tier.
+     */
+    public long tierSegments(RateLimiter ioBudget) {
+        return 0L;
+    }
+
+    /**
+     * Trim an address, which will never be read again, so that the log may reclaim the space
+     * its entry takes. By default, trimmed entries are kept.
+     *
+     * @param address The address to trim.
+     */
+    public void trim(long address) {
+        // no-op by default
+    }
 
-    protected abstract void backendStreamWrite(UUID streamID, RangeSet<Long> entry);
+    /**
+     * Trim every address up to a prefix, so that the log may reclaim the space their entries take.
+     * By default, trimmed entries are kept.
+     *
+     * @param prefix The address to trim up to, inclusive.
+     */
+    public void trimPrefix(long prefix) {
+        // no-op by default
+    }
+
+    /**
+     * Close the log, releasing any resources it holds.
+     */
+    public void close() {
+        // no-op by default
+    }
 
-    protected abstract RangeSet<Long> backendStreamRead(UUID streamID);
+    protected abstract CompletableFuture<Void> backendWrite(long address, LogUnitEntry entry);
+
+    protected abstract LogUnitEntry backendRead(long address);
 
     protected abstract void initializeLog();
 
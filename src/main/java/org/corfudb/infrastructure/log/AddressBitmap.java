@@ -0,0 +1,117 @@
+package org.corfudb.infrastructure.log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size concurrent bitmap, with a bit for each address of a log segment.
+ * <p>
+ * Bits are set with an atomic test-and-set, so concurrent writers racing for the same address
+ * can tell which one of them claimed it. A segment of 10,000 addresses takes about 1.2KB,
+ * regardless of how many of its addresses have been written.
+ */
+public class AddressBitmap {
+
+    private final AtomicLongArray words;
+
+    private final int size;
+
+    /**
+     * Create an empty bitmap.
+     *
+     * @param size The number of bits in the bitmap.
+     */
+    public AddressBitmap(int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) / 64);
+    }
+
+    /**
+     * Set a bit, if it was not already set.
+     *
+     * @param index The bit to set.
+     * @return True, if the bit was set by this call, or false if it was already set.
+     */
+    public boolean set(int index) {
+        int w = wordIndex(index);
+        long mask = 1L << index;
+        while (true) {
+            long word = words.get(w);
+            if ((word & mask) != 0L) {
+                return false;
+            }
+            if (words.compareAndSet(w, word, word | mask)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Clear a bit.
+     *
+     * @param index The bit to clear.
+     */
+    public void clear(int index) {
+        int w = wordIndex(index);
+        long mask = 1L << index;
+        while (true) {
+            long word = words.get(w);
+            if ((word & mask) == 0L || words.compareAndSet(w, word, word & ~mask)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Check whether a bit is set.
+     *
+     * @param index The bit to check.
+     * @return True, if the bit is set.
+     */
+    public boolean get(int index) {
+        return (words.get(wordIndex(index)) & (1L << index)) != 0L;
+    }
+
+    /**
+     * Set every bit which is set in the given word.
+     *
+     * @param wordIndex The index of the word, covering bits wordIndex * 64 to wordIndex * 64 + 63.
+     * @param bits      The bits to set.
+     */
+    public void setWord(int wordIndex, long bits) {
+        while (true) {
+            long word = words.get(wordIndex);
+            if ((word | bits) == word || words.compareAndSet(wordIndex, word, word | bits)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Count the bits which are set.
+     *
+     * @return The number of set bits.
+     */
+    public int cardinality() {
+        int count = 0;
+        for (int i = 0; i < words.length(); i++) {
+            count += Long.bitCount(words.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of bits in the bitmap.
+     *
+     * @return The size of the bitmap.
+     */
+    public int size() {
+        return size;
+    }
+
+    private int wordIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Bit " + index + " is outside a bitmap of " + size + " bits");
+        }
+        return index >>> 6;
+    }
+}
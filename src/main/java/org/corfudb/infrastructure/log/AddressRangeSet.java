@@ -0,0 +1,225 @@
+package org.corfudb.infrastructure.log;
+
+import java.util.Arrays;
+
+/**
+ * A set of addresses, kept as sorted runs of consecutive addresses.
+ * <p>
+ * The addresses of a stream are mostly written in increasing order, and often densely, so a
+ * stream of any length usually takes a handful of runs, and adding an address past the last
+ * one only extends or appends the last run. The runs are held in two parallel arrays of
+ * primitive longs, and trimmed runs at the front are skipped by an offset, which is reclaimed
+ * once the arrays fill up.
+ */
+class AddressRangeSet {
+
+    private static final int INITIAL_RUNS = 4;
+
+    /**
+     * The first address of each run.
+     */
+    private long[] starts = new long[INITIAL_RUNS];
+
+    /**
+     * The last address of each run, inclusive.
+     */
+    private long[] ends = new long[INITIAL_RUNS];
+
+    /**
+     * The index of the first run.
+     */
+    private int head;
+
+    /**
+     * The index after the last run.
+     */
+    private int tail;
+
+    /**
+     * The number of addresses in the set.
+     */
+    private long size;
+
+    /**
+     * Add an address to the set.
+     *
+     * @param address The address to add.
+     * @return True, if the address was not in the set.
+     */
+    synchronized boolean add(long address) {
+        if (head == tail || address > ends[tail - 1]) {
+            if (head != tail && address == ends[tail - 1] + 1) {
+                ends[tail - 1] = address;
+            } else {
+                insert(tail, address, address);
+            }
+            size++;
+            return true;
+        }
+        int i = floor(address);
+        if (i >= head && address <= ends[i]) {
+            return false;
+        }
+        boolean joinsPrevious = i >= head && ends[i] + 1 == address;
+        boolean joinsNext = i + 1 < tail && starts[i + 1] - 1 == address;
+        if (joinsPrevious && joinsNext) {
+            ends[i] = ends[i + 1];
+            System.arraycopy(starts, i + 2, starts, i + 1, tail - i - 2);
+            System.arraycopy(ends, i + 2, ends, i + 1, tail - i - 2);
+            tail--;
+        } else if (joinsPrevious) {
+            ends[i] = address;
+        } else if (joinsNext) {
+            starts[i + 1] = address;
+        } else {
+            insert(i + 1, address, address);
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Add a run of addresses, which must all be above the addresses in the set.
+     *
+     * @param start The first address of the run.
+     * @param end   The last address of the run, inclusive.
+     */
+    synchronized void addRun(long start, long end) {
+        if (head != tail && start <= ends[tail - 1]) {
+            throw new IllegalArgumentException("Run [" + start + ", " + end + "] is not above the set");
+        }
+        if (head != tail && start == ends[tail - 1] + 1) {
+            ends[tail - 1] = end;
+        } else {
+            insert(tail, start, end);
+        }
+        size += end - start + 1;
+    }
+
+    /**
+     * Remove the lowest address of the set, if it is at or below a prefix.
+     *
+     * @param prefix The highest address which may be removed.
+     * @return The address removed, or -1 if there is none at or below the prefix.
+     */
+    synchronized long pollFirst(long prefix) {
+        if (head == tail || starts[head] > prefix) {
+            return -1L;
+        }
+        long address = starts[head];
+        if (address == ends[head]) {
+            head++;
+        } else {
+            starts[head]++;
+        }
+        size--;
+        return address;
+    }
+
+    /**
+     * Get the lowest address of the set.
+     *
+     * @return The lowest address, or -1 if the set is empty.
+     */
+    synchronized long first() {
+        return head == tail ? -1L : starts[head];
+    }
+
+    /**
+     * Remove every address of the set at or below a prefix.
+     *
+     * @param prefix The address to remove up to, inclusive.
+     */
+    synchronized void removeUpTo(long prefix) {
+        while (head != tail && starts[head] <= prefix) {
+            if (ends[head] <= prefix) {
+                size -= ends[head] - starts[head] + 1;
+                head++;
+            } else {
+                size -= prefix - starts[head] + 1;
+                starts[head] = prefix + 1;
+            }
+        }
+    }
+
+    /**
+     * Check whether an address is in the set.
+     *
+     * @param address The address.
+     * @return True, if the address is in the set.
+     */
+    synchronized boolean contains(long address) {
+        int i = floor(address);
+        return i >= head && address <= ends[i];
+    }
+
+    /**
+     * Get the number of addresses in the set.
+     *
+     * @return The number of addresses.
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Get the number of runs the addresses of the set take.
+     *
+     * @return The number of runs.
+     */
+    synchronized int runCount() {
+        return tail - head;
+    }
+
+    /**
+     * Get the runs of the set above a prefix.
+     *
+     * @param after The address above which runs are returned, or -1 for every run.
+     * @return The first and last address of each run, in order, in consecutive elements.
+     */
+    synchronized long[] getRuns(long after) {
+        int first = Math.max(head, floor(after));
+        if (first < tail && ends[first] <= after) {
+            first++;
+        }
+        long[] runs = new long[(tail - first) * 2];
+        for (int i = first; i < tail; i++) {
+            runs[(i - first) * 2] = Math.max(starts[i], after + 1);
+            runs[(i - first) * 2 + 1] = ends[i];
+        }
+        return runs;
+    }
+
+    /**
+     * Find the last run which starts at or below an address.
+     *
+     * @return The index of the run, or head - 1 if every run starts above the address.
+     */
+    private int floor(long address) {
+        int i = Arrays.binarySearch(starts, head, tail, address);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * Insert a run before the run at an index, making room for it if the arrays are full.
+     */
+    private void insert(int index, long start, long end) {
+        if (tail == starts.length) {
+            int runs = tail - head;
+            long[] newStarts = runs * 2 > starts.length ? new long[starts.length * 2] : starts;
+            long[] newEnds = runs * 2 > ends.length ? new long[ends.length * 2] : ends;
+            System.arraycopy(starts, head, newStarts, 0, runs);
+            System.arraycopy(ends, head, newEnds, 0, runs);
+            starts = newStarts;
+            ends = newEnds;
+            index -= head;
+            head = 0;
+            tail = runs;
+        }
+        System.arraycopy(starts, index, starts, index + 1, tail - index);
+        System.arraycopy(ends, index, ends, index + 1, tail - index);
+        starts[index] = start;
+        ends[index] = end;
+        tail++;
+    }
+}
@@ -0,0 +1,98 @@
+package org.corfudb.infrastructure.log;
+
+import io.netty.util.IllegalReferenceCountException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongFunction;
+
+/**
+ * Loads the entries which missed a cache on an executor, so that the threads serving requests
+ * never block on the local log. Concurrent loads of the same address share a single read, and each
+ * of them is completed with a duplicate of the entry read, holding a reference of its own.
+ * <p>
+ * Both data caches share it: the off-heap cache is not a Caffeine cache, and the heap cache writes
+ * through a CacheWriter, which Caffeine's asynchronous caches do not support.
+ */
+class AsyncLoader {
+
+    private final Executor executor;
+
+    /**
+     * The loads in progress, by address.
+     */
+    private final ConcurrentHashMap<Long, CompletableFuture<LogUnitEntry>> pending = new ConcurrentHashMap<>();
+
+    AsyncLoader(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Load the entry at an address, unless a load of that address is already in progress.
+     *
+     * @param address The address to load.
+     * @param loader  The function which loads the entry, on the executor. The entry it returns
+     *                holds a reference to its buffer, which is released once the load is shared.
+     * @return A future completed with the entry, which the caller must release, or null if the
+     * address was not written.
+     */
+    CompletableFuture<LogUnitEntry> load(long address, LongFunction<LogUnitEntry> loader) {
+        CompletableFuture<LogUnitEntry> future = new CompletableFuture<>();
+        CompletableFuture<LogUnitEntry> inProgress = pending.putIfAbsent(address, future);
+        if (inProgress != null) {
+            return inProgress.thenCompose(entry -> share(address, entry, loader));
+        }
+        // Share the load with this caller before it can complete.
+        CompletableFuture<LogUnitEntry> shared = future.thenCompose(entry -> share(address, entry, loader));
+        try {
+            executor.execute(() -> {
+                LogUnitEntry entry;
+                try {
+                    entry = loader.apply(address);
+                } catch (Throwable t) {
+                    pending.remove(address, future);
+                    future.completeExceptionally(t);
+                    return;
+                }
+                // The load is no longer pending once its future completes, and a load which
+                // starts from then on reads the entry again, in case it changed.
+                pending.remove(address, future);
+                future.complete(entry);
+                if (entry != null) {
+                    entry.release();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            pending.remove(address, future);
+            future.completeExceptionally(ree);
+        }
+        return shared;
+    }
+
+    /**
+     * Share a loaded entry with a caller. A caller which joined the load too late to share it,
+     * once the load released the entry, loads it again.
+     */
+    private CompletableFuture<LogUnitEntry> share(long address, LogUnitEntry entry,
+                                                  LongFunction<LogUnitEntry> loader) {
+        if (entry == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            return CompletableFuture.completedFuture(entry.retainedDuplicate());
+        } catch (IllegalReferenceCountException irce) {
+            return CompletableFuture.supplyAsync(() -> loader.apply(address), executor);
+        }
+    }
+
+    /**
+     * Get the number of loads in progress.
+     *
+     * @return The number of addresses being loaded.
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+}
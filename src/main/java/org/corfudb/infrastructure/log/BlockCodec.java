@@ -0,0 +1,78 @@
+package org.corfudb.infrastructure.log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses blocks of log data with raw DEFLATE, favoring speed over ratio.
+ */
+final class BlockCodec {
+
+    private BlockCodec() {
+    }
+
+    /**
+     * Compress a block.
+     *
+     * @param data   The array holding the block.
+     * @param offset The offset of the block in the array.
+     * @param length The size of the block.
+     * @return The compressed block.
+     */
+    static byte[] deflate(byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            byte[] compressed = new byte[length + length / 8 + 64];
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                size += deflater.deflate(compressed, size, compressed.length - size);
+            }
+            return Arrays.copyOf(compressed, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress a block.
+     *
+     * @param compressed The array holding the compressed block.
+     * @param offset     The offset of the compressed block in the array.
+     * @param length     The size of the compressed block.
+     * @param size       The size of the block, once decompressed.
+     * @return The decompressed block.
+     * @throws IOException If the compressed block is corrupt, or does not decompress to size bytes.
+     */
+    static byte[] inflate(byte[] compressed, int offset, int length, int size)
+            throws IOException {
+        byte[] data = new byte[size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed, offset, length);
+            int read = 0;
+            while (read < size && !inflater.finished()) {
+                int n = inflater.inflate(data, read, size - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != size) {
+                throw new IOException("Compressed block is truncated");
+            }
+        } catch (DataFormatException dfe) {
+            throw new IOException("Compressed block is corrupt", dfe);
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+}
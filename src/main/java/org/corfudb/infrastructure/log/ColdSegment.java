@@ -0,0 +1,242 @@
+package org.corfudb.infrastructure.log;
+
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.util.CRC32C;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+
+/**
+ * A segment file which has been moved to the cold tier, in compressed form.
+ * <p>
+ * The segment file is split into fixed-size blocks, and each block is compressed separately, so
+ * that a record can be read by decompressing only the blocks it spans. Offsets into the segment
+ * are unchanged, so the index of the segment remains valid. The file starts with a header:
+ * magic(8), version(4), block size(4), uncompressed length(8) and the offset of the block table(8).
+ * The compressed blocks follow, and the block table ends the file, with the offset(8), compressed
+ * length(4) and the CRC32C of the uncompressed data(4) of each block.
+ */
+@Slf4j
+class ColdSegment {
+
+    /**
+     * The magic number at the start of a cold segment file ("CORFUCLD").
+     */
+    static final long MAGIC = 0x434F524655434C44L;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+
+    static final int TABLE_ENTRY_SIZE = 16;
+
+    /**
+     * The size of each block of the segment, before compression.
+     */
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * The path of the cold segment file.
+     */
+    @Getter
+    private final Path path;
+
+    private final FileChannel channel;
+
+    /**
+     * The size of each uncompressed block.
+     */
+    @Getter
+    private final int blockSize;
+
+    /**
+     * The size of the segment file, before compression.
+     */
+    @Getter
+    private final long length;
+
+    private final long[] blockOffsets;
+
+    private final int[] blockLengths;
+
+    private final int[] blockChecksums;
+
+    private ColdSegment(Path path, FileChannel channel, int blockSize, long length, long[] blockOffsets,
+                        int[] blockLengths, int[] blockChecksums) {
+        this.path = path;
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.length = length;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+        this.blockChecksums = blockChecksums;
+    }
+
+    /**
+     * Compress the first bytes of a segment file into a cold segment file, and force it to disk.
+     *
+     * @param source    The channel of the segment file.
+     * @param length    The number of bytes of the segment file to compress.
+     * @param path      The path of the cold segment file to write.
+     * @param blockSize The size of each uncompressed block.
+     * @param ioBudget  A rate limiter which is charged for every byte read.
+     * @return The number of bytes written.
+     */
+    static long write(FileChannel source, long length, Path path, int blockSize, RateLimiter ioBudget)
+            throws IOException {
+        int blocks = (int) ((length + blockSize - 1) / blockSize);
+        ByteBuffer table = ByteBuffer.allocate(blocks * TABLE_ENTRY_SIZE);
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        try (FileChannel out = FileChannel.open(path, EnumSet.of(StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            long pos = HEADER_SIZE;
+            for (int i = 0; i < blocks; i++) {
+                long start = (long) i * blockSize;
+                int size = (int) Math.min(blockSize, length - start);
+                ioBudget.acquire(size);
+                block.clear();
+                block.limit(size);
+                readFully(source, block, start);
+                byte[] compressed = BlockCodec.deflate(block.array(), 0, size);
+                CRC32C crc = new CRC32C();
+                crc.update(block.array(), 0, size);
+                writeFully(out, ByteBuffer.wrap(compressed), pos);
+                table.putLong(pos);
+                table.putInt(compressed.length);
+                table.putInt((int) crc.getValue());
+                pos += compressed.length;
+            }
+            table.flip();
+            writeFully(out, table, pos);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(blockSize);
+            header.putLong(length);
+            header.putLong(pos);
+            header.flip();
+            writeFully(out, header, 0L);
+            out.force(true);
+            return pos + blocks * TABLE_ENTRY_SIZE;
+        }
+    }
+
+    /**
+     * Open a cold segment file.
+     *
+     * @param path The path of the cold segment file.
+     * @return The cold segment.
+     */
+    static ColdSegment open(Path path)
+            throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0L);
+            header.flip();
+            if (header.getLong() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Invalid cold segment header in " + path);
+            }
+            int blockSize = header.getInt();
+            long length = header.getLong();
+            long tableOffset = header.getLong();
+            int blocks = (int) ((length + blockSize - 1) / blockSize);
+            ByteBuffer table = ByteBuffer.allocate(blocks * TABLE_ENTRY_SIZE);
+            readFully(channel, table, tableOffset);
+            table.flip();
+            long[] offsets = new long[blocks];
+            int[] lengths = new int[blocks];
+            int[] checksums = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                offsets[i] = table.getLong();
+                lengths[i] = table.getInt();
+                checksums[i] = table.getInt();
+            }
+            return new ColdSegment(path, channel, blockSize, length, offsets, lengths, checksums);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read and decompress a block.
+     *
+     * @param block The number of the block.
+     * @return The uncompressed contents of the block.
+     */
+    byte[] readBlock(int block)
+            throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(blockLengths[block]);
+        readFully(channel, compressed, blockOffsets[block]);
+        int size = (int) Math.min(blockSize, length - (long) block * blockSize);
+        byte[] data;
+        try {
+            data = BlockCodec.inflate(compressed.array(), 0, compressed.capacity(), size);
+        } catch (IOException ie) {
+            throw new IOException("Failed to decompress block " + block + " of " + path, ie);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, size);
+        if ((int) crc.getValue() != blockChecksums[block]) {
+            throw new IOException("Block " + block + " of " + path + " failed its checksum");
+        }
+        return data;
+    }
+
+    /**
+     * Get the number of blocks of the segment.
+     *
+     * @return The number of blocks.
+     */
+    int getBlockCount() {
+        return blockOffsets.length;
+    }
+
+    /**
+     * Decompress the whole segment into a file.
+     *
+     * @param out The channel to write the segment file to.
+     */
+    void copyTo(FileChannel out)
+            throws IOException {
+        for (int i = 0; i < getBlockCount(); i++) {
+            writeFully(out, ByteBuffer.wrap(readBlock(i)), (long) i * blockSize);
+        }
+    }
+
+    /**
+     * Close the cold segment file.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ie) {
+            log.warn("Error closing cold segment {}", path, ie);
+        }
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = fc.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel fc, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += fc.write(buffer, position);
+        }
+    }
+}
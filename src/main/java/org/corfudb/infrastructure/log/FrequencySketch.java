@@ -0,0 +1,102 @@
+package org.corfudb.infrastructure.log;
+
+/**
+ * A count-min sketch of how often each address has been accessed recently, in the style of the
+ * TinyLFU admission policy.
+ * <p>
+ * Each address is counted by four 4-bit counters, packed sixteen to a long, and its frequency is the
+ * smallest of them. Once the number of increments reaches ten times the width of the sketch, every
+ * counter is halved, so the sketch tracks recent popularity rather than all time popularity.
+ * The sketch is not thread safe.
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+
+    private final int tableMask;
+
+    private final int sampleSize;
+
+    private int additions;
+
+    /**
+     * Create a sketch.
+     *
+     * @param expectedEntries The number of entries whose frequency should be tracked accurately.
+     */
+    FrequencySketch(long expectedEntries) {
+        int width = Integer.highestOneBit((int) Math.min(1 << 24, Math.max(64L, expectedEntries)) - 1) << 1;
+        table = new long[width];
+        tableMask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    /**
+     * Get the estimated number of recent accesses to an address.
+     *
+     * @param address The address.
+     * @return The estimated frequency, from 0 to 15.
+     */
+    int frequency(long address) {
+        int hash = spread(address);
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xFL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Record an access to an address.
+     *
+     * @param address The address.
+     */
+    void increment(long address) {
+        int hash = spread(address);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = (start + i) << 2;
+            long mask = 0xFL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halve every counter, aging the sketch.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions = additions >>> 1;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(long address) {
+        long h = address * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
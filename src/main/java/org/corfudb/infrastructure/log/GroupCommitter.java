@@ -0,0 +1,207 @@
+package org.corfudb.infrastructure.log;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A group commit stage for log writes.
+ * <p>
+ * Writers submit entries to a bounded queue, blocking if it is full, and may wait on the returned
+ * future. A single commit thread drains the queue into batches of up to maxBatchSize entries, waiting
+ * up to maxBatchWait microseconds for a batch to fill, and hands each batch to the commit function,
+ * which appends the entries and makes them durable with a single flush. The futures of a batch are
+ * completed only once the whole batch is durable. Since a single thread commits the queue in order,
+ * writes submitted to the same committer are written in the order they were submitted.
+ */
+@Slf4j
+public class GroupCommitter {
+
+    /**
+     * A write waiting to be committed.
+     */
+    @Data
+    public static class PendingWrite {
+        final long address;
+        final LogUnitEntry entry;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final long submitTime = System.nanoTime();
+    }
+
+    /**
+     * How often, in milliseconds, an idle commit thread checks whether it has been closed.
+     */
+    private static final long CLOSE_POLL_INTERVAL = 100L;
+
+    private final BlockingQueue<PendingWrite> queue;
+
+    private final int maxBatchSize;
+
+    private final long maxBatchWait;
+
+    private final Consumer<List<PendingWrite>> commitFunction;
+
+    private final Thread commitThread;
+
+    private volatile boolean running = true;
+
+    /**
+     * The number of writes which have been committed (successfully or not).
+     */
+    private final AtomicLong completedWrites = new AtomicLong();
+
+    /**
+     * The total time, in nanoseconds, between submission and commit of all completed writes.
+     */
+    private final AtomicLong totalWriteLatency = new AtomicLong();
+
+    /**
+     * Create a new group committer and start its commit thread.
+     *
+     * @param name           The name of the commit thread.
+     * @param queueCapacity  The maximum number of writes which may be queued before submitters block.
+     * @param maxBatchSize   The maximum number of writes to commit in a single batch.
+     * @param maxBatchWait   The maximum time, in microseconds, to wait for a batch to fill.
+     * @param commitFunction A function which appends and flushes a batch of writes. It must complete
+     *                       the future of every write it fails to commit exceptionally.
+     */
+    public GroupCommitter(String name, int queueCapacity, int maxBatchSize, long maxBatchWait,
+                          Consumer<List<PendingWrite>> commitFunction) {
+        this.queue = new LinkedBlockingQueue<>(Math.max(1, queueCapacity));
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxBatchWait = Math.max(0L, maxBatchWait);
+        this.commitFunction = commitFunction;
+        commitThread = new Thread(this::runCommitLoop, name);
+        commitThread.setDaemon(true);
+        commitThread.start();
+    }
+
+    /**
+     * Submit a write to be committed with the next batch. If the queue is full, this
+     * blocks until the commit thread makes room.
+     *
+     * @param address The address to write.
+     * @param entry   The entry to write.
+     * @return A future which completes when the write is durable.
+     * @throws IllegalStateException If the committer is closed, or the submitter was interrupted
+     *                               while waiting for room in the queue.
+     */
+    public CompletableFuture<Void> submit(long address, LogUnitEntry entry) {
+        if (!running) {
+            throw new IllegalStateException("Group committer is closed");
+        }
+        PendingWrite write = new PendingWrite(address, entry);
+        try {
+            queue.put(write);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to submit write", ie);
+        }
+        return write.getFuture();
+    }
+
+    /**
+     * Get the number of writes waiting to be committed.
+     *
+     * @return The number of queued writes.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of writes which have been committed.
+     *
+     * @return The number of committed writes.
+     */
+    public long getCompletedWrites() {
+        return completedWrites.get();
+    }
+
+    /**
+     * Get the total time, in nanoseconds, that committed writes spent between submission and commit.
+     *
+     * @return The total write latency.
+     */
+    public long getTotalWriteLatency() {
+        return totalWriteLatency.get();
+    }
+
+    /**
+     * Stop the commit thread, after committing any writes already queued.
+     */
+    public void close() {
+        running = false;
+        try {
+            commitThread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        // Fail any writes which raced with close and were never picked up.
+        PendingWrite w;
+        while ((w = queue.poll()) != null) {
+            w.getFuture().completeExceptionally(new IllegalStateException("Group committer is closed"));
+        }
+    }
+
+    private void runCommitLoop() {
+        List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                // The commit thread is never interrupted, since an interrupt during IO would close the
+                // underlying file channels, so poll periodically to notice when we are closed.
+                PendingWrite first = queue.poll(CLOSE_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                if (maxBatchWait > 0 && batch.size() < maxBatchSize) {
+                    long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(maxBatchWait);
+                    long remaining;
+                    while (batch.size() < maxBatchSize && (remaining = deadline - System.nanoTime()) > 0) {
+                        PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                        queue.drainTo(batch, maxBatchSize - batch.size());
+                    }
+                }
+            } catch (InterruptedException ie) {
+                log.warn("Group commit thread interrupted, committing {} pending writes.", batch.size());
+            }
+
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<PendingWrite> batch) {
+        try {
+            commitFunction.accept(batch);
+            log.trace("Group commit of {} writes complete.", batch.size());
+            batch.forEach(w -> w.getFuture().complete(null));
+        } catch (Exception e) {
+            log.error("Group commit of {} writes failed.", batch.size(), e);
+            batch.forEach(w -> w.getFuture().completeExceptionally(e));
+        }
+        long now = System.nanoTime();
+        long latency = 0L;
+        for (PendingWrite w : batch) {
+            latency += now - w.getSubmitTime();
+        }
+        totalWriteLatency.addAndGet(latency);
+        completedWrites.addAndGet(batch.size());
+    }
+}
@@ -0,0 +1,181 @@
+package org.corfudb.infrastructure.log;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.netty.util.IllegalReferenceCountException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A data cache which keeps entries on the heap, in a Caffeine cache weighed by the size of their payloads.
+ * <p>
+ * If the sync flag (--sync) is set, the local log writes through, otherwise writes are written back
+ * by the log's writer threads. Asynchronous reads which miss the cache are loaded on the read executor.
+ * Reads return duplicates of the cached entries, each holding a reference to the buffer of the entry.
+ */
+@Slf4j
+public class HeapDataCache implements IDataCache {
+
+    private final AbstractLocalLog localLog;
+
+    private final LoadingCache<Long, LogUnitEntry> cache;
+
+    private final AsyncLoader loader;
+
+    /**
+     * Create a heap data cache.
+     *
+     * @param maxCacheSize The maximum size of the entries cached, in bytes.
+     * @param localLog     The local log which the cache writes to and loads from.
+     * @param readExecutor The executor which loads the misses of asynchronous reads.
+     */
+    public HeapDataCache(long maxCacheSize, AbstractLocalLog localLog, Executor readExecutor) {
+        this.localLog = localLog;
+        this.loader = new AsyncLoader(readExecutor);
+        cache = Caffeine.newBuilder()
+                .<Long, LogUnitEntry>weigher((k, v) -> v.buffer == null ? 1 : v.buffer.readableBytes())
+                .maximumWeight(maxCacheSize)
+                .removalListener(this::handleEviction)
+                .build(this::handleRetrieval);
+    }
+
+    /**
+     * Retrieve the LogUnitEntry from disk, given an address.
+     *
+     * @param address The address to retrieve the entry from.
+     * @return The log unit entry to retrieve into the cache.
+     * This function should not care about trimmed addresses, as that is handled in
+     * the read() and write(). Any address that cannot be retrieved should be returned as
+     * unwritten (null). The local log is safe for concurrent reads, so retrievals of
+     * different addresses proceed in parallel.
+     */
+    public LogUnitEntry handleRetrieval(Long address) {
+        LogUnitEntry entry = localLog.read(address);
+        log.trace("Retrieved[{} : {}]", address, entry);
+        return entry;
+    }
+
+    public void handleEviction(Long address, LogUnitEntry entry, RemovalCause cause) {
+        log.trace("Eviction[{}]: {}", address, cause);
+        if (entry.buffer != null) {
+            // Free the internal buffer once the data has been evicted (in the case the server is not sync).
+            entry.buffer.release();
+        }
+    }
+
+    /**
+     * Share a cached entry with a reader.
+     *
+     * @param entry The cached entry, or null.
+     * @return A duplicate of the entry, holding its own reference, or null if there was no entry,
+     * or it was evicted before it could be shared.
+     */
+    private static LogUnitEntry share(LogUnitEntry entry) {
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return entry.retainedDuplicate();
+        } catch (IllegalReferenceCountException irce) {
+            return null;
+        }
+    }
+
+    @Override
+    public LogUnitEntry get(long address) {
+        LogUnitEntry entry = cache.get(address);
+        if (entry == null) {
+            return null;
+        }
+        LogUnitEntry shared = share(entry);
+        // An entry evicted as soon as it was loaded, such as one larger than the cache, is read directly.
+        return shared != null ? shared : handleRetrieval(address);
+    }
+
+    @Override
+    public CompletableFuture<LogUnitEntry> getAsync(long address) {
+        LogUnitEntry entry = getIfPresent(address);
+        if (entry != null) {
+            return CompletableFuture.completedFuture(entry);
+        }
+        // The cache coalesces loads of an address too, but the read threads would wait on each other.
+        return loader.load(address, this::get);
+    }
+
+    @Override
+    public LogUnitEntry getIfPresent(long address) {
+        return share(cache.getIfPresent(address));
+    }
+
+    @Override
+    public Map<Long, LogUnitEntry> getAll(Set<Long> addresses) {
+        Map<Long, LogUnitEntry> entries = new HashMap<>();
+        cache.getAll(addresses).forEach((address, entry) -> {
+            LogUnitEntry shared = share(entry);
+            if (shared == null) {
+                shared = handleRetrieval(address);
+            }
+            if (shared != null) {
+                entries.put(address, shared);
+            }
+        });
+        return entries;
+    }
+
+    @Override
+    public CompletableFuture<Void> put(long address, LogUnitEntry entry) {
+        AtomicReference<CompletableFuture<Void>> written = new AtomicReference<>();
+        // The write is made while computing the mapping, so concurrent writes of an address are
+        // serialized, and only the first one is accepted.
+        cache.asMap().compute(address, (k, cached) -> {
+            if (cached != null) {
+                throw new RuntimeException("overwrite");
+            }
+            //don't persist an entry twice.
+            written.set(entry.isPersisted ? CompletableFuture.completedFuture(null) : localLog.write(address, entry));
+            return entry;
+        });
+        return written.get().whenComplete((v, ex) -> {
+            if (ex != null) {
+                // Removing the entry evicts it, which releases its buffer.
+                cache.asMap().remove(address, entry);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> fillHole(long address) {
+        cache.get(address, LogUnitEntry::new);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void invalidate(long address) {
+        cache.invalidate(address);
+    }
+
+    @Override
+    public void invalidateAll() {
+        // Evicting every entry releases its buffer.
+        cache.invalidateAll();
+    }
+
+    @Override
+    public void invalidateRange(long from, long to) {
+        if (to - from < cache.estimatedSize()) {
+            for (long address = from; address <= to; address++) {
+                cache.invalidate(address);
+            }
+        } else {
+            // Removing through the map evicts the entries, which releases their buffers.
+            cache.asMap().keySet().removeIf(address -> address >= from && address <= to);
+        }
+    }
+}
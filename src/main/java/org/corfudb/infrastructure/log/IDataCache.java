@@ -0,0 +1,123 @@
+package org.corfudb.infrastructure.log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A cache of log unit entries, which services the reads and writes of a log unit.
+ * <p>
+ * Writes go through the cache to the local log, and reads which miss the cache are
+ * loaded from the local log. Asynchronous reads load their misses on the read executor of
+ * the cache, and concurrent misses on the same address share a single load.
+ * <p>
+ * Every entry a read returns holds a reference of its own to its buffer, which the caller must
+ * release once it is done with the entry, so the cache can reuse the memory of evicted entries.
+ */
+public interface IDataCache {
+
+    /**
+     * Get the entry at an address, loading it from the local log if it is not cached.
+     *
+     * @param address The address to read.
+     * @return The entry at that address, or null if the address was not written.
+     */
+    LogUnitEntry get(long address);
+
+    /**
+     * Get the entry at an address, loading it from the local log on the read executor if it is
+     * not cached, so the caller never blocks on the local log.
+     *
+     * @param address The address to read.
+     * @return A future completed with the entry at that address, or null if the address was not written.
+     */
+    CompletableFuture<LogUnitEntry> getAsync(long address);
+
+    /**
+     * Get the entries at a set of addresses, loading any which are not cached on the read executor.
+     *
+     * @param addresses The addresses to read.
+     * @return A future completed with a map of the entries at the addresses which were written.
+     */
+    default CompletableFuture<Map<Long, LogUnitEntry>> getAllAsync(Set<Long> addresses) {
+        Map<Long, CompletableFuture<LogUnitEntry>> futures = new HashMap<>();
+        for (long address : addresses) {
+            futures.put(address, getAsync(address));
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[futures.size()]))
+                .handle((v, ex) -> {
+                    Map<Long, LogUnitEntry> entries = new HashMap<>();
+                    futures.forEach((address, future) -> {
+                        LogUnitEntry entry = future.isCompletedExceptionally() ? null : future.join();
+                        if (entry != null) {
+                            entries.put(address, entry);
+                        }
+                    });
+                    if (ex != null) {
+                        // The entries which were read are not returned, so they are released here.
+                        entries.values().forEach(LogUnitEntry::release);
+                        throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+                    }
+                    return entries;
+                });
+    }
+
+    /**
+     * Get the entry at an address, only if it is cached.
+     *
+     * @param address The address to read.
+     * @return The entry at that address, or null if it is not cached.
+     */
+    LogUnitEntry getIfPresent(long address);
+
+    /**
+     * Get the entries at a set of addresses, loading any which are not cached.
+     *
+     * @param addresses The addresses to read.
+     * @return A map of the entries at the addresses which were written.
+     */
+    Map<Long, LogUnitEntry> getAll(Set<Long> addresses);
+
+    /**
+     * Write an entry through the cache to the local log. Once this returns, the cache owns the
+     * buffer of the entry, even if the write fails later on. If it throws, the caller keeps it.
+     *
+     * @param address The address to write.
+     * @param entry   The entry to write.
+     * @return A future which completes once the write may be acknowledged, as the local log decides.
+     * If it completes exceptionally, the entry is removed from the cache.
+     * @throws RuntimeException If the address was already written.
+     */
+    CompletableFuture<Void> put(long address, LogUnitEntry entry);
+
+    /**
+     * Fill an address with a hole, unless it is already cached.
+     *
+     * @param address The address to fill.
+     * @return A future which completes once the hole fill may be acknowledged.
+     */
+    CompletableFuture<Void> fillHole(long address);
+
+    /**
+     * Remove an entry from the cache. The entry remains in the local log.
+     *
+     * @param address The address to remove.
+     */
+    void invalidate(long address);
+
+    /**
+     * Remove every entry from the cache, freeing the memory it holds.
+     */
+    void invalidateAll();
+
+    /**
+     * Remove the entries in a range of addresses from the cache. The entries remain in the local
+     * log. Costs the smaller of the size of the range and the size of the cache.
+     *
+     * @param from The first address to remove.
+     * @param to   The last address to remove, inclusive.
+     */
+    void invalidateRange(long from, long to);
+}
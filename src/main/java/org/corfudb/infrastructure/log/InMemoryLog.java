@@ -1,41 +1,344 @@
 package org.corfudb.infrastructure.log;
 
-import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
+import io.netty.util.IllegalReferenceCountException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.runtime.exceptions.OutOfSpaceException;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
 /**
+ * A log which keeps its entries on the heap.
+ * <p>
+ * Entries are held in chunks of CHUNK_SIZE consecutive addresses, which are allocated on demand and
+ * found through a directory indexed by the address, so no address is ever boxed. Addresses are
+ * issued densely by the sequencer, so the directory only spans the chunks between the lowest
+ * untrimmed address and the tail, and a write more than MAX_CHUNKS chunks past the lowest
+ * untrimmed address fails with an OutOfSpaceException instead of growing it. Reads are lock-free, and each address is written once, by a
+ * compare-and-set of its slot, so writes to different addresses never contend.
+ * <p>
+ * The log holds a reference to the buffer of every entry it stores, and every read returns an entry
+ * with a reference of its own, so the cache in front of the log may release what it evicts. If a
+ * maximum size is set, once the entries held exceed it, the oldest entries are trimmed, and the
+ * trim listener is told the highest address trimmed.
+ * <p>
  * Created by maithem on 7/21/16.
  */
+@Slf4j
 public class InMemoryLog extends AbstractLocalLog {
 
-    private final Map<Long, LogUnitEntry> cache;
+    static final int CHUNK_BITS = 12;
+
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    /**
+     * The number of chunks the directory may span, from the lowest untrimmed address. An address
+     * past them is rejected rather than growing the directory to reach it.
+     */
+    static final int MAX_CHUNKS = 1 << 16;
+
+    /**
+     * The number of addresses trimmed at a time when the log exceeds its maximum size.
+     */
+    static final int EVICTION_STEP = 256;
+
+    /**
+     * Marks a slot whose address was trimmed, so it can never be written again.
+     */
+    private static final LogUnitEntry TRIMMED = new LogUnitEntry(-1L);
+
+    /**
+     * The chunks which hold the untrimmed addresses. It is replaced whenever it grows or shrinks.
+     */
+    private volatile Directory directory = new Directory(0L, new AtomicReferenceArray<>(0));
+
+    /**
+     * Serializes changes to the directory, which are rare: once every CHUNK_SIZE addresses.
+     */
+    private final Object directoryLock = new Object();
+
+    /**
+     * Serializes trimming, so that entries are released once.
+     */
+    private final ReentrantLock trimLock = new ReentrantLock();
+
+    /**
+     * The highest address trimmed by a prefix, or -1 if none was. Nothing at or below it can be written.
+     */
+    @Getter
+    private volatile long trimMark = -1L;
+
+    /**
+     * The highest address written, or -1 if none was.
+     */
+    private final AtomicLong tail = new AtomicLong(-1L);
+
+    /**
+     * The size of the entries held, weighed as the cache weighs them.
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    private final long maxSize;
+
+    private final LongConsumer trimListener;
 
     public InMemoryLog(long start, long end) {
+        this(start, end, Long.MAX_VALUE, prefix -> { });
+    }
+
+    /**
+     * Create a log which trims its oldest entries once it exceeds a maximum size.
+     *
+     * @param start        The first address of the log.
+     * @param end          The last address of the log.
+     * @param maxSize      The maximum size of the entries held, in bytes.
+     * @param trimListener Told the highest address trimmed whenever the log trims itself.
+     */
+    public InMemoryLog(long start, long end, long maxSize, LongConsumer trimListener) {
         super(start, end, "", true);
-        cache = new HashMap();
+        this.maxSize = maxSize;
+        this.trimListener = trimListener;
     }
 
-    protected void backendWrite(long address, LogUnitEntry entry) {
-        cache.put(address, entry);
+    protected CompletableFuture<Void> backendWrite(long address, LogUnitEntry entry) {
+        if (address <= trimMark) {
+            throw new RuntimeException("overwrite");
+        }
+        // Keep an entry of our own, so the reader index of the caller's buffer is not shared.
+        LogUnitEntry stored = new LogUnitEntry(address, entry.buffer == null ? null : entry.buffer.duplicate(),
+                entry.metadataMap, entry.isHole, true);
+        if (stored.buffer != null) {
+            stored.buffer.retain();
+        }
+        if (!getChunk(address, true).compareAndSet(slot(address), null, stored)) {
+            if (stored.buffer != null) {
+                stored.buffer.release();
+            }
+            throw new RuntimeException("overwrite");
+        }
+        try {
+            writeListener.accepted(address, stored);
+        } catch (RuntimeException re) {
+            getChunk(address, false).compareAndSet(slot(address), stored, null);
+            if (stored.buffer != null) {
+                stored.buffer.release();
+            }
+            throw re;
+        }
+        // The log is held in memory, so the write is committed as soon as it is stored.
+        writeListener.committed();
+        tail.accumulateAndGet(address, Math::max);
+        if (size.addAndGet(weigh(stored)) > maxSize) {
+            evict();
+        }
+        return CompletableFuture.completedFuture(null);
     }
 
     protected LogUnitEntry backendRead(long address) {
-        return cache.get(address);
+        AtomicReferenceArray<LogUnitEntry> chunk = getChunk(address, false);
+        LogUnitEntry entry = chunk == null ? null : chunk.get(slot(address));
+        if (entry == null || entry == TRIMMED) {
+            return null;
+        }
+        if (entry.buffer == null) {
+            return new LogUnitEntry(address, null, entry.metadataMap, entry.isHole, true);
+        }
+        try {
+            return new LogUnitEntry(address, entry.buffer.duplicate().retain(), entry.metadataMap, entry.isHole,
+                    true);
+        } catch (IllegalReferenceCountException irce) {
+            // The entry was trimmed while it was being read.
+            return null;
+        }
     }
 
-    protected void initializeLog() {
-        // no-op
+    @Override
+    public void trim(long address) {
+        AtomicReferenceArray<LogUnitEntry> chunk = getChunk(address, false);
+        if (chunk != null) {
+            release(chunk.getAndSet(slot(address), TRIMMED));
+        }
+    }
+
+    @Override
+    public void trimPrefix(long prefix) {
+        trimLock.lock();
+        try {
+            trimUpTo(prefix);
+        } finally {
+            trimLock.unlock();
+        }
     }
 
-    protected void backendStreamWrite(UUID streamID, RangeSet<Long> entry){
+    /**
+     * Trim the oldest entries until the log is back under its maximum size. If another thread is
+     * already trimming, it will trim enough for both.
+     */
+    private void evict() {
+        if (!trimLock.tryLock()) {
+            return;
+        }
+        long previous = trimMark;
+        long mark = previous;
+        try {
+            long last = tail.get();
+            // Skip the chunks which were never allocated.
+            mark = Math.max(mark, (directory.base << CHUNK_BITS) - 1);
+            while (size.get() > maxSize && mark < last) {
+                mark = Math.min(last, mark + EVICTION_STEP);
+                trimUpTo(mark);
+            }
+        } finally {
+            trimLock.unlock();
+        }
+        if (mark > previous) {
+            log.debug("evict: Trimmed the in-memory log up to {}", mark);
+            trimListener.accept(mark);
+        }
+    }
+
+    /**
+     * Trim every address up to a prefix, and drop the chunks which no longer hold any untrimmed
+     * address. Must be called with the trim lock held.
+     *
+     * @param prefix The address to trim up to, inclusive.
+     */
+    private void trimUpTo(long prefix) {
+        if (prefix <= trimMark) {
+            return;
+        }
+        long from = trimMark + 1;
+        // Writes check the mark before claiming a slot, so raise it first, then trim every slot
+        // below it which a racing write may have claimed.
+        trimMark = prefix;
+        Directory d;
+        synchronized (directoryLock) {
+            // Any chunk allocated from now on is above the mark.
+            d = directory;
+        }
+        long address = Math.max(from, d.base << CHUNK_BITS);
+        long last = Math.min(prefix, ((d.base + d.chunks.length()) << CHUNK_BITS) - 1);
+        while (address <= last) {
+            long c = chunkOf(address);
+            AtomicReferenceArray<LogUnitEntry> chunk = d.get(c);
+            if (chunk != null) {
+                int end = c < chunkOf(last) ? CHUNK_SIZE - 1 : slot(last);
+                for (int i = slot(address); i <= end; i++) {
+                    release(chunk.getAndSet(i, TRIMMED));
+                }
+            }
+            address = (c + 1) << CHUNK_BITS;
+        }
+        long base = chunkOf(prefix + 1);
+        synchronized (directoryLock) {
+            d = directory;
+            if (base > d.base) {
+                int drop = (int) Math.min(base - d.base, d.chunks.length());
+                AtomicReferenceArray<AtomicReferenceArray<LogUnitEntry>> chunks =
+                        new AtomicReferenceArray<>(d.chunks.length() - drop);
+                for (int i = 0; i < chunks.length(); i++) {
+                    chunks.set(i, d.chunks.get(i + drop));
+                }
+                directory = new Directory(base, chunks);
+            }
+        }
+    }
+
+    private void release(LogUnitEntry entry) {
+        if (entry != null && entry != TRIMMED) {
+            size.addAndGet(-weigh(entry));
+            if (entry.buffer != null) {
+                entry.buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Get the chunk holding an address.
+     *
+     * @param address  The address.
+     * @param allocate Whether to allocate the chunk if it is missing.
+     * @return The chunk, or null if it is missing and was not allocated, or the address was trimmed.
+     */
+    private AtomicReferenceArray<LogUnitEntry> getChunk(long address, boolean allocate) {
+        long c = chunkOf(address);
+        Directory d = directory;
+        AtomicReferenceArray<LogUnitEntry> chunk = d.get(c);
+        if (chunk != null || !allocate) {
+            return chunk;
+        }
+        synchronized (directoryLock) {
+            d = directory;
+            if (c < d.base || address <= trimMark) {
+                throw new RuntimeException("overwrite");
+            }
+            if (c - d.base >= MAX_CHUNKS) {
+                throw new RuntimeException("Address " + address + " is too far past the lowest untrimmed address",
+                        new OutOfSpaceException());
+            }
+            chunk = d.get(c);
+            if (chunk == null) {
+                int index = (int) (c - d.base);
+                if (index >= d.chunks.length()) {
+                    AtomicReferenceArray<AtomicReferenceArray<LogUnitEntry>> chunks = new AtomicReferenceArray<>(
+                            Math.min(MAX_CHUNKS, Math.max(index + 1, d.chunks.length() * 2)));
+                    for (int i = 0; i < d.chunks.length(); i++) {
+                        chunks.set(i, d.chunks.get(i));
+                    }
+                    d = new Directory(d.base, chunks);
+                }
+                chunk = new AtomicReferenceArray<>(CHUNK_SIZE);
+                d.chunks.set(index, chunk);
+                directory = d;
+            }
+            return chunk;
+        }
+    }
+
+    private static long chunkOf(long address) {
+        return address >>> CHUNK_BITS;
+    }
+
+    private static int slot(long address) {
+        return (int) (address & (CHUNK_SIZE - 1));
+    }
+
+    private static long weigh(LogUnitEntry entry) {
+        return entry.buffer == null ? 1 : entry.buffer.readableBytes();
+    }
+
+    /**
+     * Get the size of the entries held by the log.
+     *
+     * @return The size, in bytes.
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    protected void initializeLog() {
         // no-op
     }
 
-    protected RangeSet<Long> backendStreamRead(UUID streamID) {
-        return TreeRangeSet.create();
+    /**
+     * The chunks of the log, starting with the chunk numbered base.
+     */
+    private static class Directory {
+        final long base;
+        final AtomicReferenceArray<AtomicReferenceArray<LogUnitEntry>> chunks;
+
+        Directory(long base, AtomicReferenceArray<AtomicReferenceArray<LogUnitEntry>> chunks) {
+            this.base = base;
+            this.chunks = chunks;
+        }
+
+        AtomicReferenceArray<LogUnitEntry> get(long chunk) {
+            long index = chunk - base;
+            return index < 0 || index >= chunks.length() ? null : chunks.get((int) index);
+        }
     }
 }
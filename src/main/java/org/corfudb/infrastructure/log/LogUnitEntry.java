@@ -28,4 +28,24 @@ public class LogUnitEntry implements IMetadata {
         this.isHole = true;
         this.isPersisted = false;
     }
+
+    /**
+     * Share this entry, with a reference of its own to the buffer, which must be released.
+     *
+     * @return A copy of this entry, whose buffer is a retained duplicate of this entry's.
+     * @throws io.netty.util.IllegalReferenceCountException If the buffer was already freed.
+     */
+    public LogUnitEntry retainedDuplicate() {
+        return new LogUnitEntry(address, buffer == null ? null : buffer.duplicate().retain(),
+                metadataMap, isHole, isPersisted);
+    }
+
+    /**
+     * Release the reference this entry holds to its buffer, if it has one.
+     */
+    public void release() {
+        if (buffer != null) {
+            buffer.release();
+        }
+    }
 }
@@ -0,0 +1,25 @@
+package org.corfudb.infrastructure.log;
+
+import lombok.Data;
+
+/**
+ * A snapshot of the state of the write path of a local log.
+ */
+@Data
+public class LogWriteStats {
+    /**
+     * The highest address such that every write accepted at or below it is durable,
+     * or -1 if no such address exists.
+     */
+    public final long durableWatermark;
+
+    /**
+     * The number of writes accepted but not yet durable.
+     */
+    public final long pendingWrites;
+
+    /**
+     * The mean time, in microseconds, between accepting a write and making it durable.
+     */
+    public final long meanWriteLatency;
+}
@@ -0,0 +1,661 @@
+package org.corfudb.infrastructure.log;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.util.IllegalReferenceCountException;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.protocols.wireprotocol.LogUnitMetadataMsg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongPredicate;
+
+/**
+ * A data cache which keeps entries off the heap, so that its size does not affect garbage collection.
+ * <p>
+ * Entries are appended, together with their metadata, to slabs of direct memory. An index of primitive
+ * longs maps each cached address to the slab and offset of its entry, so the heap footprint of the cache
+ * is a few arrays, regardless of how many entries it holds. The cache never allocates more than
+ * --max-cache bytes of slabs: when it is full, the oldest slab is evicted as a whole, and its memory is
+ * reused for a new slab.
+ * <p>
+ * Admission and eviction follow the W-TinyLFU policy, using a frequency sketch of recent accesses.
+ * Writes are always admitted, since recently written entries are the most likely to be read. Entries
+ * loaded by read misses are only admitted once the cache is full if they are accessed more often than
+ * the entries the cache has been evicting. When a slab is evicted, its frequently accessed entries are
+ * given a second chance, by being copied into the new slab.
+ * <p>
+ * Slabs are reference counted: the cache holds a reference to each live slab, and every entry read
+ * from the cache holds one to the slab it was read from, until the reader releases it. The memory of an
+ * evicted slab is only reused once the last of them is released. Until then, entries are not cached if
+ * there is no free memory for a new slab.
+ * <p>
+ * The index is split into stripes by address, each with its own lock and frequency sketch, so cache hits
+ * on different stripes never contend with each other, nor with writes, which append to slabs holding
+ * the lock on the cache. Asynchronous reads which miss the cache are loaded on the read executor.
+ */
+@Slf4j
+public class OffHeapDataCache implements IDataCache {
+
+    /**
+     * The default size of a slab.
+     */
+    static final int DEFAULT_SLAB_SIZE = 4 << 20;
+
+    /**
+     * The smallest size of a slab, used when the cache is small.
+     */
+    static final int MIN_SLAB_SIZE = 64 << 10;
+
+    /**
+     * The smallest number of slabs in a cache.
+     */
+    static final int MIN_SLABS = 4;
+
+    /**
+     * The number of stripes the index is split into, a power of two.
+     */
+    static final int INDEX_STRIPES = 64;
+
+    /**
+     * The size of the header of a cached entry: address(8), flags(1), metadata size(4) and payload size(4).
+     */
+    static final int ENTRY_HEADER_SIZE = 17;
+
+    /**
+     * The entry flag which marks a hole.
+     */
+    static final byte FLAG_HOLE = 1;
+
+    /**
+     * The estimated frequency at which an entry in an evicted slab is copied into the new slab.
+     */
+    static final int SECOND_CHANCE_FREQUENCY = 3;
+
+    private final AbstractLocalLog localLog;
+
+    private final int slabSize;
+
+    private final int maxSlabs;
+
+    /**
+     * The live slabs, indexed by slab id modulo the maximum number of slabs.
+     */
+    private final AtomicReferenceArray<Slab> slabs;
+
+    /**
+     * The memory of the slabs which were evicted and released, ready to be reused.
+     */
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of slabs of memory allocated, which never exceeds the maximum number of slabs.
+     */
+    private int allocated = 0;
+
+    /**
+     * The id of the oldest live slab.
+     */
+    private long oldestSlab = 0L;
+
+    /**
+     * The id of the next slab.
+     */
+    private long nextSlab = 0L;
+
+    /**
+     * The slab entries are currently appended to, or null if there is none.
+     */
+    private Slab current;
+
+    /**
+     * The frequently accessed entries of an evicted slab, on their way to the new slab.
+     */
+    private final ByteBuf rescued;
+
+    private final Stripe[] stripes = new Stripe[INDEX_STRIPES];
+
+    /**
+     * The mean frequency of the entries evicted by the last slab eviction, which a read
+     * miss must exceed to be admitted into a full cache.
+     */
+    private int evictionFrequency = 0;
+
+    private final AsyncLoader loader;
+
+    /**
+     * Create an off-heap data cache.
+     *
+     * @param maxCacheSize The maximum size of the slabs, in bytes.
+     * @param localLog     The local log which the cache writes to and loads from.
+     * @param readExecutor The executor which loads the misses of asynchronous reads.
+     */
+    public OffHeapDataCache(long maxCacheSize, AbstractLocalLog localLog, Executor readExecutor) {
+        this.localLog = localLog;
+        this.loader = new AsyncLoader(readExecutor);
+        slabSize = (int) Math.min(DEFAULT_SLAB_SIZE, Math.max(MIN_SLAB_SIZE, maxCacheSize / MIN_SLABS));
+        maxSlabs = (int) Math.max(MIN_SLABS, maxCacheSize / slabSize);
+        slabs = new AtomicReferenceArray<>(maxSlabs);
+        rescued = Unpooled.buffer(slabSize / 2);
+        // Size the sketches for the number of small entries the cache can hold.
+        for (int i = 0; i < INDEX_STRIPES; i++) {
+            stripes[i] = new Stripe((long) maxSlabs * slabSize / 1024 / INDEX_STRIPES);
+        }
+        log.info("Off-heap data cache of {} slabs of {} bytes", maxSlabs, slabSize);
+    }
+
+    @Override
+    public LogUnitEntry get(long address) {
+        LogUnitEntry entry = getIfPresent(address);
+        return entry != null ? entry : load(address);
+    }
+
+    @Override
+    public CompletableFuture<LogUnitEntry> getAsync(long address) {
+        LogUnitEntry entry = getIfPresent(address);
+        return entry != null ? CompletableFuture.completedFuture(entry) : loader.load(address, this::load);
+    }
+
+    /**
+     * Load an entry which missed the cache from the local log, and admit it into the cache.
+     *
+     * @param address The address to load.
+     * @return The entry at that address, or null if the address was not written.
+     */
+    private LogUnitEntry load(long address) {
+        LogUnitEntry entry = localLog.read(address);
+        log.trace("Retrieved[{} : {}]", address, entry);
+        if (entry != null) {
+            synchronized (this) {
+                if (!contains(address) && (!isFull() || frequency(address) > evictionFrequency)) {
+                    append(address, entry);
+                }
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public LogUnitEntry getIfPresent(long address) {
+        Stripe stripe = stripeOf(address);
+        long location;
+        synchronized (stripe) {
+            stripe.sketch.increment(address);
+            location = stripe.locations.get(address);
+        }
+        if (location == LongLongMap.MISSING) {
+            return null;
+        }
+        Slab slab = slabs.get((int) ((location >>> 32) % maxSlabs));
+        if (slab == null || slab.id != location >>> 32) {
+            // The slab was evicted since.
+            return null;
+        }
+        try {
+            slab.retain();
+        } catch (IllegalReferenceCountException irce) {
+            // The slab was evicted and released since.
+            return null;
+        }
+        // The slab is never written at this offset again, and its memory is not reused while the
+        // reference is held, so the entry is decoded without a lock.
+        int offset = (int) location;
+        byte flags = slab.getByte(offset + 8);
+        int metadataSize = slab.getInt(offset + 9);
+        int payloadSize = slab.getInt(offset + 13);
+        if ((flags & FLAG_HOLE) != 0) {
+            slab.release();
+            return new LogUnitEntry(address);
+        }
+        int metadataOffset = offset + ENTRY_HEADER_SIZE;
+        // The payload is sliced from the slab, so releasing it releases the reference to the slab.
+        return new LogUnitEntry(address, slab.slice(metadataOffset + metadataSize, payloadSize),
+                LogUnitMetadataMsg.mapFromBuffer(slab.slice(metadataOffset, metadataSize)), false, true);
+    }
+
+    @Override
+    public Map<Long, LogUnitEntry> getAll(Set<Long> addresses) {
+        Map<Long, LogUnitEntry> entries = new HashMap<>();
+        for (long address : addresses) {
+            LogUnitEntry entry = get(address);
+            if (entry != null) {
+                entries.put(address, entry);
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public CompletableFuture<Void> put(long address, LogUnitEntry entry) {
+        if (contains(address)) {
+            throw new RuntimeException("overwrite");
+        }
+        CompletableFuture<Void> written = entry.isPersisted ? CompletableFuture.completedFuture(null)
+                : localLog.write(address, entry);
+        Stripe stripe = stripeOf(address);
+        synchronized (stripe) {
+            stripe.sketch.increment(address);
+        }
+        synchronized (this) {
+            append(address, entry);
+        }
+        // The entry has been copied into a slab, and the log holds its own reference if it needs one.
+        entry.release();
+        return invalidateOnFailure(address, written);
+    }
+
+    @Override
+    public CompletableFuture<Void> fillHole(long address) {
+        LogUnitEntry cached = getIfPresent(address);
+        if (cached != null) {
+            cached.release();
+            return CompletableFuture.completedFuture(null);
+        }
+        LogUnitEntry hole = new LogUnitEntry(address);
+        CompletableFuture<Void> written = localLog.write(address, hole);
+        synchronized (this) {
+            append(address, hole);
+        }
+        return invalidateOnFailure(address, written);
+    }
+
+    /**
+     * Remove an entry from the cache if the write of it fails, since it was never made.
+     */
+    private CompletableFuture<Void> invalidateOnFailure(long address, CompletableFuture<Void> written) {
+        return written.whenComplete((v, ex) -> {
+            if (ex != null) {
+                invalidate(address);
+            }
+        });
+    }
+
+    @Override
+    public void invalidate(long address) {
+        // The space of the entry is reclaimed when its slab is evicted.
+        Stripe stripe = stripeOf(address);
+        synchronized (stripe) {
+            stripe.locations.remove(address);
+        }
+    }
+
+    @Override
+    public synchronized void invalidateAll() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.locations.clear();
+            }
+        }
+        for (long id = oldestSlab; id < nextSlab; id++) {
+            Slab slab = slabs.getAndSet((int) (id % maxSlabs), null);
+            if (slab != null) {
+                slab.release();
+            }
+        }
+        oldestSlab = nextSlab;
+        current = null;
+        // Free the memory which is not being read from. The rest is reused once it is released.
+        while (free.poll() != null) {
+            allocated--;
+        }
+    }
+
+    @Override
+    public void invalidateRange(long from, long to) {
+        long size = 0L;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.locations.size();
+            }
+        }
+        if (to - from < size) {
+            for (long address = from; address <= to; address++) {
+                invalidate(address);
+            }
+        } else {
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    stripe.locations.removeKeys(address -> address >= from && address <= to);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of bytes of direct memory allocated for slabs, including the slabs which
+     * were evicted but are still being read from.
+     *
+     * @return The memory used by the cache.
+     */
+    public synchronized long getMemoryUsed() {
+        return allocated * (long) slabSize;
+    }
+
+    /**
+     * Check whether every slab of the cache is live, so admitting an entry may cause another to be
+     * evicted. Must be called holding the lock on this cache.
+     */
+    private boolean isFull() {
+        return nextSlab - oldestSlab == maxSlabs;
+    }
+
+    private Stripe stripeOf(long address) {
+        return stripes[(int) ((address * 0x9E3779B97F4A7C15L) >>> 58) & (INDEX_STRIPES - 1)];
+    }
+
+    private boolean contains(long address) {
+        Stripe stripe = stripeOf(address);
+        synchronized (stripe) {
+            return stripe.locations.get(address) != LongLongMap.MISSING;
+        }
+    }
+
+    private int frequency(long address) {
+        Stripe stripe = stripeOf(address);
+        synchronized (stripe) {
+            return stripe.sketch.frequency(address);
+        }
+    }
+
+    /**
+     * Append an entry to the current slab and index it, rolling over to a new slab if it does not fit.
+     * Entries larger than a slab are not cached, nor are entries for which there is no free slab.
+     * Must be called holding the lock on this cache.
+     *
+     * @param address The address of the entry.
+     * @param entry   The entry to append.
+     */
+    private void append(long address, LogUnitEntry entry) {
+        ByteBuf metadata = Unpooled.buffer();
+        LogUnitMetadataMsg.bufferFromMap(metadata, entry.getMetadataMap());
+        ByteBuf payload = entry.getBuffer() == null ? Unpooled.EMPTY_BUFFER : entry.getBuffer();
+        int size = ENTRY_HEADER_SIZE + metadata.readableBytes() + payload.readableBytes();
+        if (size > slabSize) {
+            log.trace("Entry at {} of {} bytes is too large to cache", address, size);
+            metadata.release();
+            return;
+        }
+        if (current == null || current.writableBytes() < size) {
+            rollover();
+            if (current == null) {
+                log.trace("Entry at {} not cached, as no slab is free", address);
+                metadata.release();
+                return;
+            }
+        }
+        long location = (current.id << 32) | current.writerIndex();
+        current.writeLong(address);
+        current.writeByte(entry.isHole() ? FLAG_HOLE : 0);
+        current.writeInt(metadata.readableBytes());
+        current.writeInt(payload.readableBytes());
+        current.writeBytes(metadata);
+        current.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+        metadata.release();
+        Stripe stripe = stripeOf(address);
+        synchronized (stripe) {
+            stripe.locations.put(address, location);
+        }
+    }
+
+    /**
+     * Start a new slab, evicting the oldest slab if the cache is full. Frequently accessed
+     * entries of the evicted slab are copied into the new slab, filling at most half of it.
+     * Evicted slabs which are still being read from hold on to their memory, so older slabs are
+     * evicted until some memory is free. If none is, the cache is left without a current slab.
+     */
+    private void rollover() {
+        current = null;
+        rescued.clear();
+        List<Long> rescuedFrom = new ArrayList<>();
+        if (isFull()) {
+            evictOldest(rescuedFrom);
+        }
+        ByteBuffer memory = allocate();
+        while (memory == null && oldestSlab < nextSlab) {
+            evictOldest(rescuedFrom);
+            memory = allocate();
+        }
+
+        Slab next = memory == null ? null : new Slab(nextSlab++, memory);
+        if (next != null) {
+            slabs.set((int) (next.id % maxSlabs), next);
+            current = next;
+        }
+        for (long from : rescuedFrom) {
+            int offset = rescued.readerIndex();
+            long address = rescued.getLong(offset);
+            int size = ENTRY_HEADER_SIZE + rescued.getInt(offset + 9) + rescued.getInt(offset + 13);
+            long location = next == null ? LongLongMap.MISSING : (next.id << 32) | next.writerIndex();
+            if (next != null) {
+                next.writeBytes(rescued, offset, size);
+            }
+            rescued.skipBytes(size);
+            Stripe stripe = stripeOf(address);
+            synchronized (stripe) {
+                // Unless the entry was invalidated meanwhile.
+                if (stripe.locations.get(address) == from) {
+                    if (next != null) {
+                        stripe.locations.put(address, location);
+                    } else {
+                        stripe.locations.remove(address);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the memory for a new slab, reusing the memory of a released slab if there is one.
+     *
+     * @return The memory, or null if every slab of memory is allocated and in use.
+     */
+    private ByteBuffer allocate() {
+        ByteBuffer memory = free.poll();
+        if (memory == null && allocated < maxSlabs) {
+            memory = ByteBuffer.allocateDirect(slabSize);
+            allocated++;
+        }
+        return memory;
+    }
+
+    /**
+     * Evict the oldest live slab, and release the reference the cache holds to it. Its frequently
+     * accessed entries are copied aside, to be given a second chance.
+     *
+     * @param rescuedFrom The locations the entries copied aside were evicted from.
+     */
+    private void evictOldest(List<Long> rescuedFrom) {
+        Slab victim = slabs.getAndSet((int) (oldestSlab % maxSlabs), null);
+        oldestSlab++;
+        long evicted = 0L;
+        long evictedFrequency = 0L;
+        int offset = 0;
+        while (victim.writerIndex() - offset >= ENTRY_HEADER_SIZE) {
+            long address = victim.getLong(offset);
+            int size = ENTRY_HEADER_SIZE + victim.getInt(offset + 9) + victim.getInt(offset + 13);
+            long location = (victim.id << 32) | offset;
+            Stripe stripe = stripeOf(address);
+            synchronized (stripe) {
+                if (stripe.locations.get(address) == location) {
+                    int frequency = stripe.sketch.frequency(address);
+                    if (frequency >= SECOND_CHANCE_FREQUENCY && rescued.writableBytes() >= size) {
+                        rescued.writeBytes(victim, offset, size);
+                        rescuedFrom.add(location);
+                    } else {
+                        stripe.locations.remove(address);
+                        evicted++;
+                        evictedFrequency += frequency;
+                    }
+                }
+                // Otherwise the entry was invalidated, or rescued from this slab before.
+            }
+            offset += size;
+        }
+        victim.release();
+        evictionFrequency = evicted == 0L ? 0 : (int) (evictedFrequency / evicted);
+        log.debug("Evicted slab {}: {} entries evicted, {} given a second chance",
+                victim.id, evicted, rescuedFrom.size());
+    }
+
+    /**
+     * A stripe of the index, mapping the addresses which hash to it to the locations of their entries,
+     * and tracking how often they are accessed. Guarded by its own lock.
+     */
+    static class Stripe {
+        final LongLongMap locations = new LongLongMap();
+        final FrequencySketch sketch;
+
+        Stripe(long expectedEntries) {
+            sketch = new FrequencySketch(expectedEntries);
+        }
+    }
+
+    /**
+     * A slab of direct memory, which entries are appended to. Once the last reference to the slab is
+     * released, its memory is returned to the free slabs, to be reused by a new slab.
+     */
+    private final class Slab extends UnpooledDirectByteBuf {
+        final long id;
+        final ByteBuffer memory;
+
+        Slab(long id, ByteBuffer memory) {
+            super(UnpooledByteBufAllocator.DEFAULT, (ByteBuffer) memory.clear(), memory.capacity());
+            this.id = id;
+            this.memory = memory;
+            clear();
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            free.add(memory);
+        }
+    }
+
+    /**
+     * A hash map from primitive longs to primitive longs, using open addressing with linear probing.
+     * Keys must not be negative. Not thread safe.
+     */
+    static class LongLongMap {
+        static final long MISSING = -1L;
+
+        private static final long EMPTY = -1L;
+
+        private long[] keys;
+        private long[] values;
+        private int size;
+
+        LongLongMap() {
+            allocate(1024);
+        }
+
+        long get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                } else if (keys[i] == EMPTY) {
+                    return MISSING;
+                }
+            }
+        }
+
+        void put(long key, long value) {
+            if ((size + 1) * 4L > keys.length * 3L) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != EMPTY && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == EMPTY) {
+                size++;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != key) {
+                if (keys[i] == EMPTY) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            // Shift back the entries which follow in the probe sequence, so no tombstone is needed.
+            int hole = i;
+            for (int j = (hole + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+                int home = slot(keys[j], mask);
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = EMPTY;
+            size--;
+        }
+
+        void clear() {
+            allocate(1024);
+        }
+
+        /**
+         * Remove the keys which match a predicate.
+         */
+        void removeKeys(LongPredicate predicate) {
+            long[] matched = new long[size];
+            int count = 0;
+            for (long key : keys) {
+                if (key != EMPTY && predicate.test(key)) {
+                    matched[count++] = key;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                remove(matched[i]);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            allocate(capacity);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            values = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
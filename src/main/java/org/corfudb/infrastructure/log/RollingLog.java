@@ -1,15 +1,19 @@
 package org.corfudb.infrastructure.log;
 
-import com.google.common.collect.Range;
-import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.RateLimiter;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.wireprotocol.LogUnitMetadataMsg;
-import org.corfudb.util.serializer.Serializers;
+import org.corfudb.runtime.exceptions.DataCorruptionException;
+import org.corfudb.util.CRC32C;
+import org.corfudb.util.Utils;
 
 import java.io.File;
 import java.io.IOException;
@@ -20,16 +24,27 @@ import java.nio.charset.Charset;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.UUID;
+import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /**
  * Created by maithem on 7/15/16.
@@ -38,104 +53,1559 @@ import java.util.concurrent.atomic.AtomicLong;
 @Slf4j
 public class RollingLog extends AbstractLocalLog {
 
-    private final Map<Long, FileHandle> channelMap;
+    /**
+     * The number of log addresses stored in each segment file.
+     */
+    static final int RECORDS_PER_SEGMENT = 10000;
+
+    /**
+     * The size of the header at the start of each segment file.
+     */
+    static final int HEADER_SIZE = 64;
+
+    /**
+     * The size of each slot in the segment index, which holds the file offset of a record.
+     */
+    static final int INDEX_SLOT_SIZE = 8;
+
+    /**
+     * The offset, in the index file of a segment, of the footer which follows the index slots.
+     */
+    static final int FOOTER_OFFSET = RECORDS_PER_SEGMENT * INDEX_SLOT_SIZE;
+
+    /**
+     * The number of words in the footer bitmap, which has a bit for every address of the segment.
+     */
+    static final int FOOTER_BITMAP_WORDS = (RECORDS_PER_SEGMENT + 63) / 64;
+
+    /**
+     * The size of a segment footer: magic(4), tail offset(8), address bitmap and checksum(4).
+     */
+    static final int FOOTER_SIZE = 4 + 8 + FOOTER_BITMAP_WORDS * 8 + 4;
+
+    /**
+     * The magic number at the start of a valid footer ("SEAL"). A segment whose footer does
+     * not start with it, or fails its checksum, is unsealed.
+     */
+    static final int FOOTER_MAGIC = 0x5345414C;
+
+    /**
+     * The size of the fixed prefix of every record: magic(2), flags(2), address(8) and size(4).
+     */
+    static final int RECORD_PREFIX_SIZE = 16;
+
+    /**
+     * The number of bytes of every record which are not metadata or payload: the prefix, the
+     * metadata size(4) and the checksum(4) which ends the record.
+     */
+    static final int RECORD_OVERHEAD = 24;
+
+    /**
+     * The record flag which is set once the record has been completely written.
+     */
+    static final short FLAG_WRITTEN = 1;
+
+    /**
+     * The record flag which indicates that the record ends with a CRC32C checksum of everything
+     * following the flags. Records written before checksums were introduced do not have it set.
+     */
+    static final short FLAG_CHECKSUMMED = 2;
+
+    /**
+     * The record flag which marks a hole fill, whose record has no payload.
+     */
+    static final short FLAG_HOLE = 4;
+
+    /**
+     * The magic number at the start of every record ("LE").
+     */
+    static final short RECORD_MAGIC = 0x4C45;
+
+    /**
+     * The magic number at the start of the padding which fills the end of a mapped window
+     * when the next record does not fit in it ("PA").
+     */
+    static final short PAD_MAGIC = 0x5041;
+
+    /**
+     * The magic number at the start of a block of compressed records ("BL"). A block is framed like a
+     * record, with the address of its first record, but its body is the size of the records once
+     * decompressed(4) followed by the records, compressed together.
+     */
+    static final short BLOCK_MAGIC = 0x424C;
+
+    /**
+     * The segment header flag which marks a segment whose records are packed into compressed blocks.
+     * Records are appended raw, and packed by the compactor once the segment is sealed, so blocks fill
+     * up however the records were batched. Segments keep the format they were created with, and both
+     * formats are always readable.
+     */
+    static final long HEADER_FLAG_COMPRESSED = 1L;
+
+    /**
+     * The segment header flag which marks a compressed segment whose records have all been packed
+     * into blocks. A late write to the segment clears it, so the segment is packed again.
+     */
+    static final long HEADER_FLAG_PACKED = 2L;
+
+    /**
+     * The offset of the flags in the header of a segment file.
+     */
+    static final int HEADER_FLAGS_OFFSET = 12;
+
+    /**
+     * The default size of the records of a compressed block, before compression.
+     */
+    static final int DEFAULT_COMPRESSION_BLOCK_SIZE = 32 << 10;
+
+    /**
+     * The default maximum number of writes made durable together in sync mode.
+     */
+    static final int DEFAULT_SYNC_BATCH_SIZE = 64;
+
+    /**
+     * The default time, in microseconds, to wait for a sync mode batch to fill.
+     */
+    static final long DEFAULT_SYNC_BATCH_WAIT = 0L;
+
+    /**
+     * The default size of a mapped window. Segment files are mapped as a sequence of windows of this
+     * size, and records never cross a window boundary.
+     */
+    static final long DEFAULT_WINDOW_SIZE = 1L << 30;
+
+    /**
+     * The default granularity with which a mapped window grows as the file pointer advances.
+     */
+    static final int DEFAULT_MAP_CHUNK_SIZE = 16 << 20;
+
+    /**
+     * The default maximum number of segments which may be memory mapped at once.
+     */
+    static final int DEFAULT_MAX_MAPPED_SEGMENTS = 64;
+
+    /**
+     * The segments of the log which have been opened, keyed by segment number. Each segment is
+     * registered as a future, so that concurrent opens of the same segment are deduplicated
+     * without holding a lock while the segment is loaded.
+     */
+    private final Map<Long, CompletableFuture<FileHandle>> channelMap;
+
+    /**
+     * The suffix of the marker file which records that a segment was reclaimed.
+     */
+    static final String RECLAIMED_SUFFIX = ".trimmed";
+
+    /**
+     * The suffix of the files a segment is compacted into, before they replace the segment files.
+     */
+    static final String COMPACTION_SUFFIX = ".compact";
+
+    /**
+     * The fraction of the records of a segment which must have been trimmed since it was last
+     * compacted for the segment to be compacted.
+     */
+    static final double COMPACTION_THRESHOLD = 0.5;
+
+    /**
+     * The suffix of the compressed file of a segment in the cold tier.
+     */
+    static final String COLD_SUFFIX = ".cold";
+
+    /**
+     * The suffix of the file a cold segment is decompressed into, before it replaces the segment file.
+     */
+    static final String THAW_SUFFIX = ".thaw";
+
+    /**
+     * The default number of segments behind the tail of the log at which a sealed segment is
+     * moved to the cold tier.
+     */
+    static final int DEFAULT_COLD_AFTER = 16;
+
+    /**
+     * The default size of the cache of decompressed blocks of cold and compressed segments.
+     */
+    static final long DEFAULT_BLOCK_CACHE_SIZE = 64L << 20;
+
+    /**
+     * The default number of writer threads.
+     */
+    static final int DEFAULT_WRITER_THREADS = 2;
+
+    /**
+     * The default number of writes each writer thread may have queued before writes block.
+     */
+    static final int DEFAULT_WRITER_QUEUE_SIZE = 10000;
+
+    /**
+     * The placement policy which puts each new segment on the data directory which follows the
+     * directory of the previous segment.
+     */
+    static final String PLACEMENT_ROUND_ROBIN = "round-robin";
+
+    /**
+     * The placement policy which puts each new segment on the data directory with the most free space.
+     */
+    static final String PLACEMENT_FREE_SPACE = "free-space";
+
+    /**
+     * The path prefixes of the files of segments on each data directory. Without --data-dirs,
+     * there is a single data directory, the log path.
+     */
+    private final String[] dataPaths;
+
+    /**
+     * The placement policy of new segments (--placement).
+     */
+    private final String placement;
+
+    /**
+     * The data directory of each segment, by index into dataPaths. Segments found on disk keep the
+     * directory they are on, and any other segment is placed by the policy the first time it is used.
+     */
+    private final Map<Long, Integer> segmentDirs = new ConcurrentHashMap<>();
+
+    /**
+     * The writers of each data directory, each of which appends and flushes the segments assigned
+     * to it in order. A segment is always written by the same writer, so writes to a segment are
+     * ordered, and every data directory batches and forces its writes independently of the others.
+     */
+    private final GroupCommitter[][] writers;
+
+    /**
+     * Addresses which have been accepted but are not yet durable.
+     */
+    private final ConcurrentSkipListSet<Long> pendingAddresses = new ConcurrentSkipListSet<>();
+
+    /**
+     * The highest address which has been accepted for writing.
+     */
+    private final AtomicLong highestAccepted = new AtomicLong(-1L);
+
+    /**
+     * The size of each mapped window of a segment file.
+     */
+    private final long windowSize;
+
+    /**
+     * The granularity with which mapped windows grow.
+     */
+    private final int mapChunkSize;
+
+    /**
+     * The maximum number of segments which may be memory mapped at once.
+     */
+    private final int maxMappedSegments;
+
+    /**
+     * The segments which currently have mapped windows. When there are more than maxMappedSegments,
+     * the least recently accessed segment is unmapped.
+     */
+    private final Set<FileHandle> mappedSegments = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Addresses whose records failed their checksum. Reads of these addresses fail without
+     * touching the disk.
+     */
+    private final Set<Long> quarantinedAddresses = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Segments which are open and do not have a valid footer. Segments below the segment of the
+     * highest accepted address are sealed after each batch of writes.
+     */
+    private final ConcurrentSkipListSet<Long> unsealedSegments = new ConcurrentSkipListSet<>();
+
+    /**
+     * Segments whose every address was trimmed, and whose files were deleted. Reads of their
+     * addresses return nothing, and writes to them fail.
+     */
+    private final Set<Long> reclaimedSegments = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The path prefix of the files of segments in the cold tier, or null if there is no cold tier.
+     */
+    private final String coldPathDir;
+
+    /**
+     * The number of segments behind the tail of the log at which a sealed segment is moved to the cold tier.
+     */
+    private final int coldAfter;
+
+    /**
+     * Decompressed blocks of cold segments, and of compressed records, weighed by their size.
+     */
+    private final Cache<CachedBlock, byte[]> blockCache;
+
+    /**
+     * The size of the records of each compressed block, before compression, or 0 if new segments
+     * are not compressed. Compressed segments created earlier are still packed into blocks of the
+     * default size.
+     */
+    private final int compressionBlockSize;
 
     public RollingLog(long start, long end, String path, boolean sync) {
-        super(start, end, path, sync);
-        channelMap = new HashMap<>();
+        this(start, end, path, ImmutableMap.of("--sync", sync));
+    }
+
+    /**
+     * Create a rolling log, taking its settings from a server options map.
+     *
+     * @param start The first address of the log.
+     * @param end   The last address of the log.
+     * @param path  The path prefix of the log files.
+     * @param opts  The server options map.
+     */
+    public RollingLog(long start, long end, String path, Map<String, Object> opts) {
+        this(start, end, path, opts, DEFAULT_WINDOW_SIZE, DEFAULT_MAP_CHUNK_SIZE);
+    }
+
+    /**
+     * Create a rolling log with the given mapped window geometry.
+     *
+     * @param start        The first address of the log.
+     * @param end          The last address of the log.
+     * @param path         The path prefix of the log files.
+     * @param opts         The server options map.
+     * @param windowSize   The size of each mapped window of a segment file.
+     * @param mapChunkSize The granularity with which mapped windows grow.
+     */
+    RollingLog(long start, long end, String path, Map<String, Object> opts, long windowSize, int mapChunkSize) {
+        super(start, end, path, Utils.getOption(opts, "--sync", Boolean.class, false));
+        this.windowSize = windowSize;
+        this.mapChunkSize = mapChunkSize;
+        maxMappedSegments = Utils.getOption(opts, "--max-mapped-segments", Integer.class,
+                DEFAULT_MAX_MAPPED_SEGMENTS);
+        channelMap = new ConcurrentHashMap<>();
+        int writerThreads = Math.max(1, Utils.getOption(opts, "--writer-threads", Integer.class,
+                DEFAULT_WRITER_THREADS));
+        int queueSize = Utils.getOption(opts, "--writer-queue-size", Integer.class, DEFAULT_WRITER_QUEUE_SIZE);
+        // In sync mode, writers wait for their batch, so batches are bounded to keep latency low.
+        // Otherwise, nobody waits and a writer flushes everything that has been queued at once.
+        int batchSize = sync ? Utils.getOption(opts, "--sync-batch-size", Integer.class, DEFAULT_SYNC_BATCH_SIZE)
+                : queueSize;
+        long batchWait = sync ? Utils.getOption(opts, "--sync-batch-wait", Long.class, DEFAULT_SYNC_BATCH_WAIT)
+                : 0L;
+        String dataDirs = Utils.getOption(opts, "--data-dirs", String.class, null);
+        if (dataDirs == null) {
+            dataPaths = new String[]{path};
+        } else {
+            dataPaths = Arrays.stream(dataDirs.split(","))
+                    .map(String::trim)
+                    .filter(dir -> !dir.isEmpty())
+                    .peek(dir -> new File(dir).mkdirs())
+                    .map(dir -> dir + File.separator + "log")
+                    .toArray(String[]::new);
+            if (dataPaths.length == 0) {
+                throw new IllegalArgumentException("No data directories in " + dataDirs);
+            }
+        }
+        placement = Utils.getOption(opts, "--placement", String.class, PLACEMENT_ROUND_ROBIN);
+        if (!placement.equals(PLACEMENT_ROUND_ROBIN) && !placement.equals(PLACEMENT_FREE_SPACE)) {
+            throw new IllegalArgumentException("Unknown placement policy " + placement);
+        }
+        writers = new GroupCommitter[dataPaths.length][writerThreads];
+        for (int d = 0; d < dataPaths.length; d++) {
+            for (int i = 0; i < writerThreads; i++) {
+                writers[d][i] = new GroupCommitter("LogUnit-Writer-" + d + "-" + i, queueSize, batchSize,
+                        batchWait, this::commitBatch);
+            }
+        }
+        String coldPath = Utils.getOption(opts, "--cold-path", String.class, null);
+        if (coldPath != null) {
+            new File(coldPath).mkdirs();
+            coldPathDir = coldPath + File.separator + "log";
+        } else {
+            coldPathDir = null;
+        }
+        coldAfter = Math.max(1, Utils.getOption(opts, "--cold-after", Integer.class, DEFAULT_COLD_AFTER));
+        blockCache = Caffeine.newBuilder()
+                .maximumWeight(Utils.getOption(opts, "--block-cache", Long.class, DEFAULT_BLOCK_CACHE_SIZE))
+                .weigher((CachedBlock k, byte[] v) -> v.length)
+                .build();
+        compressionBlockSize = Utils.getOption(opts, "--compress", Boolean.class, false)
+                ? Math.max(1, Utils.getOption(opts, "--compress-block-size", Integer.class,
+                DEFAULT_COMPRESSION_BLOCK_SIZE)) : 0;
+        for (long segment : listSegments(RECLAIMED_SUFFIX)) {
+            reclaimedSegments.add(segment);
+            // The files of the segment remain if the server stopped while it was being reclaimed.
+            deleteSegmentFiles(segment);
+        }
+        // A compaction which did not complete before the server stopped is abandoned.
+        listSegments(COMPACTION_SUFFIX).forEach(this::deleteCompactionFiles);
+        listSegments(COMPACTION_SUFFIX + ".idx").forEach(this::deleteCompactionFiles);
+        // So is a move of a segment between the tiers.
+        listSegments(THAW_SUFFIX).forEach(this::deleteTieringFiles);
+        if (coldPathDir != null) {
+            listSegments(coldPathDir, COLD_SUFFIX + ".tmp").forEach(this::deleteTieringFiles);
+        }
+        // Load every segment up front, so the first request for an old segment does not pay for
+        // loading it. Sealed segments only need their footer, so this is independent of the log size.
+        List<Long> segments = listAllSegments();
+        long startTime = System.nanoTime();
+        segments.parallelStream()
+                .forEach(segment -> getChannelForAddress(segment * RECORDS_PER_SEGMENT));
+        if (!segments.isEmpty()) {
+            log.info("Loaded {} log segments ({} unsealed) in {} ms", segments.size(), unsealedSegments.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        }
+    }
+
+    /**
+     * Write the header for a Corfu log file.
+     *
+     * @param fc      The filechannel to use.
+     * @param pointer The pointer to increment to the start position.
+     * @param version The version number to write to the header.
+     * @param flags   Flags, if any to write to the header.
+     * @throws IOException
+     */
+    private void writeHeader(FileChannel fc, AtomicLong pointer, int version, long flags)
+            throws IOException {
+        LogFileHeader lfg = new LogFileHeader(version, flags);
+        ByteBuffer b = lfg.getBuffer();
+        pointer.getAndAdd(b.remaining());
+        fc.write(b);
+        fc.force(true);
+    }
+
+    /**
+     * Find a log entry in a file, using the segment index to locate the record.
+     *
+     * @param fh      The file handle to use.
+     * @param address The address of the entry.
+     * @return The log unit entry at that address, or NULL if there was no entry.
+     */
+    private LogUnitEntry readEntry(FileHandle fh, long address)
+            throws IOException, DataCorruptionException {
+        if (quarantinedAddresses.contains(address)) {
+            throw new DataCorruptionException();
+        }
+        long offset = fh.getIndexedOffset(address);
+        if (offset == 0L) {
+            return null;
+        }
+        return readRecord(fh, offset, address);
+    }
+
+    /**
+     * Read the record at the given offset of a segment file. The buffer of the returned entry is a
+     * view of the mapped segment, so it can be sent to clients without being copied onto the heap,
+     * unless the record is in a compressed block.
+     *
+     * @param fh      The file handle to use.
+     * @param offset  The offset of the start of the record.
+     * @param address The address the record is expected to contain.
+     * @return The log unit entry contained in the record, or NULL if the record is not for that address.
+     */
+    LogUnitEntry readRecord(FileHandle fh, long offset, long address)
+            throws IOException, DataCorruptionException {
+        ByteBuffer prefix = fh.getRegion(offset, RECORD_PREFIX_SIZE);
+        short magic = prefix.getShort();
+        short flags = prefix.getShort();
+        long addr = prefix.getLong();
+        int size = prefix.getInt();
+        if (magic == BLOCK_MAGIC && (flags & FLAG_WRITTEN) != 0) {
+            return readBlockRecord(fh, offset, size, address);
+        }
+        if (magic != RECORD_MAGIC || addr != address) {
+            log.warn("Index for address {} points to offset {} which holds address {}, ignoring.",
+                    address, offset, addr);
+            return null;
+        }
+        log.debug("Entry at {} hit, reading (size={}).", address, size);
+        if ((flags & FLAG_WRITTEN) == 0) {
+            log.error("Read a log entry but the write was torn, aborting!");
+            throw new IOException("Torn write detected!");
+        }
+        return decodeRecord(fh.getRegion(offset, size), flags, size, address);
+    }
+
+    /**
+     * Decode the entry held by a complete record, verifying its checksum.
+     *
+     * @param o       A buffer whose position 0 is the start of the record.
+     * @param flags   The flags of the record.
+     * @param size    The size of the record.
+     * @param address The address of the record.
+     * @return The log unit entry contained in the record, whose buffer is a view of the record.
+     */
+    private LogUnitEntry decodeRecord(ByteBuffer o, short flags, int size, long address)
+            throws DataCorruptionException {
+        if ((flags & FLAG_CHECKSUMMED) != 0 && !checksumMatches(o, size)) {
+            log.error("Entry at {} failed its checksum, quarantining it.", address);
+            quarantinedAddresses.add(address);
+            throw new DataCorruptionException();
+        }
+        if ((flags & FLAG_HOLE) != 0) {
+            LogUnitEntry hole = new LogUnitEntry(address);
+            hole.setPersisted(true);
+            return hole;
+        }
+        o.position(RECORD_PREFIX_SIZE);
+        int metadataMapSize = o.getInt();
+        ByteBuf mBuf = Unpooled.wrappedBuffer(o.slice());
+        o.position(o.position() + metadataMapSize);
+        ByteBuffer dBuf = o.slice();
+        dBuf.limit(size - metadataMapSize - RECORD_OVERHEAD);
+        return new LogUnitEntry(address, Unpooled.wrappedBuffer(dBuf),
+                LogUnitMetadataMsg.mapFromBuffer(mBuf),
+                false,
+                true);
+    }
+
+    /**
+     * Read a record out of the compressed block at the given offset of a segment file.
+     *
+     * @param fh      The file handle to use.
+     * @param offset  The offset of the start of the block.
+     * @param size    The size of the block.
+     * @param address The address of the record.
+     * @return The log unit entry contained in the record, or NULL if the block does not hold that address.
+     */
+    private LogUnitEntry readBlockRecord(FileHandle fh, long offset, int size, long address)
+            throws IOException, DataCorruptionException {
+        ByteBuffer records = readBlock(fh, offset, size);
+        if (records == null) {
+            log.error("Block at offset {} of segment {} failed its checksum, quarantining entry at {}.",
+                    offset, fh.getSegment(), address);
+            quarantinedAddresses.add(address);
+            throw new DataCorruptionException();
+        }
+        while (records.remaining() >= RECORD_PREFIX_SIZE) {
+            int pos = records.position();
+            short flags = records.getShort(pos + 2);
+            long addr = records.getLong(pos + 4);
+            int recordSize = records.getInt(pos + 12);
+            if (records.getShort(pos) != RECORD_MAGIC || recordSize < RECORD_OVERHEAD
+                    || recordSize > records.remaining()) {
+                break;
+            }
+            if (addr == address) {
+                ByteBuffer o = records.slice();
+                o.limit(recordSize);
+                return decodeRecord(o, flags, recordSize, address);
+            }
+            records.position(pos + recordSize);
+        }
+        log.warn("Index for address {} points to a block at offset {} which does not hold it, ignoring.",
+                address, offset);
+        return null;
+    }
+
+    /**
+     * Get the records of a compressed block, decompressing the block if it is not cached.
+     *
+     * @param fh     The file handle to use.
+     * @param offset The offset of the start of the block.
+     * @param size   The size of the block.
+     * @return A buffer holding the records of the block, or null if the block failed its checksum.
+     */
+    private ByteBuffer readBlock(FileHandle fh, long offset, int size) {
+        byte[] records = blockCache.get(new CachedBlock(fh.getIndex(), offset), k -> {
+            ByteBuffer o = fh.getRegion(offset, size);
+            if (!checksumMatches(o, size)) {
+                return null;
+            }
+            byte[] compressed = new byte[size - RECORD_OVERHEAD];
+            o.position(RECORD_PREFIX_SIZE);
+            int length = o.getInt();
+            o.get(compressed);
+            try {
+                return BlockCodec.inflate(compressed, 0, compressed.length, length);
+            } catch (IOException ie) {
+                // The checksum matched, so the block was written corrupt, which it cannot be.
+                log.error("Failed to decompress block at offset {} of segment {}.", offset, fh.getSegment());
+                throw new RuntimeException(ie);
+            }
+        });
+        return records == null ? null : ByteBuffer.wrap(records);
+    }
+
+    /**
+     * Compress records into a block, whose written flag is not set yet.
+     *
+     * @param records The records, encoded one after another.
+     * @param first   The address of the first record.
+     * @return A buffer holding the block.
+     */
+    private static ByteBuffer encodeBlock(ByteBuf records, long first) {
+        byte[] compressed = BlockCodec.deflate(records.array(), records.arrayOffset() + records.readerIndex(),
+                records.readableBytes());
+        int size = compressed.length + RECORD_OVERHEAD;
+        ByteBuffer block = ByteBuffer.allocate(size);
+        block.putShort(BLOCK_MAGIC);
+        block.putShort(FLAG_CHECKSUMMED);
+        block.putLong(first);
+        block.putInt(size);
+        block.putInt(records.readableBytes());
+        block.put(compressed);
+        block.putInt(size - 4, checksumOf(block, size));
+        block.rewind();
+        return block;
+    }
+
+    /**
+     * Scan the records of a segment file sequentially, starting at the given offset.
+     *
+     * @param fh       The file handle to use.
+     * @param offset   The offset of the first record to scan.
+     * @param consumer A consumer which is given the address and offset of every complete record.
+     * @return The offset immediately following the last complete record.
+     */
+    long scanRecords(FileHandle fh, long offset, BiConsumer<Long, Long> consumer)
+            throws IOException {
+        long fileSize = fh.getChannel().size();
+        long pos = offset;
+        long end = offset;
+        while (true) {
+            long inWindow = pos % windowSize;
+            if (windowSize - inWindow < RECORD_PREFIX_SIZE) {
+                // Too small for padding, so the writer skipped to the next window.
+                pos += windowSize - inWindow;
+                continue;
+            }
+            if (pos + RECORD_PREFIX_SIZE > fileSize) {
+                break;
+            }
+            ByteBuffer o = fh.getRegion(pos, RECORD_PREFIX_SIZE);
+            short magic = o.getShort();
+            short flags = o.getShort();
+            long addr = o.getLong();
+            int size = o.getInt();
+            if (magic == PAD_MAGIC && size >= RECORD_PREFIX_SIZE && inWindow + size <= windowSize) {
+                pos += size;
+                end = pos;
+                continue;
+            }
+            if ((magic != RECORD_MAGIC && magic != BLOCK_MAGIC) || size < RECORD_OVERHEAD
+                    || inWindow + size > windowSize || pos + size > fileSize) {
+                break;
+            }
+            if ((flags & FLAG_WRITTEN) == 0) {
+                log.warn("Found torn write for address {} at offset {}, skipping.", addr, pos);
+            } else if (magic == BLOCK_MAGIC) {
+                ByteBuffer records = readBlock(fh, pos, size);
+                if (records == null) {
+                    log.warn("Found corrupt block at offset {}, skipping.", pos);
+                }
+                while (records != null && records.remaining() >= RECORD_PREFIX_SIZE) {
+                    int recordSize = records.getInt(records.position() + 12);
+                    if (recordSize < RECORD_OVERHEAD || recordSize > records.remaining()) {
+                        break;
+                    }
+                    consumer.accept(records.getLong(records.position() + 4), pos);
+                    records.position(records.position() + recordSize);
+                }
+            } else {
+                consumer.accept(addr, pos);
+            }
+            pos += size;
+            end = pos;
+        }
+        return end;
+    }
+
+    /**
+     * Load the index of a segment, rebuilding it from the segment data if it is missing.
+     * Records which were written after the last indexed record (for example, if the
+     * server crashed before the index was updated) are recovered by scanning the tail.
+     *
+     * @param fh      The file handle to load the index for.
+     * @param rebuild True, if the index is missing and must be rebuilt from the segment data.
+     */
+    private void loadIndex(FileHandle fh, boolean rebuild)
+            throws IOException {
+        long tail = HEADER_SIZE;
+        if (rebuild) {
+            log.info("Index for segment {} missing, rebuilding from log file.", fh.getSegment());
+        } else {
+            long lastOffset = 0L;
+            for (int i = 0; i < RECORDS_PER_SEGMENT; i++) {
+                long offset = fh.getIndex().getLong(i * INDEX_SLOT_SIZE);
+                if (offset != 0L) {
+                    fh.getKnownAddresses().set(i);
+                    lastOffset = Math.max(lastOffset, offset);
+                }
+            }
+            if (lastOffset != 0L) {
+                tail = lastOffset + fh.getRegion(lastOffset, RECORD_PREFIX_SIZE).getInt(12);
+            }
+        }
+        tail = scanRecords(fh, tail, (address, offset) -> {
+            fh.getKnownAddresses().set(slotOf(address));
+            fh.setIndexedOffset(address, offset);
+        });
+        fh.getFilePointer().set(tail);
+    }
+
+    /**
+     * Load the footer of a segment, if it has a valid one.
+     *
+     * @param fh The file handle to load the footer for.
+     * @return True, if the footer was valid and the known addresses and tail of the segment were
+     * loaded from it, or false if the segment is unsealed.
+     */
+    private boolean loadFooter(FileHandle fh) {
+        ByteBuffer footer = fh.getIndex().duplicate();
+        footer.position(FOOTER_OFFSET);
+        footer.limit(FOOTER_OFFSET + FOOTER_SIZE);
+        footer = footer.slice();
+        if (footer.getInt(0) != FOOTER_MAGIC || !checksumMatches(footer, FOOTER_SIZE)) {
+            return false;
+        }
+        footer.position(4);
+        long tail = footer.getLong();
+        for (int w = 0; w < FOOTER_BITMAP_WORDS; w++) {
+            fh.getKnownAddresses().setWord(w, footer.getLong());
+        }
+        fh.getFilePointer().set(tail);
+        return true;
+    }
+
+    /**
+     * Seal a segment, by writing a footer with the tail offset of the segment and a bitmap of the
+     * addresses written to it. The data of the segment is forced to disk before the footer is written,
+     * so a valid footer never covers data which is not durable.
+     *
+     * @param fh The segment to seal.
+     */
+    private void seal(FileHandle fh) {
+        synchronized (fh.getSealLock()) {
+            if (fh.isSealed() || fh.isRetired()) {
+                return;
+            }
+            fh.force();
+            writeFooter(fh, fh.getIndex(), fh.getFilePointer().get());
+            fh.setSealed(true);
+            unsealedSegments.remove(fh.getSegment());
+            log.debug("Sealed segment {} at tail offset {}", fh.getSegment(), fh.getFilePointer().get());
+        }
+    }
+
+    /**
+     * Write a footer to a segment index, and force the index to disk. The bitmap of the footer
+     * covers the indexed addresses, and the trimmed addresses, whose records may have been
+     * compacted away.
+     *
+     * @param fh    The segment.
+     * @param index The index to write the footer to.
+     * @param tail  The tail offset of the segment file.
+     */
+    private void writeFooter(FileHandle fh, MappedByteBuffer index, long tail) {
+        long[] bitmap = new long[FOOTER_BITMAP_WORDS];
+        for (int i = 0; i < RECORDS_PER_SEGMENT; i++) {
+            if (index.getLong(i * INDEX_SLOT_SIZE) != 0L || fh.getTrimmedAddresses().get(i)) {
+                bitmap[i / 64] |= 1L << (i % 64);
+            }
+        }
+        ByteBuffer footer = index.duplicate();
+        footer.position(FOOTER_OFFSET);
+        footer.limit(FOOTER_OFFSET + FOOTER_SIZE);
+        footer = footer.slice();
+        footer.putInt(FOOTER_MAGIC);
+        footer.putLong(tail);
+        for (long word : bitmap) {
+            footer.putLong(word);
+        }
+        footer.putInt(checksumOf(footer, FOOTER_SIZE));
+        index.force();
+    }
+
+    /**
+     * Invalidate the footer of a sealed segment, before writing to it. The invalidation is forced
+     * to disk first, so that after a crash the segment is recovered by scanning it rather than
+     * trusting a footer which does not cover the write. A packed segment is marked as unpacked
+     * first, since the write is appended to it raw. The caller must hold the seal lock.
+     *
+     * @param fh The segment to unseal.
+     */
+    private void unseal(FileHandle fh)
+            throws IOException {
+        if (fh.isPacked()) {
+            // The write is appended raw, so the segment has to be packed again once it is sealed.
+            ByteBuffer flags = ByteBuffer.allocate(8);
+            flags.putLong(0, HEADER_FLAG_COMPRESSED);
+            writeFully(fh.getChannel(), flags, HEADER_FLAGS_OFFSET);
+            fh.getChannel().force(false);
+            fh.setPacked(false);
+        }
+        fh.getIndex().putInt(FOOTER_OFFSET, 0);
+        fh.getIndex().force();
+        fh.setSealed(false);
+        unsealedSegments.add(fh.getSegment());
+        log.debug("Unsealed segment {} for a late write", fh.getSegment());
+    }
+
+    /**
+     * Seal every open segment below the segment of the highest accepted address. Such segments
+     * only receive late writes (such as hole fills), which unseal them again.
+     */
+    private void sealCompletedSegments() {
+        long tailSegment = highestAccepted.get() / RECORDS_PER_SEGMENT;
+        for (Long segment : unsealedSegments.headSet(tailSegment)) {
+            FileHandle fh = getOpenSegment(segment);
+            if (fh != null) {
+                seal(fh);
+                if (isFullyTrimmed(fh)) {
+                    reclaim(segment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the handle of a segment, if it is open.
+     *
+     * @param segment The segment.
+     * @return The current handle of the segment, or null if it is not open.
+     */
+    private FileHandle getOpenSegment(long segment) {
+        CompletableFuture<FileHandle> handle = channelMap.get(segment);
+        return handle == null ? null : handle.getNow(null);
+    }
+
+    /**
+     * Check whether every address written to a segment has been trimmed.
+     *
+     * @param fh The segment to check.
+     * @return True, if the segment has been written to and all its addresses were trimmed.
+     */
+    private boolean isFullyTrimmed(FileHandle fh) {
+        int trimmed = fh.getTrimmedCount().get();
+        return trimmed > 0 && trimmed == fh.getKnownAddresses().cardinality();
+    }
+
+    /**
+     * Reclaim the disk space of a sealed segment whose every address was trimmed, by deleting its
+     * files. A marker file is created first, so that the segment is not recreated after a restart.
+     * Buffers which were served from the segment remain valid, as the file is only unlinked.
+     *
+     * @param segment The segment to reclaim.
+     */
+    private void reclaim(long segment) {
+        long start = segment * RECORDS_PER_SEGMENT;
+        FileHandle fh = getOpenSegment(segment);
+        if (fh == null) {
+            return;
+        }
+        synchronized (fh.getSealLock()) {
+            // The segment may have been compacted while we waited for the lock, but the lock is
+            // shared by every handle of the segment, so the current handle is stable now.
+            fh = getOpenSegment(segment);
+            if (fh == null || !fh.isSealed() || reclaimedSegments.contains(segment) || !isFullyTrimmed(fh)
+                    || !pendingAddresses.subSet(start, start + RECORDS_PER_SEGMENT).isEmpty()) {
+                return;
+            }
+            // Writes claim their address before checking whether the segment was reclaimed, so
+            // checking again after marking it reclaimed catches any write which raced with us.
+            reclaimedSegments.add(segment);
+            if (!isFullyTrimmed(fh)) {
+                reclaimedSegments.remove(segment);
+                return;
+            }
+            try {
+                Path marker = FileSystems.getDefault().getPath(segmentPath(segment) + RECLAIMED_SUFFIX);
+                if (!Files.exists(marker)) {
+                    Files.createFile(marker);
+                }
+            } catch (IOException ie) {
+                log.error("Failed to mark segment {} as reclaimed, keeping it.", segment, ie);
+                reclaimedSegments.remove(segment);
+                return;
+            }
+            channelMap.remove(segment);
+            closeHandle(fh);
+            deleteSegmentFiles(segment);
+            log.info("Reclaimed segment {}, every address of which was trimmed.", segment);
+        }
+    }
+
+    /**
+     * Compact every sealed segment in which at least half of the records have been trimmed since
+     * it was last compacted, and every sealed compressed segment which is not packed yet, by
+     * rewriting its live records into a new file.
+     *
+     * @param ioBudget A rate limiter which is charged for every byte copied.
+     * @return The number of bytes of disk space reclaimed.
+     */
+    @Override
+    public long compact(RateLimiter ioBudget) {
+        long reclaimed = 0L;
+        List<Long> segments = listSegments();
+        // After a restart, nothing may have been written yet, so the newest segment on disk counts as the tail.
+        long tailSegment = segments.isEmpty() ? highestAccepted.get() / RECORDS_PER_SEGMENT
+                : Math.max(highestAccepted.get() / RECORDS_PER_SEGMENT, segments.get(segments.size() - 1));
+        for (long segment : segments) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            FileHandle fh = getOpenSegment(segment);
+            if (segment >= tailSegment || fh == null || !fh.isSealed() || fh.getCold() != null
+                    || reclaimedSegments.contains(segment)) {
+                continue;
+            }
+            int known = fh.getKnownAddresses().cardinality();
+            int trimmed = fh.getTrimmedCount().get() - fh.getCompactedCount();
+            boolean unpacked = fh.isCompressed() && !fh.isPacked();
+            if (unpacked || trimmed > 0 && trimmed >= known * COMPACTION_THRESHOLD) {
+                try {
+                    reclaimed += compactSegment(fh, ioBudget);
+                } catch (IOException | RuntimeException e) {
+                    log.error("Failed to compact segment {}", segment, e);
+                    deleteCompactionFiles(segment);
+                }
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Compact a segment, by copying its untrimmed records into a new file, and then swapping the new
+     * file and its index in for the old ones. The records of a compressed segment, whether they were
+     * appended raw or are in blocks already, are packed into new blocks of compressionBlockSize bytes
+     * of records. Records are copied without holding any lock, so reads
+     * and writes continue meanwhile, and if a write reaches the segment before the swap, the
+     * compaction is abandoned. Readers which still hold the old handle keep reading the old file,
+     * which remains valid until they are done with it.
+     * <p>
+     * The old index is deleted before the new file replaces the old one, so a crash at any point
+     * leaves either the old file or the new one, and an index which is consistent with it or none.
+     *
+     * @param fh       The segment to compact.
+     * @param ioBudget A rate limiter which is charged for every byte copied.
+     * @return The number of bytes reclaimed, or 0 if the compaction was abandoned.
+     */
+    long compactSegment(FileHandle fh, RateLimiter ioBudget)
+            throws IOException {
+        long segment = fh.getSegment();
+        long tail = fh.getFilePointer().get();
+        Path compactPath = FileSystems.getDefault().getPath(segmentPath(segment) + COMPACTION_SUFFIX);
+        Path compactIndexPath = FileSystems.getDefault().getPath(segmentPath(segment) + COMPACTION_SUFFIX + ".idx");
+        long[] offsets = new long[RECORDS_PER_SEGMENT];
+        // The offsets of the compressed blocks of the segment which were packed so far.
+        Set<Long> packedBlocks = new HashSet<>();
+        int compacted = 0;
+        AtomicLong pos = new AtomicLong();
+        FileChannel out = FileChannel.open(compactPath, EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+        BlockPacker packer = fh.isCompressed() ? new BlockPacker(out, pos, offsets) : null;
+        try {
+            writeHeader(out, pos, 1, fh.isCompressed() ? HEADER_FLAG_COMPRESSED | HEADER_FLAG_PACKED : 0L);
+            for (int i = 0; i < RECORDS_PER_SEGMENT; i++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Compaction of segment " + segment + " interrupted");
+                }
+                long offset = fh.getIndex().getLong(i * INDEX_SLOT_SIZE);
+                if (offset == 0L) {
+                    continue;
+                }
+                if (fh.getTrimmedAddresses().get(i)) {
+                    compacted++;
+                    continue;
+                }
+                ByteBuffer prefix = fh.getRegion(offset, RECORD_PREFIX_SIZE);
+                int size = prefix.getInt(12);
+                if (prefix.getShort(0) == BLOCK_MAGIC) {
+                    // Every live record of a block is packed when the first of them is reached.
+                    if (packedBlocks.add(offset)) {
+                        ioBudget.acquire(size);
+                        packBlock(fh, offset, size, packer);
+                    }
+                } else if (packer != null) {
+                    ioBudget.acquire(size);
+                    packer.add(segment * RECORDS_PER_SEGMENT + i, fh.getRegion(offset, size));
+                } else {
+                    ioBudget.acquire(size);
+                    offsets[i] = appendCopy(out, pos, fh.getRegion(offset, size));
+                }
+            }
+            if (packer != null) {
+                packer.flush();
+            }
+            out.force(true);
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        } finally {
+            if (packer != null) {
+                packer.release();
+            }
+        }
+
+        synchronized (fh.getSealLock()) {
+            if (fh.isRetired() || !fh.isSealed() || fh.getFilePointer().get() != tail
+                    || reclaimedSegments.contains(segment)) {
+                log.debug("Segment {} changed while it was being compacted, abandoning compaction.", segment);
+                out.close();
+                deleteCompactionFiles(segment);
+                return 0L;
+            }
+            FileChannel ic = FileChannel.open(compactIndexPath,
+                    EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING));
+            MappedByteBuffer index = ic.map(FileChannel.MapMode.READ_WRITE, 0L, FOOTER_OFFSET + FOOTER_SIZE);
+            ic.close();
+            for (int i = 0; i < RECORDS_PER_SEGMENT; i++) {
+                index.putLong(i * INDEX_SLOT_SIZE, offsets[i]);
+            }
+            writeFooter(fh, index, pos.get());
+
+            Path path = FileSystems.getDefault().getPath(segmentPath(segment));
+            Path indexPath = FileSystems.getDefault().getPath(segmentPath(segment) + ".idx");
+            Files.deleteIfExists(indexPath);
+            Files.move(compactPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(compactIndexPath, indexPath, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+
+            FileHandle compactedFh = new FileHandle(fh, pos, out, index, compacted);
+            compactedFh.setSealed(true);
+            compactedFh.setPacked(fh.isCompressed());
+            channelMap.put(segment, CompletableFuture.completedFuture(compactedFh));
+            fh.setRetired(true);
+            fh.unmap();
+            fh.getChannel().close();
+        }
+        long reclaimed = tail - pos.get();
+        log.info("Compacted segment {}, leaving out {} trimmed records and reclaiming {}.", segment, compacted,
+                Utils.convertToByteStringRepresentation(reclaimed));
+        return reclaimed;
+    }
+
+    /**
+     * Append a record to a file which a segment is being compacted into. Records never cross a window
+     * boundary, so the new file is padded like the old one.
+     *
+     * @param out    The channel of the new file.
+     * @param pos    The tail of the new file, which is advanced past the record.
+     * @param record The record.
+     * @return The offset the record was written at.
+     */
+    private long appendCopy(FileChannel out, AtomicLong pos, ByteBuffer record)
+            throws IOException {
+        int size = record.remaining();
+        long windowEnd = (pos.get() / windowSize + 1) * windowSize;
+        if (pos.get() + size > windowEnd) {
+            if (windowEnd - pos.get() >= RECORD_PREFIX_SIZE) {
+                ByteBuffer pad = ByteBuffer.allocate(RECORD_PREFIX_SIZE);
+                pad.putShort(PAD_MAGIC);
+                pad.putShort((short) 1);
+                pad.putLong(-1L);
+                pad.putInt((int) (windowEnd - pos.get()));
+                pad.flip();
+                writeFully(out, pad, pos.get());
+            }
+            pos.set(windowEnd);
+        }
+        writeFully(out, record, pos.get());
+        return pos.getAndAdd(size);
+    }
+
+    /**
+     * Pack the untrimmed records of a compressed block of a segment which is being compacted.
+     *
+     * @param fh     The segment being compacted.
+     * @param offset The offset of the block.
+     * @param size   The size of the block.
+     * @param packer The packer of the file the segment is being compacted into.
+     */
+    private void packBlock(FileHandle fh, long offset, int size, BlockPacker packer)
+            throws IOException {
+        ByteBuffer records = readBlock(fh, offset, size);
+        if (records == null) {
+            throw new IOException("Block at offset " + offset + " of segment " + fh.getSegment()
+                    + " failed its checksum");
+        }
+        while (records.remaining() >= RECORD_PREFIX_SIZE) {
+            long address = records.getLong(records.position() + 4);
+            int recordSize = records.getInt(records.position() + 12);
+            if (recordSize < RECORD_OVERHEAD || recordSize > records.remaining()) {
+                break;
+            }
+            ByteBuffer record = records.slice();
+            record.limit(recordSize);
+            if (!fh.getTrimmedAddresses().get(slotOf(address))) {
+                packer.add(address, record);
+            }
+            records.position(records.position() + recordSize);
+        }
+    }
+
+    /**
+     * Packs the records of a compressed segment which is being compacted into blocks of about
+     * compressionBlockSize bytes of records, which are compressed together and appended to the
+     * new file of the segment.
+     */
+    private class BlockPacker {
+        private final FileChannel out;
+        private final AtomicLong pos;
+        private final long[] offsets;
+        private final int blockSize = compressionBlockSize > 0 ? compressionBlockSize
+                : DEFAULT_COMPRESSION_BLOCK_SIZE;
+        private final ByteBuf records = Unpooled.buffer();
+        private final List<Long> addresses = new ArrayList<>();
+
+        /**
+         * @param out     The channel of the new file.
+         * @param pos     The tail of the new file, which is advanced past every block appended.
+         * @param offsets The new offset of each slot of the segment, which is set for every record packed.
+         */
+        BlockPacker(FileChannel out, AtomicLong pos, long[] offsets) {
+            this.out = out;
+            this.pos = pos;
+            this.offsets = offsets;
+        }
+
+        /**
+         * Add a record to the current block, appending the block once it is full.
+         *
+         * @param address The address of the record.
+         * @param record  The record.
+         */
+        void add(long address, ByteBuffer record)
+                throws IOException {
+            records.writeBytes(record);
+            addresses.add(address);
+            if (records.readableBytes() >= blockSize) {
+                flush();
+            }
+        }
+
+        /**
+         * Append the current block, if it holds any records.
+         */
+        void flush()
+                throws IOException {
+            if (addresses.isEmpty()) {
+                return;
+            }
+            ByteBuffer block = encodeBlock(records, addresses.get(0));
+            block.putShort(2, (short) (FLAG_CHECKSUMMED | FLAG_WRITTEN));
+            long offset = appendCopy(out, pos, block);
+            for (long address : addresses) {
+                offsets[slotOf(address)] = offset;
+            }
+            records.clear();
+            addresses.clear();
+        }
+
+        void release() {
+            records.release();
+        }
+    }
+
+    /**
+     * Write a buffer to a file channel at the given position.
+     *
+     * @param fc       The file channel.
+     * @param buffer   The buffer to write.
+     * @param position The position to write the buffer at.
+     */
+    private static void writeFully(FileChannel fc, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += fc.write(buffer, position);
+        }
+    }
+
+    /**
+     * Delete the files of a compaction of a segment which was abandoned, if they exist.
+     *
+     * @param segment The segment which was being compacted.
+     */
+    private void deleteCompactionFiles(long segment) {
+        try {
+            Files.deleteIfExists(FileSystems.getDefault().getPath(segmentPath(segment) + COMPACTION_SUFFIX));
+            Files.deleteIfExists(FileSystems.getDefault().getPath(segmentPath(segment) + COMPACTION_SUFFIX + ".idx"));
+        } catch (IOException ie) {
+            log.error("Failed to delete the compaction files of segment {}", segment, ie);
+        }
+    }
+
+    /**
+     * Delete the data and index files of a segment, in either tier, if they exist.
+     *
+     * @param segment The segment to delete.
+     */
+    private void deleteSegmentFiles(long segment) {
+        try {
+            Files.deleteIfExists(FileSystems.getDefault().getPath(segmentPath(segment)));
+            Files.deleteIfExists(FileSystems.getDefault().getPath(segmentPath(segment) + ".idx"));
+            if (coldPathDir != null) {
+                Files.deleteIfExists(getColdPath(segment));
+            }
+        } catch (IOException ie) {
+            log.error("Failed to delete the files of segment {}", segment, ie);
+        }
+    }
+
+    /**
+     * Move every sealed segment which is at least coldAfter segments behind the tail of the log to
+     * the cold tier, if there is one.
+     *
+     * @param ioBudget A rate limiter which is charged for every byte read from the hot tier.
+     * @return The number of bytes moved off the hot tier.
+     */
+    @Override
+    public long tierSegments(RateLimiter ioBudget) {
+        if (coldPathDir == null) {
+            return 0L;
+        }
+        List<Long> segments = listSegments();
+        if (segments.isEmpty()) {
+            return 0L;
+        }
+        // After a restart, nothing may have been written yet, so the newest segment on disk counts as the tail.
+        long tailSegment = Math.max(highestAccepted.get() / RECORDS_PER_SEGMENT, segments.get(segments.size() - 1));
+        long moved = 0L;
+        for (long segment : segments) {
+            if (Thread.currentThread().isInterrupted() || segment + coldAfter > tailSegment) {
+                break;
+            }
+            FileHandle fh = getOpenSegment(segment);
+            if (fh == null || !fh.isSealed() || fh.getCold() != null || reclaimedSegments.contains(segment)) {
+                continue;
+            }
+            try {
+                moved += freeze(fh, ioBudget);
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to move segment {} to the cold tier", segment, e);
+                deleteTieringFiles(segment);
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Move a segment to the cold tier, by compressing its file into the cold directory, and then swapping
+     * a handle which reads the compressed file in for the current one. The file is compressed without
+     * holding any lock, and if the segment changes before the swap, the move is abandoned. The index of
+     * the segment stays in the hot tier, since offsets in the compressed file are unchanged.
+     * <p>
+     * The compressed file is complete before it is renamed into place, and the hot file is only deleted
+     * after that, so a crash at any point leaves a complete copy of the segment in at least one tier.
+     *
+     * @param fh       The segment to move.
+     * @param ioBudget A rate limiter which is charged for every byte read.
+     * @return The number of bytes moved, or 0 if the move was abandoned.
+     */
+    long freeze(FileHandle fh, RateLimiter ioBudget)
+            throws IOException {
+        long segment = fh.getSegment();
+        long tail = fh.getFilePointer().get();
+        Path tmpPath = FileSystems.getDefault().getPath(coldPathDir + segment + COLD_SUFFIX + ".tmp");
+        long compressed = ColdSegment.write(fh.getChannel(), tail, tmpPath, ColdSegment.DEFAULT_BLOCK_SIZE, ioBudget);
+        synchronized (fh.getSealLock()) {
+            if (fh.isRetired() || !fh.isSealed() || fh.getFilePointer().get() != tail
+                    || reclaimedSegments.contains(segment)) {
+                log.debug("Segment {} changed while it was being moved to the cold tier, abandoning move.", segment);
+                Files.deleteIfExists(tmpPath);
+                return 0L;
+            }
+            Path coldPath = getColdPath(segment);
+            Files.move(tmpPath, coldPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            FileHandle coldFh = new FileHandle(fh, fh.getFilePointer(), null, fh.getIndex(), fh.getCompactedCount(),
+                    ColdSegment.open(coldPath));
+            coldFh.setSealed(true);
+            channelMap.put(segment, CompletableFuture.completedFuture(coldFh));
+            fh.setRetired(true);
+            closeHandle(fh);
+            Files.delete(FileSystems.getDefault().getPath(segmentPath(segment)));
+        }
+        log.info("Moved segment {} to the cold tier, compressing {} to {}.", segment,
+                Utils.convertToByteStringRepresentation(tail), Utils.convertToByteStringRepresentation(compressed));
+        return tail;
+    }
+
+    /**
+     * Move a cold segment back to the hot tier, so that it can be written to. The caller must hold
+     * the seal lock of the segment.
+     *
+     * @param fh The handle of the cold segment.
+     * @return The handle which replaces it.
+     */
+    private FileHandle thaw(FileHandle fh)
+            throws IOException {
+        long segment = fh.getSegment();
+        restoreColdFile(segment, fh.getCold());
+        FileChannel fc = FileChannel.open(FileSystems.getDefault().getPath(segmentPath(segment)),
+                EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE));
+        FileHandle thawed = new FileHandle(fh, fh.getFilePointer(), fc, fh.getIndex(), fh.getCompactedCount(), null);
+        thawed.setSealed(fh.isSealed());
+        channelMap.put(segment, CompletableFuture.completedFuture(thawed));
+        fh.setRetired(true);
+        closeHandle(fh);
+        log.info("Moved segment {} back from the cold tier for a late write", segment);
+        return thawed;
+    }
+
+    /**
+     * Decompress the file of a cold segment into the hot tier, and then delete it. The segment is
+     * decompressed into a temporary file first, so the segment file is always complete.
+     *
+     * @param segment The segment.
+     * @param cold    The cold file of the segment.
+     */
+    private void restoreColdFile(long segment, ColdSegment cold)
+            throws IOException {
+        Path thawPath = FileSystems.getDefault().getPath(segmentPath(segment) + THAW_SUFFIX);
+        try (FileChannel out = FileChannel.open(thawPath, EnumSet.of(StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SPARSE))) {
+            cold.copyTo(out);
+            out.force(true);
+        }
+        Files.move(thawPath, FileSystems.getDefault().getPath(segmentPath(segment)),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.delete(cold.getPath());
+    }
+
+    /**
+     * Release the resources of a handle which is no longer in use: its mapped windows, its
+     * channel, and the cached blocks of its cold file.
+     *
+     * @param fh The handle to close.
+     */
+    private void closeHandle(FileHandle fh) {
+        fh.unmap();
+        if (fh.getChannel() != null) {
+            try {
+                fh.getChannel().close();
+            } catch (IOException ie) {
+                log.warn("Error closing log file for segment {}", fh.getSegment(), ie);
+            }
+        }
+        if (fh.getCold() != null) {
+            fh.getCold().close();
+            blockCache.asMap().keySet().removeIf(k -> k.getSource() == fh.getCold());
+        }
+    }
+
+    /**
+     * Delete the temporary files of a move of a segment between the tiers which was abandoned, if they exist.
+     *
+     * @param segment The segment which was being moved.
+     */
+    private void deleteTieringFiles(long segment) {
+        try {
+            Files.deleteIfExists(FileSystems.getDefault().getPath(segmentPath(segment) + THAW_SUFFIX));
+            if (coldPathDir != null) {
+                Files.deleteIfExists(FileSystems.getDefault().getPath(coldPathDir + segment + COLD_SUFFIX + ".tmp"));
+            }
+        } catch (IOException ie) {
+            log.error("Failed to delete the tiering files of segment {}", segment, ie);
+        }
+    }
+
+    /**
+     * Get the path of the file of a segment in the cold tier.
+     *
+     * @param segment The segment.
+     * @return The path of its compressed file.
+     */
+    private Path getColdPath(long segment) {
+        return FileSystems.getDefault().getPath(coldPathDir + segment + COLD_SUFFIX);
+    }
+
+    /**
+     * Trim every written address up to a prefix. Segments which the prefix covers entirely are
+     * reclaimed, and the others are left for the compactor.
+     *
+     * @param prefix The address to trim up to, inclusive.
+     */
+    @Override
+    public void trimPrefix(long prefix) {
+        for (long segment : listAllSegments()) {
+            long start = segment * RECORDS_PER_SEGMENT;
+            if (start > prefix) {
+                break;
+            }
+            FileHandle fh = getOpenSegment(segment);
+            if (fh == null) {
+                continue;
+            }
+            long end = Math.min(prefix, start + RECORDS_PER_SEGMENT - 1);
+            for (long address = start; address <= end; address++) {
+                trim(address);
+            }
+        }
+    }
+
+    /**
+     * Trim an address. Once every address written to a sealed segment has been trimmed,
+     * the segment is reclaimed.
+     *
+     * @param address The address to trim.
+     */
+    @Override
+    public void trim(long address) {
+        FileHandle fh = getOpenSegment(address / RECORDS_PER_SEGMENT);
+        if (fh == null) {
+            return;
+        }
+        int slot = slotOf(address);
+        if (fh.getKnownAddresses().get(slot) && fh.getTrimmedAddresses().set(slot)) {
+            fh.getTrimmedCount().incrementAndGet();
+            if (isFullyTrimmed(fh)) {
+                reclaim(fh.getSegment());
+            }
+        }
+    }
+
+    /**
+     * Register a segment which has just mapped a window, unmapping the least recently
+     * accessed segment if too many segments are mapped.
+     *
+     * @param fh The segment which mapped a window.
+     */
+    private void registerMapped(FileHandle fh) {
+        FileHandle victim = null;
+        synchronized (mappedSegments) {
+            mappedSegments.add(fh);
+            if (mappedSegments.size() > maxMappedSegments) {
+                for (FileHandle candidate : mappedSegments) {
+                    if (candidate != fh && (victim == null || candidate.lastAccess < victim.lastAccess)) {
+                        victim = candidate;
+                    }
+                }
+                mappedSegments.remove(victim);
+            }
+        }
+        // Unmap outside the lock on the mapped set, since unmapping takes the segment's lock.
+        if (victim != null) {
+            log.debug("Unmapping cold segment {}", victim.getSegment());
+            victim.unmap();
+        }
     }
 
     /**
-     * Write the header for a Corfu log file.
+     * Gets the file channel for a particular address, creating it
+     * if is not present in the map. Segments which are already open are
+     * returned without locking, and if several threads open the same segment
+     * concurrently, only one of them loads it while the others wait for it.
      *
-     * @param fc      The filechannel to use.
-     * @param pointer The pointer to increment to the start position.
-     * @param version The version number to write to the header.
-     * @param flags   Flags, if any to write to the header.
-     * @throws IOException
+     * @param address The address to open.
+     * @return The FileChannel for that address.
      */
-    private void writeHeader(FileChannel fc, AtomicLong pointer, int version, long flags)
-            throws IOException {
-        LogFileHeader lfg = new LogFileHeader(version, flags);
-        ByteBuffer b = lfg.getBuffer();
-        pointer.getAndAdd(b.remaining());
-        fc.write(b);
-        fc.force(true);
+    FileHandle getChannelForAddress(long address) {
+        long segment = address / RECORDS_PER_SEGMENT;
+        CompletableFuture<FileHandle> handle = channelMap.get(segment);
+        if (handle == null) {
+            CompletableFuture<FileHandle> opening = new CompletableFuture<>();
+            handle = channelMap.putIfAbsent(segment, opening);
+            if (handle == null) {
+                handle = opening;
+                try {
+                    opening.complete(openSegment(segment));
+                } catch (RuntimeException e) {
+                    // Allow a later request to retry opening the segment.
+                    channelMap.remove(segment, opening);
+                    opening.completeExceptionally(e);
+                }
+            }
+        }
+        return handle.join();
     }
 
     /**
-     * Find a log entry in a file.
+     * Open the file for a segment, creating it if it does not exist, and load its footer, or
+     * its index if the segment is unsealed. A segment which is only in the cold tier is opened there.
      *
-     * @param fh      The file handle to use.
-     * @param address The address of the entry.
-     * @return The log unit entry at that address, or NULL if there was no entry.
+     * @param segment The segment to open.
+     * @return A file handle for the segment.
      */
-    private LogUnitEntry readEntry(FileHandle fh, long address)
-            throws IOException {
-        ByteBuffer o = fh.getMapForRegion(64, (int) fh.getChannel().size());
-        while (o.hasRemaining()) {
-            short magic = o.getShort();
-            if (magic != 0x4C45) {
-                return null;
+    private FileHandle openSegment(long segment) {
+        if (reclaimedSegments.contains(segment)) {
+            throw new IllegalStateException("Segment " + segment + " was trimmed and reclaimed");
+        }
+        String filePath = segmentPath(segment);
+        try {
+            if (coldPathDir != null && Files.exists(getColdPath(segment))) {
+                FileHandle fh = openColdSegment(segment);
+                if (fh != null) {
+                    return fh;
+                }
             }
-            short flags = o.getShort();
-            long addr = o.getLong();
-            if (address == -1) {
-                //Todo(Maithem) : maybe we can move this to getChannelForAddress
-                fh.knownAddresses.add(addr);
+            FileChannel fc = FileChannel.open(FileSystems.getDefault().getPath(filePath),
+                    EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE, StandardOpenOption.SPARSE));
+            AtomicLong fp = new AtomicLong();
+            long flags;
+            if (fc.size() == 0) {
+                flags = compressionBlockSize > 0 ? HEADER_FLAG_COMPRESSED : 0L;
+                writeHeader(fc, fp, 1, flags);
+                log.info("Opened new log file at {}", filePath);
+            } else {
+                flags = readHeader(fc).getFlags();
+                fp.set(HEADER_SIZE);
+                log.info("Opened existing log file at {}", filePath);
             }
-            int size = o.getInt();
-            if (addr != address) {
-                o.position(o.position() + size - 16); //skip over (size-20 is what we haven't read).
-                log.trace("Read address {}, not match {}, skipping. (remain={})", addr, address, o.remaining());
+
+            Path indexPath = FileSystems.getDefault().getPath(filePath + ".idx");
+            boolean rebuild = !Files.exists(indexPath);
+            FileChannel ic = FileChannel.open(indexPath,
+                    EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE));
+            MappedByteBuffer index = ic.map(FileChannel.MapMode.READ_WRITE, 0L,
+                    FOOTER_OFFSET + FOOTER_SIZE);
+            ic.close();
+
+            FileHandle fh = new FileHandle(segment, fp, fc, index);
+            fh.setCompressed((flags & HEADER_FLAG_COMPRESSED) != 0);
+            fh.setPacked((flags & HEADER_FLAG_PACKED) != 0);
+            // The first time we open a file we load the map of entries we already have,
+            // from the footer if the segment was sealed, and from the index otherwise.
+            if (!rebuild && loadFooter(fh)) {
+                fh.setSealed(true);
             } else {
-                log.debug("Entry at {} hit, reading (size={}).", address, size);
-                if (flags % 2 == 0) {
-                    log.error("Read a log entry but the write was torn, aborting!");
-                    throw new IOException("Torn write detected!");
-                }
-                int metadataMapSize = o.getInt();
-                ByteBuf mBuf = Unpooled.wrappedBuffer(o.slice());
-                o.position(o.position() + metadataMapSize);
-                ByteBuffer dBuf = o.slice();
-                dBuf.limit(size - metadataMapSize - 24);
-                return new LogUnitEntry(address, Unpooled.wrappedBuffer(dBuf),
-                        LogUnitMetadataMsg.mapFromBuffer(mBuf),
-                        false,
-                        true);
+                loadIndex(fh, rebuild);
+                unsealedSegments.add(segment);
             }
+            return fh;
+        } catch (IOException e) {
+            log.error("Error opening file {}", segment, e);
+            throw new RuntimeException(e);
         }
-        return null;
     }
 
     /**
-     * Gets the file channel for a particular address, creating it
-     * if is not present in the map.
+     * Open a segment in the cold tier. If the segment is also in the hot tier, a move between the
+     * tiers was interrupted after the destination file was complete, so the hot file, which may also
+     * hold later writes, is kept. A cold segment which is not sealed is moved back to the hot tier,
+     * so that its index can be recovered by scanning it.
      *
-     * @param address The address to open.
-     * @return The FileChannel for that address.
+     * @param segment The segment to open.
+     * @return A file handle for the cold segment, or null if the segment should be opened in the hot tier.
      */
-    private FileHandle getChannelForAddress(long address) {
-        return channelMap.computeIfAbsent(address / 10000, a -> {
-            String filePath = logPathDir + a.toString();
-            try {
-                FileChannel fc = FileChannel.open(FileSystems.getDefault().getPath(filePath),
-                        EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE,
-                                StandardOpenOption.CREATE, StandardOpenOption.SPARSE));
-
-                AtomicLong fp = new AtomicLong();
-                writeHeader(fc, fp, 1, 0);
-                log.info("Opened new log file at {}", filePath);
-                FileHandle fh = new FileHandle(fp, fc);
-                // The first time we open a file we should read to the end, to load the
-                // map of entries we already have.
-                readEntry(fh, -1);
+    private FileHandle openColdSegment(long segment)
+            throws IOException {
+        Path coldPath = getColdPath(segment);
+        if (Files.exists(FileSystems.getDefault().getPath(segmentPath(segment)))) {
+            Files.delete(coldPath);
+            return null;
+        }
+        ColdSegment cold = ColdSegment.open(coldPath);
+        Path indexPath = FileSystems.getDefault().getPath(segmentPath(segment) + ".idx");
+        if (Files.exists(indexPath)) {
+            FileChannel ic = FileChannel.open(indexPath, EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE));
+            MappedByteBuffer index = ic.map(FileChannel.MapMode.READ_WRITE, 0L, FOOTER_OFFSET + FOOTER_SIZE);
+            ic.close();
+            FileHandle fh = new FileHandle(segment, new AtomicLong(), null, index, cold);
+            long flags = LogFileHeader.fromBuffer(fh.getRegion(0L, HEADER_SIZE)).getFlags();
+            fh.setCompressed((flags & HEADER_FLAG_COMPRESSED) != 0);
+            fh.setPacked((flags & HEADER_FLAG_PACKED) != 0);
+            if (loadFooter(fh) && fh.getFilePointer().get() == cold.getLength()) {
+                fh.setSealed(true);
+                log.info("Opened cold log file at {}", coldPath);
                 return fh;
-            } catch (IOException e) {
-                log.error("Error opening file {}", a, e);
-                throw new RuntimeException(e);
             }
-        });
+        }
+        log.warn("Cold segment {} is not sealed, moving it back to the hot tier.", segment);
+        try {
+            restoreColdFile(segment, cold);
+        } finally {
+            cold.close();
+        }
+        return null;
     }
 
     /**
@@ -146,7 +1616,7 @@ public class RollingLog extends AbstractLocalLog {
      */
     private LogFileHeader readHeader(FileChannel fc)
             throws IOException {
-        ByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, 64);
+        ByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
         return LogFileHeader.fromBuffer(b);
     }
 
@@ -156,125 +1626,814 @@ public class RollingLog extends AbstractLocalLog {
      * @param fh      The file handle to use.
      * @param address The address of the entry.
      * @param entry   The LogUnitEntry to write.
+     * @return The handle the entry was written to, which is the current handle of the segment.
+     */
+    private FileHandle writeEntry(FileHandle fh, long address, LogUnitEntry entry)
+            throws IOException {
+        synchronized (fh.getSealLock()) {
+            fh = prepareForWrite(fh, address);
+            appendRecord(fh, address, entry);
+            return fh;
+        }
+    }
+
+    /**
+     * Get the handle of a segment ready for a write, moving the segment back from the cold tier and
+     * unsealing it if necessary. The caller must hold the seal lock.
+     *
+     * @param fh      The handle the segment was looked up as.
+     * @param address An address of the segment.
+     * @return The handle to write to, which is the current handle of the segment.
+     */
+    private FileHandle prepareForWrite(FileHandle fh, long address)
+            throws IOException {
+        if (fh.isRetired()) {
+            // The segment was compacted since we looked it up. Every handle of the segment
+            // shares the seal lock, so the current handle cannot change while we hold it.
+            fh = getChannelForAddress(address);
+        }
+        if (fh.getCold() != null) {
+            fh = thaw(fh);
+        }
+        if (fh.isSealed()) {
+            unseal(fh);
+        }
+        return fh;
+    }
+
+    /**
+     * Append a record to a segment, and index it.
+     *
+     * @param fh      The file handle to use.
+     * @param address The address of the entry.
+     * @param entry   The LogUnitEntry to write.
      */
-    private void writeEntry(FileHandle fh, long address, LogUnitEntry entry)
+    private void appendRecord(FileHandle fh, long address, LogUnitEntry entry)
             throws IOException {
         ByteBuf metadataBuffer = Unpooled.buffer();
         LogUnitMetadataMsg.bufferFromMap(metadataBuffer, entry.getMetadataMap());
-        int entrySize = entry.getBuffer().writerIndex() + metadataBuffer.writerIndex() + 24;
-        long pos = fh.getFilePointer().getAndAdd(entrySize);
-        ByteBuffer o = fh.getMapForRegion((int) pos, entrySize);
-        o.putInt(0x4C450000); // Flags
+        int entrySize = payloadSize(entry) + metadataBuffer.writerIndex() + RECORD_OVERHEAD;
+        long pos = fh.allocate(entrySize);
+        putRecord(fh.getRegion(pos, entrySize), address, entry, metadataBuffer, entrySize);
+        metadataBuffer.release();
+        fh.setIndexedOffset(address, pos);
+    }
+
+    /**
+     * Get the size of the payload of an entry, which a hole does not have.
+     *
+     * @param entry The entry.
+     * @return The number of bytes of payload in the record of the entry.
+     */
+    private static int payloadSize(LogUnitEntry entry) {
+        return entry.getBuffer() == null ? 0 : entry.getBuffer().writerIndex();
+    }
+
+    /**
+     * Encode a record, setting its written flag last. A hole is encoded as a record with the hole flag
+     * set and no payload.
+     *
+     * @param o              A buffer of exactly the size of the record.
+     * @param address        The address of the entry.
+     * @param entry          The LogUnitEntry to write.
+     * @param metadataBuffer The encoded metadata of the entry.
+     * @param entrySize      The size of the record.
+     */
+    private static void putRecord(ByteBuffer o, long address, LogUnitEntry entry, ByteBuf metadataBuffer,
+                                  int entrySize) {
+        short flags = entry.getBuffer() == null ? (short) (FLAG_CHECKSUMMED | FLAG_HOLE) : FLAG_CHECKSUMMED;
+        o.putShort(RECORD_MAGIC);
+        o.putShort(flags); // Flags
         o.putLong(address); // the log unit address
         o.putInt(entrySize); // Size
         o.putInt(metadataBuffer.writerIndex()); // the metadata size
         o.put(metadataBuffer.nioBuffer());
-        o.put(entry.buffer.nioBuffer());
-        metadataBuffer.release();
-        o.putShort(2, (short) 1); // written flag
+        if (entry.getBuffer() != null) {
+            o.put(entry.getBuffer().nioBuffer());
+        }
+        o.putInt(entrySize - 4, checksumOf(o, entrySize));
+        o.putShort(2, (short) (flags | FLAG_WRITTEN)); // written flag
         o.flip();
     }
 
-    protected void backendWrite(long address, LogUnitEntry entry) {
+    /**
+     * Get the position of an address within its segment.
+     *
+     * @param address The address.
+     * @return The address modulo the number of addresses per segment.
+     */
+    static int slotOf(long address) {
+        return (int) (address % RECORDS_PER_SEGMENT);
+    }
+
+    /**
+     * Compute the checksum of a record, which covers everything following the flags
+     * up to the checksum itself.
+     *
+     * @param record A buffer whose position 0 is the start of the record.
+     * @param size   The size of the record.
+     * @return The checksum of the record.
+     */
+    static int checksumOf(ByteBuffer record, int size) {
+        ByteBuffer covered = record.duplicate();
+        covered.limit(size - 4);
+        covered.position(4);
+        CRC32C crc = new CRC32C();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Check whether a record matches the checksum it was written with.
+     *
+     * @param record A buffer whose position 0 is the start of the record.
+     * @param size   The size of the record.
+     * @return True, if the checksum of the record matches.
+     */
+    static boolean checksumMatches(ByteBuffer record, int size) {
+        return record.getInt(size - 4) == checksumOf(record, size);
+    }
+
+    /**
+     * Append a batch of writes and make them durable, forcing each segment
+     * touched by the batch to disk exactly once.
+     *
+     * @param batch The batch of writes to commit.
+     */
+    private void commitBatch(List<GroupCommitter.PendingWrite> batch) {
+        Set<FileHandle> dirty = Collections.newSetFromMap(new IdentityHashMap<>());
+        try {
+            // Records are appended raw to compressed segments too, which are packed once sealed.
+            for (GroupCommitter.PendingWrite w : batch) {
+                try {
+                    dirty.add(writeEntry(getChannelForAddress(w.getAddress()), w.getAddress(), w.getEntry()));
+                } catch (Exception e) {
+                    log.error("Disk_write[{}]: Exception", w.getAddress(), e);
+                    w.getFuture().completeExceptionally(e);
+                }
+            }
+            dirty.forEach(FileHandle::force);
+            writeListener.committed();
+            sealCompletedSegments();
+        } finally {
+            batch.stream()
+                    .filter(w -> w.getEntry().getBuffer() != null)
+                    .forEach(w -> w.getEntry().getBuffer().release());
+            // Failed writes will never become durable, so they must not hold back the watermark.
+            batch.forEach(w -> pendingAddresses.remove(w.getAddress()));
+        }
+    }
+
+    /**
+     * Get the writer which is responsible for the segment containing an address.
+     *
+     * @param address The address to write.
+     * @return The writer for that address.
+     */
+    private GroupCommitter getWriter(long address) {
+        long segment = address / RECORDS_PER_SEGMENT;
+        GroupCommitter[] dirWriters = writers[getSegmentDir(segment)];
+        return dirWriters[(int) (segment % dirWriters.length)];
+    }
+
+    /**
+     * Get the data directory of a segment, placing the segment if it has none yet.
+     *
+     * @param segment The segment number.
+     * @return The index of the data directory.
+     */
+    int getSegmentDir(long segment) {
+        return segmentDirs.computeIfAbsent(segment, this::placeSegment);
+    }
+
+    /**
+     * Get the path of the file of a segment, to which the suffixes of its other files are appended.
+     *
+     * @param segment The segment number.
+     * @return The path of the segment file, on its data directory.
+     */
+    private String segmentPath(long segment) {
+        return dataPaths[getSegmentDir(segment)] + segment;
+    }
+
+    /**
+     * Choose the data directory of a new segment, by the placement policy.
+     *
+     * @param segment The segment number.
+     * @return The index of the data directory.
+     */
+    private int placeSegment(long segment) {
+        if (dataPaths.length == 1 || placement.equals(PLACEMENT_ROUND_ROBIN)) {
+            return (int) (segment % dataPaths.length);
+        }
+        int best = 0;
+        long bestSpace = -1L;
+        for (int d = 0; d < dataPaths.length; d++) {
+            File dir = new File(dataPaths[d]).getAbsoluteFile().getParentFile();
+            long space = dir == null ? 0L : dir.getUsableSpace();
+            if (space > bestSpace) {
+                best = d;
+                bestSpace = space;
+            }
+        }
+        log.info("Placing log segment {} on {}, which has {} free", segment, dataPaths[best],
+                Utils.convertToByteStringRepresentation(bestSpace));
+        return best;
+    }
+
+    @Override
+    public LogWriteStats getWriteStats() {
+        // Read the highest accepted address before the pending set: a write is added to the
+        // pending set before the highest accepted address is raised to cover it.
+        long highest = highestAccepted.get();
+        long watermark;
+        try {
+            watermark = pendingAddresses.first() - 1;
+        } catch (NoSuchElementException nse) {
+            watermark = highest;
+        }
+        long pending = 0L;
+        long completed = 0L;
+        long latency = 0L;
+        for (GroupCommitter[] dirWriters : writers) {
+            for (GroupCommitter writer : dirWriters) {
+                pending += writer.getQueueDepth();
+                completed += writer.getCompletedWrites();
+                latency += writer.getTotalWriteLatency();
+            }
+        }
+        return new LogWriteStats(Math.min(watermark, highest), pending,
+                completed == 0L ? 0L : TimeUnit.NANOSECONDS.toMicros(latency / completed));
+    }
+
+    protected CompletableFuture<Void> backendWrite(long address, LogUnitEntry entry) {
         //evict the data by getting the next pointer.
         try {
             // make sure the entry doesn't currently exist...
             // (probably need a faster way to do this - high watermark?)
             FileHandle fh = getChannelForAddress(address);
-            if (!fh.getKnownAddresses().contains(address)) {
-                fh.getKnownAddresses().add(address);
-                if (sync) {
-                    writeEntry(fh, address, entry);
-                } else {
-                    CompletableFuture.runAsync(() -> {
-                        try {
-                            writeEntry(fh, address, entry);
-                        } catch (Exception e) {
-                            log.error("Disk_write[{}]: Exception", address, e);
-                        }
-                    });
-                }
-            } else {
+            // Setting the bit of the address in the known addresses claims it atomically, so that
+            // concurrent writes to the same address cannot both succeed.
+            if (!fh.getKnownAddresses().set(slotOf(address))) {
+                throw new Exception("overwrite");
+            }
+            if (reclaimedSegments.contains(fh.getSegment())) {
+                // The segment was reclaimed after we looked it up, and its addresses were trimmed.
+                fh.getKnownAddresses().clear(slotOf(address));
                 throw new Exception("overwrite");
             }
-            log.info("Disk_write[{}]: Written to disk.", address);
+            pendingAddresses.add(address);
+            long previousHighest = highestAccepted.getAndAccumulate(address, Math::max);
+            try {
+                // The listener is told before the write is queued, so whatever it records is made
+                // durable by the commit of the batch the write lands in.
+                writeListener.accepted(address, entry);
+            } catch (RuntimeException re) {
+                abandonWrite(fh, address, previousHighest);
+                throw re;
+            }
+            // The writer releases the buffer once it has been written, since the
+            // cache may evict and release the entry before that happens. Holes have no buffer.
+            if (entry.getBuffer() != null) {
+                entry.getBuffer().retain();
+            }
+            CompletableFuture<Void> written;
+            try {
+                written = getWriter(address).submit(address, entry);
+            } catch (RuntimeException re) {
+                if (entry.getBuffer() != null) {
+                    entry.getBuffer().release();
+                }
+                abandonWrite(fh, address, previousHighest);
+                throw re;
+            }
+            // A write which fails never becomes durable, so its address can be written again.
+            CompletableFuture<Void> durable = written.whenComplete((v, ex) -> {
+                if (ex != null) {
+                    abandonWrite(fh, address, previousHighest);
+                }
+            });
+            log.debug("Disk_write[{}]: Queued.", address);
+            // In sync mode, the write is acknowledged once its batch is durable, without blocking
+            // the caller, which is usually a network thread, on the flush.
+            return sync ? durable : CompletableFuture.completedFuture(null);
         } catch (Exception e) {
             log.error("Disk_write[{}]: Exception", address, e);
             throw new RuntimeException(e);
         }
     }
 
-    protected LogUnitEntry backendRead(long address) {
-        try {
-            return readEntry(getChannelForAddress(address), address);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    /**
+     * Give up the claim of a write which failed on its address, so that it neither holds back the
+     * durable watermark nor makes a later write of the address an overwrite.
+     *
+     * @param fh              The handle the address was claimed on.
+     * @param address         The address of the write.
+     * @param previousHighest The highest accepted address before the write was accepted.
+     */
+    private void abandonWrite(FileHandle fh, long address, long previousHighest) {
+        pendingAddresses.remove(address);
+        // Unless a later write raised it further, the highest accepted address goes back to what it was.
+        highestAccepted.compareAndSet(Math.max(address, previousHighest), previousHighest);
+        fh.getKnownAddresses().clear(slotOf(address));
+    }
+
+    /**
+     * List the segments of the log which exist on disk in the hot tier.
+     *
+     * @return The segment numbers, in ascending order.
+     */
+    List<Long> listSegments() {
+        return listSegments("");
+    }
+
+    /**
+     * List the segments of the log which exist on disk in either tier.
+     *
+     * @return The segment numbers, in ascending order.
+     */
+    List<Long> listAllSegments() {
+        if (coldPathDir == null) {
+            return listSegments();
         }
+        Set<Long> segments = new TreeSet<>(listSegments());
+        segments.addAll(listSegments(coldPathDir, COLD_SUFFIX));
+        return new ArrayList<>(segments);
     }
 
-    protected void initializeLog() {
+    /**
+     * List the segments of the log which have a file with the given suffix, on any data directory.
+     * The data directory each segment is found on becomes the directory of the segment.
+     *
+     * @param suffix The suffix which follows the segment number in the file name.
+     * @return The segment numbers, in ascending order.
+     */
+    List<Long> listSegments(String suffix) {
+        if (dataPaths.length == 1) {
+            return listSegments(dataPaths[0], suffix);
+        }
+        Set<Long> segments = new TreeSet<>();
+        for (int d = 0; d < dataPaths.length; d++) {
+            for (long segment : listSegments(dataPaths[d], suffix)) {
+                Integer dir = segmentDirs.putIfAbsent(segment, d);
+                if (dir != null && dir != d) {
+                    log.warn("Log segment {} has files on both {} and {}, using {}", segment, dataPaths[dir],
+                            dataPaths[d], dataPaths[dir]);
+                }
+                segments.add(segment);
+            }
+        }
+        return new ArrayList<>(segments);
+    }
 
+    /**
+     * List the segments which have a file with the given path prefix and suffix.
+     *
+     * @param pathPrefix The path prefix which precedes the segment number.
+     * @param suffix     The suffix which follows the segment number in the file name.
+     * @return The segment numbers, in ascending order.
+     */
+    List<Long> listSegments(String pathPrefix, String suffix) {
+        File prefix = new File(pathPrefix);
+        File dir = prefix.getAbsoluteFile().getParentFile();
+        List<Long> segments = new ArrayList<>();
+        String[] names = dir == null ? null : dir.list();
+        if (names == null) {
+            return segments;
+        }
+        for (String name : names) {
+            if (name.length() > prefix.getName().length() + suffix.length()
+                    && name.startsWith(prefix.getName()) && name.endsWith(suffix)) {
+                String number = name.substring(prefix.getName().length(), name.length() - suffix.length());
+                if (number.chars().allMatch(Character::isDigit)) {
+                    segments.add(Long.parseLong(number));
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
     }
 
-    protected void backendStreamWrite(UUID streamID, RangeSet<Long> entry){
-        try {
-            ByteBuf b = Unpooled.buffer();
-            Set<Range<Long>> rs = entry.asRanges();
-            b.writeInt(rs.size());
-            for (Range<Long> r : rs) {
-                Serializers
-                        .getSerializer(Serializers.SerializerType.JAVA).serialize(r, b);
-            }
-            com.google.common.io.Files.write(b.array(), new File(logPathDir + File.pathSeparator +
-                    "stream" + streamID.toString()));
-        } catch (IOException ie) {
-            log.error("IOException while writing stream range for stream {}", streamID);
+    /**
+     * Verify the checksum of every record in the sealed segments of the log. The segment with the
+     * highest number is still being appended to, so it is not scrubbed. Corrupt records are
+     * quarantined, so that reads of them fail instead of returning bad data.
+     *
+     * @param ioBudget A rate limiter which is charged for every byte read.
+     * @return The addresses which were found to be corrupt in this pass.
+     */
+    @Override
+    public Set<Long> scrub(RateLimiter ioBudget) {
+        Set<Long> corrupt = new HashSet<>();
+        List<Long> segments = listAllSegments();
+        for (long segment : segments.subList(0, Math.max(0, segments.size() - 1))) {
+            if (reclaimedSegments.contains(segment)) {
+                continue;
+            }
+            FileHandle fh = getChannelForAddress(segment * RECORDS_PER_SEGMENT);
+            // The records of a compressed block are indexed consecutively, so each block is only verified once.
+            FileHandle blockHandle = null;
+            long blockOffset = 0L;
+            boolean blockValid = false;
+            for (int i = 0; i < RECORDS_PER_SEGMENT; i++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return corrupt;
+                }
+                if (fh.isRetired()) {
+                    // The segment was compacted or moved between tiers, so continue with its new file.
+                    fh = getChannelForAddress(segment * RECORDS_PER_SEGMENT);
+                }
+                long address = segment * RECORDS_PER_SEGMENT + i;
+                long offset = fh.getIndexedOffset(address);
+                if (offset == 0L || quarantinedAddresses.contains(address)) {
+                    continue;
+                }
+                try {
+                    boolean valid;
+                    if (fh == blockHandle && offset == blockOffset) {
+                        valid = blockValid;
+                    } else {
+                        ByteBuffer prefix = fh.getRegion(offset, RECORD_PREFIX_SIZE);
+                        short magic = prefix.getShort();
+                        short flags = prefix.getShort();
+                        long addr = prefix.getLong();
+                        int size = prefix.getInt();
+                        ioBudget.acquire(Math.max(1, size));
+                        // On disk, a block is verified like a record, since it is framed and checksummed like one.
+                        valid = (magic == BLOCK_MAGIC || (magic == RECORD_MAGIC && addr == address))
+                                && (flags & FLAG_WRITTEN) != 0
+                                && ((flags & FLAG_CHECKSUMMED) == 0
+                                || checksumMatches(fh.getRegion(offset, size), size));
+                        if (magic == BLOCK_MAGIC) {
+                            blockHandle = fh;
+                            blockOffset = offset;
+                            blockValid = valid;
+                        }
+                    }
+                    if (!valid) {
+                        log.error("Scrubber found corrupt entry at {} (offset {} of segment {}), quarantining it.",
+                                address, offset, segment);
+                        quarantinedAddresses.add(address);
+                        corrupt.add(address);
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Scrubber failed to read entry at {}", address, e);
+                }
+            }
         }
+        return corrupt;
     }
 
-    protected RangeSet<Long> backendStreamRead(UUID streamID) {
-        Path p = FileSystems.getDefault().getPath(logPathDir + File.pathSeparator +
-                "stream" + streamID.toString());
+    protected LogUnitEntry backendRead(long address) {
         try {
-            if (Files.exists(p)) {
-                ByteBuf b = Unpooled.wrappedBuffer(Files.readAllBytes(p));
-                RangeSet rs = TreeRangeSet.create();
-                int ranges = b.readInt();
-                for (int i = 0; i < ranges; i++) {
-                    Range r = (Range) Serializers
-                            .getSerializer(Serializers.SerializerType.JAVA).deserialize(b, null);
-                    rs.add(r);
+            FileHandle fh = getChannelForAddress(address);
+            try {
+                return readEntry(fh, address);
+            } catch (Exception e) {
+                if (!fh.isRetired()) {
+                    throw e;
                 }
-                return rs;
+                // The segment was compacted while we were reading it, so read it from its new file.
+                return readEntry(getChannelForAddress(address), address);
+            }
+        } catch (Exception e) {
+            if (reclaimedSegments.contains(address / RECORDS_PER_SEGMENT)) {
+                // The address was trimmed, and its segment was reclaimed before or during the read.
+                return null;
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (GroupCommitter[] dirWriters : writers) {
+            for (GroupCommitter writer : dirWriters) {
+                writer.close();
             }
-        } catch (IOException ie) {
-            log.error("IO Exception reading from stream file {}", p);
         }
+        for (CompletableFuture<FileHandle> handle : channelMap.values()) {
+            FileHandle fh = handle.getNow(null);
+            if (fh == null) {
+                continue;
+            }
+            // After a clean shutdown, every segment is sealed, so none needs to be scanned on restart.
+            seal(fh);
+            closeHandle(fh);
+        }
+    }
+
+    protected void initializeLog() {
 
-        return TreeRangeSet.create();
     }
 
     @Data
     class FileHandle {
+        final long segment;
         final AtomicLong filePointer;
+        /**
+         * The channel of the segment file, or null if the segment is in the cold tier.
+         */
         final FileChannel channel;
-        final Set<Long> knownAddresses = Collections.newSetFromMap(new ConcurrentHashMap<>());
-        @Getter(lazy = true)
-        private final MappedByteBuffer byteBuffer = getMappedBuffer();
+        /**
+         * The compressed file of the segment, if it is in the cold tier, or null otherwise.
+         */
+        final ColdSegment cold;
+        /**
+         * The segment index, which maps each address (address % RECORDS_PER_SEGMENT)
+         * to the offset of its record in the segment file, or 0 if it was not written.
+         */
+        final MappedByteBuffer index;
+        /**
+         * The addresses of the segment which have been written or claimed by a write in progress,
+         * indexed by address % RECORDS_PER_SEGMENT.
+         */
+        final AddressBitmap knownAddresses;
+        /**
+         * The known addresses of the segment which have been trimmed. They are not persisted, since
+         * trims are only hints.
+         */
+        final AddressBitmap trimmedAddresses;
+        /**
+         * The number of trimmed addresses.
+         */
+        final AtomicInteger trimmedCount;
+        /**
+         * The number of trimmed addresses whose records were left out when the segment was last compacted.
+         */
+        final int compactedCount;
+        /**
+         * The mapped windows of the segment file, indexed by window number. A window is null
+         * if it has not been mapped, and each window grows in chunks as the file grows.
+         */
+        volatile MappedByteBuffer[] windows = new MappedByteBuffer[0];
+        /**
+         * The time this segment was last accessed, used to pick segments to unmap.
+         */
+        volatile long lastAccess;
+        /**
+         * A lock which is held while writing to the segment, and while sealing it.
+         */
+        final Object sealLock;
+        /**
+         * Whether the segment has a valid footer. Guarded by the seal lock.
+         */
+        boolean sealed;
+        /**
+         * Whether the segment was compacted into a new file, or moved between tiers, and replaced by
+         * another handle. Guarded by the seal lock.
+         */
+        volatile boolean retired;
+        /**
+         * Whether the records of the segment are packed into compressed blocks once it is sealed, as
+         * the flags of its header say. Set when the segment is opened.
+         */
+        boolean compressed;
+        /**
+         * Whether every record of the compressed segment has been packed into a block, as the flags of
+         * its header say. Guarded by the seal lock.
+         */
+        boolean packed;
+
+        FileHandle(long segment, AtomicLong filePointer, FileChannel channel, MappedByteBuffer index) {
+            this(segment, filePointer, channel, index, null);
+        }
+
+        FileHandle(long segment, AtomicLong filePointer, FileChannel channel, MappedByteBuffer index,
+                   ColdSegment cold) {
+            this.segment = segment;
+            this.filePointer = filePointer;
+            this.channel = channel;
+            this.cold = cold;
+            this.index = index;
+            this.knownAddresses = new AddressBitmap(RECORDS_PER_SEGMENT);
+            this.trimmedAddresses = new AddressBitmap(RECORDS_PER_SEGMENT);
+            this.trimmedCount = new AtomicInteger();
+            this.compactedCount = 0;
+            this.sealLock = new Object();
+        }
+
+        /**
+         * Create a handle for the compacted file of a segment, which replaces the handle of its
+         * previous file. The address state and seal lock are shared with the previous handle, so
+         * that writers which still hold the previous handle remain consistent with the new one.
+         *
+         * @param previous       The handle of the previous file of the segment.
+         * @param filePointer    The tail of the compacted file.
+         * @param channel        The channel of the compacted file.
+         * @param index          The index of the compacted file.
+         * @param compactedCount The number of trimmed records left out of the compacted file.
+         */
+        FileHandle(FileHandle previous, AtomicLong filePointer, FileChannel channel, MappedByteBuffer index,
+                   int compactedCount) {
+            this(previous, filePointer, channel, index, compactedCount, null);
+        }
+
+        /**
+         * Create a handle for a segment which was moved between tiers, which replaces the handle of
+         * its previous file, sharing its address state and seal lock.
+         *
+         * @param previous       The handle of the previous file of the segment.
+         * @param filePointer    The tail of the segment.
+         * @param channel        The channel of the segment file, or null if the segment is now cold.
+         * @param index          The index of the segment.
+         * @param compactedCount The number of trimmed records left out of the segment file.
+         * @param cold           The compressed file of the segment, or null if the segment is now hot.
+         */
+        FileHandle(FileHandle previous, AtomicLong filePointer, FileChannel channel, MappedByteBuffer index,
+                   int compactedCount, ColdSegment cold) {
+            this.segment = previous.segment;
+            this.filePointer = filePointer;
+            this.channel = channel;
+            this.cold = cold;
+            this.index = index;
+            this.knownAddresses = previous.knownAddresses;
+            this.trimmedAddresses = previous.trimmedAddresses;
+            this.trimmedCount = previous.trimmedCount;
+            this.compactedCount = compactedCount;
+            this.sealLock = previous.sealLock;
+            this.compressed = previous.compressed;
+            this.packed = previous.packed;
+        }
+
+        public long getIndexedOffset(long address) {
+            return index.getLong(slotOf(address) * INDEX_SLOT_SIZE);
+        }
+
+        public void setIndexedOffset(long address, long offset) {
+            index.putLong(slotOf(address) * INDEX_SLOT_SIZE, offset);
+        }
+
+        /**
+         * Reserve space for a record at the tail of the segment. If the record does not fit
+         * in the remainder of the current window, the remainder is padded and the record is
+         * placed at the start of the next window.
+         *
+         * @param size The size of the record.
+         * @return The offset of the reserved space.
+         */
+        public long allocate(int size) {
+            if (size > windowSize) {
+                throw new IllegalArgumentException("Record of " + size
+                        + " bytes exceeds the mapped window size of " + windowSize + " bytes");
+            }
+            while (true) {
+                long pos = filePointer.get();
+                long windowEnd = (pos / windowSize + 1) * windowSize;
+                long start = pos + size > windowEnd ? windowEnd : pos;
+                if (filePointer.compareAndSet(pos, start + size)) {
+                    if (start != pos && windowEnd - pos >= RECORD_PREFIX_SIZE) {
+                        ByteBuffer pad = getRegion(pos, RECORD_PREFIX_SIZE);
+                        pad.putShort(PAD_MAGIC);
+                        pad.putShort((short) 1);
+                        pad.putLong(-1L);
+                        pad.putInt((int) (windowEnd - pos));
+                    }
+                    return start;
+                }
+            }
+        }
 
-        public ByteBuffer getMapForRegion(int offset, int size) {
-            ByteBuffer o = getByteBuffer().duplicate();
-            o.position(offset);
+        /**
+         * Get a view of a region of the segment file, mapping or growing the window
+         * which contains it if necessary.
+         *
+         * @param offset The offset of the region.
+         * @param size   The size of the region, which must not cross a window boundary.
+         * @return A buffer of exactly size bytes, backed by the mapped file, or a copy of the region
+         * if the segment is in the cold tier.
+         */
+        public ByteBuffer getRegion(long offset, int size) {
+            int window = (int) (offset / windowSize);
+            int inWindow = (int) (offset % windowSize);
+            if (inWindow + size > windowSize) {
+                throw new IllegalArgumentException("Region at " + offset + " of " + size
+                        + " bytes crosses a window boundary");
+            }
+            if (cold != null) {
+                return getColdRegion(offset, size);
+            }
+            lastAccess = System.nanoTime();
+            MappedByteBuffer[] current = windows;
+            MappedByteBuffer map = window < current.length ? current[window] : null;
+            if (map == null || map.capacity() < inWindow + size) {
+                map = mapWindow(window, inWindow + size);
+                registerMapped(this);
+            }
+            ByteBuffer o = map.duplicate();
+            o.limit(inWindow + size);
+            o.position(inWindow);
             return o.slice();
         }
 
-        private MappedByteBuffer getMappedBuffer() {
+        /**
+         * Copy a region of a cold segment out of the blocks which contain it, decompressing
+         * the blocks which are not cached.
+         *
+         * @param offset The offset of the region.
+         * @param size   The size of the region.
+         * @return A heap buffer of exactly size bytes.
+         */
+        private ByteBuffer getColdRegion(long offset, int size) {
+            if (offset + size > cold.getLength()) {
+                throw new IllegalArgumentException("Region at " + offset + " of " + size
+                        + " bytes is beyond the end of cold segment " + segment);
+            }
+            ByteBuffer region = ByteBuffer.allocate(size);
+            while (region.hasRemaining()) {
+                long pos = offset + region.position();
+                int block = (int) (pos / cold.getBlockSize());
+                byte[] data = blockCache.get(new CachedBlock(cold, block), k -> {
+                    try {
+                        return cold.readBlock(block);
+                    } catch (IOException ie) {
+                        log.error("Failed to read block {} of cold segment {}.", block, segment);
+                        throw new RuntimeException(ie);
+                    }
+                });
+                int inBlock = (int) (pos % cold.getBlockSize());
+                region.put(data, inBlock, Math.min(region.remaining(), data.length - inBlock));
+            }
+            region.flip();
+            return region;
+        }
+
+        /**
+         * Map (or remap) a window so that it covers at least the given number of bytes.
+         * The previous mapping is not unmapped explicitly, since buffers served from it may
+         * still be in use; it is released once it is no longer referenced.
+         */
+        private synchronized MappedByteBuffer mapWindow(int window, long minSize) {
+            MappedByteBuffer[] current = windows;
+            MappedByteBuffer map = window < current.length ? current[window] : null;
+            if (map != null && map.capacity() >= minSize) {
+                return map;
+            }
+            long size = Math.min(windowSize, (minSize + mapChunkSize - 1) / mapChunkSize * mapChunkSize);
+            try {
+                map = channel.map(FileChannel.MapMode.READ_WRITE, window * windowSize, size);
+            } catch (IOException ie) {
+                log.error("Failed to map window {} of segment {}.", window, segment);
+                throw new RuntimeException(ie);
+            }
+            MappedByteBuffer[] updated = Arrays.copyOf(current, Math.max(current.length, window + 1));
+            updated[window] = map;
+            windows = updated;
+            return map;
+        }
+
+        /**
+         * Force the data and index of this segment to disk. The data is forced through the
+         * channel rather than the mapped windows, so that writes made through a window which
+         * has since been unmapped or remapped are also made durable.
+         */
+        public void force() {
             try {
-                return channel.map(FileChannel.MapMode.READ_WRITE, 0L, Integer.MAX_VALUE);
+                if (channel != null) {
+                    channel.force(false);
+                }
             } catch (IOException ie) {
-                log.error("Failed to map buffer for channel.");
+                log.error("Failed to force segment {}.", segment);
                 throw new RuntimeException(ie);
             }
+            index.force();
+        }
+
+        /**
+         * Force and release all the mapped windows of this segment. They will be
+         * mapped again the next time the segment is accessed.
+         */
+        public synchronized void unmap() {
+            force();
+            windows = new MappedByteBuffer[0];
+            synchronized (mappedSegments) {
+                mappedSegments.remove(this);
+            }
+        }
+    }
+
+    /**
+     * The key of a decompressed block in the block cache: either the number of a block of a cold file,
+     * or the offset of a compressed block of records in a segment, which is keyed by the segment index
+     * since it is shared by the hot and cold handles of the segment and replaced when the segment is
+     * compacted. Sources are compared by identity, so blocks of a file which was replaced are never
+     * served for its replacement.
+     */
+    @Getter
+    @AllArgsConstructor
+    static final class CachedBlock {
+        final Object source;
+        final long position;
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CachedBlock && ((CachedBlock) o).source == source
+                    && ((CachedBlock) o).position == position;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(source) * 31 + Long.hashCode(position);
         }
     }
 
@@ -295,7 +2454,7 @@ public class RollingLog extends AbstractLocalLog {
         }
 
         ByteBuffer getBuffer() {
-            ByteBuffer b = ByteBuffer.allocate(64);
+            ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE);
             // 0: "CORFULOG" header(8)
             b.put(magic.getBytes(Charset.forName("UTF-8")), 0, 8);
             // 8: Version number(4)
@@ -0,0 +1,452 @@
+package org.corfudb.infrastructure.log;
+
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.util.CRC32C;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+
+/**
+ * An index of the addresses written to each stream which have not been trimmed yet.
+ * <p>
+ * The addresses of each stream are kept in order, as runs of consecutive addresses, so a trim
+ * of a stream only visits the addresses which the trim prefix newly covers, and the whole
+ * address set of a stream can be served in one response. An address which belongs to several
+ * streams is only trimmed once every one of its streams has been trimmed past it.
+ * <p>
+ * Every address added is appended to a file as a fixed-size record: type(1), stream ID(16),
+ * two longs(8 + 8) and a CRC32C checksum(4) of the preceding bytes. Records are buffered, and
+ * written and forced to disk by {@link #sync()}, which the log unit calls with every commit of its
+ * log, so the addresses of a write are durable once the write is. On open, the records are replayed, and a torn
+ * record at the end of the file is discarded. Trims are not recorded, since the trim map
+ * outlives them: once the index is reopened, every trimmed stream must be trimmed again. Once
+ * the file holds many more records than the index has runs, it is compacted, by writing a
+ * snapshot of the runs to a new file which then atomically replaces it.
+ * <p>
+ * If no path is given, the index is only kept in memory.
+ */
+@Slf4j
+public class StreamAddressIndex {
+
+    /**
+     * The number of addresses trimmed between checks of the deadline.
+     */
+    private static final int DEADLINE_CHECK_INTERVAL = 64;
+
+    /**
+     * The size of each record in the file.
+     */
+    static final int RECORD_SIZE = 1 + 16 + 8 + 8 + 4;
+
+    /**
+     * The type of a record which adds an address to a stream, along with the number of
+     * streams the address belongs to.
+     */
+    static final byte ADD_RECORD = 1;
+
+    /**
+     * The type of a record which adds a run of addresses to a stream, written by compaction.
+     */
+    static final byte RUN_RECORD = 2;
+
+    /**
+     * The type of a record which sets the number of streams which have not trimmed a shared
+     * address yet, written by compaction.
+     */
+    static final byte SHARED_RECORD = 3;
+
+    /**
+     * The number of records buffered before they are written to the file.
+     */
+    static final int BUFFERED_RECORDS = 1024;
+
+    /**
+     * The number of records the file may hold before it is considered for compaction.
+     */
+    static final int MIN_COMPACTION_RECORDS = 64 * 1024;
+
+    private static final UUID NO_STREAM = new UUID(0L, 0L);
+
+    /**
+     * The untrimmed addresses of each stream.
+     */
+    private final ConcurrentHashMap<UUID, AddressRangeSet> streamAddresses = new ConcurrentHashMap<>();
+
+    /**
+     * Addresses which belong to more than one stream, mapped to the number of their streams
+     * which have not trimmed them yet.
+     */
+    private final ConcurrentHashMap<Long, Integer> sharedAddresses = new ConcurrentHashMap<>();
+
+    /**
+     * The path of the file, or null if the index is only kept in memory.
+     */
+    private final Path path;
+
+    /**
+     * The channel records are appended to. Guarded by this.
+     */
+    private FileChannel channel;
+
+    /**
+     * The records which have not been written to the file yet. Guarded by this.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The number of records in the file, and in the buffer. Guarded by this.
+     */
+    private long records;
+
+    /**
+     * Whether records have been appended since the file was last forced. Guarded by this.
+     */
+    private boolean dirty;
+
+    public StreamAddressIndex() {
+        this(null);
+    }
+
+    /**
+     * Open an index, replaying its file if it exists.
+     *
+     * @param path The path of the file, or null to keep the index in memory only.
+     */
+    public StreamAddressIndex(String path) {
+        this.path = path == null ? null : FileSystems.getDefault().getPath(path);
+        if (this.path == null) {
+            buffer = null;
+            return;
+        }
+        buffer = ByteBuffer.allocate(RECORD_SIZE * BUFFERED_RECORDS);
+        try {
+            Files.deleteIfExists(compactionPath());
+            channel = FileChannel.open(this.path, EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE));
+            replay();
+        } catch (IOException ie) {
+            log.error("Failed to open stream address index at {}", path, ie);
+            throw new RuntimeException(ie);
+        }
+        log.info("Loaded stream address index with {} streams", streamAddresses.size());
+    }
+
+    /**
+     * Add an address to the index of each of its streams. Entries which do not belong to
+     * any stream are never trimmed, so they are not indexed.
+     *
+     * @param address The address which was written.
+     * @param streams The streams the address belongs to.
+     */
+    public void add(long address, Set<UUID> streams) {
+        if (streams == null || streams.isEmpty()) {
+            return;
+        }
+        if (streams.size() > 1) {
+            sharedAddresses.put(address, streams.size());
+        }
+        for (UUID stream : streams) {
+            streamAddresses.computeIfAbsent(stream, k -> new AddressRangeSet()).add(address);
+        }
+        // The index is updated before the records are appended, so a compaction which races
+        // with the add either snapshots the address or is followed by its records.
+        if (path != null) {
+            synchronized (this) {
+                for (UUID stream : streams) {
+                    append(ADD_RECORD, stream, address, streams.size());
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the addresses of a stream up to a trim prefix from the index, until a deadline passes.
+     *
+     * @param stream   The stream which was trimmed.
+     * @param prefix   The trim prefix of the stream, inclusive.
+     * @param deadline The value of {@link System#nanoTime()} after which to stop.
+     * @param trimmed  A consumer which is given every address which no stream references any more.
+     * @return True, if every address up to the prefix was removed, or false if the deadline passed first.
+     */
+    public boolean trim(UUID stream, long prefix, long deadline, LongConsumer trimmed) {
+        AddressRangeSet addresses = streamAddresses.get(stream);
+        if (addresses == null) {
+            return true;
+        }
+        int count = 0;
+        long address;
+        while ((address = addresses.pollFirst(prefix)) >= 0) {
+            // Single stream addresses are not in the shared map, so both they and shared
+            // addresses whose last stream was just trimmed come back as null.
+            if (sharedAddresses.computeIfPresent(address, (k, v) -> v == 1 ? null : v - 1) == null) {
+                trimmed.accept(address);
+            }
+            if (++count % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() - deadline > 0) {
+                long first = addresses.first();
+                return first < 0 || first > prefix;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove every address up to a trim watermark from the index. The entries themselves are
+     * trimmed along with the watermark, so they are not given to the collector.
+     *
+     * @param watermark The address to remove up to, inclusive.
+     */
+    public void trimPrefix(long watermark) {
+        streamAddresses.values().forEach(addresses -> addresses.removeUpTo(watermark));
+        sharedAddresses.keySet().removeIf(address -> address <= watermark);
+    }
+
+    /**
+     * Get the untrimmed addresses of a stream above a prefix.
+     *
+     * @param stream The stream.
+     * @param after  The address above which addresses are returned, or -1 for every address.
+     * @return The first and last address of each run of consecutive addresses, in order, in
+     * consecutive elements.
+     */
+    public long[] getAddresses(UUID stream, long after) {
+        AddressRangeSet addresses = streamAddresses.get(stream);
+        return addresses == null ? new long[0] : addresses.getRuns(after);
+    }
+
+    /**
+     * Get the number of untrimmed addresses of a stream.
+     *
+     * @param stream The stream.
+     * @return The number of addresses of the stream which are still indexed.
+     */
+    public int size(UUID stream) {
+        AddressRangeSet addresses = streamAddresses.get(stream);
+        return addresses == null ? 0 : (int) addresses.size();
+    }
+
+    /**
+     * Remove every address from the index.
+     */
+    public void clear() {
+        streamAddresses.clear();
+        sharedAddresses.clear();
+    }
+
+    /**
+     * Write the buffered records to the file and force them to disk, so every address added so
+     * far survives a crash. This does nothing if no record was added since the last time.
+     */
+    public synchronized void sync() {
+        if (channel == null || !dirty) {
+            return;
+        }
+        try {
+            writeBuffer();
+            channel.force(false);
+            dirty = false;
+        } catch (IOException ie) {
+            log.error("Failed to persist stream address index", ie);
+            throw new RuntimeException(ie);
+        }
+    }
+
+    /**
+     * Write the buffered records to the file and force them to disk, compacting the file if it
+     * has grown too large.
+     */
+    public synchronized void flush() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            writeBuffer();
+            channel.force(false);
+            dirty = false;
+            long live = sharedAddresses.size();
+            for (AddressRangeSet addresses : streamAddresses.values()) {
+                live += addresses.runCount();
+            }
+            if (records > MIN_COMPACTION_RECORDS && records > 2L * live) {
+                compact();
+            }
+        } catch (IOException ie) {
+            log.error("Failed to persist stream address index", ie);
+            throw new RuntimeException(ie);
+        }
+    }
+
+    /**
+     * Flush and close the file of the index.
+     */
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                writeBuffer();
+                channel.force(false);
+                channel.close();
+            } catch (IOException ie) {
+                log.warn("Error closing stream address index", ie);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Append a record to the buffer, writing the buffer to the file if it is full. The caller
+     * must hold the lock of the index.
+     */
+    private void append(byte type, UUID stream, long first, long second) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            if (!buffer.hasRemaining()) {
+                writeBuffer();
+            }
+            putRecord(buffer, type, stream, first, second);
+            records++;
+            dirty = true;
+        } catch (IOException ie) {
+            log.error("Failed to persist address {} of stream {}", first, stream, ie);
+            throw new RuntimeException(ie);
+        }
+    }
+
+    private void writeBuffer()
+            throws IOException {
+        buffer.flip();
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Replace the file with a snapshot of the index. The caller must hold the lock of the index,
+     * and must have written the buffer.
+     */
+    private void compact()
+            throws IOException {
+        Path compactionPath = compactionPath();
+        long count = 0;
+        ByteBuffer out = ByteBuffer.allocate(RECORD_SIZE * BUFFERED_RECORDS);
+        try (FileChannel fc = FileChannel.open(compactionPath, EnumSet.of(StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            for (Map.Entry<UUID, AddressRangeSet> e : streamAddresses.entrySet()) {
+                long[] runs = e.getValue().getRuns(-1L);
+                for (int i = 0; i < runs.length; i += 2) {
+                    count += putSnapshotRecord(fc, out, RUN_RECORD, e.getKey(), runs[i], runs[i + 1]);
+                }
+            }
+            for (Map.Entry<Long, Integer> e : sharedAddresses.entrySet()) {
+                count += putSnapshotRecord(fc, out, SHARED_RECORD, NO_STREAM, e.getKey(), e.getValue());
+            }
+            out.flip();
+            while (out.hasRemaining()) {
+                fc.write(out);
+            }
+            fc.force(true);
+        }
+        Files.move(compactionPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel.close();
+        channel = FileChannel.open(path, EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE));
+        log.debug("Compacted stream address index from {} to {} records", records, count);
+        records = count;
+    }
+
+    private static int putSnapshotRecord(FileChannel fc, ByteBuffer out, byte type, UUID stream,
+                                         long first, long second)
+            throws IOException {
+        if (!out.hasRemaining()) {
+            out.flip();
+            while (out.hasRemaining()) {
+                fc.write(out);
+            }
+            out.clear();
+        }
+        putRecord(out, type, stream, first, second);
+        return 1;
+    }
+
+    /**
+     * Replay the records of the file, truncating it after the last valid record.
+     */
+    private void replay()
+            throws IOException {
+        long size = channel.size();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        long pos = 0L;
+        while (pos + RECORD_SIZE <= size) {
+            record.clear();
+            while (record.hasRemaining()) {
+                if (channel.read(record, pos + record.position()) < 0) {
+                    break;
+                }
+            }
+            record.flip();
+            if (record.getInt(RECORD_SIZE - 4) != checksumOf(record)) {
+                break;
+            }
+            byte type = record.get();
+            UUID stream = new UUID(record.getLong(), record.getLong());
+            long first = record.getLong();
+            long second = record.getLong();
+            if (type == ADD_RECORD) {
+                streamAddresses.computeIfAbsent(stream, k -> new AddressRangeSet()).add(first);
+                if (second > 1) {
+                    sharedAddresses.put(first, (int) second);
+                }
+            } else if (type == RUN_RECORD) {
+                streamAddresses.computeIfAbsent(stream, k -> new AddressRangeSet()).addRun(first, second);
+            } else if (type == SHARED_RECORD) {
+                sharedAddresses.put(first, (int) second);
+            } else {
+                break;
+            }
+            pos += RECORD_SIZE;
+            records++;
+        }
+        if (pos != size) {
+            log.warn("Discarding {} bytes of torn records at the end of the stream address index", size - pos);
+            channel.truncate(pos);
+            channel.force(true);
+        }
+    }
+
+    private Path compactionPath() {
+        return FileSystems.getDefault().getPath(path + ".compact");
+    }
+
+    private static void putRecord(ByteBuffer out, byte type, UUID stream, long first, long second) {
+        ByteBuffer record = out.slice();
+        record.put(type);
+        record.putLong(stream.getMostSignificantBits());
+        record.putLong(stream.getLeastSignificantBits());
+        record.putLong(first);
+        record.putLong(second);
+        record.putInt(checksumOf(record));
+        out.position(out.position() + RECORD_SIZE);
+    }
+
+    private static int checksumOf(ByteBuffer record) {
+        ByteBuffer covered = record.duplicate();
+        covered.position(0);
+        covered.limit(RECORD_SIZE - 4);
+        CRC32C crc = new CRC32C();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+}
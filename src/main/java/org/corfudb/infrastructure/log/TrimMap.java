@@ -0,0 +1,316 @@
+package org.corfudb.infrastructure.log;
+
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.util.CRC32C;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The trim prefixes of the streams of a log unit, and its trim watermark, below which every
+ * address has been trimmed.
+ * <p>
+ * Every change is appended to a file as a fixed-size record: type(1), stream ID(16), prefix(8)
+ * and a CRC32C checksum(4) of the preceding bytes, and forced to disk before it takes effect.
+ * On open, the records are replayed, and a torn record at the end of the file is discarded.
+ * Once the file holds many more records than there are streams, it is compacted, by writing a
+ * snapshot of the map to a new file which then atomically replaces it.
+ * <p>
+ * If no path is given, the map is only kept in memory.
+ */
+@Slf4j
+public class TrimMap {
+
+    /**
+     * The size of each record in the file.
+     */
+    static final int RECORD_SIZE = 1 + 16 + 8 + 4;
+
+    /**
+     * The type of a record which sets the trim prefix of a stream.
+     */
+    static final byte STREAM_RECORD = 1;
+
+    /**
+     * The type of a record which sets the trim watermark.
+     */
+    static final byte WATERMARK_RECORD = 2;
+
+    /**
+     * The number of records the file may hold before it is considered for compaction.
+     */
+    static final int MIN_COMPACTION_RECORDS = 1024;
+
+    /**
+     * The trim prefix of each stream, inclusive.
+     */
+    private final ConcurrentHashMap<UUID, Long> streamPrefixes = new ConcurrentHashMap<>();
+
+    /**
+     * The highest address below or at which every address has been trimmed, or -1 if none has.
+     */
+    private volatile long watermark = -1L;
+
+    /**
+     * The path of the file, or null if the map is only kept in memory.
+     */
+    private final Path path;
+
+    /**
+     * The channel records are appended to. Guarded by this.
+     */
+    private FileChannel channel;
+
+    /**
+     * The number of records in the file. Guarded by this.
+     */
+    private long records;
+
+    /**
+     * Open a trim map, replaying its file if it exists.
+     *
+     * @param path The path of the file, or null to keep the map in memory only.
+     */
+    public TrimMap(String path) {
+        this.path = path == null ? null : FileSystems.getDefault().getPath(path);
+        if (this.path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(compactionPath());
+            channel = FileChannel.open(this.path, EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE));
+            replay();
+        } catch (IOException ie) {
+            log.error("Failed to open trim map at {}", path, ie);
+            throw new RuntimeException(ie);
+        }
+        log.info("Loaded trim map with watermark {} and {} trimmed streams", watermark, streamPrefixes.size());
+    }
+
+    /**
+     * Get the trim watermark.
+     *
+     * @return The highest address below or at which every address has been trimmed, or -1 if none has.
+     */
+    public long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Get the trim prefix of a stream.
+     *
+     * @param stream The stream.
+     * @return The highest address of the stream which has been trimmed, or -1 if none has.
+     */
+    public long getPrefix(UUID stream) {
+        return Math.max(watermark, streamPrefixes.getOrDefault(stream, -1L));
+    }
+
+    /**
+     * Get the streams which have been trimmed.
+     *
+     * @return A snapshot of the trim prefix of every stream.
+     */
+    public Map<UUID, Long> getStreamPrefixes() {
+        return Collections.unmodifiableMap(new HashMap<>(streamPrefixes));
+    }
+
+    /**
+     * Check whether an entry has been trimmed, because it is below the watermark, or because
+     * every one of its streams has been trimmed past it.
+     *
+     * @param address The address of the entry.
+     * @param streams The streams of the entry.
+     * @return True, if the entry has been trimmed.
+     */
+    public boolean isTrimmed(long address, Set<UUID> streams) {
+        if (address <= watermark) {
+            return true;
+        }
+        if (streams == null || streams.isEmpty()) {
+            return false;
+        }
+        for (UUID stream : streams) {
+            if (streamPrefixes.getOrDefault(stream, -1L) < address) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Trim a stream up to a prefix.
+     *
+     * @param stream The stream to trim.
+     * @param prefix The address to trim the stream to, inclusive.
+     * @return True, if the trim prefix of the stream advanced.
+     */
+    public synchronized boolean trim(UUID stream, long prefix) {
+        if (prefix <= getPrefix(stream)) {
+            return false;
+        }
+        append(STREAM_RECORD, stream, prefix);
+        streamPrefixes.put(stream, prefix);
+        return true;
+    }
+
+    /**
+     * Trim every address up to a prefix.
+     *
+     * @param prefix The address to advance the watermark to, inclusive.
+     * @return True, if the watermark advanced.
+     */
+    public synchronized boolean trimPrefix(long prefix) {
+        if (prefix <= watermark) {
+            return false;
+        }
+        append(WATERMARK_RECORD, new UUID(0L, 0L), prefix);
+        watermark = prefix;
+        // Streams trimmed below the watermark are covered by it, so they are dropped from the map.
+        streamPrefixes.values().removeIf(p -> p <= prefix);
+        return true;
+    }
+
+    /**
+     * Close the file of the map.
+     */
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ie) {
+                log.warn("Error closing trim map", ie);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Append a record to the file and force it to disk, compacting the file if it has grown too large.
+     */
+    private void append(byte type, UUID stream, long prefix) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            writeRecord(channel, channel.size(), type, stream, prefix);
+            channel.force(false);
+            records++;
+            if (records > MIN_COMPACTION_RECORDS && records > 2L * (streamPrefixes.size() + 1)) {
+                compact();
+            }
+        } catch (IOException ie) {
+            log.error("Failed to persist trim of {} to {}", stream, prefix, ie);
+            throw new RuntimeException(ie);
+        }
+    }
+
+    /**
+     * Replace the file with a snapshot of the map. The caller must hold the lock of the map, and
+     * the map must already reflect every record in the file.
+     */
+    private void compact()
+            throws IOException {
+        Path compactionPath = compactionPath();
+        long count = 0;
+        try (FileChannel out = FileChannel.open(compactionPath, EnumSet.of(StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            if (watermark >= 0) {
+                writeRecord(out, 0L, WATERMARK_RECORD, new UUID(0L, 0L), watermark);
+                count++;
+            }
+            for (Map.Entry<UUID, Long> e : streamPrefixes.entrySet()) {
+                writeRecord(out, count * RECORD_SIZE, STREAM_RECORD, e.getKey(), e.getValue());
+                count++;
+            }
+            out.force(true);
+        }
+        Files.move(compactionPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel.close();
+        channel = FileChannel.open(path, EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE));
+        log.debug("Compacted trim map from {} to {} records", records, count);
+        records = count;
+    }
+
+    /**
+     * Replay the records of the file, truncating it after the last valid record.
+     */
+    private void replay()
+            throws IOException {
+        long size = channel.size();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        long pos = 0L;
+        while (pos + RECORD_SIZE <= size) {
+            record.clear();
+            while (record.hasRemaining()) {
+                if (channel.read(record, pos + record.position()) < 0) {
+                    break;
+                }
+            }
+            record.flip();
+            if (record.getInt(RECORD_SIZE - 4) != checksumOf(record)) {
+                break;
+            }
+            byte type = record.get();
+            UUID stream = new UUID(record.getLong(), record.getLong());
+            long prefix = record.getLong();
+            if (type == WATERMARK_RECORD) {
+                watermark = Math.max(watermark, prefix);
+            } else if (type == STREAM_RECORD) {
+                streamPrefixes.merge(stream, prefix, Math::max);
+            } else {
+                break;
+            }
+            pos += RECORD_SIZE;
+            records++;
+        }
+        if (pos != size) {
+            log.warn("Discarding {} bytes of torn records at the end of the trim map", size - pos);
+            channel.truncate(pos);
+            channel.force(true);
+        }
+        long current = watermark;
+        streamPrefixes.values().removeIf(p -> p <= current);
+    }
+
+    private Path compactionPath() {
+        return FileSystems.getDefault().getPath(path + ".compact");
+    }
+
+    private static void writeRecord(FileChannel fc, long position, byte type, UUID stream, long prefix)
+            throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put(type);
+        record.putLong(stream.getMostSignificantBits());
+        record.putLong(stream.getLeastSignificantBits());
+        record.putLong(prefix);
+        record.putInt(checksumOf(record));
+        record.flip();
+        while (record.hasRemaining()) {
+            position += fc.write(record, position);
+        }
+    }
+
+    private static int checksumOf(ByteBuffer record) {
+        ByteBuffer covered = record.duplicate();
+        covered.position(0);
+        covered.limit(RECORD_SIZE - 4);
+        CRC32C crc = new CRC32C();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+}
@@ -151,6 +151,15 @@ public class CorfuMsg {
         }
     }
 
+    /**
+     * Release the references this message holds to the buffers it sends, once it has been
+     * serialized into a frame (which takes references of its own) or dropped unsent.
+     * By default, a message holds none.
+     */
+    public void releaseReferences() {
+        // The base message holds no references.
+    }
+
     @RequiredArgsConstructor
     @AllArgsConstructor
     public enum CorfuMsgType {
@@ -190,8 +199,14 @@ public class CorfuMsg {
         FORCE_GC(35, TypeToken.of(CorfuMsg.class), LogUnitServer.class),
         GC_INTERVAL(36, TypeToken.of(LogUnitGCIntervalMsg.class), LogUnitServer.class),
         FORCE_COMPACT(37, TypeToken.of(CorfuMsg.class), LogUnitServer.class),
+        PREFIX_TRIM(38, TypeToken.of(LogUnitPrefixTrimMsg.class), LogUnitServer.class),
         READ_RANGE(40, TypeToken.of(CorfuRangeMsg.class), LogUnitServer.class),
         READ_RANGE_RESPONSE(41, TypeToken.of(LogUnitReadRangeResponseMsg.class), LogUnitServer.class),
+        FLUSH_WATERMARK_REQUEST(42, TypeToken.of(CorfuMsg.class), LogUnitServer.class),
+        FLUSH_WATERMARK_RESPONSE(43, TypeToken.of(LogUnitFlushWatermarkMsg.class), LogUnitServer.class),
+        READ_RANGE_CREDIT(44, TypeToken.of(LogUnitReadRangeCreditMsg.class), LogUnitServer.class),
+        READ_STREAM_ADDRESSES(45, TypeToken.of(LogUnitStreamAddressesRequestMsg.class), LogUnitServer.class),
+        READ_STREAM_ADDRESSES_RESPONSE(46, TypeToken.of(LogUnitStreamAddressesMsg.class), LogUnitServer.class),
 
         // Logging Unit Error Codes
         ERROR_OK(50, TypeToken.of(CorfuMsg.class), LogUnitServer.class),
@@ -199,6 +214,8 @@ public class CorfuMsg {
         ERROR_OVERWRITE(52, TypeToken.of(CorfuMsg.class), LogUnitServer.class),
         ERROR_OOS(53, TypeToken.of(CorfuMsg.class), LogUnitServer.class),
         ERROR_RANK(54, TypeToken.of(CorfuMsg.class), LogUnitServer.class),
+        ERROR_DATA_CORRUPTION(55, TypeToken.of(CorfuMsg.class), LogUnitServer.class),
+        ERROR_SERVER_EXCEPTION(56, TypeToken.of(CorfuMsg.class), LogUnitServer.class),
 
         // EXTRA CODES
         LAYOUT_ALREADY_BOOTSTRAP(60, TypeToken.of(CorfuMsg.class), LayoutServer.class, true),
@@ -0,0 +1,68 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+
+/**
+ * A response describing the state of the write path of a log unit.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@ToString(callSuper = true)
+public class LogUnitFlushWatermarkMsg extends CorfuMsg {
+
+    /**
+     * The highest address such that every write accepted at or below it is durable,
+     * or -1 if no such address exists.
+     */
+    long durableWatermark;
+
+    /**
+     * The number of writes accepted but not yet durable.
+     */
+    long pendingWrites;
+
+    /**
+     * The mean time, in microseconds, between accepting a write and making it durable.
+     */
+    long meanWriteLatency;
+
+    public LogUnitFlushWatermarkMsg(long durableWatermark, long pendingWrites, long meanWriteLatency) {
+        this.msgType = CorfuMsgType.FLUSH_WATERMARK_RESPONSE;
+        this.durableWatermark = durableWatermark;
+        this.pendingWrites = pendingWrites;
+        this.meanWriteLatency = meanWriteLatency;
+    }
+
+    /**
+     * Serialize the message into the given bytebuffer.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    @Override
+    public void serialize(ByteBuf buffer) {
+        super.serialize(buffer);
+        buffer.writeLong(durableWatermark);
+        buffer.writeLong(pendingWrites);
+        buffer.writeLong(meanWriteLatency);
+    }
+
+    /**
+     * Parse the rest of the message from the buffer. Classes that extend CorfuMsg
+     * should parse their fields in this method.
+     *
+     * @param buffer
+     */
+    @Override
+    public void fromBuffer(ByteBuf buffer) {
+        super.fromBuffer(buffer);
+        durableWatermark = buffer.readLong();
+        pendingWrites = buffer.readLong();
+        meanWriteLatency = buffer.readLong();
+    }
+}
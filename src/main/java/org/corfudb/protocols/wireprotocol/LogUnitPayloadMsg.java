@@ -1,6 +1,7 @@
 package org.corfudb.protocols.wireprotocol;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.UnpooledByteBufAllocator;
 import lombok.Getter;
 import lombok.Setter;
@@ -55,11 +56,25 @@ public class LogUnitPayloadMsg extends LogUnitMetadataMsg {
         if (data == null) {
             ByteBuf d = UnpooledByteBufAllocator.DEFAULT.buffer();
             serializer.serialize(payload, d);
+            // Drop the slack left by the allocator, since the buffer may be handed off and held.
+            d.capacity(d.writerIndex());
             data = d;
         }
         return data.duplicate();
     }
 
+    /**
+     * Check whether payloads can be attached to a buffer as components of their own: it has to be
+     * a composite buffer which holds no slack past the bytes written to it, since a component is
+     * always added after the capacity of the buffer.
+     *
+     * @param buffer The buffer to check.
+     * @return True, if components can be appended to the buffer.
+     */
+    static boolean canAppendComponents(ByteBuf buffer) {
+        return buffer instanceof CompositeByteBuf && buffer.writerIndex() == buffer.capacity();
+    }
+
     /**
      * Serialize the message into the given bytebuffer.
      *
@@ -67,6 +82,18 @@ public class LogUnitPayloadMsg extends LogUnitMetadataMsg {
      */
     @Override
     public void serialize(ByteBuf buffer) {
+        if (payload == null && data != null && canAppendComponents(buffer)) {
+            // Attach the payload to the outgoing frame without copying it, after a component which
+            // holds the header. The frame releases its components once written, so it takes its own
+            // reference to the payload.
+            CompositeByteBuf frame = (CompositeByteBuf) buffer;
+            ByteBuf o = data.duplicate();
+            ByteBuf header = frame.alloc().buffer();
+            super.serialize(header);
+            header.writeInt(o.readableBytes());
+            frame.addComponents(true, header, o.retain());
+            return;
+        }
         super.serialize(buffer);
         int index = buffer.writerIndex();
         buffer.writeInt(0);
@@ -77,8 +104,9 @@ public class LogUnitPayloadMsg extends LogUnitMetadataMsg {
             buffer.setInt(index, finalIndex - index - 4);
         } else if (data != null) {
             ByteBuf o = data.duplicate();
+            int length = o.readableBytes();
             buffer.writeBytes(o);
-            buffer.setInt(index, o.readerIndex());
+            buffer.setInt(index, length);
         }
     }
 
@@ -0,0 +1,50 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+
+/**
+ * A request to trim every address of a log unit up to a prefix, regardless of stream.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class LogUnitPrefixTrimMsg extends CorfuMsg {
+
+
+    /**
+     * The address to prefix trim, inclusive.
+     */
+    long prefix;
+
+    public LogUnitPrefixTrimMsg(long prefix) {
+        this.msgType = CorfuMsgType.PREFIX_TRIM;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Serialize the message into the given bytebuffer.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    @Override
+    public void serialize(ByteBuf buffer) {
+        super.serialize(buffer);
+        buffer.writeLong(prefix);
+    }
+
+    /**
+     * Parse the rest of the message from the buffer. Classes that extend CorfuMsg
+     * should parse their fields in this method.
+     *
+     * @param buffer
+     */
+    @Override
+    public void fromBuffer(ByteBuf buffer) {
+        super.fromBuffer(buffer);
+        prefix = buffer.readLong();
+    }
+}
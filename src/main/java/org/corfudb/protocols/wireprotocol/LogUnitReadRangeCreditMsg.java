@@ -0,0 +1,59 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+
+/**
+ * Grants a log unit credits to send more chunks of a range read.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@ToString(callSuper = true)
+public class LogUnitReadRangeCreditMsg extends CorfuMsg {
+
+    /**
+     * The request id of the range read.
+     */
+    long rangeRequestID;
+
+    /**
+     * The number of further chunks the log unit may send.
+     */
+    int credits;
+
+    public LogUnitReadRangeCreditMsg(long rangeRequestID, int credits) {
+        this.msgType = CorfuMsgType.READ_RANGE_CREDIT;
+        this.rangeRequestID = rangeRequestID;
+        this.credits = credits;
+    }
+
+    /**
+     * Serialize the message into the given bytebuffer.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    @Override
+    public void serialize(ByteBuf buffer) {
+        super.serialize(buffer);
+        buffer.writeLong(rangeRequestID);
+        buffer.writeInt(credits);
+    }
+
+    /**
+     * Parse the rest of the message from the buffer. Classes that extend CorfuMsg
+     * should parse their fields in this method.
+     *
+     * @param buffer
+     */
+    @Override
+    public void fromBuffer(ByteBuf buffer) {
+        super.fromBuffer(buffer);
+        rangeRequestID = buffer.readLong();
+        credits = buffer.readInt();
+    }
+}
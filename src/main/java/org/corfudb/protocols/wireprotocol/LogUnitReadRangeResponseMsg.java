@@ -1,15 +1,19 @@
 package org.corfudb.protocols.wireprotocol;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.ToString;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
+ * A chunk of the response to a range read. The entries of a chunk are in address order, chunks
+ * are numbered in the order they are sent, and the last chunk of the read is flagged as such.
+ * <p>
  * Created by mwei on 2/10/16.
  */
 @Getter
@@ -20,9 +24,25 @@ public class LogUnitReadRangeResponseMsg extends CorfuMsg {
 
     Map<Long, LogUnitReadResponseMsg> responseMap;
 
+    /**
+     * The number of this chunk, starting from 0.
+     */
+    int chunk;
+
+    /**
+     * Whether this is the last chunk of the range read.
+     */
+    boolean last;
+
     public LogUnitReadRangeResponseMsg(Map<Long, LogUnitReadResponseMsg> map) {
+        this(map, 0, true);
+    }
+
+    public LogUnitReadRangeResponseMsg(Map<Long, LogUnitReadResponseMsg> map, int chunk, boolean last) {
         this.msgType = CorfuMsgType.READ_RANGE_RESPONSE;
         this.responseMap = map;
+        this.chunk = chunk;
+        this.last = last;
     }
 
     /**
@@ -32,7 +52,27 @@ public class LogUnitReadRangeResponseMsg extends CorfuMsg {
      */
     @Override
     public void serialize(ByteBuf buffer) {
+        if (LogUnitPayloadMsg.canAppendComponents(buffer)) {
+            // Serialize each entry into a composite buffer of its own, so its payload is attached
+            // to it without a copy, and attach the entries to the frame after the header.
+            CompositeByteBuf frame = (CompositeByteBuf) buffer;
+            ByteBuf header = frame.alloc().buffer();
+            super.serialize(header);
+            header.writeInt(chunk);
+            header.writeBoolean(last);
+            header.writeInt(responseMap.size());
+            frame.addComponent(true, header);
+            for (Map.Entry<Long, LogUnitReadResponseMsg> e : responseMap.entrySet()) {
+                CompositeByteBuf entry = frame.alloc().compositeBuffer(Integer.MAX_VALUE);
+                entry.addComponent(true, frame.alloc().buffer(8).writeLong(e.getKey()));
+                e.getValue().serialize(entry);
+                frame.addComponent(true, entry);
+            }
+            return;
+        }
         super.serialize(buffer);
+        buffer.writeInt(chunk);
+        buffer.writeBoolean(last);
         buffer.writeInt(responseMap.size());
         for (Map.Entry<Long, LogUnitReadResponseMsg> e : responseMap.entrySet()) {
             buffer.writeLong(e.getKey());
@@ -40,6 +80,11 @@ public class LogUnitReadRangeResponseMsg extends CorfuMsg {
         }
     }
 
+    @Override
+    public void releaseReferences() {
+        responseMap.values().forEach(LogUnitReadResponseMsg::releaseReferences);
+    }
+
     /**
      * Parse the rest of the message from the buffer. Classes that extend CorfuMsg
      * should parse their fields in this method.
@@ -50,8 +95,10 @@ public class LogUnitReadRangeResponseMsg extends CorfuMsg {
     @SuppressWarnings("unchecked")
     public void fromBuffer(ByteBuf buffer) {
         super.fromBuffer(buffer);
+        chunk = buffer.readInt();
+        last = buffer.readBoolean();
         int size = buffer.readInt();
-        responseMap = new HashMap<>();
+        responseMap = new LinkedHashMap<>();
         for (int i = 0; i < size; i++) {
             long address = buffer.readLong();
             LogUnitReadResponseMsg m = (LogUnitReadResponseMsg) (CorfuMsg.deserialize(buffer));
@@ -1,6 +1,7 @@
 package org.corfudb.protocols.wireprotocol;
 
 import io.netty.buffer.ByteBuf;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.RequiredArgsConstructor;
@@ -37,6 +38,13 @@ public class LogUnitReadResponseMsg extends LogUnitPayloadMsg {
      */
     ReadResultType result;
 
+    /**
+     * Whether this message holds a reference of its own to its data.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    boolean retained;
+
     public LogUnitReadResponseMsg(ReadResultType result) {
         this.msgType = CorfuMsgType.READ_RESPONSE;
         this.result = result;
@@ -46,7 +54,19 @@ public class LogUnitReadResponseMsg extends LogUnitPayloadMsg {
         this.msgType = CorfuMsgType.READ_RESPONSE;
         this.result = ReadResultType.DATA;
         this.setMetadataMap(entry.getMetadataMap());
-        this.setData(entry.getBuffer());
+        // The response may be encoded after the entry is evicted and its buffer released, so it
+        // holds a reference of its own until it is serialized.
+        this.setData(entry.getBuffer().duplicate().retain());
+        this.retained = true;
+    }
+
+    @Override
+    public void releaseReferences() {
+        if (retained && data != null) {
+            data.release();
+            data = null;
+        }
+        retained = false;
     }
 
     /**
@@ -0,0 +1,82 @@
+package org.corfudb.protocols.wireprotocol;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+
+/**
+ * The untrimmed addresses of a stream which a log unit holds, as runs of consecutive addresses.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@ToString(callSuper = true)
+public class LogUnitStreamAddressesMsg extends CorfuMsg {
+
+    /**
+     * The trim prefix of the stream on the log unit, or -1 if the stream was never trimmed.
+     * No address at or below it is returned.
+     */
+    long trimPrefix;
+
+    /**
+     * The first and last address of each run, in order, in consecutive elements.
+     */
+    long[] runs;
+
+    public LogUnitStreamAddressesMsg(long trimPrefix, long[] runs) {
+        this.msgType = CorfuMsgType.READ_STREAM_ADDRESSES_RESPONSE;
+        this.trimPrefix = trimPrefix;
+        this.runs = runs;
+    }
+
+    /**
+     * Get the addresses of the stream.
+     *
+     * @return The addresses, as a set of closed ranges.
+     */
+    public RangeSet<Long> getAddresses() {
+        RangeSet<Long> addresses = TreeRangeSet.create();
+        for (int i = 0; i < runs.length; i += 2) {
+            addresses.add(Range.closed(runs[i], runs[i + 1]));
+        }
+        return addresses;
+    }
+
+    /**
+     * Serialize the message into the given bytebuffer.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    @Override
+    public void serialize(ByteBuf buffer) {
+        super.serialize(buffer);
+        buffer.writeLong(trimPrefix);
+        buffer.writeInt(runs.length / 2);
+        for (long address : runs) {
+            buffer.writeLong(address);
+        }
+    }
+
+    /**
+     * Parse the rest of the message from the buffer. Classes that extend CorfuMsg
+     * should parse their fields in this method.
+     *
+     * @param buffer
+     */
+    @Override
+    public void fromBuffer(ByteBuf buffer) {
+        super.fromBuffer(buffer);
+        trimPrefix = buffer.readLong();
+        runs = new long[buffer.readInt() * 2];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = buffer.readLong();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.UUID;
+
+
+/**
+ * Requests the addresses of a stream which a log unit holds.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@ToString(callSuper = true)
+public class LogUnitStreamAddressesRequestMsg extends CorfuMsg {
+
+    /**
+     * The stream whose addresses are requested.
+     */
+    UUID streamID;
+
+    public LogUnitStreamAddressesRequestMsg(UUID streamID) {
+        this.msgType = CorfuMsgType.READ_STREAM_ADDRESSES;
+        this.streamID = streamID;
+    }
+
+    /**
+     * Serialize the message into the given bytebuffer.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    @Override
+    public void serialize(ByteBuf buffer) {
+        super.serialize(buffer);
+        buffer.writeLong(streamID.getMostSignificantBits());
+        buffer.writeLong(streamID.getLeastSignificantBits());
+    }
+
+    /**
+     * Parse the rest of the message from the buffer. Classes that extend CorfuMsg
+     * should parse their fields in this method.
+     *
+     * @param buffer
+     */
+    @Override
+    public void fromBuffer(ByteBuf buffer) {
+        super.fromBuffer(buffer);
+        streamID = new UUID(buffer.readLong(), buffer.readLong());
+    }
+}
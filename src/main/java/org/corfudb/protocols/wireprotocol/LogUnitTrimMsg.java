@@ -43,7 +43,7 @@ public class LogUnitTrimMsg extends CorfuMsg {
         super.serialize(buffer);
         buffer.writeLong(prefix);
         buffer.writeLong(streamID.getMostSignificantBits());
-        buffer.writeLong(streamID.getMostSignificantBits());
+        buffer.writeLong(streamID.getLeastSignificantBits());
     }
 
     /**
@@ -1,24 +1,37 @@
 package org.corfudb.protocols.wireprotocol;
 
-import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.List;
+
 /**
  * Created by mwei on 10/1/15.
+ * <p>
+ * Messages are serialized into a composite buffer, so that payloads which are already held in
+ * a buffer (such as entries read from a mapped log segment) are attached to the outgoing frame
+ * as components instead of being copied into it. The buffer takes any number of components, since
+ * Netty otherwise merges them into a copy once there are more than 16 of them. Once a message is
+ * serialized, it releases the references it held to those payloads, which the frame now holds.
  */
 @Slf4j
-public class NettyCorfuMessageEncoder extends MessageToByteEncoder<CorfuMsg> {
+public class NettyCorfuMessageEncoder extends MessageToMessageEncoder<CorfuMsg> {
 
     @Override
     protected void encode(ChannelHandlerContext channelHandlerContext,
                           CorfuMsg corfuMsg,
-                          ByteBuf byteBuf) throws Exception {
+                          List<Object> list) throws Exception {
+        CompositeByteBuf byteBuf = channelHandlerContext.alloc().compositeBuffer(Integer.MAX_VALUE);
         try {
             corfuMsg.serialize(byteBuf);
         } catch (Exception e) {
             log.error("Error during serialization!", e);
+        } finally {
+            // The frame holds references of its own to the buffers it was built from.
+            corfuMsg.releaseReferences();
         }
+        list.add(byteBuf);
     }
 }
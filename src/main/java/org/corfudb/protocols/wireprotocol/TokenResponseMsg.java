@@ -28,6 +28,13 @@ public class TokenResponseMsg extends CorfuMsg {
      * A map of backpointers.
      */
     Map<UUID, Long> backpointerMap;
+
+    /**
+     * The backpointers of a response built by the sequencer, as the most and least significant
+     * bits of each stream id followed by its backpointer, which the response is encoded from
+     * without building the map.
+     */
+    long[] backpointers;
         /* The wire format of the NettyStreamingServerTokenResponse message is below:
             | client ID(16) | request ID(8) |  type(1)  |  token(8) |
             |  MSB  |  LSB  |               |           |           |
@@ -40,6 +47,28 @@ public class TokenResponseMsg extends CorfuMsg {
         this.backpointerMap = backpointerMap;
     }
 
+    public TokenResponseMsg(long token, @NonNull long[] backpointers) {
+        this.msgType = CorfuMsgType.TOKEN_RES;
+        this.token = token;
+        this.backpointers = backpointers;
+    }
+
+    /**
+     * Get the map of backpointers, which is built from the encoded backpointers if there is none.
+     *
+     * @return The backpointer of each stream.
+     */
+    public Map<UUID, Long> getBackpointerMap() {
+        if (backpointerMap == null && backpointers != null) {
+            ImmutableMap.Builder<UUID, Long> mb = ImmutableMap.builder();
+            for (int i = 0; i < backpointers.length; i += 3) {
+                mb.put(new UUID(backpointers[i], backpointers[i + 1]), backpointers[i + 2]);
+            }
+            backpointerMap = mb.build();
+        }
+        return backpointerMap;
+    }
+
     /**
      * Serialize the message into the given bytebuffer.
      *
@@ -49,6 +78,13 @@ public class TokenResponseMsg extends CorfuMsg {
     public void serialize(ByteBuf buffer) {
         super.serialize(buffer);
         buffer.writeLong(this.token);
+        if (backpointerMap == null && backpointers != null) {
+            buffer.writeShort(backpointers.length / 3);
+            for (long l : backpointers) {
+                buffer.writeLong(l);
+            }
+            return;
+        }
         buffer.writeShort(backpointerMap.size());
         backpointerMap.entrySet().stream()
                 .forEach(e -> {
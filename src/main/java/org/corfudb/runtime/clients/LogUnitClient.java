@@ -9,21 +9,31 @@ import lombok.Setter;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
 import org.corfudb.protocols.wireprotocol.CorfuRangeMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitFillHoleMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitFlushWatermarkMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitGCIntervalMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitPrefixTrimMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitReadRangeCreditMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitReadRangeResponseMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitReadRequestMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg.ReadResult;
+import org.corfudb.protocols.wireprotocol.LogUnitStreamAddressesMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitStreamAddressesRequestMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitTrimMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitWriteMsg;
+import org.corfudb.runtime.exceptions.DataCorruptionException;
+import org.corfudb.runtime.exceptions.LogUnitException;
 import org.corfudb.runtime.exceptions.OutOfSpaceException;
 import org.corfudb.runtime.exceptions.OverwriteException;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * A client to a LogUnit.
@@ -48,17 +58,29 @@ public class LogUnitClient implements IClient {
                     .add(CorfuMsg.CorfuMsgType.FORCE_COMPACT)
                     .add(CorfuMsg.CorfuMsgType.READ_RANGE)
                     .add(CorfuMsg.CorfuMsgType.READ_RANGE_RESPONSE)
+                    .add(CorfuMsg.CorfuMsgType.READ_RANGE_CREDIT)
+                    .add(CorfuMsg.CorfuMsgType.FLUSH_WATERMARK_REQUEST)
+                    .add(CorfuMsg.CorfuMsgType.FLUSH_WATERMARK_RESPONSE)
+                    .add(CorfuMsg.CorfuMsgType.READ_STREAM_ADDRESSES)
+                    .add(CorfuMsg.CorfuMsgType.READ_STREAM_ADDRESSES_RESPONSE)
 
                     .add(CorfuMsg.CorfuMsgType.ERROR_OK)
                     .add(CorfuMsg.CorfuMsgType.ERROR_TRIMMED)
                     .add(CorfuMsg.CorfuMsgType.ERROR_OVERWRITE)
                     .add(CorfuMsg.CorfuMsgType.ERROR_OOS)
                     .add(CorfuMsg.CorfuMsgType.ERROR_RANK)
+                    .add(CorfuMsg.CorfuMsgType.ERROR_DATA_CORRUPTION)
+                    .add(CorfuMsg.CorfuMsgType.ERROR_SERVER_EXCEPTION)
                     .build();
     @Setter
     @Getter
     IClientRouter router;
 
+    /**
+     * The range reads which have not received all their chunks yet, by request id.
+     */
+    private final Map<Long, RangeRead> rangeReads = new ConcurrentHashMap<>();
+
     /**
      * Handle a incoming message on the channel
      *
@@ -72,31 +94,53 @@ public class LogUnitClient implements IClient {
                 router.completeRequest(msg.getRequestID(), true);
                 break;
             case ERROR_TRIMMED:
-                router.completeExceptionally(msg.getRequestID(), new Exception("Trimmed"));
+                completeExceptionally(msg, new Exception("Trimmed"));
                 break;
             case ERROR_OVERWRITE:
-                router.completeExceptionally(msg.getRequestID(), new OverwriteException());
+                completeExceptionally(msg, new OverwriteException());
                 break;
             case ERROR_OOS:
-                router.completeExceptionally(msg.getRequestID(), new OutOfSpaceException());
+                completeExceptionally(msg, new OutOfSpaceException());
                 break;
             case ERROR_RANK:
-                router.completeExceptionally(msg.getRequestID(), new Exception("Rank"));
+                completeExceptionally(msg, new Exception("Rank"));
+                break;
+            case ERROR_DATA_CORRUPTION:
+                completeExceptionally(msg, new DataCorruptionException());
+                break;
+            case ERROR_SERVER_EXCEPTION:
+                completeExceptionally(msg, new LogUnitException());
                 break;
             case READ_RESPONSE:
                 router.completeRequest(msg.getRequestID(), new ReadResult((LogUnitReadResponseMsg) msg));
                 break;
-            case READ_RANGE_RESPONSE: {
-                LogUnitReadRangeResponseMsg rmsg = (LogUnitReadRangeResponseMsg) msg;
-                Map<Long, ReadResult> lr = new ConcurrentHashMap<>();
-                rmsg.getResponseMap().entrySet().parallelStream()
-                        .forEach(e -> lr.put(e.getKey(), new ReadResult(e.getValue())));
-                router.completeRequest(msg.getRequestID(), lr);
-            }
-            break;
+            case FLUSH_WATERMARK_RESPONSE:
+                router.completeRequest(msg.getRequestID(), msg);
+                break;
+            case READ_STREAM_ADDRESSES_RESPONSE:
+                router.completeRequest(msg.getRequestID(), ((LogUnitStreamAddressesMsg) msg).getAddresses());
+                break;
+            case READ_RANGE_RESPONSE:
+                // Range reads are streamed back in chunks, which are handed to the reader in order,
+                // and every chunk the reader consumes grants the log unit a credit to send another.
+                rangeReads.computeIfAbsent(msg.getRequestID(), RangeRead::new)
+                        .add((LogUnitReadRangeResponseMsg) msg);
+                break;
         }
     }
 
+    /**
+     * Fail the request an error was returned for, dropping the chunks received so far if it is
+     * a range read.
+     *
+     * @param msg The error returned.
+     * @param e   The exception to fail the request with.
+     */
+    private void completeExceptionally(CorfuMsg msg, Throwable e) {
+        rangeReads.remove(msg.getRequestID());
+        router.completeExceptionally(msg.getRequestID(), e);
+    }
+
     /**
      * Asynchronously write to the logging unit.
      *
@@ -170,6 +214,16 @@ public class LogUnitClient implements IClient {
         return router.sendMessageAndGetCompletable(new LogUnitFillHoleMsg(address));
     }
 
+    /**
+     * Trim every address of the logging unit up to a prefix. Reads of trimmed addresses
+     * fail, and the logging unit reclaims the space they take.
+     *
+     * @param prefix The prefix, as a global physical offset, to trim.
+     */
+    public void prefixTrim(long prefix) {
+        router.sendMessage(new LogUnitPrefixTrimMsg(prefix));
+    }
+
     /**
      * Force the garbage collector to begin garbage collection.
      */
@@ -185,12 +239,62 @@ public class LogUnitClient implements IClient {
     }
 
     /**
-     * Read a range of addresses.
+     * Read a range of addresses. The log unit streams the entries back in chunks, and the
+     * future completes once the last chunk arrives.
+     * <p>
+     * The entries of every chunk are held until the whole range is read. Callers reading large
+     * ranges should consume the chunks as they arrive instead, with
+     * {@link #readRange(RangeSet, Consumer)}. If the log unit fails the read, the future completes
+     * exceptionally, and the chunks received so far are dropped.
      *
      * @param addresses The addresses to read.
      */
     public CompletableFuture<Map<Long, ReadResult>> readRange(RangeSet<Long> addresses) {
-        return router.sendMessageAndGetCompletable(new CorfuRangeMsg(CorfuMsg.CorfuMsgType.READ_RANGE, addresses));
+        Map<Long, ReadResult> results = new ConcurrentHashMap<>();
+        return readRange(addresses, results::putAll).thenApply(v -> results);
+    }
+
+    /**
+     * Read a range of addresses, handing each chunk of entries to a consumer as it arrives.
+     * <p>
+     * Chunks are consumed one at a time, in address order, off the network threads. The log unit is
+     * only granted a credit to send another chunk once the consumer is done with one, so a slow
+     * consumer holds back the read, and the client never holds more than a few chunks of it. If the
+     * log unit fails the read, or the consumer throws, the future completes exceptionally, and the
+     * remaining chunks are dropped.
+     *
+     * @param addresses The addresses to read.
+     * @param consumer  The consumer of the chunks, each a map of the results at its addresses.
+     * @return A future which completes once every chunk has been consumed.
+     */
+    public CompletableFuture<Void> readRange(RangeSet<Long> addresses, Consumer<Map<Long, ReadResult>> consumer) {
+        CorfuRangeMsg msg = new CorfuRangeMsg(CorfuMsg.CorfuMsgType.READ_RANGE, addresses);
+        CompletableFuture<Void> read = router.sendMessageAndGetCompletable(msg);
+        // The first chunks may have arrived already, and are consumed from now on.
+        long requestID = msg.getRequestID();
+        rangeReads.computeIfAbsent(requestID, RangeRead::new).start(consumer);
+        read.whenComplete((v, ex) -> rangeReads.remove(requestID));
+        return read;
+    }
+
+    /**
+     * Read the addresses of a stream which the logging unit holds, without reading their entries.
+     *
+     * @param stream The stream whose addresses to read.
+     * @return A CompletableFuture which will complete with the untrimmed addresses of the stream,
+     * as a set of closed ranges of local addresses.
+     */
+    public CompletableFuture<RangeSet<Long>> readStreamAddresses(UUID stream) {
+        return router.sendMessageAndGetCompletable(new LogUnitStreamAddressesRequestMsg(stream));
+    }
+
+    /**
+     * Query the durability watermark and write path metrics of the logging unit.
+     *
+     * @return A CompletableFuture which will complete with the state of the write path.
+     */
+    public CompletableFuture<LogUnitFlushWatermarkMsg> getFlushWatermark() {
+        return router.sendMessageAndGetCompletable(new CorfuMsg(CorfuMsg.CorfuMsgType.FLUSH_WATERMARK_REQUEST));
     }
 
     /**
@@ -202,5 +306,92 @@ public class LogUnitClient implements IClient {
         router.sendMessage(new LogUnitGCIntervalMsg(millis));
     }
 
+    /**
+     * The chunks of a range read, which are consumed in the order they are numbered, once the reader
+     * starts consuming them.
+     */
+    private class RangeRead {
+        final long requestID;
+
+        /**
+         * The chunks received which are not being consumed yet, by number.
+         */
+        final Map<Integer, LogUnitReadRangeResponseMsg> received = new HashMap<>();
+
+        Consumer<Map<Long, ReadResult>> consumer;
+
+        /**
+         * Completes once every chunk handed to the consumer so far has been consumed.
+         */
+        CompletableFuture<Void> consumed = CompletableFuture.completedFuture(null);
+
+        /**
+         * The number of the next chunk to hand to the consumer.
+         */
+        int next = 0;
 
+        boolean failed = false;
+
+        RangeRead(long requestID) {
+            this.requestID = requestID;
+        }
+
+        /**
+         * Add a chunk to the read, to be consumed once the chunks before it are.
+         *
+         * @param chunk The chunk.
+         */
+        synchronized void add(LogUnitReadRangeResponseMsg chunk) {
+            received.put(chunk.getChunk(), chunk);
+            consumeReceived();
+        }
+
+        /**
+         * Start consuming the chunks of the read.
+         *
+         * @param consumer The consumer of the chunks.
+         */
+        synchronized void start(Consumer<Map<Long, ReadResult>> consumer) {
+            this.consumer = consumer;
+            consumeReceived();
+        }
+
+        /**
+         * Hand the chunks which are next in order to the consumer, once it has started.
+         */
+        private void consumeReceived() {
+            if (consumer == null) {
+                return;
+            }
+            for (LogUnitReadRangeResponseMsg chunk = received.remove(next); chunk != null;
+                 chunk = received.remove(next)) {
+                next++;
+                consume(chunk);
+            }
+        }
+
+        private void consume(LogUnitReadRangeResponseMsg chunk) {
+            consumed = consumed.thenRunAsync(() -> {
+                if (failed) {
+                    return;
+                }
+                Map<Long, ReadResult> results = new LinkedHashMap<>();
+                chunk.getResponseMap().forEach((address, r) -> results.put(address, new ReadResult(r)));
+                try {
+                    consumer.accept(results);
+                } catch (Throwable t) {
+                    failed = true;
+                    rangeReads.remove(requestID);
+                    router.completeExceptionally(requestID, t);
+                    return;
+                }
+                if (chunk.isLast()) {
+                    rangeReads.remove(requestID);
+                    router.completeRequest(requestID, null);
+                } else {
+                    router.sendMessage(new LogUnitReadRangeCreditMsg(requestID, 1));
+                }
+            });
+        }
+    }
 }
@@ -59,7 +59,7 @@ public class SequencerClient implements IClient {
     }
 
     @Data
-    public class TokenResponse {
+    public static class TokenResponse {
         public final Long token;
         public final Map<UUID, Long> backpointerMap;
     }
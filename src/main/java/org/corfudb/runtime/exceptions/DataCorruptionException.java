@@ -0,0 +1,8 @@
+package org.corfudb.runtime.exceptions;
+
+/**
+ * Thrown when an entry read from a log unit fails its checksum.
+ */
+public class DataCorruptionException extends LogUnitException {
+
+}
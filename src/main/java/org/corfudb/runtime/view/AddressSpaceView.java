@@ -160,14 +160,25 @@ public class AddressSpaceView extends AbstractView {
     }
 
     /**
-     * Read the given object from a range of addresses.
+     * Read every untrimmed entry of a stream, from the address index of each log unit, rather
+     * than by following backpointers.
      *
-     * @param stream An address range to read from.
-     * @return A result, which be cached.
+     * @param stream The stream to read.
+     * @return A map of the entries of the stream, by address, which are cached.
      */
     public Map<Long, ILogUnitEntry> readPrefix(UUID stream) {
-        /* TODO : implement in both backpointer and Replex cases */
-        throw new UnsupportedOperationException("unsupported");
+        Map<Long, ILogUnitEntry> result = layoutHelper(l -> {
+            Map<Long, ILogUnitEntry> entries = new ConcurrentHashMap<>();
+            for (Layout.LayoutSegment s : l.getSegments()) {
+                entries.putAll(AbstractReplicationView.getReplicationView(l, s.getReplicationMode(), s)
+                        .read(stream));
+            }
+            return entries;
+        });
+        if (!runtime.isCacheDisabled()) {
+            readCache.putAll(result);
+        }
+        return result;
     }
 
 
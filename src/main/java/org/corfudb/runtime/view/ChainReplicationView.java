@@ -15,11 +15,13 @@ import org.corfudb.util.Utils;
 import org.corfudb.util.serializer.Serializers;
 
 import java.util.AbstractMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * A view of an address implemented by chain replication.
@@ -111,17 +113,13 @@ public class ChainReplicationView extends AbstractReplicationView {
                 });
         ConcurrentHashMap<Long, ILogUnitEntry> resultMap = new ConcurrentHashMap<>();
         rangeMap.entrySet().parallelStream()
-                .forEach(x -> {
-                    CFUtils.getUninterruptibly(
-                            layout.getLogUnitClient(eMap.get(x.getKey()), layout.getSegmentLength(eMap.get(x.getKey())) - 1)
-                                    .readRange(x.getValue()))
-                            .entrySet().parallelStream()
-                            .forEach(ex -> {
-                                long globalAddress = layout.getGlobalAddress(x.getKey(), ex.getKey());
-                                ex.getValue().setAddress(globalAddress);
-                                resultMap.put(globalAddress, ex.getValue());
-                            });
-                });
+                .forEach(x -> CFUtils.getUninterruptibly(
+                        layout.getLogUnitClient(eMap.get(x.getKey()), layout.getSegmentLength(eMap.get(x.getKey())) - 1)
+                                .readRange(x.getValue(), chunk -> chunk.forEach((localAddress, result) -> {
+                                    long globalAddress = layout.getGlobalAddress(x.getKey(), localAddress);
+                                    result.setAddress(globalAddress);
+                                    resultMap.put(globalAddress, result);
+                                }))));
         return resultMap;
     }
 
@@ -133,8 +131,31 @@ public class ChainReplicationView extends AbstractReplicationView {
      */
     @Override
     public Map<Long, ILogUnitEntry> read(UUID stream) {
-        // TODO: when chain replication is used, scan
-       throw new UnsupportedOperationException("not supported in chain replication");
+        // Every log unit indexes the addresses of each stream it holds, so the last unit of each
+        // stripe is asked for the addresses of the stream, which are then read as a range.
+        ConcurrentHashMap<Long, ILogUnitEntry> resultMap = new ConcurrentHashMap<>();
+        int numStripes = segment.getNumberOfStripes();
+        IntStream.range(0, numStripes).parallel()
+                .forEach(i -> {
+                    List<String> servers = segment.getStripes().get(i).getLogServers();
+                    LogUnitClient client = layout.getRuntime().getRouter(servers.get(servers.size() - 1))
+                            .getClient(LogUnitClient.class);
+                    RangeSet<Long> addresses = CFUtils.getUninterruptibly(client.readStreamAddresses(stream));
+                    if (addresses.isEmpty()) {
+                        return;
+                    }
+                    CFUtils.getUninterruptibly(client.readRange(addresses, chunk ->
+                            chunk.forEach((localAddress, result) -> {
+                                long globalAddress = localAddress * numStripes + i;
+                                // The units of a stripe may serve several segments.
+                                if (globalAddress >= segment.getStart()
+                                        && (segment.getEnd() == -1 || globalAddress < segment.getEnd())) {
+                                    result.setAddress(globalAddress);
+                                    resultMap.put(globalAddress, result);
+                                }
+                            })));
+                });
+        return resultMap;
     }
 
     /**
@@ -1,5 +1,8 @@
 package org.corfudb.runtime.view;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.collect.ImmutableSet;
 import org.corfudb.runtime.CorfuRuntime;
 import org.corfudb.runtime.clients.SequencerClient;
 import org.corfudb.util.CFUtils;
@@ -8,10 +11,26 @@ import java.util.Set;
 import java.util.UUID;
 
 /**
+ * Concurrent requests for tokens of the same set of streams are coalesced into one request to the
+ * sequencer, and so are concurrent queries for the tail of the same set of streams: see
+ * {@link TokenRequestCoalescer}.
+ * <p>
  * Created by mwei on 12/10/15.
  */
 public class SequencerView extends AbstractView {
 
+    /**
+     * The coalescer of the requests for tokens of each set of streams, which is dropped once no request uses it.
+     */
+    private final Cache<Set<UUID>, TokenRequestCoalescer> issueCoalescers =
+            Caffeine.newBuilder().weakValues().build();
+
+    /**
+     * The coalescer of the queries for the tail of each set of streams, which is dropped once no query uses it.
+     */
+    private final Cache<Set<UUID>, TokenRequestCoalescer> queryCoalescers =
+            Caffeine.newBuilder().weakValues().build();
+
     public SequencerView(CorfuRuntime runtime) {
         super(runtime);
     }
@@ -24,6 +43,9 @@ public class SequencerView extends AbstractView {
      * @return The first token retrieved.
      */
     public SequencerClient.TokenResponse nextToken(Set<UUID> streamIDs, int numTokens) {
-        return layoutHelper(l -> CFUtils.getUninterruptibly(l.getSequencer(0).nextToken(streamIDs, numTokens)));
+        Cache<Set<UUID>, TokenRequestCoalescer> coalescers = numTokens == 0 ? queryCoalescers : issueCoalescers;
+        return coalescers.get(ImmutableSet.copyOf(streamIDs), streams -> new TokenRequestCoalescer(n ->
+                layoutHelper(l -> CFUtils.getUninterruptibly(l.getSequencer(0).nextToken(streams, n)))))
+                .nextToken(numTokens);
     }
 }
@@ -0,0 +1,142 @@
+package org.corfudb.runtime.view;
+
+import org.corfudb.runtime.clients.SequencerClient;
+import org.corfudb.util.CFUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongFunction;
+
+/**
+ * Coalesces the concurrent token requests of a client for one set of streams, of one kind: either
+ * requests for tokens, or queries for the tail.
+ * <p>
+ * At most one request is in flight to the sequencer at a time. The requests made while it is in
+ * flight wait, and are sent as a single request once it completes, by the first of them, on
+ * behalf of all of them. So a query is always answered by a query sent after it was made, and
+ * never sees a tail older than the tokens issued before it.
+ * <p>
+ * The tokens of a coalesced issue request are handed out to the requests it stands for in the
+ * order they were made, each taking a contiguous range. The first of them gets the backpointers
+ * the sequencer returned, and every other one gets the last token of the one before it, for each
+ * stream, since they are all for the same streams. Requests for different sets of streams are
+ * never coalesced, as the sequencer takes the last token of a request as the tail of every stream
+ * the request is for.
+ */
+class TokenRequestCoalescer {
+
+    /**
+     * A request waiting for its response.
+     */
+    private static class Waiter {
+        final long numTokens;
+
+        /**
+         * Completed with the response to the request.
+         */
+        final CompletableFuture<SequencerClient.TokenResponse> result = new CompletableFuture<>();
+
+        /**
+         * Completed with the batch the request is to send, if it is the first of a batch.
+         */
+        final CompletableFuture<List<Waiter>> turn = new CompletableFuture<>();
+
+        Waiter(long numTokens) {
+            this.numTokens = numTokens;
+        }
+    }
+
+    /**
+     * Sends a single request for a number of tokens to the sequencer.
+     */
+    private final LongFunction<SequencerClient.TokenResponse> sender;
+
+    /**
+     * Whether a request is in flight.
+     */
+    private boolean inFlight;
+
+    /**
+     * The requests waiting for the request in flight to complete.
+     */
+    private List<Waiter> waiting = new ArrayList<>();
+
+    TokenRequestCoalescer(LongFunction<SequencerClient.TokenResponse> sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Request tokens, or the tail if no tokens are requested, sending the request along with any
+     * others made concurrently.
+     *
+     * @param numTokens The number of tokens to request.
+     * @return The response to the request.
+     */
+    SequencerClient.TokenResponse nextToken(long numTokens) {
+        Waiter waiter = new Waiter(numTokens);
+        synchronized (this) {
+            waiting.add(waiter);
+            if (!inFlight) {
+                inFlight = true;
+                waiter.turn.complete(takeWaiting());
+            }
+        }
+        CFUtils.getUninterruptibly(CompletableFuture.anyOf(waiter.result, waiter.turn));
+        if (!waiter.result.isDone()) {
+            send(waiter.turn.join());
+        }
+        return CFUtils.getUninterruptibly(waiter.result);
+    }
+
+    /**
+     * Send the requests of a batch as one request, and hand the batch of requests which were made
+     * in the meantime to the first of them.
+     */
+    private void send(List<Waiter> batch) {
+        try {
+            long numTokens = 0;
+            for (Waiter waiter : batch) {
+                numTokens += waiter.numTokens;
+            }
+            SequencerClient.TokenResponse response = sender.apply(numTokens);
+            if (numTokens == 0) {
+                batch.forEach(waiter -> waiter.result.complete(response));
+            } else {
+                long token = response.getToken();
+                Map<UUID, Long> backpointers = response.getBackpointerMap();
+                for (Waiter waiter : batch) {
+                    waiter.result.complete(new SequencerClient.TokenResponse(token, backpointers));
+                    token += waiter.numTokens;
+                    long previous = token - 1;
+                    Map<UUID, Long> next = new HashMap<>();
+                    backpointers.keySet().forEach(stream -> next.put(stream, previous));
+                    backpointers = next;
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            batch.forEach(waiter -> waiter.result.completeExceptionally(e));
+        } finally {
+            synchronized (this) {
+                if (waiting.isEmpty()) {
+                    inFlight = false;
+                } else {
+                    List<Waiter> next = takeWaiting();
+                    next.get(0).turn.complete(next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the requests which are waiting. Must be called holding the lock on the coalescer.
+     */
+    private List<Waiter> takeWaiting() {
+        List<Waiter> batch = waiting;
+        waiting = new ArrayList<>();
+        return batch;
+    }
+}
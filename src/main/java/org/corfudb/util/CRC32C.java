@@ -0,0 +1,105 @@
+package org.corfudb.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * A CRC-32C (Castagnoli) checksum.
+ * <p>
+ * This produces the same values as java.util.zip.CRC32C, which is not available on Java 8. It uses
+ * the slicing-by-8 algorithm, which processes eight bytes per table lookup round, and can read
+ * directly from (mapped) byte buffers without copying them onto the heap.
+ */
+public class CRC32C implements Checksum {
+
+    /**
+     * The reflected Castagnoli polynomial.
+     */
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int t = 1; t < 8; t++) {
+                TABLES[t][i] = (TABLES[t - 1][i] >>> 8) ^ TABLES[0][TABLES[t - 1][i] & 0xFF];
+            }
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        int end = off + len;
+        for (; off + 8 <= end; off += 8) {
+            c ^= (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8
+                    | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+            c = TABLES[7][c & 0xFF] ^ TABLES[6][(c >>> 8) & 0xFF]
+                    ^ TABLES[5][(c >>> 16) & 0xFF] ^ TABLES[4][c >>> 24]
+                    ^ TABLES[3][b[off + 4] & 0xFF] ^ TABLES[2][b[off + 5] & 0xFF]
+                    ^ TABLES[1][b[off + 6] & 0xFF] ^ TABLES[0][b[off + 7] & 0xFF];
+        }
+        for (; off < end; off++) {
+            c = (c >>> 8) ^ TABLES[0][(c ^ b[off]) & 0xFF];
+        }
+        crc = c;
+    }
+
+    /**
+     * Update the checksum with the remaining bytes of a buffer. The position of the buffer
+     * is advanced to its limit.
+     *
+     * @param buffer The buffer to checksum.
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        // Read eight bytes at a time, in the byte order the table rounds expect.
+        ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int c = crc;
+        int pos = buffer.position();
+        int end = buffer.limit();
+        for (; pos + 8 <= end; pos += 8) {
+            long v = b.getLong(pos);
+            int hi = (int) (v >>> 32);
+            c ^= (int) v;
+            c = TABLES[7][c & 0xFF] ^ TABLES[6][(c >>> 8) & 0xFF]
+                    ^ TABLES[5][(c >>> 16) & 0xFF] ^ TABLES[4][c >>> 24]
+                    ^ TABLES[3][hi & 0xFF] ^ TABLES[2][(hi >>> 8) & 0xFF]
+                    ^ TABLES[1][(hi >>> 16) & 0xFF] ^ TABLES[0][hi >>> 24];
+        }
+        for (; pos < end; pos++) {
+            c = (c >>> 8) ^ TABLES[0][(c ^ buffer.get(pos)) & 0xFF];
+        }
+        crc = c;
+        buffer.position(end);
+    }
+
+    @Override
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
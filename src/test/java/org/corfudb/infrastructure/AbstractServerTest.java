@@ -63,4 +63,12 @@ public abstract class AbstractServerTest extends AbstractCorfuTest {
         message.setRequestID(requestCounter.getAndIncrement());
         router.sendServerMessage(message);
     }
+
+    public void sendMessages(List<CorfuMsg> messages) {
+        for (CorfuMsg message : messages) {
+            message.setClientID(testClientId);
+            message.setRequestID(requestCounter.getAndIncrement());
+        }
+        router.sendServerMessages(messages);
+    }
 }
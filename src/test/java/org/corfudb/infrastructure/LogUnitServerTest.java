@@ -1,12 +1,32 @@
 package org.corfudb.infrastructure;
 
-import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.corfudb.infrastructure.log.HeapDataCache;
+import org.corfudb.infrastructure.log.IDataCache;
+import org.corfudb.infrastructure.log.InMemoryLog;
 import org.corfudb.infrastructure.log.LogUnitEntry;
+import org.corfudb.infrastructure.log.OffHeapDataCache;
+import org.corfudb.infrastructure.log.StreamAddressIndex;
+import org.corfudb.protocols.wireprotocol.CorfuMsg;
+import org.corfudb.protocols.wireprotocol.CorfuRangeMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitFlushWatermarkMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitPrefixTrimMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitReadRequestMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitTrimMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitWriteMsg;
 import org.corfudb.runtime.CorfuRuntime;
 import org.junit.Test;
 
+import java.io.File;
 import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.corfudb.infrastructure.LogUnitServerAssertions.assertThat;
@@ -21,6 +41,37 @@ public class LogUnitServerTest extends AbstractServerTest {
         return new LogUnitServer(new ServerContextBuilder().build());
     }
 
+    /**
+     * Send a write of a payload to an address, with no backpointers, and wait for it to be answered.
+     * Writes to a sync log are answered by its writer thread, once they are durable.
+     */
+    void sendWrite(long address, Set<UUID> streams, String payload) {
+        LogUnitWriteMsg m = new LogUnitWriteMsg(address);
+        m.setStreams(streams);
+        m.setRank(0L);
+        m.setBackpointerMap(Collections.emptyMap());
+        m.setPayload(payload.getBytes());
+        int answered = getResponseMessages().size();
+        sendMessage(m);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (getResponseMessages().size() == answered) {
+            assertThat(System.nanoTime() - deadline)
+                    .isNegative();
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Write addresses 0 to count - 1, each with its address as the payload.
+     *
+     * @param streams The streams each address is written to.
+     */
+    void writeEntries(long count, Function<Long, Set<UUID>> streams) {
+        for (long address = 0; address < count; address++) {
+            sendWrite(address, streams.apply(address), Long.toString(address));
+        }
+    }
+
     @Test
     public void checkHeapLeak() throws Exception {
 
@@ -38,7 +89,7 @@ public class LogUnitServerTest extends AbstractServerTest {
         m.setPayload(payload);
         sendMessage(m);
 
-        LoadingCache<Long, LogUnitEntry> dataCache = s1.getDataCache();
+        IDataCache dataCache = s1.getDataCache();
         // Make sure that extra bytes are truncated from the payload byte buf
         assertThat(dataCache.get(address).getBuffer().capacity()).isEqualTo(payload.length);
 
@@ -109,5 +160,196 @@ public class LogUnitServerTest extends AbstractServerTest {
                 .matchesDataAtAddress(10000000, "10000000".getBytes());
     }
 
-}
+    @Test
+    public void offHeapCacheServesWrites()
+            throws Exception {
+        LogUnitServer s1 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(getTempDir())
+                .setMemory(false)
+                .setSync(true)
+                .setOffHeapCache(true)
+                .build());
+
+        this.router.reset();
+        this.router.addServer(s1);
+        writeEntries(10, address -> Collections.singleton(CorfuRuntime.getStreamID("a")));
+
+        assertThat(s1.getDataCache())
+                .isInstanceOf(OffHeapDataCache.class);
+        assertThat(s1.getDataCache().getIfPresent(5L).getStreams())
+                .containsExactly(CorfuRuntime.getStreamID("a"));
+        assertThat(s1)
+                .matchesDataAtAddress(0, "0".getBytes())
+                .matchesDataAtAddress(9, "9".getBytes());
+        s1.shutdown();
+    }
+
+    @Test
+    public void trimmedEntriesAreCollected()
+            throws Exception {
+        LogUnitServer s1 = new LogUnitServer(ServerContextBuilder.emptyContext());
+
+        this.router.reset();
+        this.router.addServer(s1);
+        writeEntries(10, address -> address == 2 ? ImmutableSet.of(CorfuRuntime.getStreamID("a"),
+                CorfuRuntime.getStreamID("b")) : Collections.singleton(CorfuRuntime.getStreamID("a")));
+
+        sendMessage(new LogUnitTrimMsg(4L, CorfuRuntime.getStreamID("a")));
+        s1.handleGC();
+
+        // Address 2 is also in stream b, which has not been trimmed.
+        assertThat(s1.getDataCache().getIfPresent(1L))
+                .isNull();
+        assertThat(s1.getDataCache().getIfPresent(2L))
+                .isNotNull();
+        assertThat(s1.getDataCache().getIfPresent(5L))
+                .isNotNull();
+        assertThat(s1.streamIndex.size(CorfuRuntime.getStreamID("a")))
+                .isEqualTo(5);
+
+        sendMessage(new LogUnitTrimMsg(2L, CorfuRuntime.getStreamID("b")));
+        s1.handleGC();
+        assertThat(s1.getDataCache().getIfPresent(2L))
+                .isNull();
+    }
+
+    @Test
+    public void trimsArePersistedAcrossRestarts()
+            throws Exception {
+        String serviceDir = getTempDir();
+        LogUnitServer s1 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setSync(true)
+                .build());
+
+        this.router.reset();
+        this.router.addServer(s1);
+        writeEntries(10, address -> Collections.singleton(CorfuRuntime.getStreamID(address < 8 ? "a" : "b")));
+        sendMessage(new LogUnitPrefixTrimMsg(4L));
+        sendMessage(new LogUnitTrimMsg(6L, CorfuRuntime.getStreamID("a")));
+        s1.shutdown();
+
+        LogUnitServer s2 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setSync(true)
+                .build());
+        this.router.reset();
+        this.router.addServer(s2);
+        assertThat(s2.getContiguousHead())
+                .isEqualTo(5L);
+
+        sendMessage(new LogUnitReadRequestMsg(3L));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsg.CorfuMsgType.ERROR_TRIMMED);
+        sendMessage(new LogUnitReadRequestMsg(6L));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsg.CorfuMsgType.ERROR_TRIMMED);
+        assertThat(s2)
+                .matchesDataAtAddress(7, "7".getBytes())
+                .matchesDataAtAddress(8, "8".getBytes());
+
+        sendWrite(2L, Collections.singleton(CorfuRuntime.getStreamID("b")), "2");
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsg.CorfuMsgType.ERROR_TRIMMED);
+        s2.shutdown();
+    }
+
+    @Test
+    public void acknowledgedWritesAreInTheDurableStreamIndex()
+            throws Exception {
+        String serviceDir = getTempDir();
+        LogUnitServer s1 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setSync(true)
+                .build());
+
+        this.router.reset();
+        this.router.addServer(s1);
+        writeEntries(10, address -> Collections.singleton(CorfuRuntime.getStreamID("a")));
+
+        // Without a shutdown, the index file already holds every acknowledged write.
+        StreamAddressIndex recovered = new StreamAddressIndex(serviceDir + File.separator + "stream_index");
+        assertThat(recovered.getAddresses(CorfuRuntime.getStreamID("a"), -1L))
+                .containsExactly(0L, 9L);
+        recovered.close();
+        s1.shutdown();
+    }
+
+    @Test
+    public void streamIndexFailuresAreServerExceptions()
+            throws Exception {
+        LogUnitServer s1 = new LogUnitServer(ServerContextBuilder.emptyContext());
+        setServer(s1);
+        StreamAddressIndex index = s1.streamIndex;
+        s1.streamIndex = new StreamAddressIndex() {
+            @Override
+            public void add(long address, Set<UUID> streams) {
+                throw new IllegalStateException("Injected index failure");
+            }
+        };
 
+        sendWrite(0L, Collections.singleton(CorfuRuntime.getStreamID("a")), "0");
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsg.CorfuMsgType.ERROR_SERVER_EXCEPTION);
+        assertThat(s1.getDataCache().getIfPresent(0L))
+                .isNull();
+
+        // The failed write gave up its address, so it can be written again.
+        s1.streamIndex = index;
+        sendWrite(0L, Collections.singleton(CorfuRuntime.getStreamID("a")), "0");
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsg.CorfuMsgType.ERROR_OK);
+        assertThat(s1)
+                .matchesDataAtAddress(0, "0".getBytes());
+        s1.shutdown();
+    }
+
+    @Test
+    public void flushWatermarkCoversSyncWrites()
+            throws Exception {
+        LogUnitServer s1 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(getTempDir())
+                .setMemory(false)
+                .setSync(true)
+                .build());
+
+        this.router.reset();
+        this.router.addServer(s1);
+        writeEntries(10, address -> Collections.singleton(CorfuRuntime.getStreamID("a")));
+
+        sendMessage(new CorfuMsg(CorfuMsg.CorfuMsgType.FLUSH_WATERMARK_REQUEST));
+        LogUnitFlushWatermarkMsg watermark = getLastMessageAs(LogUnitFlushWatermarkMsg.class);
+        assertThat(watermark.getDurableWatermark())
+                .isEqualTo(9L);
+        assertThat(watermark.getPendingWrites())
+                .isEqualTo(0L);
+        s1.shutdown();
+    }
+
+    @Test
+    public void failedRangeReadsAreReported()
+            throws Exception {
+        LogUnitServer s1 = new LogUnitServer(ServerContextBuilder.emptyContext());
+        setServer(s1);
+        s1.dataCache = new HeapDataCache(1_000_000L, new InMemoryLog(0, Long.MAX_VALUE) {
+            @Override
+            protected LogUnitEntry backendRead(long address) {
+                throw new IllegalStateException("Injected read failure");
+            }
+        }, MoreExecutors.directExecutor());
+
+        RangeSet<Long> ranges = TreeRangeSet.create();
+        ranges.add(Range.closed(0L, 9L));
+        sendMessage(new CorfuRangeMsg(CorfuMsg.CorfuMsgType.READ_RANGE, ranges));
+
+        // The client is told the read failed, rather than left waiting for its chunks.
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsg.CorfuMsgType.ERROR_SERVER_EXCEPTION);
+        assertThat(s1.rangeReads)
+                .isEmpty();
+        s1.shutdown();
+    }
+}
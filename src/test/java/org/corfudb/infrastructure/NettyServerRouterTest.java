@@ -0,0 +1,64 @@
+package org.corfudb.infrastructure;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.corfudb.AbstractCorfuTest;
+import org.corfudb.protocols.wireprotocol.CorfuMsg;
+import org.corfudb.protocols.wireprotocol.TokenRequestMsg;
+import org.corfudb.protocols.wireprotocol.TokenResponseMsg;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the {@link NettyServerRouter}.
+ */
+public class NettyServerRouterTest extends AbstractCorfuTest {
+
+    EmbeddedChannel channelOf(AbstractServer... servers) {
+        NettyServerRouter router = new NettyServerRouter(Collections.emptyMap());
+        for (AbstractServer server : servers) {
+            router.addServer(server);
+        }
+        return new EmbeddedChannel(router);
+    }
+
+    List<CorfuMsg> readResponses(EmbeddedChannel channel) {
+        List<CorfuMsg> responses = new ArrayList<>();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            responses.add((CorfuMsg) msg);
+        }
+        return responses;
+    }
+
+    @Test
+    public void batchedMessagesAreHandledInReadOrder() {
+        EmbeddedChannel channel = channelOf(new SequencerServer(ServerContextBuilder.emptyContext()));
+        CorfuMsg first = new TokenRequestMsg(Collections.<UUID>emptySet(), 1);
+        first.setRequestID(0);
+        CorfuMsg ping = new CorfuMsg(CorfuMsg.CorfuMsgType.PING);
+        ping.setRequestID(1);
+        CorfuMsg second = new TokenRequestMsg(Collections.<UUID>emptySet(), 1);
+        second.setRequestID(2);
+
+        // All three messages are read in one burst, and the ping is not batched.
+        channel.writeInbound(first, ping, second);
+
+        List<CorfuMsg> responses = readResponses(channel);
+        assertThat(responses)
+                .extracting(CorfuMsg::getRequestID)
+                .containsExactly(0L, 1L, 2L);
+        assertThat(responses.get(0))
+                .isInstanceOf(TokenResponseMsg.class);
+        assertThat(responses.get(1).getMsgType())
+                .isEqualTo(CorfuMsg.CorfuMsgType.PONG);
+        assertThat(((TokenResponseMsg) responses.get(2)).getToken())
+                .isEqualTo(((TokenResponseMsg) responses.get(0)).getToken() + 1);
+        channel.finish();
+    }
+}
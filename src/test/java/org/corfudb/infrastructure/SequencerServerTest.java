@@ -1,12 +1,22 @@
 package org.corfudb.infrastructure;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.corfudb.protocols.wireprotocol.CorfuMsg;
 import org.corfudb.protocols.wireprotocol.TokenRequestMsg;
 import org.corfudb.protocols.wireprotocol.TokenResponseMsg;
 import org.corfudb.runtime.CorfuRuntime;
 import org.junit.Test;
 
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.corfudb.infrastructure.SequencerServerAssertions.assertThat;
@@ -96,6 +106,75 @@ public class SequencerServerTest extends AbstractServerTest {
         }
     }
 
+    @Test
+    public void batchedRequestsTakeContiguousTokens() {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamA), 1));
+
+        List<CorfuMsg> batch = ImmutableList.of(
+                new TokenRequestMsg(Collections.singleton(streamA), 2),
+                new TokenRequestMsg(Collections.singleton(streamA), 0),
+                new TokenRequestMsg(ImmutableSet.of(streamA, streamB), 1),
+                new TokenRequestMsg(Collections.emptySet(), 3),
+                new TokenRequestMsg(Collections.singleton(streamB), 1));
+        sendMessages(batch);
+
+        assertThat(getResponseMessages())
+                .hasSize(6);
+        List<CorfuMsg> responses = getResponseMessages().subList(1, 6);
+        for (int i = 0; i < batch.size(); i++) {
+            assertThat(responses.get(i).getRequestID())
+                    .isEqualTo(batch.get(i).getRequestID());
+        }
+        // The batch is issued as if its requests had come one by one, with queries answered first.
+        assertThat(((TokenResponseMsg) responses.get(0)).getToken())
+                .isEqualTo(1L);
+        assertThat(((TokenResponseMsg) responses.get(0)).getBackpointerMap())
+                .containsEntry(streamA, 0L);
+        assertThat(((TokenResponseMsg) responses.get(1)).getToken())
+                .isEqualTo(0L);
+        assertThat(((TokenResponseMsg) responses.get(2)).getToken())
+                .isEqualTo(3L);
+        assertThat(((TokenResponseMsg) responses.get(2)).getBackpointerMap())
+                .containsEntry(streamA, 2L)
+                .containsEntry(streamB, -1L);
+        assertThat(((TokenResponseMsg) responses.get(3)).getToken())
+                .isEqualTo(4L);
+        assertThat(((TokenResponseMsg) responses.get(4)).getToken())
+                .isEqualTo(7L);
+        assertThat(((TokenResponseMsg) responses.get(4)).getBackpointerMap())
+                .containsEntry(streamB, 3L);
+
+        sendMessage(new TokenRequestMsg(ImmutableSet.of(streamA, streamB), 0));
+        assertThat(getLastMessageAs(TokenResponseMsg.class).getToken())
+                .isEqualTo(7L);
+        sendMessage(new TokenRequestMsg(Collections.emptySet(), 0));
+        assertThat(getLastMessageAs(TokenResponseMsg.class).getToken())
+                .isEqualTo(7L);
+    }
+
+    @Test
+    public void backpointersAreEncodedWithoutAMap() {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamA), 1));
+        sendMessage(new TokenRequestMsg(ImmutableSet.of(streamA, streamB), 2));
+
+        TokenResponseMsg response = getLastMessageAs(TokenResponseMsg.class);
+        assertThat(response.getBackpointers())
+                .hasSize(6);
+        TokenResponseMsg decoded = (TokenResponseMsg) router.simulateSerialization(response);
+        assertThat(decoded.getToken())
+                .isEqualTo(1L);
+        assertThat(decoded.getBackpointerMap())
+                .hasSize(2)
+                .containsEntry(streamA, 0L)
+                .containsEntry(streamB, -1L);
+        assertThat(response.getBackpointerMap())
+                .isEqualTo(decoded.getBackpointerMap());
+    }
+
     @Test
     public void checkSequencerCheckpointingWorks()
             throws Exception {
@@ -129,4 +208,92 @@ public class SequencerServerTest extends AbstractServerTest {
                 .tokenIsAt(2);
     }
 
+    @Test
+    public void streamTailsAreRecovered()
+            throws Exception {
+        String serviceDir = getTempDir();
+        UUID streamA = CorfuRuntime.getStreamID("a");
+        UUID streamB = CorfuRuntime.getStreamID("b");
+
+        SequencerServer s1 = new SequencerServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setInitialToken(0)
+                .setCheckpoint(60)
+                .build());
+        setServer(s1);
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamA), 1));
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamB), 1));
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamA), 2));
+        s1.checkpointState();
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamB), 1));
+        s1.shutdown();
+
+        SequencerServer s2 = new SequencerServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setInitialToken(-1)
+                .setCheckpoint(60)
+                .build());
+        setServer(s2);
+        assertThat(s2)
+                .tokenIsAt(5);
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamA), 0));
+        assertThat(getLastMessageAs(TokenResponseMsg.class).getToken())
+                .isEqualTo(3L);
+        sendMessage(new TokenRequestMsg(ImmutableSet.of(streamA, streamB), 1));
+        assertThat(getLastMessageAs(TokenResponseMsg.class).getBackpointerMap())
+                .containsEntry(streamA, 3L)
+                .containsEntry(streamB, 4L);
+        s2.shutdown();
+
+        // A sequencer which starts from a given token discards the tails.
+        SequencerServer s3 = new SequencerServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setInitialToken(0)
+                .setCheckpoint(60)
+                .build());
+        setServer(s3);
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamA), 0));
+        assertThat(getLastMessageAs(TokenResponseMsg.class).getToken())
+                .isEqualTo(-1L);
+        s3.shutdown();
+    }
+
+    @Test
+    public void concurrentRequestsChainBackpointers()
+            throws Exception {
+        final int threads = 8;
+        final int requests = 1000;
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+        SequencerServer server = new SequencerServer(ServerContextBuilder.emptyContext());
+        Map<UUID, Map<Long, Long>> backpointers = ImmutableMap.of(streamA, new ConcurrentHashMap<>(),
+                streamB, new ConcurrentHashMap<>());
+        scheduleConcurrently(threads, t -> {
+            for (int i = 0; i < requests; i++) {
+                Set<UUID> streams = i % 2 == 0 ? Collections.singleton(t % 2 == 0 ? streamA : streamB)
+                        : ImmutableSet.of(streamA, streamB);
+                TokenResponseMsg token = server.issuer.issue(streams, 1);
+                token.getBackpointerMap().forEach((stream, backpointer) ->
+                        backpointers.get(stream).put(token.getToken(), backpointer));
+            }
+        });
+        executeScheduled(threads, 50, TimeUnit.SECONDS);
+
+        assertThat(server)
+                .tokenIsAt(threads * requests);
+        // Whatever the interleaving, each token of a stream points back to the one issued before it.
+        for (Map<Long, Long> streamTokens : backpointers.values()) {
+            long previous = -1L;
+            for (Map.Entry<Long, Long> e : new TreeMap<>(streamTokens).entrySet()) {
+                assertThat(e.getValue())
+                        .isEqualTo(previous);
+                previous = e.getKey();
+            }
+        }
+        assertThat(server.issuer.query(ImmutableSet.of(streamA, streamB)))
+                .isEqualTo(threads * requests - 1);
+    }
 }
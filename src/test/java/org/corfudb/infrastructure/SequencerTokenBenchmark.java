@@ -0,0 +1,131 @@
+package org.corfudb.infrastructure;
+
+import io.netty.channel.ChannelHandlerContext;
+import org.corfudb.protocols.wireprotocol.CorfuMsg;
+import org.corfudb.protocols.wireprotocol.TokenRequestMsg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the tokens per second a {@link SequencerServer} issues as the number of threads
+ * requesting tokens grows from 1 to 64, with every request handled under a single lock (which
+ * is how the handler was serialized before token issuance became lock-free), without, and in
+ * batches, as the requests of a read burst of a channel are handled.
+ * <p>
+ * Each request is for one token of one of a set of streams, so requests for the same stream
+ * contend on its tail.
+ * <p>
+ * Usage: SequencerTokenBenchmark [seconds per run] [streams] [requests per batch]
+ */
+public class SequencerTokenBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 2L;
+        int numStreams = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        UUID[] streams = new UUID[numStreams];
+        for (int i = 0; i < numStreams; i++) {
+            streams[i] = UUID.nameUUIDFromBytes(("stream" + i).getBytes());
+        }
+
+        System.out.println(String.format("%8s %16s %16s %16s", "threads", "locked tok/s", "lock-free tok/s",
+                "batched tok/s"));
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            double locked = run(threads, seconds, streams, true, 1);
+            double lockFree = run(threads, seconds, streams, false, 1);
+            double batched = run(threads, seconds, streams, false, batchSize);
+            System.out.println(String.format("%8d %16.0f %16.0f %16.0f", threads, locked, lockFree, batched));
+        }
+    }
+
+    static double run(int threads, long seconds, UUID[] streams, boolean locked, int batchSize)
+            throws Exception {
+        SequencerServer server = new SequencerServer(ServerContextBuilder.emptyContext());
+        IServerRouter router = new NullRouter();
+        Object lock = new Object();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong issued = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            Thread worker = new Thread(() -> {
+                long count = 0;
+                try {
+                    start.await();
+                    while (running.get()) {
+                        if (batchSize > 1) {
+                            List<CorfuMsg> batch = new ArrayList<>(batchSize);
+                            for (int i = 0; i < batchSize; i++) {
+                                batch.add(new TokenRequestMsg(
+                                        Collections.singleton(streams[(int) ((thread + count + i) % streams.length)]), 1));
+                            }
+                            server.handleMessages(batch, null, router);
+                            count += batchSize;
+                            continue;
+                        }
+                        TokenRequestMsg req = new TokenRequestMsg(
+                                Collections.singleton(streams[(int) ((thread + count) % streams.length)]), 1);
+                        if (locked) {
+                            synchronized (lock) {
+                                server.handleMessage(req, null, router);
+                            }
+                        } else {
+                            server.handleMessage(req, null, router);
+                        }
+                        count++;
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    issued.addAndGet(count);
+                    done.countDown();
+                }
+            });
+            worker.setDaemon(true);
+            worker.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running.set(false);
+        done.await();
+        long elapsed = System.nanoTime() - startTime;
+        return issued.get() / (elapsed / 1e9);
+    }
+
+    /**
+     * A router which drops every response, so only the sequencer itself is measured.
+     */
+    static class NullRouter implements IServerRouter {
+
+        volatile long serverEpoch;
+
+        @Override
+        public void sendResponse(ChannelHandlerContext ctx, CorfuMsg inMsg, CorfuMsg outMsg) {
+            // Dropped.
+        }
+
+        @Override
+        public long getServerEpoch() {
+            return serverEpoch;
+        }
+
+        @Override
+        public void setServerEpoch(long newEpoch) {
+            serverEpoch = newEpoch;
+        }
+
+        @Override
+        public void addServer(AbstractServer server) {
+            // Not needed.
+        }
+    }
+}
@@ -20,6 +20,7 @@ public class ServerContextBuilder {
     String logPath = null;
     boolean sync = false;
     int maxCache = 1000000;
+    boolean offHeapCache = false;
     int checkpoint = 100;
     String address = "test";
     int port = 9000;
@@ -41,6 +42,7 @@ public class ServerContextBuilder {
          builder
                 .put("--sync", sync)
                 .put("--max-cache", maxCache)
+                .put("--off-heap-cache", offHeapCache)
                 .put("--checkpoint", checkpoint)
                 .put("--address", address)
                 .put("<port>", port);
@@ -0,0 +1,103 @@
+package org.corfudb.infrastructure;
+
+import org.corfudb.AbstractCorfuTest;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the {@link StreamTailCheckpoint}.
+ */
+public class StreamTailCheckpointTest extends AbstractCorfuTest {
+
+    private static UUID stream(int i) {
+        return UUID.nameUUIDFromBytes(("stream" + i).getBytes());
+    }
+
+    @Test
+    public void onlyChangedTailsAreAppended()
+            throws Exception {
+        String path = getTempDir() + File.separator + "tails";
+        TokenIssuer issuer = new TokenIssuer(new AtomicLong());
+        StreamTailCheckpoint checkpoint = new StreamTailCheckpoint(path, issuer, true);
+        for (int i = 0; i < 10; i++) {
+            issuer.issue(Collections.singleton(stream(i)), 1);
+        }
+        checkpoint.checkpoint();
+        assertThat(new File(path).length())
+                .isEqualTo(10L * StreamTailCheckpoint.RECORD_SIZE);
+
+        issuer.issue(Collections.singleton(stream(3)), 1);
+        checkpoint.checkpoint();
+        checkpoint.checkpoint();
+        assertThat(new File(path).length())
+                .isEqualTo(11L * StreamTailCheckpoint.RECORD_SIZE);
+        checkpoint.close();
+
+        TokenIssuer recovered = new TokenIssuer(new AtomicLong());
+        StreamTailCheckpoint reopened = new StreamTailCheckpoint(path, recovered, true);
+        assertThat(reopened.getMaxTail())
+                .isEqualTo(10L);
+        assertThat(recovered.query(Collections.singleton(stream(3))))
+                .isEqualTo(10L);
+        assertThat(recovered.query(Collections.singleton(stream(9))))
+                .isEqualTo(9L);
+        reopened.close();
+    }
+
+    @Test
+    public void tornRecordIsDiscarded()
+            throws Exception {
+        String path = getTempDir() + File.separator + "tails";
+        TokenIssuer issuer = new TokenIssuer(new AtomicLong());
+        StreamTailCheckpoint checkpoint = new StreamTailCheckpoint(path, issuer, true);
+        issuer.issue(Collections.singleton(stream(0)), 1);
+        issuer.issue(Collections.singleton(stream(1)), 1);
+        checkpoint.checkpoint();
+        checkpoint.close();
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(2L * StreamTailCheckpoint.RECORD_SIZE - 3);
+        }
+
+        TokenIssuer recovered = new TokenIssuer(new AtomicLong());
+        StreamTailCheckpoint reopened = new StreamTailCheckpoint(path, recovered, true);
+        assertThat(recovered.streamCount())
+                .isEqualTo(1);
+        assertThat(new File(path).length())
+                .isEqualTo(StreamTailCheckpoint.RECORD_SIZE);
+        reopened.close();
+    }
+
+    @Test
+    public void deltasAreReplacedBySnapshot()
+            throws Exception {
+        final int streams = 1000;
+        String path = getTempDir() + File.separator + "tails";
+        TokenIssuer issuer = new TokenIssuer(new AtomicLong());
+        StreamTailCheckpoint checkpoint = new StreamTailCheckpoint(path, issuer, true);
+        for (int round = 0; round * streams <= StreamTailCheckpoint.MIN_SNAPSHOT_RECORDS; round++) {
+            for (int i = 0; i < streams; i++) {
+                issuer.issue(Collections.singleton(stream(i)), 1);
+            }
+            checkpoint.checkpoint();
+        }
+        assertThat(new File(path).length())
+                .isEqualTo((long) streams * StreamTailCheckpoint.RECORD_SIZE);
+        long tail = issuer.query(Collections.singleton(stream(streams - 1)));
+        checkpoint.close();
+
+        TokenIssuer recovered = new TokenIssuer(new AtomicLong());
+        StreamTailCheckpoint reopened = new StreamTailCheckpoint(path, recovered, true);
+        assertThat(recovered.streamCount())
+                .isEqualTo(streams);
+        assertThat(recovered.query(Collections.singleton(stream(streams - 1))))
+                .isEqualTo(tail);
+        reopened.close();
+    }
+}
@@ -0,0 +1,86 @@
+package org.corfudb.infrastructure;
+
+import org.corfudb.AbstractCorfuTest;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the {@link StreamTailTable}.
+ */
+public class StreamTailTableTest extends AbstractCorfuTest {
+
+    @Test
+    public void absentStreamsHaveNoTail() {
+        StreamTailTable table = new StreamTailTable();
+        UUID stream = UUID.nameUUIDFromBytes("stream".getBytes());
+        assertThat(table.get(stream.getMostSignificantBits(), stream.getLeastSignificantBits()))
+                .isEqualTo(StreamTailTable.NO_TAIL);
+        assertThat(table.compareAndSet(stream.getMostSignificantBits(), stream.getLeastSignificantBits(), 5L, 6L))
+                .isFalse();
+        assertThat(table.size())
+                .isEqualTo(0);
+        assertThat(table.compareAndSet(stream.getMostSignificantBits(), stream.getLeastSignificantBits(),
+                StreamTailTable.NO_TAIL, 6L))
+                .isTrue();
+        assertThat(table.get(stream.getMostSignificantBits(), stream.getLeastSignificantBits()))
+                .isEqualTo(6L);
+        assertThat(table.size())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void tailsAreKeptAsTheTableGrows() {
+        final int streams = 100_000;
+        StreamTailTable table = new StreamTailTable();
+        for (int i = 0; i < streams; i++) {
+            UUID stream = UUID.nameUUIDFromBytes(("stream" + i).getBytes());
+            table.set(stream.getMostSignificantBits(), stream.getLeastSignificantBits(), i);
+        }
+        // Ids which differ in one half only must not collide.
+        for (int i = 0; i < streams; i++) {
+            table.set(0L, i, streams + i);
+        }
+        assertThat(table.size())
+                .isEqualTo(streams * 2);
+        for (int i = 0; i < streams; i++) {
+            UUID stream = UUID.nameUUIDFromBytes(("stream" + i).getBytes());
+            assertThat(table.get(stream.getMostSignificantBits(), stream.getLeastSignificantBits()))
+                    .isEqualTo(i);
+            assertThat(table.get(0L, i))
+                    .isEqualTo(streams + i);
+        }
+    }
+
+    @Test
+    public void concurrentUpdatesAreNotLost()
+            throws Exception {
+        final int threads = 8;
+        final int streams = 10_000;
+        StreamTailTable table = new StreamTailTable();
+        // Every thread adds every stream, in a different order, so streams are added while the
+        // table grows and others are updated.
+        scheduleConcurrently(threads, t -> {
+            for (int i = 0; i < streams; i++) {
+                long lsb = (i * 7919L + t * 104729L) % streams;
+                while (true) {
+                    long tail = table.get(1L, lsb);
+                    if (table.compareAndSet(1L, lsb, tail, tail + 1)) {
+                        break;
+                    }
+                }
+            }
+        });
+        executeScheduled(threads, 50, TimeUnit.SECONDS);
+
+        assertThat(table.size())
+                .isEqualTo(streams);
+        for (long lsb = 0; lsb < streams; lsb++) {
+            assertThat(table.get(1L, lsb))
+                    .isEqualTo(StreamTailTable.NO_TAIL + threads);
+        }
+    }
+}
@@ -12,6 +12,7 @@ import org.corfudb.runtime.clients.TestRule;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -44,7 +45,8 @@ public class TestServerRouter implements IServerRouter {
     }
 
     public void reset() {
-        this.responseMessages = new ArrayList<>();
+        // Responses may be sent from the threads of a server, such as its log writers.
+        this.responseMessages = Collections.synchronizedList(new ArrayList<>());
         this.requestCounter = new AtomicLong();
         this.handlerMap = new ConcurrentHashMap<>();
         this.rules = new ArrayList<>();
@@ -62,6 +64,8 @@ public class TestServerRouter implements IServerRouter {
             } else {
                 this.responseMessages.add(outMsg);
             }
+        } else {
+            outMsg.releaseReferences();
         }
     }
 
@@ -93,6 +97,21 @@ public class TestServerRouter implements IServerRouter {
         }
     }
 
+    /**
+     * Send a batch of messages of one type, as if they were read from a channel in one burst.
+     *
+     * @param msgs The messages to send.
+     */
+    public void sendServerMessages(List<CorfuMsg> msgs) {
+        AbstractServer as = handlerMap.get(msgs.get(0).getMsgType());
+        if (as != null) {
+            as.handleMessages(msgs, null, this);
+        }
+        else {
+            log.trace("Unregistered message of type {} sent to router", msgs.get(0).getMsgType());
+        }
+    }
+
     public void sendServerMessage(CorfuMsg msg, ChannelHandlerContext ctx) {
         AbstractServer as = handlerMap.get(msg.getMsgType());
         if (as != null) {
@@ -0,0 +1,70 @@
+package org.corfudb.infrastructure.log;
+
+import org.corfudb.AbstractCorfuTest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the {@link AddressBitmap}.
+ */
+public class AddressBitmapTest extends AbstractCorfuTest {
+
+    @Test
+    public void bitsAreSetOnce() {
+        AddressBitmap bitmap = new AddressBitmap(RollingLog.RECORDS_PER_SEGMENT);
+        assertThat(bitmap.set(9999))
+                .isTrue();
+        assertThat(bitmap.set(9999))
+                .isFalse();
+        assertThat(bitmap.get(9998))
+                .isFalse();
+
+        bitmap.clear(9999);
+        assertThat(bitmap.get(9999))
+                .isFalse();
+        assertThat(bitmap.set(9999))
+                .isTrue();
+        assertThat(bitmap.cardinality())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void concurrentSetsClaimEachBitOnce()
+            throws Exception {
+        final int threads = 4;
+        AddressBitmap bitmap = new AddressBitmap(RollingLog.RECORDS_PER_SEGMENT);
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> claims = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            claims.add(executor.submit(() -> {
+                barrier.await();
+                int claimed = 0;
+                for (int i = 0; i < bitmap.size(); i++) {
+                    if (bitmap.set(i)) {
+                        claimed++;
+                    }
+                }
+                return claimed;
+            }));
+        }
+        int total = 0;
+        for (Future<Integer> f : claims) {
+            total += f.get();
+        }
+        executor.shutdown();
+
+        assertThat(total)
+                .isEqualTo(RollingLog.RECORDS_PER_SEGMENT);
+        assertThat(bitmap.cardinality())
+                .isEqualTo(RollingLog.RECORDS_PER_SEGMENT);
+    }
+}
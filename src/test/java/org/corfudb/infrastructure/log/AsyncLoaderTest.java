@@ -0,0 +1,140 @@
+package org.corfudb.infrastructure.log;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.corfudb.AbstractCorfuTest;
+import org.corfudb.protocols.wireprotocol.IMetadata;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for the {@link AsyncLoader}.
+ */
+public class AsyncLoaderTest extends AbstractCorfuTest {
+
+    @Test
+    public void concurrentLoadsAreCoalesced()
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            AsyncLoader loader = new AsyncLoader(executor);
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger loads = new AtomicInteger();
+            CompletableFuture<LogUnitEntry> first = loader.load(5L, address -> {
+                loads.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException(ie);
+                }
+                return new LogUnitEntry(address);
+            });
+            CompletableFuture<LogUnitEntry> second = loader.load(5L, address -> {
+                loads.incrementAndGet();
+                return null;
+            });
+            // The caller is never blocked by the load.
+            assertThat(first.isDone())
+                    .isFalse();
+            assertThat(second.isDone())
+                    .isFalse();
+
+            release.countDown();
+            assertThat(first.get(1, TimeUnit.MINUTES).getAddress())
+                    .isEqualTo(5L);
+            assertThat(second.get(1, TimeUnit.MINUTES).getAddress())
+                    .isEqualTo(5L);
+            assertThat(loads.get())
+                    .isEqualTo(1);
+
+            // Once complete, the address is loaded again.
+            assertThat(loader.load(5L, address -> null).get(1, TimeUnit.MINUTES))
+                    .isNull();
+            assertThat(loader.getPendingCount())
+                    .isEqualTo(0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void loadsStartedOnCompletionReadAgain()
+            throws Exception {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        AsyncLoader loader = new AsyncLoader(tasks::add);
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<LogUnitEntry> first = loader.load(3L, address -> {
+            loads.incrementAndGet();
+            return null;
+        });
+        // A reader which loads the address again as soon as the first load completes, from
+        // within the completion, must not join the load which just completed.
+        CompletableFuture<CompletableFuture<LogUnitEntry>> reload = first.thenApply(e ->
+                loader.load(3L, address -> {
+                    loads.incrementAndGet();
+                    return new LogUnitEntry(address);
+                }));
+        tasks.poll().run();
+        assertThat(first.get(1, TimeUnit.MINUTES))
+                .isNull();
+        assertThat(reload.get(1, TimeUnit.MINUTES))
+                .isNotSameAs(first);
+
+        tasks.poll().run();
+        assertThat(reload.get(1, TimeUnit.MINUTES).get(1, TimeUnit.MINUTES).getAddress())
+                .isEqualTo(3L);
+        assertThat(loads.get())
+                .isEqualTo(2);
+        assertThat(loader.getPendingCount())
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void sharedLoadsHoldTheirOwnReferences()
+            throws Exception {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        AsyncLoader loader = new AsyncLoader(tasks::add);
+        ByteBuf payload = Unpooled.buffer();
+        payload.writeLong(7L);
+        CompletableFuture<LogUnitEntry> first = loader.load(7L, address ->
+                new LogUnitEntry(address, payload, new EnumMap<>(IMetadata.LogUnitMetadataType.class), false));
+        CompletableFuture<LogUnitEntry> second = loader.load(7L, address -> null);
+        tasks.poll().run();
+
+        // The load released its own reference, and each caller holds one.
+        assertThat(payload.refCnt())
+                .isEqualTo(2);
+        first.get(1, TimeUnit.MINUTES).release();
+        assertThat(second.get(1, TimeUnit.MINUTES).getBuffer().getLong(0))
+                .isEqualTo(7L);
+        second.get(1, TimeUnit.MINUTES).release();
+        assertThat(payload.refCnt())
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void failedLoadsCompleteExceptionally() {
+        AsyncLoader loader = new AsyncLoader(Runnable::run);
+        CompletableFuture<LogUnitEntry> future = loader.load(1L, address -> {
+            throw new IllegalStateException("corrupt");
+        });
+        assertThatThrownBy(future::get)
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(loader.getPendingCount())
+                .isEqualTo(0);
+    }
+}
@@ -0,0 +1,131 @@
+package org.corfudb.infrastructure.log;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.RateLimiter;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.corfudb.protocols.logprotocol.SMREntry;
+import org.corfudb.protocols.wireprotocol.IMetadata;
+import org.corfudb.util.serializer.Serializers;
+
+import java.io.File;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the size on disk and the write and read throughput of a {@link RollingLog} whose
+ * segments are written raw, against one whose records are packed into compressed blocks, on an
+ * SMRMap workload: every entry is a put of a string key and value, serialized as the runtime does.
+ * Compressed logs are also written in sync mode with several batch sizes, since records are packed
+ * once their segment is sealed, so the ratio should not depend on how writes were batched.
+ * <p>
+ * Usage: CompressedLogBenchmark [entries] [value size] [block size] [reads]
+ */
+public class CompressedLogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+        String blockSize = args.length > 2 ? args[2] : Integer.toString(RollingLog.DEFAULT_COMPRESSION_BLOCK_SIZE);
+        int reads = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+
+        byte[][] payloads = new byte[entries][];
+        Random random = new Random(0);
+        for (int i = 0; i < entries; i++) {
+            StringBuilder value = new StringBuilder();
+            while (value.length() < valueSize) {
+                value.append("field").append(random.nextInt(100)).append('=').append(random.nextInt(1000)).append(';');
+            }
+            SMREntry entry = new SMREntry("put", new Object[]{"key" + random.nextInt(entries / 10 + 1),
+                    value.toString()}, Serializers.SerializerType.JSON);
+            ByteBuf b = Unpooled.buffer();
+            Serializers.getSerializer(Serializers.SerializerType.CORFU).serialize(entry, b);
+            payloads[i] = new byte[b.readableBytes()];
+            b.readBytes(payloads[i]);
+            b.release();
+        }
+        long[] addresses = new long[reads];
+        for (int i = 0; i < reads; i++) {
+            addresses[i] = random.nextInt(entries);
+        }
+
+        System.out.println(String.format("%d SMRMap puts of %d byte values, %d random reads", entries, valueSize,
+                reads));
+        long rawSize = run("Raw", ImmutableMap.of("--sync", false), payloads, addresses);
+        long compressedSize = run("Compressed", ImmutableMap.of("--sync", false, "--compress", true,
+                "--compress-block-size", blockSize), payloads, addresses);
+        System.out.println(String.format("Compression ratio: %.2f", (double) rawSize / compressedSize));
+        for (String batchSize : new String[]{"1", "16", "64"}) {
+            long syncSize = run("Sync/" + batchSize, ImmutableMap.of("--sync", true, "--sync-batch-size", batchSize,
+                    "--compress", true, "--compress-block-size", blockSize), payloads, addresses);
+            System.out.println(String.format("Compression ratio with sync batches of %s: %.2f", batchSize,
+                    (double) rawSize / syncSize));
+        }
+    }
+
+    /**
+     * Write the payloads to a new log, then pack the sealed segments of a fresh instance of the log,
+     * read them back sequentially and randomly, and print the throughput of each phase.
+     *
+     * @return The number of bytes the log takes on disk.
+     */
+    static long run(String name, Map<String, Object> opts, byte[][] payloads, long[] addresses) {
+        File dir = com.google.common.io.Files.createTempDir();
+        String logPath = dir.getAbsolutePath() + File.separator + "log";
+        try {
+            RollingLog writer = new RollingLog(0, Long.MAX_VALUE, logPath, opts);
+            long start = System.nanoTime();
+            for (int i = 0; i < payloads.length; i++) {
+                writer.write(i, new LogUnitEntry(i, Unpooled.wrappedBuffer(payloads[i]),
+                        new EnumMap<>(IMetadata.LogUnitMetadataType.class), false));
+            }
+            // A write to the next segment seals every segment of the workload, so that it can be packed.
+            long tail = (payloads.length + RollingLog.RECORDS_PER_SEGMENT - 1L) / RollingLog.RECORDS_PER_SEGMENT
+                    * RollingLog.RECORDS_PER_SEGMENT;
+            writer.write(tail, new LogUnitEntry(tail, Unpooled.wrappedBuffer(new byte[1]),
+                    new EnumMap<>(IMetadata.LogUnitMetadataType.class), false));
+            // Closing waits for every queued write to be written and forced to disk.
+            writer.close();
+            long writeNanos = System.nanoTime() - start;
+
+            RollingLog reader = new RollingLog(0, Long.MAX_VALUE, logPath, opts);
+            start = System.nanoTime();
+            // Only segments which are open are compacted.
+            for (long segment : reader.listSegments()) {
+                reader.getChannelForAddress(segment * RollingLog.RECORDS_PER_SEGMENT);
+            }
+            reader.compact(RateLimiter.create(Double.MAX_VALUE));
+            long packNanos = System.nanoTime() - start;
+            long size = 0L;
+            for (long segment : reader.listSegments()) {
+                size += reader.getChannelForAddress(segment * RollingLog.RECORDS_PER_SEGMENT).getFilePointer().get();
+            }
+            start = System.nanoTime();
+            for (int i = 0; i < payloads.length; i++) {
+                reader.read(i);
+            }
+            long scanNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (long address : addresses) {
+                reader.read(address);
+            }
+            long randomNanos = System.nanoTime() - start;
+            reader.close();
+
+            System.out.println(String.format("%-10s %10d bytes, write %8.0f entries/s, pack %8.0f entries/s, "
+                            + "sequential read %8.0f entries/s, random read %8.0f entries/s", name, size,
+                    payloads.length * 1e9 / writeNanos, payloads.length * 1e9 / packNanos,
+                    payloads.length * 1e9 / scanNanos, addresses.length * 1e9 / randomNanos));
+            return size;
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.corfudb.infrastructure.log;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.corfudb.AbstractCorfuTest;
+import org.corfudb.protocols.wireprotocol.IMetadata;
+import org.corfudb.runtime.exceptions.OutOfSpaceException;
+import org.junit.Test;
+
+import java.util.EnumMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for the {@link InMemoryLog}.
+ */
+public class InMemoryLogTest extends AbstractCorfuTest {
+
+    static final int ENTRY_SIZE = 100;
+
+    LogUnitEntry entry(long address) {
+        ByteBuf b = Unpooled.buffer(ENTRY_SIZE);
+        b.writeLong(address);
+        b.writerIndex(ENTRY_SIZE);
+        return new LogUnitEntry(address, b, new EnumMap<>(IMetadata.LogUnitMetadataType.class), false);
+    }
+
+    @Test
+    public void addressesAreWrittenOnce() {
+        InMemoryLog log = new InMemoryLog(0, Long.MAX_VALUE);
+        log.write(0L, entry(0L));
+        log.write(InMemoryLog.CHUNK_SIZE * 3 + 1, entry(InMemoryLog.CHUNK_SIZE * 3 + 1));
+
+        assertThatThrownBy(() -> log.write(0L, entry(0L)))
+                .hasMessage("overwrite");
+        assertThat(log.read(0L).getBuffer().readLong())
+                .isEqualTo(0L);
+        assertThat(log.read(InMemoryLog.CHUNK_SIZE * 3 + 1).getBuffer().readLong())
+                .isEqualTo(InMemoryLog.CHUNK_SIZE * 3 + 1);
+        assertThat(log.read(1L))
+                .isNull();
+        assertThat(log.read(InMemoryLog.CHUNK_SIZE * 2))
+                .isNull();
+    }
+
+    @Test
+    public void readersOwnTheirReferences() {
+        InMemoryLog log = new InMemoryLog(0, Long.MAX_VALUE);
+        LogUnitEntry written = entry(0L);
+        log.write(0L, written);
+        // The cache releases the entries it evicts, whether written or read.
+        written.getBuffer().release();
+        log.read(0L).getBuffer().release();
+
+        LogUnitEntry read = log.read(0L);
+        assertThat(read.getBuffer().readLong())
+                .isEqualTo(0L);
+        assertThat(read.isPersisted())
+                .isTrue();
+
+        log.trim(0L);
+        assertThat(log.read(0L))
+                .isNull();
+        assertThat(log.getSize())
+                .isEqualTo(0L);
+        // The reader still holds the entry it read.
+        assertThat(read.getBuffer().refCnt())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void trimmedAddressesCannotBeWritten() {
+        InMemoryLog log = new InMemoryLog(0, Long.MAX_VALUE);
+        for (long i = 0; i < InMemoryLog.CHUNK_SIZE * 2; i++) {
+            log.write(i, entry(i));
+        }
+        log.trimPrefix(InMemoryLog.CHUNK_SIZE + 10);
+
+        assertThat(log.getTrimMark())
+                .isEqualTo(InMemoryLog.CHUNK_SIZE + 10);
+        assertThat(log.read(InMemoryLog.CHUNK_SIZE + 10))
+                .isNull();
+        assertThat(log.read(InMemoryLog.CHUNK_SIZE + 11))
+                .isNotNull();
+        assertThat(log.getSize())
+                .isEqualTo((InMemoryLog.CHUNK_SIZE - 11) * ENTRY_SIZE);
+        assertThatThrownBy(() -> log.write(5L, entry(5L)))
+                .hasMessage("overwrite");
+        assertThatThrownBy(() -> log.write(InMemoryLog.CHUNK_SIZE, entry(InMemoryLog.CHUNK_SIZE)))
+                .hasMessage("overwrite");
+    }
+
+    @Test
+    public void distantAddressesAreRejected() {
+        InMemoryLog log = new InMemoryLog(0, Long.MAX_VALUE);
+        long window = (long) InMemoryLog.MAX_CHUNKS * InMemoryLog.CHUNK_SIZE;
+        log.write(window - 1, entry(window - 1));
+
+        // Addresses past the directory, including ones whose chunk overflows an int, are not allocated.
+        assertThatThrownBy(() -> log.write(window, entry(window)))
+                .hasCauseInstanceOf(OutOfSpaceException.class);
+        assertThatThrownBy(() -> log.write(1L << 43, entry(1L << 43)))
+                .hasCauseInstanceOf(OutOfSpaceException.class);
+        assertThat(log.read(1L << 43))
+                .isNull();
+
+        // Trimming moves the directory along.
+        log.trimPrefix(InMemoryLog.CHUNK_SIZE - 1);
+        log.write(window, entry(window));
+        assertThat(log.read(window))
+                .isNotNull();
+    }
+
+    @Test
+    public void oldestEntriesAreTrimmedOverMaxSize() {
+        AtomicLong trimmed = new AtomicLong(-1L);
+        long maxSize = ENTRY_SIZE * 1000;
+        InMemoryLog log = new InMemoryLog(0, Long.MAX_VALUE, maxSize, trimmed::set);
+        for (long i = 0; i < 5000; i++) {
+            log.write(i, entry(i));
+        }
+
+        assertThat(log.getSize())
+                .isLessThanOrEqualTo(maxSize);
+        assertThat(trimmed.get())
+                .isEqualTo(log.getTrimMark())
+                .isGreaterThan(0L);
+        assertThat(log.read(trimmed.get()))
+                .isNull();
+        assertThat(log.read(4999L).getBuffer().readLong())
+                .isEqualTo(4999L);
+    }
+
+    @Test
+    public void concurrentWritesAreWrittenOnce()
+            throws Exception {
+        final int threads = 8;
+        final int addresses = InMemoryLog.CHUNK_SIZE * 4;
+        InMemoryLog log = new InMemoryLog(0, Long.MAX_VALUE);
+        AtomicLong written = new AtomicLong();
+        // Every thread tries to write every address, so each address is contended.
+        scheduleConcurrently(threads, t -> {
+            for (long i = 0; i < addresses; i++) {
+                try {
+                    log.write(i, entry(i));
+                    written.incrementAndGet();
+                } catch (RuntimeException re) {
+                    assertThat(re).hasMessage("overwrite");
+                }
+            }
+        });
+        executeScheduled(threads, 50, TimeUnit.SECONDS);
+
+        assertThat(written.get())
+                .isEqualTo(addresses);
+        for (long i = 0; i < addresses; i++) {
+            assertThat(log.read(i).getBuffer().readLong())
+                    .isEqualTo(i);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package org.corfudb.infrastructure.log;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.corfudb.AbstractCorfuTest;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.corfudb.infrastructure.log.RollingLogTest.entryOf;
+import static org.corfudb.infrastructure.log.RollingLogTest.payloadOf;
+
+/**
+ * Tests for the {@link OffHeapDataCache}.
+ */
+public class OffHeapDataCacheTest extends AbstractCorfuTest {
+
+    static final long CACHE_SIZE = 4 * OffHeapDataCache.MIN_SLAB_SIZE;
+
+    RollingLog openLog() {
+        return new RollingLog(0, Long.MAX_VALUE, getTempDir() + File.separator + "log", true);
+    }
+
+    /**
+     * Get the payload of an entry read from the cache, and release the entry.
+     */
+    static String release(LogUnitEntry entry) {
+        if (entry == null) {
+            return null;
+        }
+        String payload = payloadOf(entry);
+        entry.release();
+        return payload;
+    }
+
+    @Test
+    public void memoryStaysWithinBudget() {
+        OffHeapDataCache cache = new OffHeapDataCache(CACHE_SIZE, openLog(), MoreExecutors.directExecutor());
+        String payload = new String(new char[1000]).replace('\0', 'x');
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, entryOf(i, payload + i)).join();
+            assertThat(cache.getMemoryUsed())
+                    .isLessThanOrEqualTo(CACHE_SIZE);
+        }
+
+        // Old entries have been evicted, but are loaded back from the log.
+        assertThat(cache.getIfPresent(0L))
+                .isNull();
+        assertThat(release(cache.get(0L)))
+                .isEqualTo(payload + 0);
+        assertThat(release(cache.getIfPresent(999L)))
+                .isEqualTo(payload + 999);
+    }
+
+    @Test
+    public void frequentlyReadEntriesSurviveEviction() {
+        OffHeapDataCache cache = new OffHeapDataCache(CACHE_SIZE, openLog(), MoreExecutors.directExecutor());
+        String payload = new String(new char[1000]).replace('\0', 'x');
+        cache.put(0L, entryOf(0L, "hot")).join();
+        for (long i = 1; i < 1000; i++) {
+            cache.put(i, entryOf(i, payload)).join();
+            cache.get(0L).release();
+        }
+
+        assertThat(release(cache.getIfPresent(0L)))
+                .isEqualTo("hot");
+        assertThat(cache.getIfPresent(1L))
+                .isNull();
+    }
+
+    @Test
+    public void slabsAreReusedOnceReleased() {
+        OffHeapDataCache cache = new OffHeapDataCache(CACHE_SIZE, openLog(), MoreExecutors.directExecutor());
+        String payload = new String(new char[1000]).replace('\0', 'x');
+        List<LogUnitEntry> held = new ArrayList<>();
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, entryOf(i, payload + i)).join();
+            if (i % 200 == 0 && held.size() < 4) {
+                held.add(cache.getIfPresent(i));
+            }
+            assertThat(cache.getMemoryUsed())
+                    .isLessThanOrEqualTo(CACHE_SIZE);
+        }
+
+        // The entries read hold on to their slabs, so their memory is not reused, and there is no
+        // free memory left to cache new entries in.
+        for (LogUnitEntry entry : held) {
+            assertThat(payloadOf(entry))
+                    .isEqualTo(payload + entry.getAddress());
+        }
+        assertThat(cache.getIfPresent(999L))
+                .isNull();
+        assertThat(release(cache.get(999L)))
+                .isEqualTo(payload + 999);
+
+        // Once they are released, the slabs are reused.
+        held.forEach(LogUnitEntry::release);
+        for (long i = 1000; i < 1100; i++) {
+            cache.put(i, entryOf(i, payload + i)).join();
+        }
+        assertThat(release(cache.getIfPresent(1099L)))
+                .isEqualTo(payload + 1099);
+        assertThat(cache.getMemoryUsed())
+                .isEqualTo(CACHE_SIZE);
+    }
+
+    @Test
+    public void concurrentHitsSeeTheirEntries()
+            throws Exception {
+        OffHeapDataCache cache = new OffHeapDataCache(CACHE_SIZE, openLog(), MoreExecutors.directExecutor());
+        String payload = new String(new char[1000]).replace('\0', 'x');
+        AtomicLong written = new AtomicLong();
+        cache.put(0L, entryOf(0L, payload + 0)).join();
+        written.set(1L);
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Long>> hits = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                hits.add(readers.submit(() -> {
+                    long count = 0L;
+                    while (written.get() < 2000L) {
+                        long address = ThreadLocalRandom.current().nextLong(written.get());
+                        LogUnitEntry entry = cache.getIfPresent(address);
+                        if (entry != null) {
+                            // An entry is never read from a slab whose memory was reused.
+                            assertThat(release(entry))
+                                    .isEqualTo(payload + address);
+                            count++;
+                        }
+                    }
+                    return count;
+                }));
+            }
+            for (long i = 1; i < 2000; i++) {
+                cache.put(i, entryOf(i, payload + i)).join();
+                written.set(i + 1);
+            }
+            long total = 0L;
+            for (Future<Long> future : hits) {
+                total += future.get(1, TimeUnit.MINUTES);
+            }
+            assertThat(total)
+                    .isGreaterThan(0L);
+        } finally {
+            readers.shutdownNow();
+        }
+        assertThat(cache.getMemoryUsed())
+                .isLessThanOrEqualTo(CACHE_SIZE);
+    }
+
+    @Test
+    public void holesAreWrittenThroughToTheLog() {
+        String path = getTempDir() + File.separator + "log";
+        RollingLog log = new RollingLog(0, Long.MAX_VALUE, path, true);
+        OffHeapDataCache cache = new OffHeapDataCache(CACHE_SIZE, log, MoreExecutors.directExecutor());
+        for (long i = 0; i < 5; i++) {
+            cache.put(i, entryOf(i, "entry" + i)).join();
+        }
+        cache.fillHole(5L).join();
+        cache.put(6L, entryOf(6L, "entry6")).join();
+
+        assertThat(cache.getIfPresent(5L).isHole())
+                .isTrue();
+        assertThat(log.getWriteStats().getDurableWatermark())
+                .isEqualTo(6L);
+        assertThatThrownBy(() -> cache.put(5L, entryOf(5L, "late")))
+                .hasMessageContaining("overwrite");
+        log.close();
+
+        // The hole is read back from the log once the cache is gone.
+        RollingLog reopened = new RollingLog(0, Long.MAX_VALUE, path, true);
+        assertThat(reopened.read(5L).isHole())
+                .isTrue();
+        assertThat(payloadOf(reopened.read(6L)))
+                .isEqualTo("entry6");
+        assertThatThrownBy(() -> reopened.write(5L, entryOf(5L, "late")))
+                .hasMessageContaining("overwrite");
+        reopened.close();
+    }
+
+    @Test
+    public void overwritesAreRejected() {
+        OffHeapDataCache cache = new OffHeapDataCache(CACHE_SIZE, openLog(), MoreExecutors.directExecutor());
+        cache.put(0L, entryOf(0L, "first")).join();
+        try {
+            cache.put(0L, entryOf(0L, "second")).join();
+        } catch (RuntimeException re) {
+            // expected
+        }
+        assertThat(release(cache.get(0L)))
+                .isEqualTo("first");
+    }
+
+    @Test
+    public void rangesAreInvalidated() {
+        OffHeapDataCache cache = new OffHeapDataCache(CACHE_SIZE, openLog(), MoreExecutors.directExecutor());
+        for (long i = 0; i < 100; i++) {
+            cache.put(i, entryOf(i, "entry" + i)).join();
+        }
+
+        // A range smaller than the cache, and one larger than it.
+        cache.invalidateRange(10L, 19L);
+        cache.invalidateRange(50L, 1_000_000L);
+        for (long i = 0; i < 100; i++) {
+            assertThat(release(cache.getIfPresent(i)) == null)
+                    .isEqualTo((i >= 10 && i < 20) || i >= 50);
+        }
+        // The entries remain in the log.
+        assertThat(release(cache.get(15L)))
+                .isEqualTo("entry15");
+    }
+
+    @Test
+    public void indexSurvivesRemovals() {
+        OffHeapDataCache.LongLongMap map = new OffHeapDataCache.LongLongMap();
+        for (long i = 0; i < 10000; i++) {
+            map.put(i * 7, i);
+        }
+        for (long i = 0; i < 10000; i += 2) {
+            map.remove(i * 7);
+        }
+        assertThat(map.size())
+                .isEqualTo(5000);
+        for (long i = 0; i < 10000; i++) {
+            assertThat(map.get(i * 7))
+                    .isEqualTo(i % 2 == 0 ? OffHeapDataCache.LongLongMap.MISSING : i);
+        }
+    }
+}
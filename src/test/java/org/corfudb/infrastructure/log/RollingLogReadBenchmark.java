@@ -0,0 +1,129 @@
+package org.corfudb.infrastructure.log;
+
+import io.netty.buffer.Unpooled;
+import org.corfudb.protocols.wireprotocol.IMetadata;
+
+import java.io.File;
+import java.util.EnumMap;
+import java.util.Random;
+
+/**
+ * Compares the latency of cold random reads on a {@link RollingLog}, using the segment index
+ * against a sequential scan of the segment (which is how records were located before the
+ * index was introduced).
+ * <p>
+ * Usage: RollingLogReadBenchmark [segments] [payload size] [reads]
+ */
+public class RollingLogReadBenchmark {
+
+    /**
+     * The number of rounds of both passes.
+     */
+    static final int ROUNDS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int segments = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int payloadSize = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int reads = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        long entries = (long) segments * RollingLog.RECORDS_PER_SEGMENT;
+
+        File dir = com.google.common.io.Files.createTempDir();
+        String logPath = dir.getAbsolutePath() + File.separator + "log";
+        try {
+            RollingLog writer = new RollingLog(0, Long.MAX_VALUE, logPath, true);
+            try {
+                byte[] payload = new byte[payloadSize];
+                for (long i = 0; i < entries; i++) {
+                    writer.write(i, new LogUnitEntry(i, Unpooled.wrappedBuffer(payload),
+                            new EnumMap<>(IMetadata.LogUnitMetadataType.class), false));
+                }
+            } finally {
+                writer.close();
+            }
+
+            Random random = new Random(0);
+            long[] addresses = new long[reads];
+            for (int i = 0; i < reads; i++) {
+                addresses[i] = (long) (random.nextDouble() * entries);
+            }
+
+            // Every pass reads through a fresh instance, so no state is reused from the writes or
+            // from the other pass, and the order of the passes alternates between rounds, so
+            // neither always runs on a page cache warmed by the other.
+            long scanNanos = 0L;
+            long indexNanos = 0L;
+            for (int round = 0; round < ROUNDS; round++) {
+                if (round % 2 == 0) {
+                    scanNanos += timeScan(logPath, segments, addresses);
+                    indexNanos += timeIndex(logPath, segments, addresses);
+                } else {
+                    indexNanos += timeIndex(logPath, segments, addresses);
+                    scanNanos += timeScan(logPath, segments, addresses);
+                }
+            }
+
+            System.out.println(String.format("%d entries of %d bytes, %d random reads, %d rounds",
+                    entries, payloadSize, reads, ROUNDS));
+            System.out.println(String.format("Scan:  %10.2f us/read", scanNanos / 1000.0 / reads / ROUNDS));
+            System.out.println(String.format("Index: %10.2f us/read", indexNanos / 1000.0 / reads / ROUNDS));
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Open a reader on the log, with every segment open, so neither pass times opening them.
+     */
+    private static RollingLog openReader(String logPath, int segments) {
+        RollingLog reader = new RollingLog(0, Long.MAX_VALUE, logPath, true);
+        for (int s = 0; s < segments; s++) {
+            reader.getChannelForAddress((long) s * RollingLog.RECORDS_PER_SEGMENT);
+        }
+        return reader;
+    }
+
+    /**
+     * Time reads which locate their records by scanning the segment.
+     */
+    private static long timeScan(String logPath, int segments, long[] addresses) throws Exception {
+        RollingLog reader = openReader(logPath, segments);
+        try {
+            long start = System.nanoTime();
+            for (long address : addresses) {
+                RollingLog.FileHandle fh = reader.getChannelForAddress(address);
+                long[] found = new long[]{0L};
+                reader.scanRecords(fh, RollingLog.HEADER_SIZE, (addr, offset) -> {
+                    if (addr == address && found[0] == 0L) {
+                        found[0] = offset;
+                    }
+                });
+                reader.readRecord(fh, found[0], address).release();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Time reads which locate their records through the segment index.
+     */
+    private static long timeIndex(String logPath, int segments, long[] addresses) {
+        RollingLog reader = openReader(logPath, segments);
+        try {
+            long start = System.nanoTime();
+            for (long address : addresses) {
+                reader.read(address).release();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,766 @@
+package org.corfudb.infrastructure.log;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.RateLimiter;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.corfudb.AbstractCorfuTest;
+import org.corfudb.protocols.wireprotocol.CorfuMsg;
+import org.corfudb.protocols.wireprotocol.IMetadata;
+import org.corfudb.protocols.wireprotocol.LogUnitReadRangeResponseMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
+import org.corfudb.protocols.wireprotocol.NettyCorfuMessageEncoder;
+import org.corfudb.runtime.exceptions.DataCorruptionException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for the on-disk {@link RollingLog}.
+ */
+public class RollingLogTest extends AbstractCorfuTest {
+
+    static LogUnitEntry entryOf(long address, String payload) {
+        return new LogUnitEntry(address, Unpooled.wrappedBuffer(payload.getBytes()),
+                new EnumMap<>(IMetadata.LogUnitMetadataType.class), false);
+    }
+
+    static String payloadOf(LogUnitEntry entry) {
+        byte[] data = new byte[entry.getBuffer().readableBytes()];
+        entry.getBuffer().getBytes(entry.getBuffer().readerIndex(), data);
+        return new String(data);
+    }
+
+    /**
+     * The logs opened by a test which it has not closed, in the order they were opened.
+     */
+    private final List<RollingLog> openLogs = new ArrayList<>();
+
+    RollingLog track(RollingLog log) {
+        openLogs.add(log);
+        return log;
+    }
+
+    RollingLog openLog(String dir) {
+        return track(new RollingLog(0, Long.MAX_VALUE, dir + File.separator + "log", true));
+    }
+
+    void closeLog(RollingLog log) {
+        openLogs.remove(log);
+        log.close();
+    }
+
+    /**
+     * Close the logs a test left open, including those it abandoned to simulate a crash, so their
+     * mappings and channels are released before the temporary directories are deleted.
+     */
+    @After
+    public void closeLogs() {
+        for (int i = openLogs.size() - 1; i >= 0; i--) {
+            openLogs.get(i).close();
+        }
+        openLogs.clear();
+    }
+
+    @Test
+    public void readsAreServedFromIndex() {
+        String dir = getTempDir();
+        RollingLog log = openLog(dir);
+        for (long i = 0; i < 100; i++) {
+            log.write(i * 3, entryOf(i * 3, "entry" + i)).join();
+        }
+
+        for (long i = 0; i < 100; i++) {
+            assertThat(payloadOf(log.read(i * 3)))
+                    .isEqualTo("entry" + i);
+            assertThat(log.read(i * 3 + 1))
+                    .isNull();
+        }
+    }
+
+    @Test
+    public void readResponsesReferenceMappedSegment() {
+        String dir = getTempDir();
+        RollingLog log = openLog(dir);
+        log.write(0, entryOf(0, "mapped")).join();
+
+        LogUnitEntry entry = log.read(0);
+        ByteBuf data = entry.getBuffer();
+        CompositeByteBuf frame = Unpooled.compositeBuffer();
+        LogUnitReadResponseMsg sent = new LogUnitReadResponseMsg(entry);
+        sent.serialize(frame);
+        sent.releaseReferences();
+
+        // The frame holds a reference to the mapped payload rather than a copy of it.
+        assertThat(data.refCnt())
+                .isEqualTo(2);
+        LogUnitReadResponseMsg response = (LogUnitReadResponseMsg) CorfuMsg.deserialize(frame);
+        byte[] payload = new byte[response.getData().readableBytes()];
+        response.getData().readBytes(payload);
+        assertThat(new String(payload))
+                .isEqualTo("mapped");
+
+        response.getData().release();
+        frame.release();
+        assertThat(data.refCnt())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void readResponsesOutliveEviction() {
+        String dir = getTempDir();
+        RollingLog log = openLog(dir);
+        log.write(0, entryOf(0, "evicted")).join();
+
+        LogUnitEntry entry = log.read(0);
+        ByteBuf data = entry.getBuffer();
+        LogUnitReadResponseMsg sent = new LogUnitReadResponseMsg(entry);
+        // The entry is evicted, and its buffer released, before the response is encoded.
+        data.release();
+
+        EmbeddedChannel channel = new EmbeddedChannel(new NettyCorfuMessageEncoder());
+        channel.writeOutbound(sent);
+        ByteBuf frame = (ByteBuf) channel.readOutbound();
+        LogUnitReadResponseMsg response = (LogUnitReadResponseMsg) CorfuMsg.deserialize(frame);
+        byte[] payload = new byte[response.getData().readableBytes()];
+        response.getData().readBytes(payload);
+        assertThat(new String(payload))
+                .isEqualTo("evicted");
+
+        // Once the frame is written, nothing holds the payload any more.
+        response.getData().release();
+        frame.release();
+        assertThat(data.refCnt())
+                .isEqualTo(0);
+        closeLog(log);
+    }
+
+    static void collectLeaves(ByteBuf buf, Set<ByteBuf> leaves) {
+        if (buf instanceof CompositeByteBuf) {
+            CompositeByteBuf composite = (CompositeByteBuf) buf;
+            for (int i = 0; i < composite.numComponents(); i++) {
+                collectLeaves(composite.internalComponent(i), leaves);
+            }
+        } else if (buf.unwrap() != null) {
+            collectLeaves(buf.unwrap(), leaves);
+        } else {
+            leaves.add(buf);
+        }
+    }
+
+    @Test
+    public void rangeResponsesReferenceMappedSegment() {
+        String dir = getTempDir();
+        RollingLog log = openLog(dir);
+        Map<Long, LogUnitReadResponseMsg> responses = new LinkedHashMap<>();
+        List<ByteBuf> payloads = new ArrayList<>();
+        for (long i = 0; i < 40; i++) {
+            log.write(i, entryOf(i, "entry" + i)).join();
+            LogUnitEntry entry = log.read(i);
+            payloads.add(entry.getBuffer());
+            responses.put(i, new LogUnitReadResponseMsg(entry));
+        }
+
+        EmbeddedChannel channel = new EmbeddedChannel(new NettyCorfuMessageEncoder());
+        channel.writeOutbound(new LogUnitReadRangeResponseMsg(responses, 0, true));
+        ByteBuf frame = (ByteBuf) channel.readOutbound();
+
+        // Every payload is a component of the frame, rather than a copy merged into it.
+        Set<ByteBuf> leaves = Collections.newSetFromMap(new IdentityHashMap<>());
+        collectLeaves(frame, leaves);
+        for (ByteBuf payload : payloads) {
+            assertThat(leaves)
+                    .contains(payload);
+        }
+
+        LogUnitReadRangeResponseMsg response = (LogUnitReadRangeResponseMsg) CorfuMsg.deserialize(frame);
+        for (long i = 0; i < 40; i++) {
+            ByteBuf data = response.getResponseMap().get(i).getData();
+            byte[] payload = new byte[data.readableBytes()];
+            data.readBytes(payload);
+            assertThat(new String(payload))
+                    .isEqualTo("entry" + i);
+            data.release();
+        }
+        frame.release();
+        for (ByteBuf payload : payloads) {
+            assertThat(payload.refCnt())
+                    .isEqualTo(1);
+        }
+        closeLog(log);
+    }
+
+    @Test
+    public void indexIsRebuiltWhenMissing() {
+        String dir = getTempDir();
+        RollingLog log = openLog(dir);
+        for (long i = 0; i < 100; i++) {
+            log.write(i, entryOf(i, "entry" + i)).join();
+        }
+
+        assertThat(new File(dir + File.separator + "log0.idx").delete())
+                .isTrue();
+
+        RollingLog reopened = openLog(dir);
+        for (long i = 0; i < 100; i++) {
+            assertThat(payloadOf(reopened.read(i)))
+                    .isEqualTo("entry" + i);
+        }
+    }
+
+    @Test
+    public void writesAfterReopenAppendToTail() {
+        String dir = getTempDir();
+        RollingLog log = openLog(dir);
+        log.write(0L, entryOf(0L, "first")).join();
+
+        RollingLog reopened = openLog(dir);
+        reopened.write(1L, entryOf(1L, "second")).join();
+
+        RollingLog reopenedAgain = openLog(dir);
+        assertThat(payloadOf(reopenedAgain.read(0L)))
+                .isEqualTo("first");
+        assertThat(payloadOf(reopenedAgain.read(1L)))
+                .isEqualTo("second");
+    }
+
+    @Test
+    public void corruptRecordsAreQuarantined()
+            throws Exception {
+        String dir = getTempDir();
+        RollingLog log = openLog(dir);
+        for (long i = 0; i < 10; i++) {
+            log.write(i, entryOf(i, "entry" + i)).join();
+        }
+        // Start a second segment, so the first one is sealed.
+        log.write(RollingLog.RECORDS_PER_SEGMENT, entryOf(RollingLog.RECORDS_PER_SEGMENT, "tail")).join();
+        closeLog(log);
+
+        // Flip the last payload byte of the record at address 5.
+        try (RandomAccessFile index = new RandomAccessFile(dir + File.separator + "log0.idx", "r");
+             RandomAccessFile data = new RandomAccessFile(dir + File.separator + "log0", "rw")) {
+            index.seek(5 * RollingLog.INDEX_SLOT_SIZE);
+            long offset = index.readLong();
+            data.seek(offset + 12);
+            int size = data.readInt();
+            data.seek(offset + size - 5);
+            byte b = data.readByte();
+            data.seek(offset + size - 5);
+            data.writeByte(b ^ 0xFF);
+        }
+
+        RollingLog reopened = openLog(dir);
+        assertThat(reopened.scrub(RateLimiter.create(Double.MAX_VALUE)))
+                .containsExactly(5L);
+        assertThatThrownBy(() -> reopened.read(5L))
+                .hasCauseInstanceOf(DataCorruptionException.class);
+        assertThat(payloadOf(reopened.read(4L)))
+                .isEqualTo("entry4");
+    }
+
+    @Test
+    public void sealedSegmentsAreLoadedFromFooter() {
+        String dir = getTempDir();
+        RollingLog log = openLog(dir);
+        for (long i = 0; i < 10; i++) {
+            log.write(i * 2, entryOf(i * 2, "entry" + i)).join();
+        }
+        log.write(RollingLog.RECORDS_PER_SEGMENT, entryOf(RollingLog.RECORDS_PER_SEGMENT, "tail")).join();
+        // Moving on to the next segment seals the previous one.
+        assertThat(log.getChannelForAddress(0L).isSealed())
+                .isTrue();
+        assertThat(log.getChannelForAddress(RollingLog.RECORDS_PER_SEGMENT).isSealed())
+                .isFalse();
+        closeLog(log);
+
+        // Without the index, only the footer can tell where the records are.
+        RollingLog reopened = openLog(dir);
+        RollingLog.FileHandle fh = reopened.getChannelForAddress(0L);
+        assertThat(fh.isSealed())
+                .isTrue();
+        assertThat(fh.getKnownAddresses().cardinality())
+                .isEqualTo(10);
+        for (int i = 0; i < 20; i += 2) {
+            assertThat(fh.getKnownAddresses().get(i))
+                    .isTrue();
+        }
+        reopened.write(1L, entryOf(1L, "late")).join();
+        assertThat(payloadOf(reopened.read(1L)))
+                .isEqualTo("late");
+        assertThat(payloadOf(reopened.read(18L)))
+                .isEqualTo("entry9");
+    }
+
+    @Test
+    public void fullyTrimmedSegmentsAreReclaimed() {
+        String dir = getTempDir();
+        RollingLog log = openLog(dir);
+        for (long i = 0; i < 10; i++) {
+            log.write(i, entryOf(i, "entry" + i)).join();
+        }
+        log.write(RollingLog.RECORDS_PER_SEGMENT, entryOf(RollingLog.RECORDS_PER_SEGMENT, "tail")).join();
+        File segment = new File(dir + File.separator + "log0");
+        for (long i = 0; i < 9; i++) {
+            log.trim(i);
+        }
+        assertThat(segment)
+                .exists();
+        assertThat(payloadOf(log.read(9L)))
+                .isEqualTo("entry9");
+
+        log.trim(9L);
+        assertThat(segment)
+                .doesNotExist();
+        assertThat(new File(dir + File.separator + "log0.idx"))
+                .doesNotExist();
+        assertThat(log.read(9L))
+                .isNull();
+        assertThatThrownBy(() -> log.write(10L, entryOf(10L, "trimmed")))
+                .isInstanceOf(RuntimeException.class);
+        closeLog(log);
+
+        // The segment stays reclaimed after a restart, while the tail segment is untouched.
+        RollingLog reopened = openLog(dir);
+        assertThat(reopened.read(0L))
+                .isNull();
+        assertThat(segment)
+                .doesNotExist();
+        assertThat(payloadOf(reopened.read(RollingLog.RECORDS_PER_SEGMENT)))
+                .isEqualTo("tail");
+    }
+
+    @Test
+    public void partiallyTrimmedSegmentsAreCompacted() {
+        String dir = getTempDir();
+        RollingLog log = openLog(dir);
+        String payload = Strings.repeat("x", 1000);
+        for (long i = 0; i < 10; i++) {
+            log.write(i, entryOf(i, payload + i)).join();
+        }
+        log.write(RollingLog.RECORDS_PER_SEGMENT, entryOf(RollingLog.RECORDS_PER_SEGMENT, "tail")).join();
+        File segment = new File(dir + File.separator + "log0");
+        long sizeBefore = segment.length();
+        for (long i = 0; i < 6; i++) {
+            log.trim(i);
+        }
+
+        long reclaimed = log.compact(RateLimiter.create(Double.MAX_VALUE));
+        assertThat(reclaimed)
+                .isGreaterThan(6000L);
+        assertThat(segment.length())
+                .isLessThanOrEqualTo(sizeBefore - reclaimed);
+        assertThat(log.compact(RateLimiter.create(Double.MAX_VALUE)))
+                .isEqualTo(0L);
+        assertThat(log.read(0L))
+                .isNull();
+        assertThat(payloadOf(log.read(6L)))
+                .isEqualTo(payload + 6);
+        assertThatThrownBy(() -> log.write(0L, entryOf(0L, "overwrite")))
+                .isInstanceOf(RuntimeException.class);
+        log.write(10L, entryOf(10L, "late")).join();
+        closeLog(log);
+
+        RollingLog reopened = openLog(dir);
+        assertThat(reopened.getChannelForAddress(0L).isSealed())
+                .isTrue();
+        for (long i = 6; i < 10; i++) {
+            assertThat(payloadOf(reopened.read(i)))
+                    .isEqualTo(payload + i);
+        }
+        assertThat(payloadOf(reopened.read(10L)))
+                .isEqualTo("late");
+        assertThat(reopened.read(3L))
+                .isNull();
+        assertThatThrownBy(() -> reopened.write(3L, entryOf(3L, "overwrite")))
+                .isInstanceOf(RuntimeException.class);
+        assertThat(new File(dir + File.separator + "log0" + RollingLog.COMPACTION_SUFFIX))
+                .doesNotExist();
+    }
+
+    @Test
+    public void oldSegmentsAreMovedToColdTier() {
+        String dir = getTempDir();
+        String coldDir = dir + File.separator + "cold";
+        ImmutableMap<String, Object> opts = ImmutableMap.of("--sync", true, "--cold-path", coldDir,
+                "--cold-after", "1");
+        RollingLog log = track(new RollingLog(0, Long.MAX_VALUE, dir + File.separator + "log", opts));
+        // Large enough for the segment to span several compressed blocks.
+        String payload = Strings.repeat("cold", 5000);
+        for (long i = 0; i < 10; i++) {
+            log.write(i, entryOf(i, payload + i)).join();
+        }
+        log.write(RollingLog.RECORDS_PER_SEGMENT, entryOf(RollingLog.RECORDS_PER_SEGMENT, "tail")).join();
+
+        assertThat(log.tierSegments(RateLimiter.create(Double.MAX_VALUE)))
+                .isGreaterThan(10 * 20000L);
+        File hot = new File(dir + File.separator + "log0");
+        File cold = new File(coldDir + File.separator + "log0" + RollingLog.COLD_SUFFIX);
+        assertThat(hot)
+                .doesNotExist();
+        assertThat(cold.length())
+                .isLessThan(20000L);
+        assertThat(new File(dir + File.separator + "log1"))
+                .exists();
+        for (long i = 0; i < 10; i++) {
+            assertThat(payloadOf(log.read(i)))
+                    .isEqualTo(payload + i);
+        }
+        assertThat(log.scrub(RateLimiter.create(Double.MAX_VALUE)))
+                .isEmpty();
+
+        // A late write moves the segment back to the hot tier.
+        log.write(10L, entryOf(10L, "late")).join();
+        assertThat(hot)
+                .exists();
+        assertThat(cold)
+                .doesNotExist();
+        assertThat(payloadOf(log.read(10L)))
+                .isEqualTo("late");
+        assertThat(payloadOf(log.read(3L)))
+                .isEqualTo(payload + 3);
+        assertThat(log.tierSegments(RateLimiter.create(Double.MAX_VALUE)))
+                .isGreaterThan(0L);
+        closeLog(log);
+
+        RollingLog reopened = track(new RollingLog(0, Long.MAX_VALUE, dir + File.separator + "log", opts));
+        assertThat(reopened.getChannelForAddress(0L).getCold())
+                .isNotNull();
+        for (long i = 0; i < 10; i++) {
+            assertThat(payloadOf(reopened.read(i)))
+                    .isEqualTo(payload + i);
+        }
+        assertThat(payloadOf(reopened.read(10L)))
+                .isEqualTo("late");
+        assertThatThrownBy(() -> reopened.write(5L, entryOf(5L, "overwrite")))
+                .isInstanceOf(RuntimeException.class);
+        closeLog(reopened);
+    }
+
+    @Test
+    public void segmentsArePlacedAcrossDataDirs() {
+        String dir = getTempDir();
+        String disk0 = dir + File.separator + "disk0";
+        String disk1 = dir + File.separator + "disk1";
+        RollingLog log = track(new RollingLog(0, Long.MAX_VALUE, dir + File.separator + "log",
+                ImmutableMap.of("--sync", true, "--data-dirs", disk0 + "," + disk1)));
+        for (long segment = 0; segment < 3; segment++) {
+            long address = segment * RollingLog.RECORDS_PER_SEGMENT;
+            log.write(address, entryOf(address, "segment" + segment)).join();
+        }
+        assertThat(new File(disk0 + File.separator + "log0"))
+                .exists();
+        assertThat(new File(disk1 + File.separator + "log1"))
+                .exists();
+        assertThat(new File(disk0 + File.separator + "log2"))
+                .exists();
+        assertThat(new File(dir + File.separator + "log0"))
+                .doesNotExist();
+        closeLog(log);
+
+        // Segments stay on the directory they were found on, whatever the policy would choose.
+        RollingLog reopened = track(new RollingLog(0, Long.MAX_VALUE, dir + File.separator + "log",
+                ImmutableMap.of("--sync", true, "--data-dirs", disk1 + "," + disk0, "--placement", "free-space")));
+        assertThat(reopened.getSegmentDir(0L))
+                .isEqualTo(1);
+        for (long segment = 0; segment < 3; segment++) {
+            assertThat(payloadOf(reopened.read(segment * RollingLog.RECORDS_PER_SEGMENT)))
+                    .isEqualTo("segment" + segment);
+        }
+        reopened.write(1L, entryOf(1L, "late")).join();
+        assertThat(payloadOf(reopened.read(1L)))
+                .isEqualTo("late");
+        closeLog(reopened);
+    }
+
+    @Test
+    public void compressedSegmentsAreReadable() {
+        String dir = getTempDir();
+        // Every sync write is waited for before the next, so each batch holds a single record.
+        RollingLog log = track(new RollingLog(0, Long.MAX_VALUE, dir + File.separator + "log",
+                ImmutableMap.of("--sync", true, "--compress", true, "--compress-block-size", "4096")));
+        String payload = Strings.repeat("compressible ", 100);
+        for (long i = 0; i < 100; i++) {
+            log.write(i, entryOf(i, payload + i)).join();
+        }
+        log.write(RollingLog.RECORDS_PER_SEGMENT, entryOf(RollingLog.RECORDS_PER_SEGMENT, "tail")).join();
+        assertThat(log.getChannelForAddress(0L).isPacked())
+                .isFalse();
+        // The first segment was sealed by the write to the next one, so it is packed.
+        assertThat(log.compact(RateLimiter.create(Double.MAX_VALUE)))
+                .isGreaterThan(0L);
+        closeLog(log);
+
+        // Segments keep their format once compression is turned off.
+        RollingLog reopened = openLog(dir);
+        RollingLog.FileHandle fh = reopened.getChannelForAddress(0L);
+        assertThat(fh.isCompressed())
+                .isTrue();
+        assertThat(fh.isPacked())
+                .isTrue();
+        assertThat(reopened.getChannelForAddress(2 * RollingLog.RECORDS_PER_SEGMENT).isCompressed())
+                .isFalse();
+        Set<Long> blocks = new HashSet<>();
+        for (long i = 0; i < 100; i++) {
+            blocks.add(fh.getIndexedOffset(i));
+        }
+        assertThat(blocks.size())
+                .isLessThan(100);
+        assertThat(fh.getFilePointer().get())
+                .isLessThan(100L * payload.length() / 4);
+        for (long i = 0; i < 100; i++) {
+            assertThat(payloadOf(reopened.read(i)))
+                    .isEqualTo(payload + i);
+        }
+        assertThat(reopened.scrub(RateLimiter.create(Double.MAX_VALUE)))
+                .isEmpty();
+        reopened.write(100L, entryOf(100L, "late")).join();
+        assertThat(payloadOf(reopened.read(100L)))
+                .isEqualTo("late");
+        // The late write was appended raw, so the segment is packed again by its next compaction.
+        assertThat(reopened.getChannelForAddress(0L).isPacked())
+                .isFalse();
+        // Writing to the tail segment again seals the first one, so that it can be compacted.
+        reopened.write(RollingLog.RECORDS_PER_SEGMENT + 1, entryOf(RollingLog.RECORDS_PER_SEGMENT + 1, "tail")).join();
+
+        for (long i = 0; i < 60; i++) {
+            reopened.trim(i);
+        }
+        assertThat(reopened.compact(RateLimiter.create(Double.MAX_VALUE)))
+                .isGreaterThan(0L);
+        assertThat(reopened.read(10L))
+                .isNull();
+        assertThat(reopened.getChannelForAddress(0L).isPacked())
+                .isTrue();
+        for (long i = 60; i < 100; i++) {
+            assertThat(payloadOf(reopened.read(i)))
+                    .isEqualTo(payload + i);
+        }
+        closeLog(reopened);
+
+        // Recovering the index scans the blocks.
+        assertThat(new File(dir + File.separator + "log0.idx").delete())
+                .isTrue();
+        RollingLog rebuilt = openLog(dir);
+        for (long i = 60; i < 100; i++) {
+            assertThat(payloadOf(rebuilt.read(i)))
+                    .isEqualTo(payload + i);
+        }
+        assertThat(payloadOf(rebuilt.read(100L)))
+                .isEqualTo("late");
+    }
+
+    @Test
+    public void lateWritesAreCoveredByFooter() {
+        String dir = getTempDir();
+        RollingLog log = openLog(dir);
+        log.write(0L, entryOf(0L, "first")).join();
+        log.write(RollingLog.RECORDS_PER_SEGMENT, entryOf(RollingLog.RECORDS_PER_SEGMENT, "tail")).join();
+        // A late write unseals the segment, which is sealed again once the write is durable.
+        log.write(1L, entryOf(1L, "late")).join();
+
+        // Reopen without closing, as if the server crashed.
+        RollingLog reopened = openLog(dir);
+        assertThat(reopened.getChannelForAddress(0L).isSealed())
+                .isTrue();
+        assertThat(payloadOf(reopened.read(0L)))
+                .isEqualTo("first");
+        assertThat(payloadOf(reopened.read(1L)))
+                .isEqualTo("late");
+        reopened.write(2L, entryOf(2L, "after")).join();
+        assertThat(payloadOf(reopened.read(1L)))
+                .isEqualTo("late");
+    }
+
+    @Test
+    public void concurrentSyncWritesAreDurable()
+            throws Exception {
+        String dir = getTempDir();
+        RollingLog log = track(new RollingLog(0, Long.MAX_VALUE, dir + File.separator + "log",
+                ImmutableMap.of("--sync", true, "--sync-batch-size", 16, "--sync-batch-wait", 1000L)));
+        int threads = 8;
+        int writesPerThread = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < writesPerThread; i++) {
+                    long address = (long) i * threads + thread;
+                    log.write(address, entryOf(address, "entry" + address)).join();
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        executor.shutdown();
+        closeLog(log);
+
+        RollingLog reopened = openLog(dir);
+        for (long address = 0; address < threads * writesPerThread; address++) {
+            assertThat(payloadOf(reopened.read(address)))
+                    .isEqualTo("entry" + address);
+        }
+    }
+
+    @Test
+    public void syncWritesDoNotWaitForTheirBatch() {
+        String dir = getTempDir();
+        RollingLog log = track(new RollingLog(0, Long.MAX_VALUE, dir + File.separator + "log",
+                ImmutableMap.of("--sync", true, "--sync-batch-size", 16, "--sync-batch-wait", 60_000_000L)));
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        for (long i = 0; i < 15; i++) {
+            written.add(log.write(i, entryOf(i, "entry" + i)));
+        }
+
+        // A single writer fills the batch, since it is not blocked until the batch is durable.
+        assertThat(written)
+                .extracting(CompletableFuture::isDone)
+                .containsOnly(false);
+        written.add(log.write(15L, entryOf(15L, "entry15")));
+        CompletableFuture.allOf(written.toArray(new CompletableFuture[written.size()])).join();
+        assertThat(log.getWriteStats().getDurableWatermark())
+                .isEqualTo(15L);
+    }
+
+    @Test
+    public void recordsArePaddedAcrossWindows() {
+        String dir = getTempDir();
+        String path = dir + File.separator + "log";
+        RollingLog log = track(new RollingLog(0, Long.MAX_VALUE, path, ImmutableMap.of("--sync", true), 4096, 1024));
+        String payload = Strings.repeat("x", 1000);
+        for (long i = 0; i < 20; i++) {
+            log.write(i, entryOf(i, payload + i)).join();
+        }
+        closeLog(log);
+
+        assertThat(new File(path + "0.idx").delete())
+                .isTrue();
+        RollingLog reopened = track(new RollingLog(0, Long.MAX_VALUE, path, ImmutableMap.of("--sync", true),
+                4096, 1024));
+        for (long i = 0; i < 20; i++) {
+            assertThat(payloadOf(reopened.read(i)))
+                    .isEqualTo(payload + i);
+        }
+    }
+
+    @Test
+    public void coldSegmentsAreUnmapped() {
+        String dir = getTempDir();
+        RollingLog log = track(new RollingLog(0, Long.MAX_VALUE, dir + File.separator + "log",
+                ImmutableMap.of("--sync", true, "--max-mapped-segments", 1)));
+        for (long segment = 0; segment < 3; segment++) {
+            long address = segment * RollingLog.RECORDS_PER_SEGMENT;
+            log.write(address, entryOf(address, "entry" + address)).join();
+        }
+
+        for (long segment = 0; segment < 3; segment++) {
+            long address = segment * RollingLog.RECORDS_PER_SEGMENT;
+            assertThat(payloadOf(log.read(address)))
+                    .isEqualTo("entry" + address);
+            assertThat(log.getChannelForAddress(address).getWindows())
+                    .isNotEmpty();
+            for (long other = 0; other < 3; other++) {
+                if (other != segment) {
+                    assertThat(log.getChannelForAddress(other * RollingLog.RECORDS_PER_SEGMENT).getWindows())
+                            .isEmpty();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void concurrentOpensShareSegment()
+            throws Exception {
+        String dir = getTempDir();
+        RollingLog log = openLog(dir);
+        for (long segment = 0; segment < 4; segment++) {
+            long address = segment * RollingLog.RECORDS_PER_SEGMENT;
+            log.write(address, entryOf(address, "entry" + address)).join();
+        }
+
+        RollingLog reopened = openLog(dir);
+        int threads = 16;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<RollingLog.FileHandle>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final long address = (t % 4) * RollingLog.RECORDS_PER_SEGMENT;
+            futures.add(executor.submit(() -> {
+                barrier.await();
+                assertThat(payloadOf(reopened.read(address)))
+                        .isEqualTo("entry" + address);
+                return reopened.getChannelForAddress(address);
+            }));
+        }
+        for (int t = 0; t < threads; t++) {
+            assertThat(futures.get(t).get())
+                    .isSameAs(futures.get(t % 4).get());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void durableWatermarkCoversAsyncWrites()
+            throws Exception {
+        String dir = getTempDir();
+        RollingLog log = track(new RollingLog(0, Long.MAX_VALUE, dir + File.separator + "log", false));
+        assertThat(log.getWriteStats().getDurableWatermark())
+                .isEqualTo(-1L);
+        for (long i = 0; i < 100; i++) {
+            log.write(i, entryOf(i, "entry" + i)).join();
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (log.getWriteStats().getDurableWatermark() < 99L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(log.getWriteStats().getDurableWatermark())
+                .isEqualTo(99L);
+        assertThat(log.getWriteStats().getPendingWrites())
+                .isEqualTo(0L);
+        for (long i = 0; i < 100; i++) {
+            assertThat(payloadOf(log.read(i)))
+                    .isEqualTo("entry" + i);
+        }
+    }
+
+    @Test
+    public void groupCommitterBatchesWrites()
+            throws Exception {
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        GroupCommitter committer = new GroupCommitter("test-commit", 10, 10, 500_000L,
+                batch -> batchSizes.add(batch.size()));
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (long i = 0; i < 10; i++) {
+            futures.add(committer.submit(i, entryOf(i, "entry" + i)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get();
+        committer.close();
+
+        assertThat(batchSizes)
+                .containsExactly(10);
+    }
+}
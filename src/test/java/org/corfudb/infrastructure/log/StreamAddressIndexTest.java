@@ -0,0 +1,171 @@
+package org.corfudb.infrastructure.log;
+
+import com.google.common.collect.ImmutableSet;
+import org.corfudb.AbstractCorfuTest;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the {@link StreamAddressIndex}.
+ */
+public class StreamAddressIndexTest extends AbstractCorfuTest {
+
+    static final UUID STREAM_A = UUID.nameUUIDFromBytes("a".getBytes());
+
+    static final UUID STREAM_B = UUID.nameUUIDFromBytes("b".getBytes());
+
+    @Test
+    public void trimsOnlyNewlyCoveredAddresses() {
+        StreamAddressIndex index = new StreamAddressIndex();
+        for (long i = 0; i < 10; i++) {
+            index.add(i, Collections.singleton(STREAM_A));
+        }
+        List<Long> trimmed = new ArrayList<>();
+        assertThat(index.trim(STREAM_A, 4L, Long.MAX_VALUE, trimmed::add))
+                .isTrue();
+        assertThat(trimmed)
+                .containsExactly(0L, 1L, 2L, 3L, 4L);
+
+        trimmed.clear();
+        index.trim(STREAM_A, 6L, Long.MAX_VALUE, trimmed::add);
+        assertThat(trimmed)
+                .containsExactly(5L, 6L);
+        assertThat(index.size(STREAM_A))
+                .isEqualTo(3);
+    }
+
+    @Test
+    public void sharedAddressesWaitForEveryStream() {
+        StreamAddressIndex index = new StreamAddressIndex();
+        index.add(0L, ImmutableSet.of(STREAM_A, STREAM_B));
+        index.add(1L, Collections.singleton(STREAM_B));
+        List<Long> trimmed = new ArrayList<>();
+
+        index.trim(STREAM_A, 1L, Long.MAX_VALUE, trimmed::add);
+        assertThat(trimmed)
+                .isEmpty();
+        index.trim(STREAM_B, 1L, Long.MAX_VALUE, trimmed::add);
+        assertThat(trimmed)
+                .containsExactly(0L, 1L);
+    }
+
+    @Test
+    public void trimStopsAtDeadline() {
+        StreamAddressIndex index = new StreamAddressIndex();
+        for (long i = 0; i < 1000; i++) {
+            index.add(i, Collections.singleton(STREAM_A));
+        }
+        List<Long> trimmed = new ArrayList<>();
+        assertThat(index.trim(STREAM_A, 999L, System.nanoTime(), trimmed::add))
+                .isFalse();
+        assertThat(trimmed)
+                .hasSize(64);
+        assertThat(index.trim(STREAM_A, 999L, Long.MAX_VALUE, trimmed::add))
+                .isTrue();
+        assertThat(trimmed)
+                .hasSize(1000);
+    }
+
+    @Test
+    public void addressesAreKeptAsRuns() {
+        AddressRangeSet set = new AddressRangeSet();
+        for (long i = 0; i < 100; i++) {
+            set.add(i);
+        }
+        set.add(200L);
+        set.add(150L);
+        set.add(102L);
+        assertThat(set.runCount())
+                .isEqualTo(4);
+        // Filling the gap joins the runs on either side.
+        assertThat(set.add(101L))
+                .isTrue();
+        assertThat(set.add(100L))
+                .isTrue();
+        assertThat(set.add(50L))
+                .isFalse();
+        assertThat(set.getRuns(-1L))
+                .containsExactly(0L, 102L, 150L, 150L, 200L, 200L);
+        assertThat(set.getRuns(120L))
+                .containsExactly(150L, 150L, 200L, 200L);
+        assertThat(set.size())
+                .isEqualTo(105L);
+
+        set.removeUpTo(150L);
+        assertThat(set.getRuns(-1L))
+                .containsExactly(200L, 200L);
+        assertThat(set.contains(150L))
+                .isFalse();
+        assertThat(set.size())
+                .isEqualTo(1L);
+    }
+
+    @Test
+    public void indexIsReplayed()
+            throws Exception {
+        String path = getTempDir() + File.separator + "stream_index";
+        StreamAddressIndex index = new StreamAddressIndex(path);
+        for (long i = 0; i < 10; i++) {
+            index.add(i, Collections.singleton(STREAM_A));
+        }
+        index.add(10L, ImmutableSet.of(STREAM_A, STREAM_B));
+        index.flush();
+        index.add(11L, Collections.singleton(STREAM_B));
+        index.close();
+
+        // Tear the last record.
+        try (RandomAccessFile f = new RandomAccessFile(path, "rw")) {
+            f.setLength(f.length() - 1);
+        }
+
+        StreamAddressIndex reopened = new StreamAddressIndex(path);
+        assertThat(reopened.getAddresses(STREAM_A, -1L))
+                .containsExactly(0L, 10L);
+        assertThat(reopened.getAddresses(STREAM_B, -1L))
+                .containsExactly(10L, 10L);
+        // The shared address is still only trimmed once both streams are trimmed past it.
+        List<Long> trimmed = new ArrayList<>();
+        reopened.trim(STREAM_A, 10L, Long.MAX_VALUE, trimmed::add);
+        assertThat(trimmed)
+                .hasSize(10)
+                .doesNotContain(10L);
+        reopened.trim(STREAM_B, 10L, Long.MAX_VALUE, trimmed::add);
+        assertThat(trimmed)
+                .contains(10L);
+        reopened.close();
+    }
+
+    @Test
+    public void compactionKeepsTheRuns() {
+        String path = getTempDir() + File.separator + "stream_index";
+        StreamAddressIndex index = new StreamAddressIndex(path);
+        for (long i = 0; i < StreamAddressIndex.MIN_COMPACTION_RECORDS + 1; i++) {
+            index.add(i, i % 1000 == 0 ? ImmutableSet.of(STREAM_A, STREAM_B) : Collections.singleton(STREAM_A));
+        }
+        index.flush();
+        assertThat(new File(path).length())
+                .isLessThan(StreamAddressIndex.RECORD_SIZE * 1000L);
+        index.add(StreamAddressIndex.MIN_COMPACTION_RECORDS + 10, Collections.singleton(STREAM_A));
+        index.close();
+
+        StreamAddressIndex reopened = new StreamAddressIndex(path);
+        assertThat(reopened.getAddresses(STREAM_A, -1L))
+                .containsExactly(0L, StreamAddressIndex.MIN_COMPACTION_RECORDS,
+                        StreamAddressIndex.MIN_COMPACTION_RECORDS + 10, StreamAddressIndex.MIN_COMPACTION_RECORDS + 10);
+        assertThat(reopened.size(STREAM_B))
+                .isEqualTo(StreamAddressIndex.MIN_COMPACTION_RECORDS / 1000 + 1);
+        List<Long> trimmed = new ArrayList<>();
+        reopened.trim(STREAM_B, Long.MAX_VALUE - 1, Long.MAX_VALUE, trimmed::add);
+        assertThat(trimmed)
+                .isEmpty();
+        reopened.close();
+    }
+}
@@ -0,0 +1,94 @@
+package org.corfudb.infrastructure.log;
+
+import com.google.common.collect.ImmutableSet;
+import org.corfudb.AbstractCorfuTest;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the {@link TrimMap}.
+ */
+public class TrimMapTest extends AbstractCorfuTest {
+
+    static final UUID STREAM_A = UUID.nameUUIDFromBytes("a".getBytes());
+
+    static final UUID STREAM_B = UUID.nameUUIDFromBytes("b".getBytes());
+
+    String mapPath() {
+        return getTempDir() + File.separator + "trim_map";
+    }
+
+    @Test
+    public void trimsAreReplayed() {
+        String path = mapPath();
+        TrimMap map = new TrimMap(path);
+        assertThat(map.trim(STREAM_A, 10L))
+                .isTrue();
+        assertThat(map.trim(STREAM_A, 5L))
+                .isFalse();
+        map.trim(STREAM_B, 20L);
+        map.trimPrefix(12L);
+        map.close();
+
+        TrimMap reopened = new TrimMap(path);
+        assertThat(reopened.getWatermark())
+                .isEqualTo(12L);
+        assertThat(reopened.getPrefix(STREAM_A))
+                .isEqualTo(12L);
+        assertThat(reopened.getPrefix(STREAM_B))
+                .isEqualTo(20L);
+        // Stream a is covered by the watermark, so only stream b is kept.
+        assertThat(reopened.getStreamPrefixes())
+                .containsOnlyKeys(STREAM_B);
+        assertThat(reopened.isTrimmed(15L, Collections.singleton(STREAM_B)))
+                .isTrue();
+        assertThat(reopened.isTrimmed(15L, ImmutableSet.of(STREAM_A, STREAM_B)))
+                .isFalse();
+        assertThat(reopened.isTrimmed(15L, Collections.emptySet()))
+                .isFalse();
+    }
+
+    @Test
+    public void tornRecordsAreDiscarded()
+            throws Exception {
+        String path = mapPath();
+        TrimMap map = new TrimMap(path);
+        map.trim(STREAM_A, 10L);
+        map.trim(STREAM_A, 11L);
+        map.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(TrimMap.RECORD_SIZE + 7);
+        }
+        TrimMap reopened = new TrimMap(path);
+        assertThat(reopened.getPrefix(STREAM_A))
+                .isEqualTo(10L);
+        // New records are appended after the last valid one.
+        reopened.trim(STREAM_B, 3L);
+        reopened.close();
+        assertThat(new File(path).length())
+                .isEqualTo(2 * TrimMap.RECORD_SIZE);
+        assertThat(new TrimMap(path).getPrefix(STREAM_B))
+                .isEqualTo(3L);
+    }
+
+    @Test
+    public void fileIsCompacted() {
+        String path = mapPath();
+        TrimMap map = new TrimMap(path);
+        for (long i = 0; i < 3 * TrimMap.MIN_COMPACTION_RECORDS; i++) {
+            map.trim(STREAM_A, i);
+        }
+        map.close();
+        assertThat(new File(path).length())
+                .isLessThanOrEqualTo((TrimMap.MIN_COMPACTION_RECORDS + 1) * TrimMap.RECORD_SIZE);
+        assertThat(new TrimMap(path).getPrefix(STREAM_A))
+                .isEqualTo(3 * TrimMap.MIN_COMPACTION_RECORDS - 1);
+    }
+}
@@ -7,16 +7,25 @@ import com.google.common.collect.RangeSet;
 import com.google.common.collect.TreeRangeSet;
 import org.corfudb.infrastructure.AbstractServer;
 import org.corfudb.infrastructure.LogUnitServer;
+import org.corfudb.protocols.wireprotocol.CorfuMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitReadRangeResponseMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
 import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.exceptions.LogUnitException;
 import org.corfudb.runtime.exceptions.OverwriteException;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -130,4 +139,133 @@ public class LogUnitClientTest extends AbstractClientTest {
                     .isEqualTo(Integer.toString(i).getBytes());
         }
     }
+
+    @Test
+    public void largeRangeReadsAreStreamedInChunks()
+            throws Exception {
+        // More chunks than the initial credits, so the read only completes if credits are granted.
+        final int entries = 2000;
+        RangeSet<Long> ranges = TreeRangeSet.create();
+        ranges.add(Range.closed(0L, 9L));
+        ranges.add(Range.closedOpen(20L, (long) entries));
+        for (int i = 0; i < entries; i++) {
+            client.write(i, Collections.<UUID>emptySet(), 0,
+                    Integer.toString(i).getBytes(), Collections.emptyMap()).get();
+        }
+
+        Map<Long, LogUnitReadResponseMsg.ReadResult> rm = client.readRange(ranges).get();
+        assertThat(rm)
+                .hasSize(entries - 10);
+        assertThat(rm)
+                .doesNotContainKey(15L);
+        for (long i = 20; i < entries; i++) {
+            assertThat(rm.get(i).getPayload())
+                    .isEqualTo(Long.toString(i).getBytes());
+        }
+    }
+
+    @Test
+    public void rangeReadChunksAreConsumedAsTheyArrive()
+            throws Exception {
+        final int entries = 2000;
+        RangeSet<Long> ranges = TreeRangeSet.create();
+        ranges.add(Range.closedOpen(0L, (long) entries));
+        for (int i = 0; i < entries; i++) {
+            client.write(i, Collections.<UUID>emptySet(), 0,
+                    Integer.toString(i).getBytes(), Collections.emptyMap()).get();
+        }
+        AtomicInteger credits = new AtomicInteger();
+        router.rules.add(new TestRule()
+                .matches(m -> m.getMsgType() == CorfuMsg.CorfuMsgType.READ_RANGE_CREDIT
+                        && credits.incrementAndGet() < 0));
+
+        CountDownLatch consuming = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        List<Long> consumed = new ArrayList<>();
+        AtomicInteger chunks = new AtomicInteger();
+        CompletableFuture<Void> read = client.readRange(ranges, chunk -> {
+            if (chunks.getAndIncrement() == 0) {
+                consuming.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException(ie);
+                }
+            }
+            chunk.forEach((address, result) -> {
+                assertThat(result.getPayload())
+                        .isEqualTo(Long.toString(address).getBytes());
+                consumed.add(address);
+            });
+        });
+
+        // The first chunk is handed over before the read completes, and no credit is granted for
+        // it until it has been consumed.
+        consuming.await();
+        assertThat(read.isDone())
+                .isFalse();
+        assertThat(credits.get())
+                .isEqualTo(0);
+
+        resume.countDown();
+        read.get();
+        assertThat(chunks.get())
+                .isGreaterThan(1);
+        assertThat(credits.get())
+                .isEqualTo(chunks.get() - 1);
+        assertThat(consumed)
+                .hasSize(entries)
+                .isSorted();
+    }
+
+    @Test
+    public void streamAddressesAreReadInOneRequest()
+            throws Exception {
+        UUID streamA = CorfuRuntime.getStreamID("a");
+        UUID streamB = CorfuRuntime.getStreamID("b");
+        for (int i = 0; i < 30; i++) {
+            Set<UUID> streams = i < 10 || i >= 20 ? Collections.singleton(streamA) : Collections.singleton(streamB);
+            client.write(i, streams, 0, Integer.toString(i).getBytes(), Collections.emptyMap()).get();
+        }
+        client.write(30, ImmutableSet.of(streamA, streamB), 0, "30".getBytes(), Collections.emptyMap()).get();
+
+        RangeSet<Long> expected = TreeRangeSet.create();
+        expected.add(Range.closed(0L, 9L));
+        expected.add(Range.closed(20L, 30L));
+        assertThat(client.readStreamAddresses(streamA).get())
+                .isEqualTo(expected);
+        assertThat(client.readStreamAddresses(streamB).get().asRanges())
+                .containsExactly(Range.closed(10L, 19L), Range.closed(30L, 30L));
+        assertThat(client.readStreamAddresses(CorfuRuntime.getStreamID("c")).get().isEmpty())
+                .isTrue();
+    }
+
+    @Test
+    public void rangeReadsFailOnServerError()
+            throws Exception {
+        RangeSet<Long> ranges = TreeRangeSet.create();
+        ranges.add(Range.closedOpen(0L, 2000L));
+        for (int i = 0; i < 2000; i++) {
+            client.write(i, Collections.<UUID>emptySet(), 0,
+                    Integer.toString(i).getBytes(), Collections.emptyMap()).get();
+        }
+        // Only the first chunk arrives, and then the log unit fails the read.
+        AtomicLong requestID = new AtomicLong();
+        getServerRouter().rules.add(new TestRule()
+                .matches(m -> {
+                    requestID.set(m.getRequestID());
+                    return m.getMsgType() == CorfuMsg.CorfuMsgType.READ_RANGE_RESPONSE
+                            && ((LogUnitReadRangeResponseMsg) m).getChunk() > 0;
+                })
+                .drop());
+
+        CompletableFuture<Map<Long, LogUnitReadResponseMsg.ReadResult>> read = client.readRange(ranges);
+        CorfuMsg error = new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_SERVER_EXCEPTION);
+        error.setRequestID(requestID.get());
+        client.handleMessage(error, null);
+
+        assertThatThrownBy(read::get)
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(LogUnitException.class);
+    }
 }
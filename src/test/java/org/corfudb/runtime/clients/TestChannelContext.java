@@ -216,6 +216,7 @@ public class TestChannelContext implements ChannelHandlerContext {
         /* simulate serialization/deserialization */
             ByteBuf oBuf = ByteBufAllocator.DEFAULT.buffer();
             ((CorfuMsg) message).serialize(oBuf);
+            ((CorfuMsg) message).releaseReferences();
             oBuf.resetReaderIndex();
             return oBuf;
         }
@@ -2,10 +2,18 @@ package org.corfudb.runtime.view;
 
 import lombok.Getter;
 import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.clients.SequencerClient;
 import org.junit.Test;
 
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -79,4 +87,93 @@ public class SequencerViewTest extends AbstractViewTest {
         assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 1).getBackpointerMap())
                 .containsEntry(streamB, 1L);
     }
+
+    @Test
+    public void concurrentRequestsChainBackpointers()
+            throws Exception {
+        final int threads = 8;
+        final int requests = 100;
+        CorfuRuntime r = getDefaultRuntime();
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        Map<Long, SequencerClient.TokenResponse> tokens = new ConcurrentHashMap<>();
+        Map<Long, Integer> numTokens = new ConcurrentHashMap<>();
+        scheduleConcurrently(threads, t -> {
+            for (int i = 0; i < requests; i++) {
+                SequencerClient.TokenResponse token =
+                        r.getSequencerView().nextToken(Collections.singleton(streamA), 1 + i % 2);
+                tokens.put(token.getToken(), token);
+                numTokens.put(token.getToken(), 1 + i % 2);
+                // A query made after tokens were issued always sees them.
+                assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 0).getToken())
+                        .isGreaterThanOrEqualTo(token.getToken() + i % 2);
+            }
+        });
+        executeScheduled(threads, 50, TimeUnit.SECONDS);
+
+        // The requests take contiguous tokens, and each points back to the last token of the one before it.
+        long previous = -1L;
+        for (Map.Entry<Long, SequencerClient.TokenResponse> e : new TreeMap<>(tokens).entrySet()) {
+            assertThat(e.getKey())
+                    .isEqualTo(previous + 1);
+            assertThat(e.getValue().getBackpointerMap())
+                    .containsEntry(streamA, previous);
+            previous = e.getKey() + numTokens.get(e.getKey()) - 1;
+        }
+        assertThat(tokens)
+                .hasSize(threads * requests);
+    }
+
+    @Test
+    public void requestsMadeInFlightAreCoalesced()
+            throws Exception {
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        CountDownLatch inFlight = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> sent = new CopyOnWriteArrayList<>();
+        TokenRequestCoalescer coalescer = new TokenRequestCoalescer(n -> {
+            sent.add(n);
+            if (sent.size() == 1) {
+                inFlight.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException(ie);
+                }
+                return new SequencerClient.TokenResponse(10L, Collections.singletonMap(streamA, 9L));
+            }
+            return new SequencerClient.TokenResponse(11L, Collections.singletonMap(streamA, 10L));
+        });
+        Map<Long, SequencerClient.TokenResponse> responses = new ConcurrentHashMap<>();
+        scheduleConcurrently(t -> responses.put(1L, coalescer.nextToken(1)));
+        scheduleConcurrently(t -> {
+            inFlight.await();
+            Thread second = new Thread(() -> responses.put(2L, coalescer.nextToken(2)));
+            Thread third = new Thread(() -> responses.put(3L, coalescer.nextToken(3)));
+            second.start();
+            while (second.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            third.start();
+            while (third.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            second.join();
+            third.join();
+        });
+        executeScheduled(2, 10, TimeUnit.SECONDS);
+
+        assertThat(sent)
+                .containsExactly(1L, 5L);
+        assertThat(responses.get(1L).getToken())
+                .isEqualTo(10L);
+        assertThat(responses.get(2L).getToken())
+                .isEqualTo(11L);
+        assertThat(responses.get(2L).getBackpointerMap())
+                .containsEntry(streamA, 10L);
+        assertThat(responses.get(3L).getToken())
+                .isEqualTo(13L);
+        assertThat(responses.get(3L).getBackpointerMap())
+                .containsEntry(streamA, 12L);
+    }
 }
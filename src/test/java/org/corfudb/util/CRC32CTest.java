@@ -0,0 +1,41 @@
+package org.corfudb.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the {@link CRC32C} checksum.
+ */
+public class CRC32CTest {
+
+    @Test
+    public void matchesCastagnoliCheckValue() {
+        CRC32C crc = new CRC32C();
+        byte[] check = "123456789".getBytes();
+        crc.update(check, 0, check.length);
+        assertThat(crc.getValue())
+                .isEqualTo(0xE3069283L);
+    }
+
+    @Test
+    public void directBuffersMatchArrays() {
+        byte[] data = new byte[1027];
+        new Random(42).nextBytes(data);
+        CRC32C fromArray = new CRC32C();
+        fromArray.update(data, 0, data.length);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        CRC32C fromBuffer = new CRC32C();
+        fromBuffer.update(direct);
+
+        assertThat(fromBuffer.getValue())
+                .isEqualTo(fromArray.getValue());
+        assertThat(direct.remaining())
+                .isEqualTo(0);
+    }
+}